@@ -15,16 +15,22 @@
 package codeu.chat;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import codeu.chat.common.Secret;
 import codeu.chat.common.Uuid;
 import codeu.chat.common.Uuids;
+import codeu.chat.relay.BundleLog;
 import codeu.chat.relay.Server;
 import codeu.chat.relay.ServerFrontEnd;
 import codeu.chat.util.Logger;
-import codeu.chat.util.Timeline;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
 import codeu.chat.util.connections.ServerConnectionSource;
@@ -33,6 +39,22 @@ final class RelayMain {
 
   private static final Logger.Log LOG = Logger.newLog(RelayMain.class);
 
+  // Bundles are kept on disk in the directory named by "codeu.chat.relay.log"
+  // ("relay_log" by default) so that the relay picks up where it left off when
+  // it restarts. Start the relay with "-Dcodeu.chat.relay.log=" to only keep
+  // the newest bundles in memory. The segment size (MB) and how much of the
+  // log to keep (MB and hours) can be set with the other properties.
+  private static final String LOG_PROPERTY = "codeu.chat.relay.log";
+  private static final String SEGMENT_MB_PROPERTY = "codeu.chat.relay.log.segmentMb";
+  private static final String RETAIN_MB_PROPERTY = "codeu.chat.relay.log.retainMb";
+  private static final String RETAIN_HOURS_PROPERTY = "codeu.chat.relay.log.retainHours";
+
+  // Connections are handled by "codeu.chat.relay.workers" threads (one per
+  // processor by default). At most WORKER_QUEUE connections wait for one, any
+  // more are closed right away.
+  private static final String WORKERS_PROPERTY = "codeu.chat.relay.workers";
+  private static final int WORKER_QUEUE = 1024;
+
   public static void main(String[] args) {
 
     Logger.enableConsoleOutput();
@@ -47,11 +69,17 @@ final class RelayMain {
 
     final int myPort = Integer.parseInt(args[0]);
 
-    try (final ConnectionSource source = ServerConnectionSource.forPort(myPort)) {
+    final String logDirectory = System.getProperty(LOG_PROPERTY, "relay_log");
+
+    try (
+        final ConnectionSource source = ServerConnectionSource.forPort(myPort);
+        final BundleLog log = logDirectory.isEmpty() ? null : openLog(new File(logDirectory))
+    ) {
 
-      // Limit the number of messages that the server tracks to be 1024 and limit the
-      // max number of messages that the relay will send out to be 16.
-      final Server relay = new Server(1024, 16);
+      // Limit the number of messages that the server tracks to be 1024 (when
+      // there is no log) and limit the max number of messages that the relay
+      // will send out to be 16.
+      final Server relay = log == null ? new Server(1024, 16) : new Server(log, 16);
 
       LOG.info("Relay object created.");
 
@@ -66,8 +94,32 @@ final class RelayMain {
       startRelay(relay, source);
 
     } catch (IOException ex) {
-      LOG.error(ex, "Failed to establish server accept port");
+      LOG.error(ex, "Failed to establish server accept port or open the relay log");
+    }
+  }
+
+  private static BundleLog openLog(File directory) throws IOException {
+
+    final long mb = 1024 * 1024;
+    final long hour = 60 * 60 * 1000;
+
+    // Segments are mapped into memory, which can be done at most
+    // Integer.MAX_VALUE bytes at a time.
+    final long segmentMb = Long.getLong(SEGMENT_MB_PROPERTY, 64);
+
+    if (segmentMb < 1 || segmentMb > Integer.MAX_VALUE / mb) {
+      throw new IOException(String.format(
+          "%s must be from 1 to %d, not %d",
+          SEGMENT_MB_PROPERTY,
+          Integer.MAX_VALUE / mb,
+          segmentMb));
     }
+
+    return BundleLog.open(
+        directory,
+        (int) (segmentMb * mb),
+        Long.getLong(RETAIN_MB_PROPERTY, 1024) * mb,
+        Long.getLong(RETAIN_HOURS_PROPERTY, 24 * 7) * hour);
   }
 
   private static void startRelay(Server relay, ConnectionSource source) {
@@ -75,8 +127,18 @@ final class RelayMain {
     final ServerFrontEnd frontEnd = new ServerFrontEnd(relay);
     LOG.info("Relay front end object created.");
 
-    final Timeline timeline = new Timeline();
-    LOG.info("Relay timeline created.");
+    final int threads = Math.max(1, Integer.getInteger(
+        WORKERS_PROPERTY,
+        Runtime.getRuntime().availableProcessors()));
+
+    final ExecutorService workers = new ThreadPoolExecutor(
+        threads,
+        threads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(WORKER_QUEUE),
+        new ThreadPoolExecutor.AbortPolicy());
+    LOG.info("Relay workers created threads=%d.", threads);
 
     LOG.info("Starting relay main loop...");
 
@@ -87,16 +149,25 @@ final class RelayMain {
         final Connection connection = source.connect();
         LOG.info("Connection established.");
 
-        timeline.scheduleNow(new Runnable() {
-          @Override
-          public void run() {
-            try {
-              frontEnd.handleConnection(connection);
-            } catch (Exception ex) {
-              LOG.error(ex, "Exception handling connection.");
+        try {
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                frontEnd.handleConnection(connection);
+              } catch (Exception ex) {
+                LOG.error(ex, "Exception handling connection.");
+              }
             }
+          });
+        } catch (RejectedExecutionException ex) {
+          LOG.warning("Too many pending connections. Connection rejected.");
+          try {
+            connection.close();
+          } catch (IOException closeEx) {
+            LOG.error(closeEx, "Exception while closing connection.");
           }
-        });
+        }
 
       } catch (IOException ex) {
         LOG.error(ex, "Failed to establish connection.");
@@ -24,11 +24,13 @@ import codeu.chat.common.Uuids;
 import codeu.chat.server.NoOpRelay;
 import codeu.chat.server.RemoteRelay;
 import codeu.chat.server.Server;
+import codeu.chat.server.ShardedRelay;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
 import codeu.chat.util.connections.ClientConnectionSource;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.SelectorConnectionSource;
 import codeu.chat.util.connections.ServerConnectionSource;
 
 import java.sql.*;
@@ -37,6 +39,23 @@ final class ServerMain {
 
   private static final Logger.Log LOG = Logger.newLog(ServerMain.class);
 
+  // Start the server with "-Dcodeu.chat.connections=selector" to accept
+  // clients with non-blocking sockets rather than using blocking sockets.
+  private static final String CONNECTIONS_PROPERTY = "codeu.chat.connections";
+
+  // Start the server with "-Dcodeu.chat.server.workers=N" to handle requests
+  // with N threads (one per processor by default) and with
+  // "-Dcodeu.chat.server.queue=N" to let at most N accepted connections wait
+  // for a thread before turning new ones away.
+  private static final String WORKERS_PROPERTY = "codeu.chat.server.workers";
+  private static final String QUEUE_PROPERTY = "codeu.chat.server.queue";
+
+  private static final int DEFAULT_QUEUE = 1024;
+
+  // A client that connects but sends nothing for this long is closed rather
+  // than holding a worker.
+  private static final int FIRST_READ_TIMEOUT_MS = 10000;  // 10 seconds
+
   public static void main(String[] args) {
 
     Logger.enableConsoleOutput();
@@ -54,17 +73,17 @@ final class ServerMain {
 
     final int myPort = Integer.parseInt(args[2]);
 
-    final RemoteAddress relayAddress = args.length > 3 ?
-                                       RemoteAddress.parse(args[3]) :
-                                       null;
+    // The relay may be split over several relays, given as a comma separated
+    // list of addresses ("host@port,host@port"). Every server must list them
+    // in the same order.
+    final String[] relayAddresses = args.length > 3 ?
+                                    args[3].split(",") :
+                                    new String[0];
 
-    try (
-        final ConnectionSource serverSource = ServerConnectionSource.forPort(myPort);
-        final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
-    ) {
+    try (final ConnectionSource serverSource = openServerSource(myPort)) {
 
       LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource);
+      runServer(id, secret, serverSource, openRelay(relayAddresses));
 
     } catch (IOException ex) {
 
@@ -73,16 +92,48 @@ final class ServerMain {
     }
   }
 
+  private static ConnectionSource openServerSource(int port) throws IOException {
+
+    if ("selector".equals(System.getProperty(CONNECTIONS_PROPERTY))) {
+      LOG.info("Using selector connection source.");
+      return SelectorConnectionSource.forPort(port);
+    }
+
+    LOG.info("Using blocking connection source.");
+    return ServerConnectionSource.forPort(port, FIRST_READ_TIMEOUT_MS);
+  }
+
+  private static Relay openRelay(String[] addresses) {
+
+    if (addresses.length == 0) {
+      return new NoOpRelay();
+    }
+
+    if (addresses.length == 1) {
+      final RemoteAddress address = RemoteAddress.parse(addresses[0].trim());
+      return new RemoteRelay(new ClientConnectionSource(address.host, address.port));
+    }
+
+    final ShardedRelay relay = new ShardedRelay();
+    for (final String name : addresses) {
+      final RemoteAddress address = RemoteAddress.parse(name.trim());
+      relay.addShard(name.trim(), new RemoteRelay(new ClientConnectionSource(address.host, address.port)));
+    }
+    return relay;
+  }
+
   private static void runServer(Uuid id,
                                 byte[] secret,
                                 ConnectionSource serverSource,
-                                ConnectionSource relaySource) {
+                                Relay relay) {
+
+    final int workers = Integer.getInteger(WORKERS_PROPERTY,
+                                           Runtime.getRuntime().availableProcessors());
+    final int queue = Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE);
 
-    final Relay relay = relaySource == null ?
-                        new NoOpRelay() :
-                        new RemoteRelay(relaySource);
+    LOG.info("Handling requests with %d workers and a queue of %d.", workers, queue);
 
-    final Server server = new Server(id, secret, relay);
+    final Server server = new Server(id, secret, relay, workers, queue);
 
     LOG.info("Created server.");
 
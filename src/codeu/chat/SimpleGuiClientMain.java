@@ -23,6 +23,7 @@ import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
 import codeu.chat.util.connections.ClientConnectionSource;
 import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.MultiplexedConnectionSource;
 
 final class SimpleGuiClientMain {
 
@@ -45,7 +46,8 @@ final class SimpleGuiClientMain {
     final RemoteAddress address = RemoteAddress.parse(args[0]);
 
     try (
-      final ConnectionSource source = new ClientConnectionSource(address.host, address.port)
+      final ConnectionSource source = new MultiplexedConnectionSource(
+        new ClientConnectionSource(address.host, address.port))
     ) {
       final Controller controller = new Controller(source);
       final View view = new View(source);
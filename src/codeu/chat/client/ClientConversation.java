@@ -14,11 +14,16 @@
 
 package codeu.chat.client;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import codeu.chat.common.Conversation;
+import codeu.chat.common.ConversationChanges;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.Uuid;
 import codeu.chat.util.Logger;
@@ -42,8 +47,14 @@ public final class ClientConversation {
   private final Map<Uuid, ConversationSummary> summariesByUuid = new HashMap<>();
 
   // This is the set of conversations known to the server, sorted by title.
-  private Store<String, ConversationSummary> summariesSortedByTitle =
-      new Store<>(String.CASE_INSENSITIVE_ORDER);
+  // Titles do not change, so this holds ids and the newest summary for each is
+  // found in "summariesByUuid".
+  private Store<String, Uuid> idsSortedByTitle = new Store<>(String.CASE_INSENSITIVE_ORDER);
+
+  // The conversation version (and the epoch it belongs to) that the summaries
+  // held are up to date with.
+  private long epoch = 0;
+  private long version = 0;
 
   public ClientConversation(Controller controller, View view, ClientUser userContext) {
     this.controller = controller;
@@ -108,7 +119,7 @@ public final class ClientConversation {
   public void showAllConversations() {
     updateAllConversations(false);
 
-    for (final ConversationSummary c : summariesByUuid.values()) {
+    for (final ConversationSummary c : getConversationSummariesByActivity()) {
       printConversation(c, userContext);
     }
   }
@@ -150,7 +161,23 @@ public final class ClientConversation {
   }
 
   public Iterable<ConversationSummary> getConversationSummaries() {
-    return summariesSortedByTitle.all();
+    final List<ConversationSummary> summaries = new ArrayList<>(summariesByUuid.size());
+    for (final Uuid id : idsSortedByTitle.all()) {
+      summaries.add(summariesByUuid.get(id));
+    }
+    return summaries;
+  }
+
+  // Get the conversations with the most recently active first.
+  public List<ConversationSummary> getConversationSummariesByActivity() {
+    final List<ConversationSummary> summaries = new ArrayList<>(summariesByUuid.values());
+    Collections.sort(summaries, new Comparator<ConversationSummary>() {
+      @Override
+      public int compare(ConversationSummary a, ConversationSummary b) {
+        return b.lastActivity.compareTo(a.lastActivity);
+      }
+    });
+    return summaries;
   }
 
   // Update the list of known Conversations.
@@ -158,12 +185,24 @@ public final class ClientConversation {
   // the current Conversation, including its messages.
   public void updateAllConversations(boolean currentChanged) {
 
-    summariesByUuid.clear();
-    summariesSortedByTitle = new Store<>(String.CASE_INSENSITIVE_ORDER);
+    // Only the conversations added or changed since the last update are sent.
+    final ConversationChanges changes = view.getConversationChanges(epoch, version);
+
+    if (changes != null) {
+
+      if (changes.full) {
+        summariesByUuid.clear();
+        idsSortedByTitle = new Store<>(String.CASE_INSENSITIVE_ORDER);
+      }
+
+      for (final ConversationSummary cs : changes.summaries) {
+        if (summariesByUuid.put(cs.id, cs) == null) {
+          idsSortedByTitle.insert(cs.title, cs.id);
+        }
+      }
 
-    for (final ConversationSummary cs : view.getAllConversations()) {
-      summariesByUuid.put(cs.id, cs);
-      summariesSortedByTitle.insert(cs.title, cs);
+      epoch = changes.epoch;
+      version = changes.version;
     }
 
     if (currentChanged) {
@@ -180,7 +219,8 @@ public final class ClientConversation {
       final String name = (userContext == null) ? null : userContext.getName(c.owner);
       final String ownerName = (name == null) ? "" : String.format(" (%s)", name);
       System.out.format(" Title: %s\n", c.title);
-      System.out.format("    Id: %s owner: %s%s created %s\n", c.id, c.owner, ownerName, c.creation);
+      System.out.format("    Id: %s owner: %s%s created %s last active %s\n",
+          c.id, c.owner, ownerName, c.creation, c.lastActivity);
     }
   }
 
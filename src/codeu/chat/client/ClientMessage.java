@@ -15,6 +15,8 @@
 package codeu.chat.client;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,10 +31,20 @@ import codeu.chat.util.Method;
 
 public final class ClientMessage {
 
+  // LISTENER
+  //
+  // Told when messages pushed by the server have been added to the current
+  // conversation's contents. It is called on the subscription's thread.
+  public interface Listener {
+
+    void onNewMessages();
+
+  }
+
   private final static Logger.Log LOG = Logger.newLog(ClientMessage.class);
 
   private final static int MESSAGE_MAX_COUNT = 100;
-  private final static int MESSAGE_FETCH_COUNT = 5;
+  private final static int MESSAGE_FETCH_COUNT = 50;
 
   private final Controller controller;
   private final View view;
@@ -44,6 +56,13 @@ public final class ClientMessage {
   private Conversation conversationHead;
   private final List<Message> conversationContents = new ArrayList<>();
 
+  // The position in the conversation of the first message in the contents.
+  private int contentsOffset = 0;
+
+  // Receives new messages in the current conversation.
+  private Subscription subscription = null;
+  private volatile Listener listener = null;
+
   private final ClientUser userContext;
   private final ClientConversation conversationContext;
 
@@ -56,6 +75,10 @@ public final class ClientMessage {
     this.conversationContext.setMessageContext(this);
   }
 
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
   // Validate the message body.
   public static boolean isValidBody(String body) {
     boolean clean = true;
@@ -85,15 +108,16 @@ public final class ClientMessage {
     updateMessages(replaceAll);
   }
 
-  public int currentMessageCount() {
+  public synchronized int currentMessageCount() {
     return (conversationContents == null) ? 0 : conversationContents.size();
   }
 
-  public List<Message> getConversationContents(ConversationSummary summary) {
+  public synchronized List<Message> getConversationContents(ConversationSummary summary) {
     if (conversationHead == null || summary == null || !conversationHead.id.equals(summary.id)) {
       updateMessages(summary, true);
     }
-    return conversationContents;
+    // A copy, as pushed messages may be added while it is being read.
+    return new ArrayList<>(conversationContents);
   }
 
   // For m-add command.
@@ -115,7 +139,7 @@ public final class ClientMessage {
   // For m-list-all command.
   // Show all messages attached to the current conversation. This will balk if the conversation
   // has too many messages (use m-next and m-show instead).
-  public void showAllMessages() {
+  public synchronized void showAllMessages() {
     if (conversationContents.size() == 0) {
       System.out.println(" Current Conversation has no messages");
     } else {
@@ -125,18 +149,50 @@ public final class ClientMessage {
     }
   }
 
+  // For m-search command.
+  // Show the newest messages in the current conversation that contain every word in the text.
+  public void searchMessages(String text) {
+    final Collection<Message> found =
+        view.searchMessages(conversationContext.getCurrentId(), text, 0, MESSAGE_FETCH_COUNT);
+    if (found.isEmpty()) {
+      System.out.println(" No messages found");
+    } else {
+      for (final Message m : found) {
+        printMessage(m, userContext);
+      }
+    }
+  }
+
   // For m-next command.
   // Accept an index (within the current stream) that indicates the next message to show.
   // Message 1 is the head of the Conversation's message chain.
   // Message -1 is the tail of the Conversation's message chain.
   public void selectMessage(int index) {
-    Method.notImplemented();
+
+    if (conversationHead == null) {
+      System.out.println("Error: no conversation selected.");
+      return;
+    }
+
+    final int count = view.getMessageCount(conversationHead.id);
+    final int position = (index > 0) ? index - 1 : count + index;
+
+    final Collection<Message> found = (index == 0 || position < 0 || position >= count) ?
+        Collections.<Message>emptyList() :
+        view.getMessages(conversationHead.id, position, 1);
+
+    if (found.isEmpty()) {
+      System.out.format("Error: no message at index %d.\n", index);
+    } else {
+      current = found.iterator().next();
+      showCurrent();
+    }
   }
 
   // Processing for m-show command.
   // Accept an int for number of messages to attempt to show (1 by default).
   // Negative values go from newest to oldest.
-  public void showMessages(int count) {
+  public synchronized void showMessages(int count) {
     for (final Message m : conversationContents) {
       printMessage(m, userContext);
     }
@@ -150,81 +206,151 @@ public final class ClientMessage {
     Method.notImplemented();
   }
 
-  // Determine the next message ID of the current conversation to start pulling.
-  // This requires a read of the last read message to determine if the chain has been extended.
-  private Uuid getCurrentMessageFetchId(boolean replaceAll) {
-    if (replaceAll || conversationContents.isEmpty()) {
-      // Fetch/refetch all the messages.
-      conversationContents.clear();
-      LOG.info("Refetch all messages: replaceAll=%s firstMessage=%s", replaceAll,
-               conversationHead.firstMessage);
-      return conversationHead.firstMessage;
-    } else {
-      // Locate last known message. Its next, if any, becomes our starting point.
-      return getCurrentTailMessageId();
-    }
-  }
-
-  private Uuid getCurrentTailMessageId() {
-    Uuid nextMessageId = conversationContents.get(conversationContents.size() - 1).id;
-    final List<Message> messageTail = new ArrayList<>(view.getMessages(nextMessageId, 1));
-    if (messageTail.size() > 0) {
-      final Message msg = messageTail.get(0);
-      nextMessageId = msg.next;
-    } else {
-      // fall back.
-      LOG.warning("Failed to get tail of messages, starting from %s", nextMessageId);
-      conversationContents.clear();
-      nextMessageId = conversationHead.firstMessage;
-    }
-    return nextMessageId;
-  }
-
   // Update the list of messages for the current conversation.
-  // Currently rereads the entire message chain.
   public void updateMessages(boolean replaceAll) {
     updateMessages(conversationContext.getCurrent(), replaceAll);
   }
 
-  // Update the list of messages for the given conversation.
-  // Currently rereads the entire message chain.
-  public void updateMessages(ConversationSummary conversation, boolean replaceAll) {
+  // Update the list of messages for the given conversation. The list holds
+  // the conversation's newest messages (up to a limit). Unless everything is
+  // being replaced, only messages after the ones already held are fetched.
+  // Messages are fetched by their position, so the cost depends on how many
+  // messages are fetched and not on how long the conversation is.
+  public synchronized void updateMessages(ConversationSummary conversation, boolean replaceAll) {
     if (conversation == null) {
       LOG.error("conversation argument is null - do nothing.");
       return;
     }
+
+    final Conversation previousHead = conversationHead;
     conversationHead = conversationContext.getConversation(conversation.id);
+
     if (conversationHead == null) {
       LOG.info("ConversationHead is null");
-    } else {
-      LOG.info("ConversationHead: Title=\"%s\" UUID=%s first=%s last=%s\n",
-          conversationHead.title, conversationHead.id, conversationHead.firstMessage,
-          conversationHead.lastMessage);
+      return;
+    }
+
+    LOG.info("ConversationHead: Title=\"%s\" UUID=%s first=%s last=%s\n",
+        conversationHead.title, conversationHead.id, conversationHead.firstMessage,
+        conversationHead.lastMessage);
+
+    final boolean replace = replaceAll ||
+        conversationContents.isEmpty() ||
+        previousHead == null ||
+        !previousHead.id.equals(conversationHead.id);
+
+    if (replace) {
+
+      conversationContents.clear();
+      contentsOffset = Math.max(0, view.getMessageCount(conversationHead.id) - MESSAGE_MAX_COUNT);
+    }
+
+    // Fetch a page at a time until a page comes back short.
+    while (true) {
 
-      Uuid nextMessageId = getCurrentMessageFetchId(replaceAll);
+      final Collection<Message> page = view.getMessages(
+          conversationHead.id,
+          contentsOffset + conversationContents.size(),
+          MESSAGE_FETCH_COUNT);
 
-      //  Stay in loop until all messages read (up to safety limit)
-      while (!nextMessageId.equals(Uuids.NULL) && conversationContents.size() < MESSAGE_MAX_COUNT) {
+      conversationContents.addAll(page);
+
+      if (page.size() < MESSAGE_FETCH_COUNT) {
+        break;
+      }
+    }
+
+    // Only keep the newest messages.
+    final int extra = conversationContents.size() - MESSAGE_MAX_COUNT;
+    if (extra > 0) {
+      conversationContents.subList(0, extra).clear();
+      contentsOffset += extra;
+    }
+
+    LOG.info("Retrieved %d messages for conversation %s (%s).\n",
+        conversationContents.size(), conversationHead.id, conversationHead.title);
+
+    // Set current to first message of conversation.
+    current = (conversationContents.size() > 0) ? conversationContents.get(0) : null;
+
+    if (replace) {
+      subscribe();
+    }
+  }
 
-        for (final Message msg : view.getMessages(nextMessageId, MESSAGE_FETCH_COUNT)) {
+  // Replace the subscription with one to the current conversation that
+  // starts after the newest message held, so that new messages are pushed
+  // by the server instead of being asked for.
+  private void subscribe() {
 
-          conversationContents.add(msg);
+    if (subscription != null) {
+      subscription.close();
+    }
 
-          // Race: message possibly added since conversation fetched.  If that occurs,
-          // pretend the newer messages do not exist - they'll get picked up next time).
-          if (msg.next.equals(Uuids.NULL) || msg.id.equals(conversationHead.lastMessage)) {
-            msg.next = Uuids.NULL;
-            break;
+    final Uuid conversation = conversationHead.id;
+    final Uuid lastSeen = conversationContents.isEmpty() ?
+        Uuids.NULL :
+        conversationContents.get(conversationContents.size() - 1).id;
+
+    subscription = view.subscribe(
+        Collections.singletonMap(conversation, lastSeen),
+        new Subscription.Listener() {
+          @Override
+          public void onMessage(Uuid pushedConversation, Message message) {
+            if (addPushed(pushedConversation, message)) {
+              final Listener current = listener;
+              if (current != null) {
+                current.onNewMessages();
+              }
+            }
           }
-        }
-        nextMessageId = conversationContents.get(conversationContents.size() - 1).next;
+        });
+  }
+
+  // Add a message pushed by the server to the end of the contents. Returns
+  // false if it is not for the current conversation or is already held (it
+  // may also have been fetched).
+  private synchronized boolean addPushed(Uuid conversation, Message message) {
+
+    if (conversationHead == null || !Uuids.equals(conversationHead.id, conversation)) {
+      return false;
+    }
+
+    for (int i = conversationContents.size() - 1; i >= 0; i--) {
+      if (Uuids.equals(conversationContents.get(i).id, message.id)) {
+        return false;
       }
-      LOG.info("Retrieved %d messages for conversation %s (%s).\n",
-          conversationContents.size(), conversationHead.id, conversationHead.title);
+    }
+
+    conversationContents.add(message);
 
-      // Set current to first message of conversation.
-      current = (conversationContents.size() > 0) ? conversationContents.get(0) : null;
+    if (conversationContents.size() > MESSAGE_MAX_COUNT) {
+      conversationContents.remove(0);
+      contentsOffset += 1;
     }
+
+    return true;
+  }
+
+  // Fetch the page of messages before the ones that are held and add them to
+  // the front of the list. Returns false if there are no earlier messages.
+  public synchronized boolean loadEarlierMessages() {
+
+    if (conversationHead == null || contentsOffset == 0) {
+      return false;
+    }
+
+    final int from = Math.max(0, contentsOffset - MESSAGE_FETCH_COUNT);
+
+    final Collection<Message> page = view.getMessages(
+        conversationHead.id,
+        from,
+        contentsOffset - from);
+
+    conversationContents.addAll(0, page);
+    contentsOffset = from;
+
+    return !page.isEmpty();
   }
 
   // Print Message.  User context is used to map from author UUID to name.
@@ -14,13 +14,13 @@
 
 package codeu.chat.client;
 
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
 import codeu.chat.common.User;
+import codeu.chat.common.UserChanges;
 import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
 import codeu.chat.util.Logger;
 import codeu.chat.util.store.Store;
 
@@ -28,7 +28,6 @@ public final class ClientUser {
 
   private final static Logger.Log LOG = Logger.newLog(ClientUser.class);
 
-  private static final Collection<Uuid> EMPTY = Arrays.asList(new Uuid[0]);
   private final Controller controller;
   private final View view;
 
@@ -36,6 +35,9 @@ public final class ClientUser {
 
   private final Map<Uuid, User> usersById = new HashMap<>();
 
+  // The user generation the users held are up to date with.
+  private Uuid generation = Uuids.NULL;
+
   // This is the set of users known to the server, sorted by name.
   private Store<String, User> usersByName = new Store<>(String.CASE_INSENSITIVE_ORDER);
 
@@ -128,14 +130,29 @@ public final class ClientUser {
     return usersByName.all();
   }
 
+  // Bring the users up to date. Only the users added since the last update
+  // are sent by the server, and nothing is sent if there are none.
   public void updateUsers() {
-    usersById.clear();
-    usersByName = new Store<>(String.CASE_INSENSITIVE_ORDER);
 
-    for (final User user : view.getUsersExcluding(EMPTY)) {
-      usersById.put(user.id, user);
-      usersByName.insert(user.name, user);
+    final UserChanges changes = view.getUserChanges(generation);
+
+    if (changes == null) {
+      return;
+    }
+
+    if (changes.full) {
+      usersById.clear();
+      usersByName = new Store<>(String.CASE_INSENSITIVE_ORDER);
     }
+
+    for (final User user : changes.users) {
+      if (!usersById.containsKey(user.id)) {
+        usersById.put(user.id, user);
+        usersByName.insert(user.name, user);
+      }
+    }
+
+    generation = changes.generation;
   }
 
   public static String getUserInfoString(User user) {
@@ -51,6 +51,7 @@ public class Controller implements BasicController {
       Uuids.SERIALIZER.write(connection.out(), author);
       Uuids.SERIALIZER.write(connection.out(), conversation);
       Serializers.STRING.write(connection.out(), body);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.NEW_MESSAGE_RESPONSE) {
         response = Serializers.nullable(Message.SERIALIZER).read(connection.in());
@@ -75,6 +76,7 @@ public class Controller implements BasicController {
       Serializers.INTEGER.write(connection.out(), NetworkCode.NEW_USER_REQUEST);
       Serializers.STRING.write(connection.out(), name);
       Serializers.STRING.write(connection.out(), password);
+      connection.out().flush();
       LOG.info("newUser: Request completed.");
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.NEW_USER_RESPONSE) {
@@ -102,6 +104,7 @@ public class Controller implements BasicController {
       Serializers.INTEGER.write(connection.out(), NetworkCode.NEW_CONVERSATION_REQUEST);
       Serializers.STRING.write(connection.out(), title);
       Uuids.SERIALIZER.write(connection.out(), owner);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.NEW_CONVERSATION_RESPONSE) {
         response = Serializers.nullable(Conversation.SERIALIZER).read(connection.in());
@@ -0,0 +1,192 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+// SUBSCRIPTION
+//
+// Receives new messages in a set of conversations as the server adds them,
+// instead of asking the server for them.
+//
+// The subscription keeps the id of the last message it received from each
+// conversation. When the stream is ended by the server (because the client
+// fell behind) or the connection is lost, it subscribes again from those ids
+// so that every message is received once and in order. Messages are given to
+// the listener on the subscription's own thread.
+public final class Subscription implements Runnable {
+
+  private final static Logger.Log LOG = Logger.newLog(Subscription.class);
+
+  private static final long MIN_RETRY_MS = 500;
+  private static final long MAX_RETRY_MS = 30000;
+
+  public interface Listener {
+
+    void onMessage(Uuid conversation, Message message);
+
+  }
+
+  private final ConnectionSource source;
+  private final Listener listener;
+
+  // Only used by the subscription's thread.
+  private final Map<Uuid, Uuid> lastSeen = new LinkedHashMap<>();
+
+  private final Thread thread = new Thread(this, "subscription");
+
+  private volatile boolean closed = false;
+  private volatile Uuid id = null;
+
+  // SUBSCRIPTION
+  //
+  // Create a subscription to the conversations in "lastSeen". Each is mapped to
+  // the last message already seen in it, or to the NULL id to receive every
+  // message from the first one. Nothing is received until "start" is called.
+  public Subscription(ConnectionSource source, Map<Uuid, Uuid> lastSeen, Listener listener) {
+
+    this.source = source;
+    this.listener = listener;
+
+    for (final Map.Entry<Uuid, Uuid> entry : lastSeen.entrySet()) {
+      this.lastSeen.put(Uuids.complete(entry.getKey()), entry.getValue());
+    }
+
+    thread.setDaemon(true);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  // CLOSE
+  //
+  // Stop receiving messages. The listener may still be given messages that
+  // were already on their way.
+  public void close() {
+
+    closed = true;
+
+    final Uuid current = id;
+    if (current == null) {
+      return;
+    }
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.UNSUBSCRIBE_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), current);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) != NetworkCode.UNSUBSCRIBE_RESPONSE) {
+        LOG.error("Response from server failed.");
+      }
+
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while unsubscribing.");
+    }
+  }
+
+  @Override
+  public void run() {
+
+    long retryMs = MIN_RETRY_MS;
+
+    while (!closed) {
+      try {
+        receive();
+        retryMs = MIN_RETRY_MS;
+      } catch (Exception ex) {
+
+        if (closed) {
+          break;
+        }
+
+        LOG.warning("Subscription lost (%s). Trying again in %d ms.", ex.toString(), retryMs);
+
+        try {
+          Thread.sleep(retryMs);
+        } catch (InterruptedException interrupted) {
+          break;
+        }
+
+        retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+      }
+    }
+  }
+
+  // Subscribe and give every message received to the listener until the
+  // server ends the stream.
+  private void receive() throws IOException {
+
+    try (final Connection connection = source.connect()) {
+
+      final OutputStream out = connection.out();
+
+      Serializers.INTEGER.write(out, NetworkCode.SUBSCRIBE_REQUEST);
+      Serializers.INTEGER.write(out, lastSeen.size());
+      for (final Map.Entry<Uuid, Uuid> entry : lastSeen.entrySet()) {
+        Uuids.SERIALIZER.write(out, entry.getKey());
+        Uuids.SERIALIZER.write(out, entry.getValue());
+      }
+      out.flush();
+
+      final InputStream in = connection.in();
+
+      if (Serializers.INTEGER.read(in) != NetworkCode.SUBSCRIBE_RESPONSE) {
+        throw new IOException("Server did not accept the subscription.");
+      }
+
+      id = Uuids.SERIALIZER.read(in);
+
+      while (true) {
+
+        final int type = Serializers.INTEGER.read(in);
+
+        if (type == NetworkCode.SUBSCRIPTION_END) {
+          id = null;
+          return;
+        }
+
+        if (type != NetworkCode.SUBSCRIPTION_MESSAGE) {
+          throw new IOException(String.format("Unexpected code %d in subscription.", type));
+        }
+
+        final Uuid conversation = Uuids.complete(Uuids.SERIALIZER.read(in));
+        final Message message = Message.SERIALIZER.read(in);
+
+        lastSeen.put(conversation, message.id);
+        listener.onMessage(conversation, message);
+      }
+
+    } finally {
+      id = null;
+    }
+  }
+}
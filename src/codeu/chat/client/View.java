@@ -16,15 +16,19 @@ package codeu.chat.client;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 
 import codeu.chat.common.BasicView;
 import codeu.chat.common.Conversation;
+import codeu.chat.common.ConversationChanges;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.LogicalView;
 import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
+import codeu.chat.common.SearchMode;
 import codeu.chat.common.Time;
 import codeu.chat.common.User;
+import codeu.chat.common.UserChanges;
 import codeu.chat.common.Uuid;
 import codeu.chat.common.Uuids;
 import codeu.chat.util.Logger;
@@ -47,6 +51,17 @@ public final class View implements BasicView, LogicalView{
     this.source = source;
   }
 
+  // SUBSCRIBE
+  //
+  // Start receiving new messages in the conversations as they are added. See
+  // Subscription for what "lastSeen" holds. Unlike the other methods this does
+  // not block; messages are given to the listener on another thread.
+  public Subscription subscribe(Map<Uuid, Uuid> lastSeen, Subscription.Listener listener) {
+    final Subscription subscription = new Subscription(source, lastSeen, listener);
+    subscription.start();
+    return subscription;
+  }
+
   @Override
   public Collection<User> getUsers(Collection<Uuid> ids) {
 
@@ -56,6 +71,7 @@ public final class View implements BasicView, LogicalView{
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_USERS_BY_ID_REQUEST);
       Serializers.collection(Uuids.SERIALIZER).write(connection.out(), ids);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USERS_BY_ID_RESPONSE) {
         users.addAll(Serializers.collection(User.SERIALIZER).read(connection.in()));
@@ -79,6 +95,7 @@ public final class View implements BasicView, LogicalView{
     try (final Connection connection = source.connect()) {
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_ALL_CONVERSATIONS_REQUEST);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE) {
         summaries.addAll(Serializers.collection(ConversationSummary.SERIALIZER).read(connection.in()));
@@ -103,6 +120,7 @@ public final class View implements BasicView, LogicalView{
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST);
       Serializers.collection(Uuids.SERIALIZER).write(connection.out(), ids);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE) {
         conversations.addAll(Serializers.collection(Conversation.SERIALIZER).read(connection.in()));
@@ -126,6 +144,7 @@ public final class View implements BasicView, LogicalView{
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_ID_REQUEST);
       Serializers.collection(Uuids.SERIALIZER).write(connection.out(), ids);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE) {
         messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
@@ -148,6 +167,7 @@ public final class View implements BasicView, LogicalView{
     try (final Connection connection = source.connect()) {
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_USER_GENERATION_REQUEST);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USER_GENERATION_RESPONSE) {
         generation = Uuids.SERIALIZER.read(connection.in());
@@ -162,6 +182,55 @@ public final class View implements BasicView, LogicalView{
     return generation;
   }
 
+  @Override
+  public ConversationChanges getConversationChanges(long epoch, long version) {
+
+    ConversationChanges changes = null;
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_CONVERSATION_CHANGES_REQUEST);
+      Serializers.LONG.write(connection.out(), epoch);
+      Serializers.LONG.write(connection.out(), version);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATION_CHANGES_RESPONSE) {
+        changes = ConversationChanges.SERIALIZER.read(connection.in());
+      } else {
+        LOG.error("Response from server failed");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return changes;
+  }
+
+  @Override
+  public UserChanges getUserChanges(Uuid generation) {
+
+    UserChanges changes = null;
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_USER_CHANGES_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), generation);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USER_CHANGES_RESPONSE) {
+        changes = UserChanges.SERIALIZER.read(connection.in());
+      } else {
+        LOG.error("Response from server failed");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return changes;
+  }
+
   @Override
   public Collection<User> getUsersExcluding(Collection<Uuid> ids) {
 
@@ -171,6 +240,7 @@ public final class View implements BasicView, LogicalView{
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_USERS_EXCLUDING_REQUEST);
       Serializers.collection(Uuids.SERIALIZER).write(connection.out(), ids);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USERS_EXCLUDING_RESPONSE) {
         users.addAll(Serializers.collection(User.SERIALIZER).read(connection.in()));
@@ -195,6 +265,7 @@ public final class View implements BasicView, LogicalView{
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_CONVERSATIONS_BY_TIME_REQUEST);
       Time.SERIALIZER.write(connection.out(), start);
       Time.SERIALIZER.write(connection.out(), end);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_TIME_RESPONSE) {
         conversations.addAll(Serializers.collection(Conversation.SERIALIZER).read(connection.in()));
@@ -218,6 +289,7 @@ public final class View implements BasicView, LogicalView{
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_CONVERSATIONS_BY_TITLE_REQUEST);
       Serializers.STRING.write(connection.out(), filter);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_CONVERSATIONS_BY_TITLE_RESPONSE) {
         conversations.addAll(Serializers.collection(Conversation.SERIALIZER).read(connection.in()));
@@ -232,6 +304,36 @@ public final class View implements BasicView, LogicalView{
     return conversations;
   }
 
+  @Override
+  public Collection<Conversation> searchConversations(SearchMode mode,
+                                                      String query,
+                                                      int offset,
+                                                      int limit) {
+
+    final Collection<Conversation> conversations = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SEARCH_CONVERSATIONS_REQUEST);
+      Serializers.INTEGER.write(connection.out(), mode.ordinal());
+      Serializers.STRING.write(connection.out(), query);
+      Serializers.INTEGER.write(connection.out(), offset);
+      Serializers.INTEGER.write(connection.out(), limit);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SEARCH_CONVERSATIONS_RESPONSE) {
+        conversations.addAll(Serializers.collection(Conversation.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return conversations;
+  }
+
   @Override
   public Collection<Message> getMessages(Uuid conversation, Time start, Time end) {
 
@@ -240,8 +342,10 @@ public final class View implements BasicView, LogicalView{
     try (final Connection connection = source.connect()) {
 
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_TIME_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), conversation);
       Time.SERIALIZER.write(connection.out(), start);
       Time.SERIALIZER.write(connection.out(), end);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_BY_TIME_RESPONSE) {
         messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
@@ -267,6 +371,7 @@ public final class View implements BasicView, LogicalView{
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_RANGE_REQUEST);
       Uuids.SERIALIZER.write(connection.out(), rootMessage);
       Serializers.INTEGER.write(connection.out(), range);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_BY_RANGE_RESPONSE) {
         messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
@@ -282,6 +387,111 @@ public final class View implements BasicView, LogicalView{
     return messages;
   }
 
+  @Override
+  public Collection<Message> getMessages(Uuid conversation, int offset, int count) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_POSITION_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), conversation);
+      Serializers.INTEGER.write(connection.out(), offset);
+      Serializers.INTEGER.write(connection.out(), count);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_BY_POSITION_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
+  @Override
+  public Collection<Message> getLastMessages(Uuid conversation, int count) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_LAST_MESSAGES_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), conversation);
+      Serializers.INTEGER.write(connection.out(), count);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_LAST_MESSAGES_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
+  @Override
+  public int getMessageCount(Uuid conversation) {
+
+    int count = 0;
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGE_COUNT_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), conversation);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGE_COUNT_RESPONSE) {
+        count = Serializers.INTEGER.read(connection.in());
+      } else {
+        LOG.error("Response from server failed.");
+      }
+
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return count;
+  }
+
+  @Override
+  public Collection<Message> searchMessages(Uuid conversation, String query, int offset, int limit) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SEARCH_MESSAGES_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), conversation);
+      Serializers.STRING.write(connection.out(), query);
+      Serializers.INTEGER.write(connection.out(), offset);
+      Serializers.INTEGER.write(connection.out(), limit);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SEARCH_MESSAGES_RESPONSE) {
+        messages.addAll(Serializers.collection(Message.SERIALIZER).read(connection.in()));
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
   @Override
   public User getSignInStatus(String name, String password){
 
@@ -292,6 +502,7 @@ public final class View implements BasicView, LogicalView{
 	  Serializers.INTEGER.write(connection.out(), NetworkCode.SIGN_IN_REQUEST);
 	  Serializers.STRING.write(connection.out(), name);
 	  Serializers.STRING.write(connection.out(), password);
+	  connection.out().flush();
 	  LOG.info("%s Sign in request completed.", name);
 
 	  if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SIGN_IN_RESPONSE){
@@ -60,6 +60,7 @@ public final class Chat {
     System.out.println("   m-list-all       - list all messages in the current conversation.");
     System.out.println("   m-next <index>   - index of next message to view.");
     System.out.println("   m-show <count>   - show next <count> messages.");
+    System.out.println("   m-search <text>  - show the newest messages containing <text>.");
   }
 
   // Prompt for new command.
@@ -163,7 +164,6 @@ public final class Chat {
 
     } else if (token.equals("m-next")) {
 
-      // TODO: Implement m-next command to jump to an index in the message chain.
       if (!clientContext.conversation.hasCurrent()) {
         System.out.println("ERROR: No conversation selected.");
       } else if (!tokenScanner.hasNextInt()) {
@@ -172,6 +172,16 @@ public final class Chat {
         clientContext.message.selectMessage(tokenScanner.nextInt());
       }
 
+    } else if (token.equals("m-search")) {
+
+      if (!clientContext.conversation.hasCurrent()) {
+        System.out.println("ERROR: No conversation selected.");
+      } else if (!tokenScanner.hasNext()) {
+        System.out.println("ERROR: Search text not supplied.");
+      } else {
+        clientContext.message.searchMessages(tokenScanner.nextLine().trim());
+      }
+
     } else if (token.equals("m-show")) {
 
       // TODO: Implement m-show command to show N messages (currently just show all)
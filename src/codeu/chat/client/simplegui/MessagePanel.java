@@ -20,6 +20,7 @@ import java.awt.event.ActionListener;
 import javax.swing.*;
 
 import codeu.chat.client.ClientContext;
+import codeu.chat.client.ClientMessage;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.Message;
 import codeu.chat.common.User;
@@ -115,6 +116,9 @@ public final class MessagePanel extends JPanel {
     final JPanel buttonPanel = new JPanel();
     final GridBagConstraints buttonPanelC = new GridBagConstraints();
 
+    final JButton earlierButton = new JButton("Earlier");
+    buttonPanel.add(earlierButton);
+
     final JButton addButton = new JButton("Add");
     buttonPanel.add(addButton);
 
@@ -168,6 +172,31 @@ public final class MessagePanel extends JPanel {
       }
     });
 
+    // User click Messages Earlier button - fetch the page of messages before the ones shown.
+    earlierButton.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        if (!clientContext.conversation.hasCurrent()) {
+          JOptionPane.showMessageDialog(MessagePanel.this, "You must select a conversation.");
+        } else if (clientContext.message.loadEarlierMessages()) {
+          MessagePanel.this.getAllMessages(clientContext.conversation.getCurrent());
+        }
+      }
+    });
+
+    // Server pushed new messages - show them without waiting for a click.
+    clientContext.message.setListener(new ClientMessage.Listener() {
+      @Override
+      public void onNewMessages() {
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            MessagePanel.this.getAllMessages(clientContext.conversation.getCurrent());
+          }
+        });
+      }
+    });
+
     // Panel is set up. If there is a current conversation, Populate the conversation list.
     getAllMessages(clientContext.conversation.getCurrent());
   }
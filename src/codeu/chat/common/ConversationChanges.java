@@ -0,0 +1,77 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+
+// CONVERSATION CHANGES
+//
+// The summaries of the conversations added or changed since a conversation
+// version, and the version they bring the reader up to. Versions only have
+// meaning within one epoch (one run of the server). If "full" is set the
+// reader's epoch or version was not known and "summaries" holds every
+// conversation, replacing anything the reader already had.
+public final class ConversationChanges {
+
+  public static final Serializer<ConversationChanges> SERIALIZER =
+      new Serializer<ConversationChanges>() {
+
+    @Override
+    public void write(OutputStream out, ConversationChanges value) throws IOException {
+
+      Serializers.LONG.write(out, value.epoch);
+      Serializers.LONG.write(out, value.version);
+      Serializers.BOOLEAN.write(out, value.full);
+      Serializers.collection(ConversationSummary.SERIALIZER).write(out, value.summaries);
+
+    }
+
+    @Override
+    public ConversationChanges read(InputStream in) throws IOException {
+
+      return new ConversationChanges(
+          Serializers.LONG.read(in),
+          Serializers.LONG.read(in),
+          Serializers.BOOLEAN.read(in),
+          Serializers.collection(ConversationSummary.SERIALIZER).read(in)
+      );
+
+    }
+  };
+
+  public final long epoch;
+  public final long version;
+  public final boolean full;
+  public final Collection<ConversationSummary> summaries;
+
+  public ConversationChanges(long epoch,
+                             long version,
+                             boolean full,
+                             Collection<ConversationSummary> summaries) {
+
+    this.epoch = epoch;
+    this.version = version;
+    this.full = full;
+    this.summaries = summaries;
+
+  }
+}
@@ -34,6 +34,7 @@ public final class ConversationSummary implements ListViewable {
       Uuids.SERIALIZER.write(out, value.owner);
       Time.SERIALIZER.write(out, value.creation);
       Serializers.STRING.write(out, value.title);
+      Time.SERIALIZER.write(out, value.lastActivity);
 
     }
 
@@ -44,7 +45,8 @@ public final class ConversationSummary implements ListViewable {
           Uuids.SERIALIZER.read(in),
           Uuids.SERIALIZER.read(in),
           Time.SERIALIZER.read(in),
-          Serializers.STRING.read(in)
+          Serializers.STRING.read(in),
+          Time.SERIALIZER.read(in)
       );
 
     }
@@ -55,12 +57,21 @@ public final class ConversationSummary implements ListViewable {
   public final Time creation;
   public final String title;
 
+  // When the last message was added to the conversation, or when it was
+  // created if it has no messages.
+  public final Time lastActivity;
+
   public ConversationSummary(Uuid id, Uuid owner, Time creation, String title) {
+    this(id, owner, creation, title, creation);
+  }
+
+  public ConversationSummary(Uuid id, Uuid owner, Time creation, String title, Time lastActivity) {
 
     this.id = id;
     this.owner = owner;
     this.creation = creation;
     this.title = title;
+    this.lastActivity = lastActivity;
 
   }
 
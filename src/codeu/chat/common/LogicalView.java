@@ -31,6 +31,22 @@ public interface LogicalView {
   //   tracking this number will allow checking if it is worth fetching all users.
   Uuid getUserGeneration();
 
+  // GET USER CHANGES
+  //
+  //   Get the users added since the given generation and the generation that
+  //   they bring the caller up to. Nothing but the generation is sent back if
+  //   no users have been added. If the generation is not known (such as the
+  //   NULL id) every user is returned.
+  UserChanges getUserChanges(Uuid generation);
+
+  // GET CONVERSATION CHANGES
+  //
+  //   Get the summaries of the conversations added or given new messages since
+  //   the given version of the given epoch, and the epoch and version that they
+  //   bring the caller up to. If the epoch or version is not known (such as
+  //   zero for both) every conversation is returned.
+  ConversationChanges getConversationChanges(long epoch, long version);
+
   // GET USERS EXCLUDING
   //
   //   Get all users whose ID are not found in the given set of ids.
@@ -47,9 +63,17 @@ public interface LogicalView {
   //
   //   Get a collection of conversations given a regex expression that will be
   //   used against every conversation's title. All conversations whose title
-  //   matches the given regex expression will be returned.
+  //   matches the given regex expression will be returned. The search is given
+  //   a time limit, so a costly expression may not return every match.
   Collection<Conversation> getConversations(String filter);
 
+  // SEARCH CONVERSATIONS
+  //
+  //   Get the conversations whose titles match "query", skipping the first
+  //   "offset" matches and returning at most "limit" of them. How the query
+  //   is used is set by "mode".
+  Collection<Conversation> searchConversations(SearchMode mode, String query, int offset, int limit);
+
   // GET MESSAGES
   //
   //   Get all messages from a single conversation whose time value falls
@@ -68,6 +92,35 @@ public interface LogicalView {
   //   no messages will be returned.
   Collection<Message> getMessages(Uuid rootMessage, int range);
 
+  // GET MESSAGES
+  //
+  //   Get up to "count" messages from a single conversation, starting with the
+  //   message at position "offset". The first message in a conversation is at
+  //   position zero. Messages are returned in the order they are in the
+  //   conversation. If the conversation is not found, or the offset is past
+  //   the end of the conversation, no messages will be returned.
+  Collection<Message> getMessages(Uuid conversation, int offset, int count);
+
+  // GET LAST MESSAGES
+  //
+  //   Get the last "count" messages of a single conversation, in the order
+  //   they are in the conversation.
+  Collection<Message> getLastMessages(Uuid conversation, int count);
+
+  // GET MESSAGE COUNT
+  //
+  //   Get the number of messages in a conversation. Zero if the conversation
+  //   is not found.
+  int getMessageCount(Uuid conversation);
+
+  // SEARCH MESSAGES
+  //
+  //   Get the messages in a conversation that contain every word in "query",
+  //   newest first, skipping the first "offset" matches and returning at most
+  //   "limit" of them. Case and punctuation are ignored. If the conversation
+  //   is the NULL id every conversation is searched.
+  Collection<Message> searchMessages(Uuid conversation, String query, int offset, int limit);
+
   User getSignInStatus(String name, String password);
 
 }
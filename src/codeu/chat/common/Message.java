@@ -59,7 +59,9 @@ public final class Message {
   public final Time creation;
   public final Uuid author;
   public final String content;
-  public Uuid next;
+  // Set when the next message is added to the conversation. Volatile so that
+  // the message can be read without the server's lock.
+  public volatile Uuid next;
 
   public Message(Uuid id, Uuid next, Uuid previous, Time creation, Uuid author, String content) {
 
@@ -49,5 +49,33 @@ public final class NetworkCode {
       RELAY_WRITE_REQUEST = 29,
       RELAY_WRITE_RESPONSE = 30,
       SIGN_IN_REQUEST = 31,
-      SIGN_IN_RESPONSE = 32;
+      SIGN_IN_RESPONSE = 32,
+      MULTIPLEX_OPEN_REQUEST = 33,
+      MULTIPLEX_OPEN_RESPONSE = 34,
+      GET_MESSAGES_BY_POSITION_REQUEST = 35,
+      GET_MESSAGES_BY_POSITION_RESPONSE = 36,
+      GET_LAST_MESSAGES_REQUEST = 37,
+      GET_LAST_MESSAGES_RESPONSE = 38,
+      GET_MESSAGE_COUNT_REQUEST = 39,
+      GET_MESSAGE_COUNT_RESPONSE = 40,
+      SEARCH_CONVERSATIONS_REQUEST = 41,
+      SEARCH_CONVERSATIONS_RESPONSE = 42,
+      SEARCH_MESSAGES_REQUEST = 43,
+      SEARCH_MESSAGES_RESPONSE = 44,
+      SUBSCRIBE_REQUEST = 45,
+      SUBSCRIBE_RESPONSE = 46,
+      SUBSCRIPTION_MESSAGE = 47,
+      SUBSCRIPTION_END = 48,
+      UNSUBSCRIBE_REQUEST = 49,
+      UNSUBSCRIBE_RESPONSE = 50,
+      GET_USER_CHANGES_REQUEST = 51,
+      GET_USER_CHANGES_RESPONSE = 52,
+      GET_CONVERSATION_CHANGES_REQUEST = 53,
+      GET_CONVERSATION_CHANGES_RESPONSE = 54,
+      RELAY_WRITE_BATCH_REQUEST = 55,
+      RELAY_WRITE_BATCH_RESPONSE = 56,
+      RELAY_SUBSCRIBE_REQUEST = 57,
+      RELAY_SUBSCRIBE_RESPONSE = 58,
+      RELAY_SUBSCRIPTION_BUNDLES = 59,
+      MULTIPLEX_BUSY_RESPONSE = 60;
 }
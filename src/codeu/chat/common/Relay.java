@@ -104,6 +104,26 @@ public interface Relay {
 
   }
 
+  // LISTENER
+  //
+  // Given the bundles pushed by the relay to a subscription, in the order they
+  // were written to the relay.
+  interface Listener {
+
+    void onBundles(Collection<Bundle> bundles);
+
+  }
+
+  // SUBSCRIPTION
+  //
+  // Returned by "subscribe" when the relay accepted. Once cancelled, the
+  // listener is not given any more bundles.
+  interface Subscription {
+
+    void cancel();
+
+  }
+
   // PACK
   //
   // Pack together a uuid, string, and time into a component. This is to make
@@ -133,4 +153,13 @@ public interface Relay {
   // was given Uuids.NULL.
   Collection<Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range);
 
+  // SUBSCRIBE
+  //
+  // Have every bundle after "root" given to "listener" as the relay gets it,
+  // rather than reading for them. The subscription lasts as long as the
+  // process, or until it is cancelled, and carries on from the last bundle it
+  // was given if the relay is lost. Returns null if this relay can only be
+  // read from, in which case "read" must be used instead.
+  Subscription subscribe(Uuid teamId, byte[] teamSecret, Uuid root, Listener listener);
+
 }
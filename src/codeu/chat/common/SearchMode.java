@@ -0,0 +1,33 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.common;
+
+// SEARCH MODE
+//
+// How a search query is matched against text.
+public enum SearchMode {
+
+  // The text starts with the query, ignoring case.
+  PREFIX,
+
+  // The text contains the query, ignoring case.
+  SUBSTRING,
+
+  // The whole text matches the query as a regular expression. This can be
+  // slow, so searches in this mode are given a time limit.
+  REGEX
+
+}
@@ -0,0 +1,68 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+
+// USER CHANGES
+//
+// The users added since a user generation, and the generation they bring the
+// reader up to. If "full" is set the reader's generation was not known (for
+// example it came from an earlier run of the server) and "users" holds every
+// user, replacing anything the reader already had.
+public final class UserChanges {
+
+  public static final Serializer<UserChanges> SERIALIZER = new Serializer<UserChanges>() {
+
+    @Override
+    public void write(OutputStream out, UserChanges value) throws IOException {
+
+      Uuids.SERIALIZER.write(out, value.generation);
+      Serializers.BOOLEAN.write(out, value.full);
+      Serializers.collection(User.SERIALIZER).write(out, value.users);
+
+    }
+
+    @Override
+    public UserChanges read(InputStream in) throws IOException {
+
+      return new UserChanges(
+          Uuids.SERIALIZER.read(in),
+          Serializers.BOOLEAN.read(in),
+          Serializers.collection(User.SERIALIZER).read(in)
+      );
+
+    }
+  };
+
+  public final Uuid generation;
+  public final boolean full;
+  public final Collection<User> users;
+
+  public UserChanges(Uuid generation, boolean full, Collection<User> users) {
+
+    this.generation = generation;
+    this.full = full;
+    this.users = users;
+
+  }
+}
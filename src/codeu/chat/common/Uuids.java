@@ -15,6 +15,7 @@
 package codeu.chat.common;
 
 import java.lang.StringBuilder;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -63,8 +64,14 @@ public final class Uuids {
     public Uuid read(InputStream in) throws IOException {
 
       // "input.read" can only return one by of data so there is no need
-      // to check that the bounds of 0 to 255 is respected.
+      // to check that the bounds of 0 to 255 is respected. It will return -1
+      // if the stream has ended.
       final int length = in.read();
+
+      if (length < 0) {
+        throw new EOFException("Stream ended while reading a Uuid");
+      }
+
       final int[] chain = new int[length];
 
       for (int i = 0; i < length; i++) {
@@ -0,0 +1,424 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.relay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import codeu.chat.util.Logger;
+
+// BUNDLE LOG
+//
+// An append-only log of relay bundles on disk, kept in a directory of
+// segment files. Each segment is named after the sequence number of its first
+// bundle, is created at its full size and is memory-mapped, so appends and
+// reads are copies to and from the mapping and the bundles never need to be
+// held on the heap. Each record is:
+//
+//   int length | int crc32 of payload | payload (the bundle as sent to servers)
+//
+// For each segment the offset of every record is kept, so finding a bundle by
+// sequence number is a lookup of its segment and then an array index.
+//
+// When the log is opened each segment is checked record by record and the
+// log ends at the first record that is not whole (a write cut short by a
+// crash). The oldest segments are deleted once the log is over its size limit
+// or their newest bundle is older than the age limit; the segment being
+// written to is always kept.
+//
+// Appends take turns, reads do not lock. A record is written to the mapping
+// before its segment's count is moved on, so readers never see a record
+// before it is whole. A segment deleted while it is being read stays mapped
+// until the reader lets go of it.
+public final class BundleLog implements Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(BundleLog.class);
+
+  private static final String SUFFIX = ".log";
+  private static final int HEADER_BYTES = 8;
+
+  private static final class Segment {
+
+    final File file;
+    final int first;
+    final MappedByteBuffer buffer;
+
+    // Only grown by copying, so a reader that has the count can use any
+    // version of the array from then on.
+    volatile int[] offsets = new int[64];
+    volatile int count = 0;
+
+    // Only used by writers.
+    int end = 0;
+    long lastWrite;
+
+    Segment(File file, int first, MappedByteBuffer buffer, long lastWrite) {
+      this.file = file;
+      this.first = first;
+      this.buffer = buffer;
+      this.lastWrite = lastWrite;
+    }
+
+    int last() {
+      return first + count - 1;
+    }
+
+    void add(int offset, int length) {
+      final int index = count;
+      if (index == offsets.length) {
+        offsets = Arrays.copyOf(offsets, index * 2);
+      }
+      offsets[index] = offset;
+      end = offset + HEADER_BYTES + length;
+      count = index + 1;
+    }
+  }
+
+  private final File directory;
+  private final int segmentBytes;
+  private final long retainBytes;
+  private final long retainMs;
+
+  private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+  private long totalBytes = 0;
+
+  private BundleLog(File directory, int segmentBytes, long retainBytes, long retainMs) {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.retainBytes = retainBytes;
+    this.retainMs = retainMs;
+  }
+
+  // OPEN
+  //
+  // Open the log in "directory", creating it if needed. New segments are
+  // "segmentBytes" long. Segments are deleted once the log is longer than
+  // "retainBytes" or they have not been written to for "retainMs".
+  public static BundleLog open(File directory,
+                               int segmentBytes,
+                               long retainBytes,
+                               long retainMs) throws IOException {
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can not create relay log directory " + directory);
+    }
+
+    final BundleLog log = new BundleLog(directory, segmentBytes, retainBytes, retainMs);
+    log.recover();
+    log.retain();
+
+    LOG.info("Opened relay log %s with %d segments, bundles %d to %d.",
+             directory,
+             log.segments.size(),
+             log.oldest(),
+             log.newest());
+
+    return log;
+  }
+
+  public File directory() {
+    return directory;
+  }
+
+  // The sequence of the oldest bundle in the log, or -1 if it is empty.
+  public int oldest() {
+    final Map.Entry<Integer, Segment> entry = segments.firstEntry();
+    return entry == null ? -1 : entry.getValue().first;
+  }
+
+  // The sequence of the newest bundle in the log, or -1 if it is empty.
+  public int newest() {
+    final Map.Entry<Integer, Segment> entry = segments.lastEntry();
+    return entry == null ? -1 : entry.getValue().last();
+  }
+
+  // APPEND
+  //
+  // Add a bundle to the end of the log. Its sequence must be one more than
+  // the newest bundle's, unless the log is empty.
+  public synchronized void append(int sequence, byte[] payload) throws IOException {
+
+    Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+    if (segment != null && sequence != segment.last() + 1) {
+      throw new IllegalArgumentException(String.format(
+          "Bundle %d does not follow bundle %d", sequence, segment.last()));
+    }
+
+    final int length = HEADER_BYTES + payload.length;
+
+    if (segment == null || segment.buffer.capacity() - segment.end < length) {
+      if (segment != null) {
+        segment.buffer.force();
+      }
+      segment = create(sequence, Math.max(segmentBytes, length));
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    final ByteBuffer out = segment.buffer.duplicate();
+    out.position(segment.end);
+    out.putInt(payload.length);
+    out.putInt((int) crc.getValue());
+    out.put(payload);
+
+    segment.add(segment.end, payload.length);
+    segment.lastWrite = System.currentTimeMillis();
+
+    retain();
+  }
+
+  // READ
+  //
+  // Get the payloads of up to "count" bundles starting at "first".
+  public List<byte[]> read(int first, int count) {
+
+    final List<byte[]> payloads = new ArrayList<>();
+
+    for (int sequence = first; sequence < first + count; sequence++) {
+
+      final ByteBuffer record = record(sequence);
+      if (record == null) {
+        break;
+      }
+
+      final byte[] payload = new byte[record.remaining()];
+      record.get(payload);
+      payloads.add(payload);
+    }
+
+    return payloads;
+  }
+
+  // TRANSFER
+  //
+  // Write the payloads of "count" bundles starting at "first" to "out" as they
+  // are in the log, without reading them into objects. All the bundles must be
+  // in the log.
+  public void transfer(int first, int count, OutputStream out) throws IOException {
+
+    final byte[] chunk = new byte[8192];
+
+    for (int sequence = first; sequence < first + count; sequence++) {
+
+      final ByteBuffer record = record(sequence);
+      if (record == null) {
+        throw new IOException(String.format("Bundle %d is not in the log", sequence));
+      }
+
+      while (record.hasRemaining()) {
+        final int length = Math.min(chunk.length, record.remaining());
+        record.get(chunk, 0, length);
+        out.write(chunk, 0, length);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    for (final Segment segment : segments.values()) {
+      segment.buffer.force();
+    }
+  }
+
+  // The payload of a bundle, as a buffer of its own, or null if it is not in
+  // the log.
+  private ByteBuffer record(int sequence) {
+
+    final Map.Entry<Integer, Segment> entry = segments.floorEntry(sequence);
+
+    if (entry == null) {
+      return null;
+    }
+
+    final Segment segment = entry.getValue();
+    final int index = sequence - segment.first;
+
+    // Read the count before the offsets.
+    if (index >= segment.count) {
+      return null;
+    }
+
+    final int offset = segment.offsets[index];
+
+    final ByteBuffer record = segment.buffer.duplicate();
+    final int length = record.getInt(offset);
+    record.position(offset + HEADER_BYTES);
+    record.limit(offset + HEADER_BYTES + length);
+
+    return record;
+  }
+
+  private Segment create(int first, int size) throws IOException {
+
+    final File file = new File(directory, String.format("%010d%s", first, SUFFIX));
+    final Segment segment = new Segment(file, first, map(file, size), System.currentTimeMillis());
+
+    segments.put(first, segment);
+    totalBytes += size;
+
+    return segment;
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (raf.length() != size) {
+        raf.setLength(size);
+      }
+      // The mapping stays valid after the file is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  // Load the segments on disk, stopping at the first record that is not
+  // whole. Anything after it can not be trusted and is deleted.
+  private void recover() throws IOException {
+
+    final File[] files = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().matches("[0-9]+\\" + SUFFIX);
+      }
+    });
+
+    final TreeMap<Integer, File> byFirst = new TreeMap<>();
+    for (final File file : files) {
+      final String name = file.getName();
+      byFirst.put(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())), file);
+    }
+
+    boolean broken = false;
+
+    for (final Map.Entry<Integer, File> entry : byFirst.entrySet()) {
+
+      final File file = entry.getValue();
+      final Segment previous = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+      if (broken || (previous != null && entry.getKey() != previous.last() + 1)) {
+        LOG.warning("Deleting relay log segment %s, it does not follow the log before it.", file);
+        delete(file);
+        broken = true;
+        continue;
+      }
+
+      final Segment segment = new Segment(
+          file,
+          entry.getKey(),
+          map(file, file.length()),
+          file.lastModified());
+
+      broken = !scan(segment);
+
+      if (segment.count == 0) {
+        delete(file);
+        continue;
+      }
+
+      segments.put(segment.first, segment);
+      totalBytes += segment.buffer.capacity();
+    }
+  }
+
+  // Find the records in a segment. Returns false if the segment ends with a
+  // record that is not whole.
+  private static boolean scan(Segment segment) {
+
+    final ByteBuffer buffer = segment.buffer.duplicate();
+    final CRC32 crc = new CRC32();
+    final byte[] payload = new byte[1024];
+
+    int offset = 0;
+
+    while (offset + HEADER_BYTES <= buffer.capacity()) {
+
+      final int length = buffer.getInt(offset);
+
+      // Space that was never written to is zeros.
+      if (length == 0) {
+        return true;
+      }
+
+      if (length < 0 || offset + HEADER_BYTES + length > buffer.capacity()) {
+        LOG.warning("Relay log %s ends with a broken record at %d.", segment.file, offset);
+        return false;
+      }
+
+      crc.reset();
+      buffer.position(offset + HEADER_BYTES);
+      for (int remaining = length; remaining > 0; ) {
+        final int chunk = Math.min(remaining, payload.length);
+        buffer.get(payload, 0, chunk);
+        crc.update(payload, 0, chunk);
+        remaining -= chunk;
+      }
+
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        LOG.warning("Relay log %s ends with a broken record at %d.", segment.file, offset);
+        return false;
+      }
+
+      segment.add(offset, length);
+      offset += HEADER_BYTES + length;
+    }
+
+    return true;
+  }
+
+  // Delete the oldest segments while the log is too big or they are too old.
+  private void retain() {
+
+    final long cutoff = System.currentTimeMillis() - retainMs;
+
+    while (segments.size() > 1) {
+
+      final Segment oldest = segments.firstEntry().getValue();
+
+      if (totalBytes <= retainBytes && oldest.lastWrite >= cutoff) {
+        break;
+      }
+
+      segments.remove(oldest.first);
+      totalBytes -= oldest.buffer.capacity();
+      delete(oldest.file);
+
+      LOG.info("Deleted relay log segment %s (bundles %d to %d).",
+               oldest.file,
+               oldest.first,
+               oldest.last());
+    }
+  }
+
+  private static void delete(File file) {
+    if (!file.delete()) {
+      LOG.warning("Could not delete relay log segment %s.", file);
+    }
+  }
+}
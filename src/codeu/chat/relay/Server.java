@@ -14,13 +14,20 @@
 
 package codeu.chat.relay;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Relay;
@@ -28,11 +35,48 @@ import codeu.chat.common.Time;
 import codeu.chat.common.Uuid;
 import codeu.chat.common.Uuids;
 import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
 
+// Calls may come from any thread. Writes take turns appending; reads do not
+// lock at all. They take the newest published sequence and read the bundles up
+// to it, so any number of teams can read while others write.
 public final class Server implements Relay {
 
   private final static Logger.Log LOG = Logger.newLog(Server.class);
 
+  private static final String CURSORS_FILE = "cursors";
+
+  // A read looks at no more than this many bundles for each bundle it may
+  // return, so that a read after a long run of the team's own bundles still
+  // returns quickly. The team's cursor lets the next read carry on from there.
+  private static final int SCAN_FACTOR = 8;
+
+  // How many writes are remembered to find messages that were sent twice.
+  private static final int RECENT_WRITES = 65536;
+
+  private static final class WriteKey {
+
+    final Uuid team;
+    final Uuid message;
+
+    WriteKey(Uuid team, Uuid message) {
+      this.team = team;
+      this.message = message;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof WriteKey &&
+             Uuids.equals(team, ((WriteKey) other).team) &&
+             Uuids.equals(message, ((WriteKey) other).message);
+    }
+
+    @Override
+    public int hashCode() {
+      return Uuids.hash(team) * 31 + Uuids.hash(message);
+    }
+  }
+
   private static final class Component implements Relay.Bundle.Component {
 
     private final Uuid id;
@@ -101,8 +145,36 @@ public final class Server implements Relay {
 
   }
 
-  private final Queue<Relay.Bundle> history = new LinkedList<>();
-  private final Map<Uuid, byte[]> teamSecrets = new HashMap<>();
+  // The newest bundles, used as a ring. Every bundle's id is (null, sequence)
+  // with sequences counting up by one, so the bundle with sequence "s" is at
+  // "history[s % history.length]" and any bundle can be found without looking
+  // at the others. The bundles held are those from "oldest" to "newest".
+  //
+  // A writer stores the bundle before it moves "newest" on, so readers never
+  // see a sequence before its bundle. A slot read may already hold a newer
+  // bundle if the ring went round while reading; readers check the bundle's
+  // sequence and skip bundles that were dropped that way.
+  private final AtomicReferenceArray<Relay.Bundle> history;
+  private volatile int oldest = 0;
+  private volatile int newest = -1;
+
+  // When there is a log, all bundles are kept in it instead of in "history".
+  private final BundleLog log;
+
+  // Writers hold this while they make an id and append the bundle.
+  private final Object appendLock = new Object();
+
+  // The team and message of the newest writes, oldest first, so that a
+  // message sent again (because the reply to a write was lost) is only kept
+  // once. Guarded by "appendLock".
+  private final LinkedHashSet<WriteKey> recentWrites = new LinkedHashSet<>();
+
+  // Writers notify on this after each append, "await" waits on it.
+  private final Object appended = new Object();
+
+  private final Map<Uuid, byte[]> teamSecrets = new ConcurrentHashMap<>();
+
+  private final TeamCursors cursors;
 
   private final int maxHistory;
   private final int maxRead;
@@ -123,8 +195,11 @@ public final class Server implements Relay {
   //
   // As a side note, the ids start at 1 and not 0 to avoid the first id from
   // matching the NULL id which is defined as (null, 0);
+  //
+  // With a log, ids carry on from the newest bundle in the log so that
+  // readers can keep reading from where they were after the relay restarts.
 
- private final Uuid.Generator idGenerator = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
+  private Uuid.Generator idGenerator;
 
   // SERVER
   //
@@ -135,6 +210,24 @@ public final class Server implements Relay {
   public Server(int maxHistory, int maxRead) {
     this.maxHistory = Math.max(0, maxHistory);
     this.maxRead = Math.max(0, maxRead);
+    this.history = new AtomicReferenceArray<>(this.maxHistory);
+    this.log = null;
+    this.cursors = new TeamCursors(null);
+    this.idGenerator = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
+  }
+
+  // SERVER
+  //
+  // Keep every bundle in "log" rather than in memory. How much history is kept
+  // is up to the log's retention limits. Where each team got to in its reads
+  // is kept next to the log.
+  public Server(BundleLog log, int maxRead) {
+    this.maxHistory = 0;
+    this.maxRead = Math.max(0, maxRead);
+    this.history = new AtomicReferenceArray<>(0);
+    this.log = log;
+    this.cursors = new TeamCursors(new File(log.directory(), CURSORS_FILE));
+    this.idGenerator = resume(log);
   }
 
   // ADD TEAM
@@ -146,11 +239,7 @@ public final class Server implements Relay {
 
     LOG.info("Adding team to relay %s", id);
 
-    final boolean open = teamSecrets.get(id) == null;
-
-    if (open) {
-      teamSecrets.put(id, secret);
-    }
+    final boolean open = teamSecrets.putIfAbsent(id, secret) == null;
 
     LOG.info(open ?
              "Adding team was successful" :
@@ -180,17 +269,59 @@ public final class Server implements Relay {
           conversation.id(),
           message.id());
 
-      if (history.size() >= maxHistory) {
-         history.remove();
+      synchronized (appendLock) {
+
+        final WriteKey key = new WriteKey(teamId, message.id());
+
+        if (recentWrites.contains(key)) {
+          LOG.info("Message %s from team %s was already written.", message.id(), teamId);
+          return true;
+        }
+
+        final Uuid id = idGenerator.make();
+        final Bundle bundle = new Bundle(id, Time.now(), teamId, user, conversation, message);
+
+        if (log != null) {
+
+          try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ServerFrontEnd.BUNDLE_SERIALIZER.write(bytes, bundle);
+            log.append(id.id(), bytes.toByteArray());
+          } catch (IOException ex) {
+            LOG.error(ex, "Failed to write bundle %s to the relay log.", id);
+            // The id was never used, so carry on from the newest bundle in the log.
+            idGenerator = resume(log);
+            return false;
+          }
+
+        } else if (maxHistory > 0) {
+
+          final int sequence = id.id();
+
+          history.set(sequence % maxHistory, bundle);
+
+          if (newest < oldest) {
+            oldest = sequence;
+          } else if (sequence - oldest + 1 > maxHistory) {
+            oldest = sequence - maxHistory + 1;
+          }
+
+          newest = sequence;
+        }
+
+        recentWrites.add(key);
+        if (recentWrites.size() > RECENT_WRITES) {
+          final Iterator<WriteKey> eldest = recentWrites.iterator();
+          eldest.next();
+          eldest.remove();
+        }
       }
 
-      return history.offer(new Bundle(
-          idGenerator.make(),
-          Time.now(),
-          teamId,
-          user,
-          conversation,
-          message));
+      synchronized (appended) {
+        appended.notifyAll();
+      }
+
+      return true;
     } else {
 
       LOG.warning(
@@ -206,34 +337,40 @@ public final class Server implements Relay {
 
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range) {
+    return read(teamId, teamSecret, root, range, maxRead);
+  }
+
+  @Override
+  public Relay.Subscription subscribe(Uuid teamId, byte[] teamSecret, Uuid root, Relay.Listener listener) {
+    // Subscriptions are served over the network by the front end, which reads
+    // from the server as bundles are written.
+    return null;
+  }
+
+  // READ
+  //
+  // Read up to "limit" bundles rather than up to "maxRead". Used by
+  // subscriptions to catch up in large pages.
+  Collection<Relay.Bundle> read(Uuid teamId,
+                                byte[] teamSecret,
+                                Uuid root,
+                                int range,
+                                int limit) {
 
     final Collection<Relay.Bundle> found = new ArrayList<>();
 
     if (authenticate(teamId, teamSecret)) {
 
-      int remaining = Math.min(range, maxRead);
-
       LOG.info(
          "Request to read from server requested=%d allowed=%d",
           range,
-          maxRead);
-
-      // Writing is a one way flag (once set it will not be unset) that switches
-      // between looking for the starting message and writing all messages to the
-      // output.
-      boolean writing = root == Uuids.NULL || root == null;
+          limit);
 
-      for (final Relay.Bundle message : history) {
-
-        if (writing && remaining > 0) {
-          found.add(message);
+      for (final int sequence : select(teamId, root, Math.min(range, limit))) {
+        final Relay.Bundle bundle = bundle(sequence);
+        if (bundle != null) {
+          found.add(bundle);
         }
-
-        remaining = Math.max(remaining - 1, 0);
-
-        // Only update "writing" after the check as the root is already known and
-        // should not be included in the output.
-        writing |= Uuids.equals(root, message.id());
       }
 
       LOG.info(
@@ -251,6 +388,190 @@ public final class Server implements Relay {
     return found;
   }
 
+  // TRANSFER
+  //
+  // Write the reply to a read straight to "out" - the number of bundles then
+  // each bundle. With a log, the bundles are copied out of the log as they are
+  // stored, without being read into objects and written back out.
+  void transfer(Uuid teamId, byte[] teamSecret, Uuid root, int range, OutputStream out)
+      throws IOException {
+
+    if (log == null || !accepts(teamId, teamSecret)) {
+      Serializers.collection(ServerFrontEnd.BUNDLE_SERIALIZER).write(
+          out,
+          read(teamId, teamSecret, root, range));
+      return;
+    }
+
+    final List<Integer> selected = select(teamId, root, Math.min(range, maxRead));
+
+    LOG.info("Transfer from relay log count=%d", selected.size());
+
+    Serializers.INTEGER.write(out, selected.size());
+    for (final int sequence : selected) {
+      log.transfer(sequence, 1, out);
+    }
+  }
+
+  private int oldest() {
+    return log == null ? oldest : log.oldest();
+  }
+
+  private int newest() {
+    return log == null ? newest : log.newest();
+  }
+
+  // AWAIT
+  //
+  // Wait until there is a bundle after "root" that is not from "teamId" or
+  // "timeoutMs" has passed. Returns true if there may be a bundle to read.
+  boolean await(Uuid teamId, Uuid root, long timeoutMs) throws InterruptedException {
+
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+
+    synchronized (appended) {
+      while (true) {
+
+        final int newest = newest();
+        if (newest >= 0 && startAfter(teamId, root, oldest(), newest) <= newest) {
+          return true;
+        }
+
+        final long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          return false;
+        }
+
+        appended.wait(wait);
+      }
+    }
+  }
+
+  // Check a team's secret without reading or writing.
+  boolean accepts(Uuid teamId, byte[] teamSecret) {
+    return authenticate(teamId, teamSecret);
+  }
+
+  // SELECT
+  //
+  // Find the sequences of up to "limit" bundles after "root" that were not
+  // written by "team" - a team already has its own bundles. Moves the team's
+  // cursor past every bundle looked at.
+  private List<Integer> select(Uuid team, Uuid root, int limit) {
+
+    final List<Integer> selected = new ArrayList<>();
+
+    // Take "newest" before "oldest" so that "oldest" is never from before
+    // "newest". Between them, more bundles may have been written and the
+    // reader just starts from a later bundle.
+    final int newest = newest();
+    final int first = startAfter(team, root, oldest(), newest);
+
+    if (limit <= 0 || first > newest) {
+      return selected;
+    }
+
+    final int last = (int) Math.min(newest, (long) first + (long) limit * SCAN_FACTOR - 1);
+
+    int scanned = first - 1;
+
+    for (int sequence = first; sequence <= last && selected.size() < limit; sequence++) {
+
+      scanned = sequence;
+
+      final Uuid owner = teamOf(sequence);
+      if (owner != null && !Uuids.equals(owner, team)) {
+        selected.add(sequence);
+      }
+    }
+
+    cursors.update(
+        team,
+        selected.isEmpty() ? first - 1 : selected.get(selected.size() - 1),
+        scanned);
+
+    return selected;
+  }
+
+  // The sequence of the first bundle to look at for "team" after "root".
+  private int startAfter(Uuid team, Uuid root, int oldest, int newest) {
+    final int first = firstAfter(root, oldest, newest);
+    return Math.max(first, cursors.resume(team, first - 1));
+  }
+
+  // The team that wrote a bundle, or null if the bundle is no longer held.
+  private Uuid teamOf(int sequence) {
+
+    if (log == null) {
+      final Relay.Bundle bundle = bundle(sequence);
+      return bundle == null ? null : bundle.team();
+    }
+
+    final List<byte[]> payloads = log.read(sequence, 1);
+
+    if (payloads.isEmpty()) {
+      return null;
+    }
+
+    // The team comes after the bundle's id and time, so only read that far.
+    try {
+      final ByteArrayInputStream in = new ByteArrayInputStream(payloads.get(0));
+      Uuids.SERIALIZER.read(in);
+      Time.SERIALIZER.read(in);
+      return Uuids.SERIALIZER.read(in);
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to read bundle %d from the relay log.", sequence);
+      return null;
+    }
+  }
+
+  // A bundle by sequence, or null if it is no longer held.
+  private Relay.Bundle bundle(int sequence) {
+
+    if (log == null) {
+      final Relay.Bundle bundle = maxHistory == 0 ? null : history.get(sequence % maxHistory);
+      // The slot may have been written over by a newer bundle since "newest"
+      // was read, then the bundle is gone.
+      return bundle != null && bundle.id().id() == sequence ? bundle : null;
+    }
+
+    final List<byte[]> payloads = log.read(sequence, 1);
+
+    if (payloads.isEmpty()) {
+      return null;
+    }
+
+    try {
+      return ServerFrontEnd.BUNDLE_SERIALIZER.read(new ByteArrayInputStream(payloads.get(0)));
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to read bundle %d from the relay log.", sequence);
+      return null;
+    }
+  }
+
+  private static Uuid.Generator resume(BundleLog log) {
+    return new LinearUuidGenerator(null, Math.max(1, log.newest()), Integer.MAX_VALUE);
+  }
+
+  // Get the sequence of the first bundle to read after "root". Reading starts
+  // from the oldest bundle held if "root" is NULL or is not a bundle from
+  // this relay (it may have fallen out of the history or be from an earlier
+  // run of the relay); the reader may then see bundles it has seen before.
+  private static int firstAfter(Uuid root, int oldest, int newest) {
+
+    if (root == null || Uuids.equals(root, Uuids.NULL)) {
+      return oldest;
+    }
+
+    if (root.root() == null && root.id() >= oldest - 1 && root.id() <= newest) {
+      return root.id() + 1;
+    }
+
+    LOG.warning("Read from unknown bundle %s. Reading from the oldest bundle.", root);
+
+    return oldest;
+  }
+
   private boolean authenticate(Uuid id, byte[] secret) {
     return id != null && Arrays.equals(secret, teamSecrets.get(id));
   }
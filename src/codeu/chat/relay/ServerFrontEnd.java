@@ -17,7 +17,9 @@ package codeu.chat.relay;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
@@ -33,7 +35,16 @@ public final class ServerFrontEnd {
 
   private final static Logger.Log LOG = Logger.newLog(ServerFrontEnd.class);
 
-  private static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
+  // Subscriptions are sent pages of bundles. A subscription that is behind is
+  // sent bigger pages (doubling up to the most) until it has caught up.
+  private static final int MIN_PUSH_PAGE = 32;
+  private static final int MAX_PUSH_PAGE = 1024;
+
+  // How long a subscription may go without being sent anything. An empty page
+  // is sent after this long so that a lost server is noticed.
+  private static final long HEARTBEAT_MS = 15000;
+
+  static final Serializer<Relay.Bundle.Component> COMPONENT_SERIALIZER =
       new Serializer<Relay.Bundle.Component>() {
 
     @Override
@@ -63,7 +74,7 @@ public final class ServerFrontEnd {
     }
   };
 
-  private static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
+  static final Serializer<Relay.Bundle> BUNDLE_SERIALIZER =
       new Serializer<Relay.Bundle>() {
 
     @Override
@@ -105,8 +116,18 @@ public final class ServerFrontEnd {
 
   private final Relay backEnd;
 
+  // Set when the back end is a local server. Reads are then written straight
+  // from the server rather than through "Relay.read".
+  private final Server server;
+
   public ServerFrontEnd(Relay backEnd) {
     this.backEnd = backEnd;
+    this.server = null;
+  }
+
+  public ServerFrontEnd(Server backEnd) {
+    this.backEnd = backEnd;
+    this.server = backEnd;
   }
 
   public void handleConnection(Connection connection) throws IOException {
@@ -116,6 +137,8 @@ public final class ServerFrontEnd {
     switch (Serializers.INTEGER.read(connection.in())) {
       case NetworkCode.RELAY_READ_REQUEST: handleReadMessage(connection); break;
       case NetworkCode.RELAY_WRITE_REQUEST: handleWriteMessage(connection); break;
+      case NetworkCode.RELAY_WRITE_BATCH_REQUEST: handleWriteBatch(connection); break;
+      case NetworkCode.RELAY_SUBSCRIBE_REQUEST: handleSubscribe(connection); break;
     }
 
     LOG.info("Handling Connection - end");
@@ -136,12 +159,22 @@ public final class ServerFrontEnd {
         root,
         range);
 
-    final Collection<Relay.Bundle> result = backEnd.read(teamId, teamSecret, root, range);
+    if (server != null) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_RESPONSE);
+      server.transfer(teamId, teamSecret, root, range, connection.out());
 
-    LOG.info("Reading result.size=%d", result.size());
+    } else {
 
-    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_RESPONSE);
-    Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+      final Collection<Relay.Bundle> result = backEnd.read(teamId, teamSecret, root, range);
+
+      LOG.info("Reading result.size=%d", result.size());
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_READ_RESPONSE);
+      Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), result);
+    }
+
+    connection.out().flush();
 
     LOG.info("Handling Read Message - end");
   }
@@ -173,7 +206,113 @@ public final class ServerFrontEnd {
 
     Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_RESPONSE);
     Serializers.BOOLEAN.write(connection.out(), result);
+    connection.out().flush();
 
     LOG.info("Handling Write Message - end");
   }
+
+  // Write a batch of bundles from one team in the order they were sent. The
+  // batch stops at the first bundle that can not be written and the reply is
+  // the number of bundles that were written, so the sender knows which
+  // bundles to send again.
+  private void handleWriteBatch(Connection connection) throws IOException {
+
+    LOG.info("Handling Write Batch - start");
+
+    final Uuid teamId = Uuids.SERIALIZER.read(connection.in());
+    final byte[] teamSecret = Serializers.BYTES.read(connection.in());
+    final int size = Serializers.INTEGER.read(connection.in());
+
+    int written = 0;
+
+    for (int i = 0; i < size; i++) {
+
+      final Relay.Bundle.Component user = COMPONENT_SERIALIZER.read(connection.in());
+      final Relay.Bundle.Component conversation = COMPONENT_SERIALIZER.read(connection.in());
+      final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(connection.in());
+
+      if (written == i && backEnd.write(teamId, teamSecret, user, conversation, message)) {
+        written += 1;
+      }
+    }
+
+    LOG.info("Writing batch team=%s size=%d written=%d", teamId, size, written);
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_RESPONSE);
+    Serializers.INTEGER.write(connection.out(), written);
+    connection.out().flush();
+
+    LOG.info("Handling Write Batch - end");
+  }
+
+  // Keep the connection open and push bundles to it as they are written. The
+  // pushing is done on a thread of its own so that the caller is free to
+  // handle other connections; that thread closes the connection when the
+  // subscriber goes away.
+  private void handleSubscribe(final Connection connection) throws IOException {
+
+    LOG.info("Handling Subscribe - start");
+
+    final Uuid teamId = Uuids.SERIALIZER.read(connection.in());
+    final byte[] teamSecret = Serializers.BYTES.read(connection.in());
+    final Uuid root = Uuids.SERIALIZER.read(connection.in());
+
+    final boolean accepted = server != null && server.accepts(teamId, teamSecret);
+
+    LOG.info("Subscribing team=%s root=%s accepted=%s", teamId, root, accepted);
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_RESPONSE);
+    Serializers.BOOLEAN.write(connection.out(), accepted);
+    connection.out().flush();
+
+    if (accepted) {
+      final Thread pusher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          push(connection, teamId, teamSecret, root);
+        }
+      }, "relay-subscriber");
+      pusher.setDaemon(true);
+      pusher.start();
+    }
+
+    LOG.info("Handling Subscribe - end");
+  }
+
+  private void push(Connection connection, Uuid teamId, byte[] teamSecret, Uuid root) {
+
+    int page = MIN_PUSH_PAGE;
+
+    try {
+      while (true) {
+
+        final List<Relay.Bundle> bundles =
+            new ArrayList<>(server.read(teamId, teamSecret, root, page, MAX_PUSH_PAGE));
+
+        if (bundles.isEmpty() && server.await(teamId, root, HEARTBEAT_MS)) {
+          continue;
+        }
+
+        Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIPTION_BUNDLES);
+        Serializers.collection(BUNDLE_SERIALIZER).write(connection.out(), bundles);
+        connection.out().flush();
+
+        if (!bundles.isEmpty()) {
+          root = bundles.get(bundles.size() - 1).id();
+        }
+
+        page = bundles.size() == page ? Math.min(MAX_PUSH_PAGE, page * 2) : MIN_PUSH_PAGE;
+      }
+    } catch (InterruptedException ex) {
+      LOG.warning("Subscription for team %s interrupted.", teamId);
+    } catch (IOException ex) {
+      LOG.info("Subscription for team %s ended: %s", teamId, ex.getMessage());
+    } finally {
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.warning("Failed to close subscription for team %s: %s", teamId, ex.getMessage());
+      }
+    }
+  }
 }
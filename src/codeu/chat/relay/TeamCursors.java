@@ -0,0 +1,152 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.relay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Logger;
+
+// TEAM CURSORS
+//
+// Where each team got to in its last read. Reads skip the reading team's own
+// bundles, so the last bundle a team was given can be well before the last
+// bundle the relay looked at for it. The cursor remembers both so that the
+// next read from that bundle starts after everything already looked at,
+// rather than looking at the team's own bundles again.
+//
+// With a file, cursors are saved at most once every SAVE_INTERVAL_MS and read
+// back when the relay starts.
+final class TeamCursors {
+
+  private final static Logger.Log LOG = Logger.newLog(TeamCursors.class);
+
+  private static final long SAVE_INTERVAL_MS = 1000;
+
+  private static final class Cursor {
+
+    final int given;
+    final int scanned;
+
+    Cursor(int given, int scanned) {
+      this.given = given;
+      this.scanned = scanned;
+    }
+  }
+
+  private final Map<Uuid, Cursor> cursors = new ConcurrentHashMap<>();
+
+  private final File file;
+  private final Object saving = new Object();
+  private volatile long lastSave = 0;
+  private volatile boolean dirty = false;
+
+  TeamCursors(File file) {
+    this.file = file;
+    if (file != null && file.exists()) {
+      load();
+    }
+  }
+
+  // RESUME
+  //
+  // Where a team reading after the bundle with sequence "root" should start:
+  // after everything looked at in its last read if that read was from, or
+  // ended with, "root". Otherwise right after "root".
+  int resume(Uuid team, int root) {
+    final Cursor cursor = cursors.get(team);
+    return cursor != null && cursor.given == root && cursor.scanned > root ?
+        cursor.scanned + 1 :
+        root + 1;
+  }
+
+  // UPDATE
+  //
+  // Record that the team was last given the bundle with sequence "given" (or
+  // nothing after "given") and that every bundle up to "scanned" was looked at.
+  void update(Uuid team, int given, int scanned) {
+
+    cursors.put(team, new Cursor(given, Math.max(given, scanned)));
+    dirty = true;
+
+    if (file != null && System.currentTimeMillis() - lastSave >= SAVE_INTERVAL_MS) {
+      save();
+    }
+  }
+
+  private void save() {
+
+    synchronized (saving) {
+
+      if (!dirty) {
+        return;
+      }
+
+      dirty = false;
+      lastSave = System.currentTimeMillis();
+
+      // Write a new file and move it over the old one so that a crash while
+      // saving leaves the old cursors.
+      final File temp = new File(file.getPath() + ".tmp");
+
+      try (final PrintWriter out = new PrintWriter(new FileWriter(temp))) {
+        for (final Map.Entry<Uuid, Cursor> entry : cursors.entrySet()) {
+          out.printf("%s %d %d%n",
+                     Uuids.toStorableString(entry.getKey()),
+                     entry.getValue().given,
+                     entry.getValue().scanned);
+        }
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to save team cursors to %s.", temp);
+        return;
+      }
+
+      if (!temp.renameTo(file)) {
+        LOG.error("Failed to move team cursors to %s.", file);
+      }
+    }
+  }
+
+  private void load() {
+
+    try (final BufferedReader in = new BufferedReader(new FileReader(file))) {
+
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+
+        final String[] tokens = line.trim().split(" ");
+
+        if (tokens.length == 3) {
+          cursors.put(Uuids.complete(Uuids.parse(tokens[0])),
+                      new Cursor(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
+        }
+      }
+
+      LOG.info("Loaded %d team cursors from %s.", cursors.size(), file);
+
+    } catch (IOException | NumberFormatException ex) {
+      LOG.error(ex, "Failed to load team cursors from %s, starting without them.", file);
+      cursors.clear();
+    }
+  }
+}
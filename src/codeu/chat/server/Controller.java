@@ -14,7 +14,11 @@
 
 package codeu.chat.server;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import codeu.chat.common.BasicController;
 import codeu.chat.common.Conversation;
@@ -26,17 +30,44 @@ import codeu.chat.common.Uuid;
 import codeu.chat.common.Uuids;
 import codeu.chat.util.Logger;
 
-import java.sql.*;
-
 public final class Controller implements RawController, BasicController {
 
   private final static Logger.Log LOG = Logger.newLog(Controller.class);
 
+  // MESSAGE LISTENER
+  //
+  // Told about each new message once it has been added to the model. It is
+  // called by the thread adding the message, so it should not block.
+  public interface MessageListener {
+
+    void onMessage(Uuid conversation, Message message);
+
+  }
+
   private final Model model;
+  private final Database database;
+  private final MessageListener listener;
   private final Uuid.Generator uuidGenerator;
 
   public Controller(Uuid serverId, Model model) {
+    this(serverId, model, null);
+  }
+
+  public Controller(Uuid serverId, Model model, Database database) {
+    this(serverId, model, database, null);
+  }
+
+  // CONTROLLER
+  //
+  // Create a controller that writes to the given database when asked to. If
+  // the database is null nothing will be written. Writes are only staged in
+  // the database; the caller must "flush" it, after letting go of any lock it
+  // holds on the model, before telling anyone they were saved. If the
+  // listener is not null it is told about every new message.
+  public Controller(Uuid serverId, Model model, Database database, MessageListener listener) {
     this.model = model;
+    this.database = database;
+    this.listener = listener;
     this.uuidGenerator = new RandomUuidGenerator(serverId, System.currentTimeMillis());
   }
 
@@ -67,7 +98,7 @@ public final class Controller implements RawController, BasicController {
     if (foundUser != null && foundConversation != null && isIdFree(id)) {
 
       message = new Message(id, Uuids.NULL, Uuids.NULL, creationTime, author, body);
-      model.add(message);
+      model.add(foundConversation.id, message);
       LOG.info("Message added: %s", message.id);
 
       // Find and update the previous "last" message so that it's "next" value
@@ -101,71 +132,13 @@ public final class Controller implements RawController, BasicController {
         foundConversation.users.add(foundUser.id);
       }
 
-        /* Add message to persistent database. */
-        if (databaseAdd) {
-	        try {
-                java.sql.Connection conn = null;
-                java.sql.Statement statement = null;
-		        java.sql.ResultSet result = null;
-
-	        	Class.forName("org.sqlite.JDBC");
-        		conn = DriverManager.getConnection("jdbc:sqlite::test.db");
-                conn.setAutoCommit(false);
-    		    statement = conn.createStatement();
-
-                String query = "SELECT name FROM sqlite_master WHERE type='table' AND name='[MESSAGES_" + Uuids.toStorableString(foundConversation.id) + "]'";
-                result = statement.executeQuery(query);
-
-                /* Create a table to hold the messages for this conversation if it
-                 * does not already exist. */
-                if (result.next()) {
-                    query = "INSERT OR IGNORE INTO [MESSAGES_" + 
-                            Uuids.toStorableString(foundConversation.id) +
-                            "] (ID, NEXT, PREVIOUS, CREATION, AUTHOR, CONTENT)" +
-                            " VALUES ('" + Uuids.toStorableString(message.id) + 
-                            "', '" + Uuids.toStorableString(message.next) + 
-                            "',  '"  +  Uuids.toStorableString(message.previous) +
-                            "', '" + creationTime + "', '" + 
-                            Uuids.toStorableString(author) + 
-                            "', '" + body + "');";
-
-           	    	statement.executeUpdate(query);
-                } else {
-                    query = "CREATE table IF NOT EXISTS [MESSAGES_" + 
-                            Uuids.toStorableString(foundConversation.id) +
-                            "] (ID TEXT PRIMARY KEY       NOT NULL," +
-                            "NEXT TEXT                  NOT NULL," +
-                            "PREVIOUS TEXT              NOT NULL," +
-                            "CREATION TEXT              NOT NULL," +
-                            "AUTHOR TEXT                NOT NULL," +
-                            "CONTENT TEXT               NOT NULL)";
-                    statement.executeUpdate(query);
-
-
-                    query = "INSERT OR IGNORE INTO [MESSAGES_" + 
-                            Uuids.toStorableString(foundConversation.id) +
-                            "] (ID, NEXT, PREVIOUS, CREATION, AUTHOR, CONTENT)" +
-                            " VALUES ('" + Uuids.toStorableString(message.id) + 
-                            "', '" + Uuids.toStorableString(message.next) + 
-                            "',  '"  +  Uuids.toStorableString(message.previous) +
-                            "', '" + creationTime + "', '" + 
-                            Uuids.toStorableString(author) + 
-                            "', '" + body + "');";
-
-    	    	    statement.executeUpdate(query);
-                }
-
-                statement.close();
-    		    conn.commit();
-    	    	conn.close();
-
-	        } catch (Exception e) {
-		        System.err.println(e.getClass().getName() + ": " + e.getMessage());
-		        System.exit(0);
-        	}
-    	System.out.println("Successfully connected to database and added user data.");
-        }
+      if (databaseAdd && database != null) {
+        database.addMessage(foundConversation.id, message);
+      }
 
+      if (listener != null) {
+        listener.onMessage(foundConversation.id, message);
+      }
     }
 
     return message;
@@ -182,32 +155,8 @@ public final class Controller implements RawController, BasicController {
       user = new User(id, name, creationTime);
       model.add(user, password);
 
-      /* Add user to persistent storage. */
-      if (databaseAdd) {
-        try {
-            LOG.info("Adding user to database.");
-            java.sql.Connection conn = null;
-            java.sql.Statement statement = null;
-
-            Class.forName("org.sqlite.JDBC");
-            conn = DriverManager.getConnection("jdbc:sqlite::test.db");
-            conn.setAutoCommit(false);
-            statement = conn.createStatement();
-            System.out.println("Right before " + Uuids.toStorableString(user.id));
-            String query = "INSERT OR IGNORE INTO USERS " + "VALUES ('" +
-                            Uuids.toStorableString(user.id) + "', '" + user.name + 
-                            "', " + user.creation.inMs() + ", '" +
-                            password + "');";
-            System.out.println(query);
-            statement.executeUpdate(query);
-
-            statement.close();
-            conn.commit();
-            conn.close();
-        } catch (Exception e) {
-            System.err.println(e.getClass().getName() + ": " + e.getMessage());
-            System.exit(0);
-        }      
+      if (databaseAdd && database != null) {
+        database.addUser(user, password);
       }
 
       LOG.info(
@@ -241,40 +190,73 @@ public final class Controller implements RawController, BasicController {
       conversation = new Conversation(id, owner, creationTime, title);
       model.add(conversation);
 
-        /* Add conversation to persistent storage. */
-        if (databaseAdd) {
-	        try {
-                java.sql.Connection conn = null;
-                java.sql.Statement statement = null;
-		        java.sql.ResultSet result = null;
-
-	        	Class.forName("org.sqlite.JDBC");
-        		conn = DriverManager.getConnection("jdbc:sqlite::test.db");
-                conn.setAutoCommit(false);
-    		    statement = conn.createStatement();
-		        String query = "INSERT INTO CONVERSATIONS (ID, OWNER, CREATION, TITLE) " +
-			        		   "VALUES ('" + Uuids.toStorableString(conversation.id) + "', '" 
-                                        + Uuids.toStorableString(conversation.owner) + "', " 
-				    	    	+ conversation.creation.inMs() + ", '" + conversation.title + "');";
-    	    	statement.executeUpdate(query);
-
-                statement.close();
-    		    conn.commit();
-    	    	conn.close();
-
-	        } catch (Exception e) {
-		        System.err.println(e.getClass().getName() + ": " + e.getMessage());
-		        System.exit(0);
-        	}
-        }
-    
+      if (databaseAdd && database != null) {
+        database.addConversation(conversation);
+      }
 
-      LOG.info("Conversation added: " + conversation.id);
+      LOG.info("Conversation added: %s", conversation.id);
     }
 
     return conversation;
   }
 
+  // LOAD
+  //
+  // Add everything in the snapshot to the model. The snapshot comes from the
+  // database, so none of it is written back and its ids are already known to
+  // be unique. Rather than adding one row at a time, each kind of row is added
+  // to the model in bulk and each conversation's messages are linked in the
+  // order they appear in the snapshot. Messages whose conversation or author
+  // are unknown are skipped, the same as with "newMessage".
+  public void load(Snapshot snapshot) {
+
+    model.addAllUsers(snapshot.users, snapshot.passwords);
+    model.addAllConversations(snapshot.conversations);
+
+    final Map<Uuid, List<Message>> messages = new LinkedHashMap<>();
+
+    for (final Map.Entry<Uuid, List<Message>> entry : snapshot.messages.entrySet()) {
+
+      final Conversation conversation = model.conversationById().first(entry.getKey());
+
+      if (conversation == null) {
+        LOG.warning("Skipping %d messages in unknown conversation %s",
+                    entry.getValue().size(),
+                    entry.getKey());
+        continue;
+      }
+
+      final List<Message> added = new ArrayList<>(entry.getValue().size());
+      messages.put(conversation.id, added);
+
+      Message last = Uuids.equals(conversation.lastMessage, Uuids.NULL) ?
+          null :
+          model.messageById().first(conversation.lastMessage);
+
+      for (final Message message : entry.getValue()) {
+
+        if (model.userById().first(message.author) == null) {
+          LOG.warning("Skipping message %s by unknown user %s", message.id, message.author);
+          continue;
+        }
+
+        if (last == null) {
+          conversation.firstMessage = message.id;
+        } else {
+          last.next = message.id;
+        }
+
+        conversation.lastMessage = message.id;
+        conversation.users.add(message.author);
+
+        added.add(message);
+        last = message;
+      }
+    }
+
+    model.addAllMessages(messages);
+  }
+
   private Uuid createId() {
 
     Uuid candidate;
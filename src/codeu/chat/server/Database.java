@@ -0,0 +1,1293 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.common.Time;
+import codeu.chat.common.User;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+
+// DATABASE
+//
+// The server's persistent storage. There is a single connection to the SQLite
+// database that is shared by everything that reads or writes. Users,
+// conversations and messages each have one table. The terms in each
+// message's content (as MessageIndex splits them) are kept in one more table
+// so that messages can be searched without reading them all.
+//
+// Writes do not happen on the thread that asks for them. They are staged, which
+// never blocks, and "flush" then adds them to a journal on disk and to a queue
+// and returns once they are in the journal. A writer thread takes everything that is in the queue, adds it with prepared
+// statements and commits it all as a single transaction. When the server is
+// busy many rows share one commit. Writes still in the journal when the server
+// stops are committed when it starts again.
+//
+// A batch that fails to commit is tried again a few times. If it keeps
+// failing, its writes are committed one at a time so that one bad row does not
+// hold back the others. Writes that still fail are logged and kept in the
+// journal for the next start.
+public final class Database {
+
+  private final static Logger.Log LOG = Logger.newLog(Database.class);
+
+  private static final String DRIVER = "org.sqlite.JDBC";
+  private static final String URL = "jdbc:sqlite::test.db";
+
+  // Tables from older versions of the server that stored each conversation's
+  // messages in their own table.
+  private static final Pattern OLD_MESSAGE_TABLE = Pattern.compile("MESSAGES_[0-9.]+");
+  private static final String OLD_TIME_FORMAT = "dd-MMM-yyyy HH:mm:ss.SSS";
+
+  // The ids of the messages added just before and after each message "M" in
+  // its conversation, found through the conversation's positions.
+  private static final String LINKS =
+      "(SELECT N.ID FROM MESSAGES N WHERE N.CONVERSATION = M.CONVERSATION " +
+      "AND N.POSITION = M.POSITION + 1) AS NEXT, " +
+      "(SELECT P.ID FROM MESSAGES P WHERE P.CONVERSATION = M.CONVERSATION " +
+      "AND P.POSITION = M.POSITION - 1) AS PREVIOUS ";
+
+  // Start the server with "-Dcodeu.chat.database.durability=FULL" (or OFF or
+  // NORMAL) to choose how hard commits and the journal wait for the disk.
+  // The batch and queue sizes and where the journal is kept can be set the
+  // same way.
+  private static final String DURABILITY_PROPERTY = "codeu.chat.database.durability";
+  private static final String BATCH_PROPERTY = "codeu.chat.database.batch";
+  private static final String QUEUE_PROPERTY = "codeu.chat.database.queue";
+  private static final String JOURNAL_PROPERTY = "codeu.chat.database.journal";
+
+  private static final int DEFAULT_MAX_BATCH = 512;
+  private static final int DEFAULT_MAX_QUEUE = 64 * 1024;
+  private static final String DEFAULT_JOURNAL = "test.journal";
+
+  private static final long JOURNAL_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+  // How many times a batch is committed before its writes are committed one
+  // at a time, and how long to wait between tries.
+  private static final int COMMIT_ATTEMPTS = 3;
+  private static final long COMMIT_RETRY_MS = 100;
+
+  // The kinds of journal records.
+  private static final int USER_RECORD = 0;
+  private static final int CONVERSATION_RECORD = 1;
+  private static final int MESSAGE_RECORD = 2;
+
+  // How long the writer waits for a write before checking if it should stop.
+  private static final long WRITER_POLL_MS = 100;
+
+  // DURABILITY
+  //
+  // How hard SQLite should work to make sure a commit has reached the disk
+  // before moving on. This maps directly onto SQLite's "synchronous" setting.
+  public enum Durability {
+
+    // Never wait for the disk. A power loss may lose recent commits (or worse
+    // with older journal modes) but a crash of the server alone will not.
+    OFF,
+
+    // Wait for the disk at the most critical moments. With a write-ahead log
+    // a power loss may lose the last commits but will not corrupt the file.
+    // Writes are acknowledged once the journal has given them to the
+    // operating system.
+    NORMAL,
+
+    // Wait for the disk on every commit, and for every write to reach the
+    // journal on disk before it is acknowledged.
+    FULL
+
+  }
+
+  // POSITION
+  //
+  // Where a message is: its conversation and its place in that conversation.
+  public static final class Position {
+
+    public final Uuid conversation;
+    public final int index;
+
+    public Position(Uuid conversation, int index) {
+      this.conversation = conversation;
+      this.index = index;
+    }
+  }
+
+  // A single queued write. "apply" adds the write to the batches of the
+  // prepared statements it uses and adds those statements to the set, in the
+  // order they must run, so that the writer can run all batches together.
+  private static abstract class Write {
+
+    // False if the write could not be added to the journal, in which case it
+    // is only in the queue.
+    boolean journaled = true;
+
+    abstract void apply(Set<PreparedStatement> statements) throws SQLException;
+
+  }
+
+  private final java.sql.Connection connection;
+
+  private final PreparedStatement insertUser;
+  private final PreparedStatement insertConversation;
+  private final PreparedStatement insertMessage;
+  private final PreparedStatement insertTerm;
+
+  private final PreparedStatement selectMessagesByConversation;
+  private final PreparedStatement selectMessagesByTime;
+  private final PreparedStatement selectMessagesByPosition;
+  private final PreparedStatement locateMessage;
+
+  private final BlockingQueue<Write> writes;
+  private final int maxBatch;
+
+  // Writes that have been staged but are not yet in the journal, in the order
+  // they were staged.
+  private final Queue<byte[]> staged = new ConcurrentLinkedQueue<>();
+
+  // Taken to add a write to both the journal and the queue, so that they are
+  // in the same order in both.
+  private final Object queueLock = new Object();
+  private final Journal journal;
+
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  public Database(String url, File journalDirectory, Durability durability, int maxBatch, int maxQueue)
+      throws SQLException {
+
+    try {
+      Class.forName(DRIVER);
+    } catch (ClassNotFoundException ex) {
+      throw new SQLException("SQLite driver is not on the class path", ex);
+    }
+
+    this.connection = DriverManager.getConnection(url);
+    this.maxBatch = Math.max(1, maxBatch);
+    this.writes = new LinkedBlockingQueue<>(Math.max(1, maxQueue));
+
+    try (final Statement statement = connection.createStatement()) {
+      // A write-ahead log lets a commit be a single append to the log.
+      statement.execute("PRAGMA journal_mode=WAL");
+      statement.execute("PRAGMA synchronous=" + durability.name());
+    }
+
+    final boolean termsIndexed = hasTable("MESSAGE_TERMS");
+
+    createTables();
+
+    final boolean positioned = hasColumn("MESSAGES", "POSITION");
+
+    if (!positioned) {
+      try (final Statement statement = connection.createStatement()) {
+        statement.executeUpdate("ALTER TABLE MESSAGES ADD COLUMN POSITION INTEGER");
+      }
+    }
+
+    connection.setAutoCommit(false);
+
+    final boolean migrated = migrateMessageTables();
+
+    if (!termsIndexed) {
+      indexTerms();
+    }
+
+    if (!positioned || migrated) {
+      positionMessages();
+    }
+
+    try (final Statement statement = connection.createStatement()) {
+      statement.executeUpdate(
+          "CREATE UNIQUE INDEX IF NOT EXISTS MESSAGES_BY_POSITION ON MESSAGES (CONVERSATION, POSITION)");
+    }
+    connection.commit();
+
+    this.insertUser = connection.prepareStatement(
+        "INSERT OR IGNORE INTO USERS (ID, NAME, CREATION, PASSWORD) VALUES (?, ?, ?, ?)");
+    this.insertConversation = connection.prepareStatement(
+        "INSERT OR IGNORE INTO CONVERSATIONS (ID, OWNER, CREATION, TITLE) VALUES (?, ?, ?, ?)");
+    this.insertMessage = connection.prepareStatement(
+        "INSERT OR IGNORE INTO MESSAGES (CONVERSATION, CREATION, ID, AUTHOR, CONTENT, POSITION) " +
+        "VALUES (?, ?, ?, ?, ?, " +
+        "(SELECT COALESCE(MAX(POSITION) + 1, 0) FROM MESSAGES WHERE CONVERSATION = ?))");
+    this.insertTerm = connection.prepareStatement(
+        "INSERT OR IGNORE INTO MESSAGE_TERMS (TERM, ID) VALUES (?, ?)");
+
+    this.selectMessagesByConversation = connection.prepareStatement(
+        "SELECT ID, AUTHOR, CONTENT, CREATION FROM MESSAGES " +
+        "WHERE CONVERSATION = ? ORDER BY ROWID");
+    this.selectMessagesByTime = connection.prepareStatement(
+        "SELECT ID, AUTHOR, CONTENT, CREATION, " + LINKS +
+        "FROM MESSAGES M WHERE CONVERSATION = ? AND CREATION >= ? AND CREATION <= ? " +
+        "AND POSITION < ? ORDER BY POSITION");
+    this.selectMessagesByPosition = connection.prepareStatement(
+        "SELECT ID, AUTHOR, CONTENT, CREATION FROM MESSAGES " +
+        "WHERE CONVERSATION = ? AND POSITION >= ? ORDER BY POSITION LIMIT ?");
+    this.locateMessage = connection.prepareStatement(
+        "SELECT CONVERSATION, POSITION FROM MESSAGES WHERE ID = ?");
+
+    try {
+      this.journal = Journal.open(journalDirectory, durability == Durability.FULL, JOURNAL_SEGMENT_BYTES);
+    } catch (IOException ex) {
+      throw new SQLException("Failed to open journal " + journalDirectory, ex);
+    }
+
+    // Anything left in the journal by the last run goes in before the server
+    // reads from the database.
+    replay(journal.recovered());
+
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "database-writer");
+
+    writer.start();
+  }
+
+  // OPEN
+  //
+  // Open the server's database with the settings given as system properties.
+  public static Database open() throws SQLException {
+
+    final String name = System.getProperty(DURABILITY_PROPERTY, Durability.NORMAL.name());
+
+    final Durability durability;
+    try {
+      durability = Durability.valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException ex) {
+      throw new SQLException("Unknown durability " + name + ", expected OFF, NORMAL or FULL", ex);
+    }
+
+    final File journal = new File(System.getProperty(JOURNAL_PROPERTY, DEFAULT_JOURNAL));
+    final int maxBatch = Integer.getInteger(BATCH_PROPERTY, DEFAULT_MAX_BATCH);
+    final int maxQueue = Integer.getInteger(QUEUE_PROPERTY, DEFAULT_MAX_QUEUE);
+
+    LOG.info("Opening database with %s durability, batches of %d, a queue of %d and journal %s.",
+             durability,
+             maxBatch,
+             maxQueue,
+             journal);
+
+    return new Database(URL, journal, durability, maxBatch, maxQueue);
+  }
+
+  private void createTables() throws SQLException {
+
+    try (final Statement statement = connection.createStatement()) {
+
+      statement.executeUpdate(
+          "CREATE TABLE IF NOT EXISTS USERS " +
+          "(ID TEXT PRIMARY KEY        NOT NULL," +
+          "NAME      TEXT             NOT NULL," +
+          "CREATION  LONG             NOT NULL," +
+          "PASSWORD  TEXT             NOT NULL)");
+
+      statement.executeUpdate(
+          "CREATE TABLE IF NOT EXISTS CONVERSATIONS " +
+          "(ID TEXT PRIMARY KEY        NOT NULL," +
+          "OWNER     INT              NOT NULL," +
+          "CREATION  TEXT             NOT NULL," +
+          "TITLE     TEXT             NOT NULL)");
+
+      // All messages live in one table. The primary key keeps each
+      // conversation's messages together in time order, so reading a
+      // conversation or a time range of it is a single index range scan.
+      // POSITION is the message's place in its conversation, counting from 0
+      // in the order the messages were added. Older tables are given it (and
+      // its index) when they are opened.
+      statement.executeUpdate(
+          "CREATE TABLE IF NOT EXISTS MESSAGES " +
+          "(CONVERSATION TEXT           NOT NULL," +
+          "CREATION      INTEGER        NOT NULL," +
+          "ID            TEXT           NOT NULL," +
+          "AUTHOR        TEXT           NOT NULL," +
+          "CONTENT       TEXT           NOT NULL," +
+          "POSITION      INTEGER," +
+          "PRIMARY KEY (CONVERSATION, CREATION, ID))");
+
+      statement.executeUpdate(
+          "CREATE UNIQUE INDEX IF NOT EXISTS MESSAGES_BY_ID ON MESSAGES (ID)");
+
+      // Entries in an index are ordered by row id after the indexed columns,
+      // so this also orders each conversation's messages by when they were
+      // added.
+      statement.executeUpdate(
+          "CREATE INDEX IF NOT EXISTS MESSAGES_BY_CONVERSATION ON MESSAGES (CONVERSATION)");
+
+      // Which messages have each term, for search.
+      statement.executeUpdate(
+          "CREATE TABLE IF NOT EXISTS MESSAGE_TERMS " +
+          "(TERM TEXT     NOT NULL," +
+          "ID   TEXT     NOT NULL," +
+          "PRIMARY KEY (TERM, ID)) WITHOUT ROWID");
+    }
+  }
+
+  // The table name is always one of the constant names above, never input.
+  private boolean hasColumn(String table, String column) throws SQLException {
+    try (
+        final Statement statement = connection.createStatement();
+        final ResultSet result = statement.executeQuery("PRAGMA table_info(" + table + ")")
+    ) {
+      while (result.next()) {
+        if (column.equalsIgnoreCase(result.getString("name"))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private boolean hasTable(String table) throws SQLException {
+    try (final PreparedStatement statement = connection.prepareStatement(
+        "SELECT 1 FROM sqlite_master WHERE type='table' AND name = ?")) {
+      statement.setString(1, table);
+      try (final ResultSet result = statement.executeQuery()) {
+        return result.next();
+      }
+    }
+  }
+
+  // INDEX TERMS
+  //
+  // Fill in the terms table for the messages that were written before it
+  // existed. Only done once, when the table is created.
+  private void indexTerms() throws SQLException {
+
+    int count = 0;
+
+    try (
+        final Statement select = connection.createStatement();
+        final ResultSet result = select.executeQuery("SELECT ID, CONTENT FROM MESSAGES");
+        final PreparedStatement insert = connection.prepareStatement(
+            "INSERT OR IGNORE INTO MESSAGE_TERMS (TERM, ID) VALUES (?, ?)")
+    ) {
+      while (result.next()) {
+        for (final String term : MessageIndex.terms(result.getString("CONTENT"))) {
+          insert.setString(1, term);
+          insert.setString(2, result.getString("ID"));
+          insert.addBatch();
+        }
+        count += 1;
+      }
+      insert.executeBatch();
+      connection.commit();
+    } catch (SQLException ex) {
+      connection.rollback();
+      throw ex;
+    }
+
+    if (count > 0) {
+      LOG.info("Indexed the terms of %d messages", count);
+    }
+  }
+
+  // POSITION MESSAGES
+  //
+  // Number the messages that were written before messages had positions, or
+  // that were copied from the old tables, in the order they were added. Only
+  // done when there can be such messages.
+  private void positionMessages() throws SQLException {
+
+    final Map<String, Integer> next = new HashMap<>();
+    int count = 0;
+
+    try (
+        final Statement select = connection.createStatement();
+        final ResultSet result = select.executeQuery(
+            "SELECT CONVERSATION, COALESCE(MAX(POSITION) + 1, 0) FROM MESSAGES GROUP BY CONVERSATION")
+    ) {
+      while (result.next()) {
+        next.put(result.getString(1), result.getInt(2));
+      }
+    }
+
+    try (
+        final Statement select = connection.createStatement();
+        final ResultSet result = select.executeQuery(
+            "SELECT ROWID, CONVERSATION FROM MESSAGES WHERE POSITION IS NULL ORDER BY ROWID");
+        final PreparedStatement update = connection.prepareStatement(
+            "UPDATE MESSAGES SET POSITION = ? WHERE ROWID = ?")
+    ) {
+      while (result.next()) {
+        final String conversation = result.getString(2);
+        final int position = next.get(conversation);
+        next.put(conversation, position + 1);
+        update.setInt(1, position);
+        update.setLong(2, result.getLong(1));
+        update.addBatch();
+        count += 1;
+      }
+      update.executeBatch();
+      connection.commit();
+    } catch (SQLException ex) {
+      connection.rollback();
+      throw ex;
+    }
+
+    if (count > 0) {
+      LOG.info("Numbered %d messages", count);
+    }
+  }
+
+  // MIGRATE MESSAGE TABLES
+  //
+  // Older versions of the server kept one MESSAGES_<conversation> table per
+  // conversation. Copy any of those tables into the MESSAGES table and drop
+  // them. Everything is done in one transaction so a failed migration leaves
+  // the old tables as they were. Returns true if any tables were copied.
+  private boolean migrateMessageTables() throws SQLException {
+
+    final List<String> tables = new ArrayList<>();
+
+    try (
+        final Statement statement = connection.createStatement();
+        final ResultSet result = statement.executeQuery(
+            "SELECT name FROM sqlite_master WHERE type='table' AND name LIKE 'MESSAGES\\_%' ESCAPE '\\'")
+    ) {
+      while (result.next()) {
+        final String table = result.getString("name");
+        if (OLD_MESSAGE_TABLE.matcher(table).matches()) {
+          tables.add(table);
+        }
+      }
+    }
+
+    if (tables.isEmpty()) {
+      return false;
+    }
+
+    LOG.info("Migrating %d message tables", tables.size());
+
+    try (final PreparedStatement insert = connection.prepareStatement(
+        "INSERT OR IGNORE INTO MESSAGES (CONVERSATION, CREATION, ID, AUTHOR, CONTENT) " +
+        "VALUES (?, ?, ?, ?, ?)")) {
+
+      for (final String table : tables) {
+
+        final String conversation = table.substring("MESSAGES_".length());
+
+        try (
+            final Statement statement = connection.createStatement();
+            final ResultSet result = statement.executeQuery(
+                "SELECT ID, CREATION, AUTHOR, CONTENT FROM [" + table + "]")
+        ) {
+          while (result.next()) {
+            insert.setString(1, conversation);
+            insert.setLong(2, parseOldCreation(result.getString("CREATION")));
+            insert.setString(3, result.getString("ID"));
+            insert.setString(4, result.getString("AUTHOR"));
+            insert.setString(5, result.getString("CONTENT"));
+            insert.addBatch();
+          }
+        }
+
+        insert.executeBatch();
+
+        try (final Statement statement = connection.createStatement()) {
+          statement.executeUpdate("DROP TABLE [" + table + "]");
+        }
+      }
+
+      connection.commit();
+
+    } catch (SQLException ex) {
+      connection.rollback();
+      throw ex;
+    }
+
+    LOG.info("Migrated %d message tables", tables.size());
+
+    return true;
+  }
+
+  // The per-conversation tables were written with the creation time as either
+  // milliseconds or as the text from Time.toString.
+  private static long parseOldCreation(String creation) throws SQLException {
+
+    try {
+      return Long.parseLong(creation.trim());
+    } catch (NumberFormatException ex) {
+      // Fall through to try the other format.
+    }
+
+    try {
+      return new SimpleDateFormat(OLD_TIME_FORMAT).parse(creation).getTime();
+    } catch (ParseException ex) {
+      throw new SQLException("Invalid message creation time: " + creation, ex);
+    }
+  }
+
+  // LOAD
+  //
+  // Add every row that is newer than the rows already in "snapshot" to it and
+  // return how many rows were added. Each table is read with a single query.
+  // Messages are read in the order they were added, the same order that the
+  // history and positional queries use, so that each conversation's messages
+  // are in order.
+  //
+  // The snapshot must have come from this database. This is checked by making
+  // sure that the last row of each table in the snapshot has the same id in
+  // the database. If it does not, nothing is added and -1 is returned.
+  public synchronized int load(Snapshot snapshot) throws SQLException {
+
+    try {
+
+      if (!matches(snapshot)) {
+        return -1;
+      }
+
+      final int before = snapshot.rowCount();
+
+      loadUsers(snapshot);
+      loadConversations(snapshot);
+
+      try (final PreparedStatement statement = connection.prepareStatement(
+          "SELECT ROWID, CONVERSATION, ID, AUTHOR, CONTENT, CREATION FROM MESSAGES " +
+          "WHERE ROWID > ? ORDER BY ROWID")) {
+        statement.setLong(1, snapshot.lastMessageRow);
+        long lastRow = snapshot.lastMessageRow;
+        try (final ResultSet result = statement.executeQuery()) {
+          while (result.next()) {
+            snapshot.addMessage(parse(result.getString("CONVERSATION")),
+                                new Message(parse(result.getString("ID")),
+                                            Uuids.NULL,
+                                            Uuids.NULL,
+                                            Time.fromMs(result.getLong("CREATION")),
+                                            parse(result.getString("AUTHOR")),
+                                            result.getString("CONTENT")));
+            lastRow = Math.max(lastRow, result.getLong(1));
+          }
+        }
+        snapshot.lastMessageRow = lastRow;
+      }
+
+      return snapshot.rowCount() - before;
+
+    } finally {
+      connection.commit();
+    }
+  }
+
+  // LOAD RECENT
+  //
+  // Add all users and conversations to the empty "snapshot" but only the
+  // recent messages of each conversation. The messages that "history" says
+  // are archivable are left in the database and noted in "history". The
+  // snapshot's row marks are not set, so it must not be saved. Returns how
+  // many rows were added.
+  public synchronized int loadRecent(Snapshot snapshot, History history)
+      throws SQLException {
+
+    try {
+
+      loadUsers(snapshot);
+      loadConversations(snapshot);
+
+      final Map<String, Integer> counts = new LinkedHashMap<>();
+
+      try (
+          final Statement statement = connection.createStatement();
+          final ResultSet result = statement.executeQuery(
+              "SELECT CONVERSATION, COUNT(*) FROM MESSAGES GROUP BY CONVERSATION")
+      ) {
+        while (result.next()) {
+          counts.put(result.getString(1), result.getInt(2));
+        }
+      }
+
+      try (
+          final PreparedStatement last = connection.prepareStatement(
+              "SELECT ID, AUTHOR, CONTENT, CREATION FROM MESSAGES " +
+              "WHERE CONVERSATION = ? ORDER BY ROWID DESC LIMIT ?");
+          final PreparedStatement first = connection.prepareStatement(
+              "SELECT ID FROM MESSAGES WHERE CONVERSATION = ? ORDER BY ROWID LIMIT 1")
+      ) {
+
+        for (final Map.Entry<String, Integer> entry : counts.entrySet()) {
+
+          final Uuid conversation = parse(entry.getKey());
+          final int archived = history.archivable(entry.getValue());
+
+          // Read one more message than is kept so that the first message that
+          // is kept can point back to the last one that is not.
+          final List<Message> rows = new ArrayList<>();
+
+          last.setString(1, entry.getKey());
+          last.setInt(2, entry.getValue() - archived + 1);
+          try (final ResultSet result = last.executeQuery()) {
+            while (result.next()) {
+              rows.add(0, new Message(parse(result.getString("ID")),
+                                      Uuids.NULL,
+                                      Uuids.NULL,
+                                      Time.fromMs(result.getLong("CREATION")),
+                                      parse(result.getString("AUTHOR")),
+                                      result.getString("CONTENT")));
+            }
+          }
+
+          final int kept = archived > 0 ? 1 : 0;
+
+          for (int i = kept; i < rows.size(); i++) {
+            final Message row = rows.get(i);
+            snapshot.addMessage(conversation, new Message(row.id,
+                                                          Uuids.NULL,
+                                                          i > 0 ? rows.get(i - 1).id : Uuids.NULL,
+                                                          row.creation,
+                                                          row.author,
+                                                          row.content));
+          }
+
+          if (archived > 0 && rows.size() > 1) {
+            first.setString(1, entry.getKey());
+            try (final ResultSet result = first.executeQuery()) {
+              result.next();
+              history.archive(conversation,
+                              archived,
+                              parse(result.getString("ID")),
+                              rows.get(1).id);
+            }
+          }
+        }
+      }
+
+      return snapshot.rowCount();
+
+    } finally {
+      connection.commit();
+    }
+  }
+
+  private void loadUsers(Snapshot snapshot) throws SQLException {
+    try (final PreparedStatement statement = connection.prepareStatement(
+        "SELECT ROWID, ID, NAME, PASSWORD, CREATION FROM USERS " +
+        "WHERE ROWID > ? ORDER BY ROWID")) {
+      statement.setLong(1, snapshot.lastUserRow);
+      try (final ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          snapshot.addUser(new User(parse(result.getString("ID")),
+                                    result.getString("NAME"),
+                                    Time.fromMs(result.getLong("CREATION"))),
+                           result.getString("PASSWORD"));
+          snapshot.lastUserRow = result.getLong(1);
+        }
+      }
+    }
+  }
+
+  private void loadConversations(Snapshot snapshot) throws SQLException {
+    try (final PreparedStatement statement = connection.prepareStatement(
+        "SELECT ROWID, ID, OWNER, TITLE, CREATION FROM CONVERSATIONS " +
+        "WHERE ROWID > ? ORDER BY ROWID")) {
+      statement.setLong(1, snapshot.lastConversationRow);
+      try (final ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          snapshot.addConversation(new Conversation(parse(result.getString("ID")),
+                                                    parse(result.getString("OWNER")),
+                                                    Time.fromMs(result.getLong("CREATION")),
+                                                    result.getString("TITLE")));
+          snapshot.lastConversationRow = result.getLong(1);
+        }
+      }
+    }
+  }
+
+  private boolean matches(Snapshot snapshot) throws SQLException {
+
+    if (!snapshot.users.isEmpty()) {
+      final User last = snapshot.users.get(snapshot.users.size() - 1);
+      if (!hasRow("USERS", snapshot.lastUserRow, last.id)) {
+        return false;
+      }
+    }
+
+    if (!snapshot.conversations.isEmpty()) {
+      final Conversation last = snapshot.conversations.get(snapshot.conversations.size() - 1);
+      if (!hasRow("CONVERSATIONS", snapshot.lastConversationRow, last.id)) {
+        return false;
+      }
+    }
+
+    // Messages are grouped by conversation so the last row could be in any of
+    // the lists. Only check that the row exists.
+    if (snapshot.messageCount() > 0 && !hasRow("MESSAGES", snapshot.lastMessageRow, null)) {
+      return false;
+    }
+
+    return true;
+  }
+
+  // The table name is always one of the constant names above, never input.
+  private boolean hasRow(String table, long row, Uuid id) throws SQLException {
+    try (final PreparedStatement statement = connection.prepareStatement(
+        "SELECT ID FROM " + table + " WHERE ROWID = ?")) {
+      statement.setLong(1, row);
+      try (final ResultSet result = statement.executeQuery()) {
+        return result.next() &&
+               (id == null || Uuids.equals(id, parse(result.getString("ID"))));
+      }
+    }
+  }
+
+  // MESSAGES
+  //
+  // Read all of a conversation's messages in the order they were added, which
+  // is the order positions count in. The messages are not linked to each
+  // other.
+  public synchronized List<Message> messages(Uuid conversation) throws SQLException {
+    selectMessagesByConversation.setString(1, Uuids.toStorableString(conversation));
+    return readMessages(selectMessagesByConversation);
+  }
+
+  // MESSAGES
+  //
+  // Read "count" of a conversation's messages, starting at position "offset",
+  // in the order they were added. The messages are not linked to each other.
+  public synchronized List<Message> messages(Uuid conversation, int offset, int count)
+      throws SQLException {
+    selectMessagesByPosition.setString(1, Uuids.toStorableString(conversation));
+    selectMessagesByPosition.setInt(2, offset);
+    selectMessagesByPosition.setInt(3, count);
+    return readMessages(selectMessagesByPosition);
+  }
+
+  // MESSAGES
+  //
+  // Read a conversation's messages created between "start" and "end"
+  // (inclusive) that are among its first "count" messages, in the order they
+  // were added. Each message is linked to the messages added before and after
+  // it in the conversation.
+  public synchronized List<Message> messages(Uuid conversation, Time start, Time end, int count)
+      throws SQLException {
+    selectMessagesByTime.setString(1, Uuids.toStorableString(conversation));
+    selectMessagesByTime.setLong(2, start.inMs());
+    selectMessagesByTime.setLong(3, end.inMs());
+    selectMessagesByTime.setInt(4, count);
+    return readMessages(selectMessagesByTime);
+  }
+
+  // SEARCH
+  //
+  // Read the messages that have every one of "terms" (as MessageIndex splits
+  // content into terms), newest first, skipping the first "offset" and
+  // returning at most "count". If "conversation" is null every conversation
+  // is searched, otherwise only its first "archived" messages are. Each
+  // message is linked to the messages added before and after it in its
+  // conversation. There must be at least one term.
+  //
+  // The messages are found through the terms table, so only messages that
+  // have the terms are read.
+  public synchronized List<Message> search(Uuid conversation,
+                                           int archived,
+                                           Collection<String> terms,
+                                           int offset,
+                                           int count) throws SQLException {
+
+    final StringBuilder sql = new StringBuilder(
+        "SELECT ID, AUTHOR, CONTENT, CREATION, " + LINKS +
+        "FROM MESSAGES M WHERE ID IN (SELECT ID FROM MESSAGE_TERMS WHERE TERM = ?");
+
+    for (int i = 1; i < terms.size(); i++) {
+      sql.append(" INTERSECT SELECT ID FROM MESSAGE_TERMS WHERE TERM = ?");
+    }
+
+    sql.append(")");
+
+    if (conversation != null) {
+      sql.append(" AND CONVERSATION = ? AND POSITION < ?");
+    }
+
+    sql.append(" ORDER BY CREATION DESC, ROWID DESC LIMIT ? OFFSET ?");
+
+    try (final PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+
+      int parameter = 1;
+
+      for (final String term : terms) {
+        statement.setString(parameter++, term);
+      }
+
+      if (conversation != null) {
+        statement.setString(parameter++, Uuids.toStorableString(conversation));
+        statement.setInt(parameter++, archived);
+      }
+
+      statement.setInt(parameter++, count);
+      statement.setInt(parameter++, offset);
+
+      return readMessages(statement);
+    }
+  }
+
+  // LOCATE
+  //
+  // Find the conversation that a message is in and the message's position in
+  // that conversation. Returns null if there is no such message.
+  public synchronized Position locate(Uuid message) throws SQLException {
+
+    locateMessage.setString(1, Uuids.toStorableString(message));
+
+    try (final ResultSet result = locateMessage.executeQuery()) {
+      return result.next() ?
+          new Position(parse(result.getString(1)), result.getInt(2)) :
+          null;
+    } finally {
+      connection.commit();
+    }
+  }
+
+  private List<Message> readMessages(PreparedStatement statement) throws SQLException {
+
+    final List<Message> messages = new ArrayList<>();
+
+    try (final ResultSet result = statement.executeQuery()) {
+      final boolean linked = result.getMetaData().getColumnCount() > 4;
+      while (result.next()) {
+        messages.add(new Message(parse(result.getString("ID")),
+                                 linked ? parseLink(result.getString("NEXT")) : Uuids.NULL,
+                                 linked ? parseLink(result.getString("PREVIOUS")) : Uuids.NULL,
+                                 Time.fromMs(result.getLong("CREATION")),
+                                 parse(result.getString("AUTHOR")),
+                                 result.getString("CONTENT")));
+      }
+    }
+
+    connection.commit();
+
+    return messages;
+  }
+
+  // ADD USER
+  //
+  // Stage the user to be written by the next "flush". Does not block.
+  public void addUser(User user, String password) {
+
+    final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+    try {
+      Serializers.INTEGER.write(record, USER_RECORD);
+      Uuids.SERIALIZER.write(record, user.id);
+      Serializers.STRING.write(record, user.name);
+      Serializers.LONG.write(record, user.creation.inMs());
+      Serializers.STRING.write(record, password);
+    } catch (IOException ex) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(ex);
+    }
+
+    staged.add(record.toByteArray());
+  }
+
+  // ADD CONVERSATION
+  //
+  // Stage the conversation to be written by the next "flush". Does not block.
+  public void addConversation(Conversation conversation) {
+
+    final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+    try {
+      Serializers.INTEGER.write(record, CONVERSATION_RECORD);
+      Uuids.SERIALIZER.write(record, conversation.id);
+      Uuids.SERIALIZER.write(record, conversation.owner);
+      Serializers.LONG.write(record, conversation.creation.inMs());
+      Serializers.STRING.write(record, conversation.title);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+
+    staged.add(record.toByteArray());
+  }
+
+  // ADD MESSAGE
+  //
+  // Stage the message to be written by the next "flush". Does not block.
+  public void addMessage(Uuid conversation, Message message) {
+
+    final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+    try {
+      Serializers.INTEGER.write(record, MESSAGE_RECORD);
+      Uuids.SERIALIZER.write(record, conversation);
+      Uuids.SERIALIZER.write(record, message.id);
+      Uuids.SERIALIZER.write(record, message.author);
+      Serializers.LONG.write(record, message.creation.inMs());
+      Serializers.STRING.write(record, message.content);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+
+    staged.add(record.toByteArray());
+  }
+
+  // Turn a journal record into the write that it describes. Live writes and
+  // writes read back from the journal both go through here, so they are
+  // always written the same way.
+  private Write toWrite(byte[] record) {
+
+    final InputStream in = new ByteArrayInputStream(record);
+
+    try {
+
+      final int kind = Serializers.INTEGER.read(in);
+
+      if (kind == USER_RECORD) {
+
+        final String id = Uuids.toStorableString(Uuids.SERIALIZER.read(in));
+        final String name = Serializers.STRING.read(in);
+        final long creation = Serializers.LONG.read(in);
+        final String password = Serializers.STRING.read(in);
+
+        return new Write() {
+          @Override
+          public void apply(Set<PreparedStatement> statements) throws SQLException {
+            insertUser.setString(1, id);
+            insertUser.setString(2, name);
+            insertUser.setLong(3, creation);
+            insertUser.setString(4, password);
+            insertUser.addBatch();
+            statements.add(insertUser);
+          }
+        };
+
+      } else if (kind == CONVERSATION_RECORD) {
+
+        final String id = Uuids.toStorableString(Uuids.SERIALIZER.read(in));
+        final String owner = Uuids.toStorableString(Uuids.SERIALIZER.read(in));
+        final long creation = Serializers.LONG.read(in);
+        final String title = Serializers.STRING.read(in);
+
+        return new Write() {
+          @Override
+          public void apply(Set<PreparedStatement> statements) throws SQLException {
+            insertConversation.setString(1, id);
+            insertConversation.setString(2, owner);
+            insertConversation.setLong(3, creation);
+            insertConversation.setString(4, title);
+            insertConversation.addBatch();
+            statements.add(insertConversation);
+          }
+        };
+
+      } else if (kind == MESSAGE_RECORD) {
+
+        final String conversation = Uuids.toStorableString(Uuids.SERIALIZER.read(in));
+        final String id = Uuids.toStorableString(Uuids.SERIALIZER.read(in));
+        final String author = Uuids.toStorableString(Uuids.SERIALIZER.read(in));
+        final long creation = Serializers.LONG.read(in);
+        final String content = Serializers.STRING.read(in);
+
+        return new Write() {
+          @Override
+          public void apply(Set<PreparedStatement> statements) throws SQLException {
+            insertMessage.setString(1, conversation);
+            insertMessage.setLong(2, creation);
+            insertMessage.setString(3, id);
+            insertMessage.setString(4, author);
+            insertMessage.setString(5, content);
+            insertMessage.setString(6, conversation);
+            insertMessage.addBatch();
+            statements.add(insertMessage);
+            for (final String term : MessageIndex.terms(content)) {
+              insertTerm.setString(1, term);
+              insertTerm.setString(2, id);
+              insertTerm.addBatch();
+              statements.add(insertTerm);
+            }
+          }
+        };
+
+      } else {
+        throw new IOException("Unknown journal record kind " + kind);
+      }
+
+    } catch (final IOException ex) {
+
+      // Only a damaged journal can get here. The write fails when it is
+      // committed, so it is logged and kept like any other failed write.
+      return new Write() {
+        @Override
+        public void apply(Set<PreparedStatement> statements) throws SQLException {
+          throw new SQLException("Invalid journal record", ex);
+        }
+      };
+    }
+  }
+
+  // FLUSH
+  //
+  // Add every staged write to the journal and the queue, in the order they
+  // were staged, and return once they are in the journal. Writes may be
+  // acknowledged after this returns. Blocks if the queue is full, so callers
+  // that stage writes while holding a lock should flush after letting go of
+  // it.
+  public void flush() {
+    synchronized (queueLock) {
+      byte[] record;
+      while ((record = staged.poll()) != null) {
+        queue(record);
+      }
+    }
+  }
+
+  // CLOSE
+  //
+  // Stop accepting writes, wait for everything in the queue to be committed and
+  // close the connection.
+  public void close() {
+
+    flush();
+
+    running = false;
+
+    while (true) {
+      try {
+        writer.join();
+        break;
+      } catch (InterruptedException ex) {
+        // Keep waiting, the queue must be drained before closing.
+      }
+    }
+
+    synchronized (this) {
+
+      try {
+        journal.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close journal.");
+      }
+
+      try {
+        connection.close();
+      } catch (SQLException ex) {
+        LOG.error(ex, "Failed to close database connection.");
+      }
+    }
+  }
+
+  // Add one write to the journal and the queue. Called with "queueLock" held.
+  private void queue(byte[] record) {
+
+    if (!running) {
+      LOG.error("Write to database after it was closed. Write dropped.");
+      return;
+    }
+
+    final Write write = toWrite(record);
+
+    try {
+      journal.append(record);
+    } catch (IOException ex) {
+      // The write can still be committed, it just will not survive the
+      // server stopping before then.
+      LOG.error(ex, "Failed to add write to the journal.");
+      write.journaled = false;
+    }
+
+    while (true) {
+      try {
+        writes.put(write);
+        return;
+      } catch (InterruptedException ex) {
+        // Keep trying, dropping the write would lose data.
+      }
+    }
+  }
+
+  // Commit the writes read back from the journal, in batches, before the
+  // writer starts.
+  private void replay(List<byte[]> records) {
+
+    if (records.isEmpty()) {
+      return;
+    }
+
+    final List<Write> batch = new ArrayList<>(maxBatch);
+
+    for (final byte[] record : records) {
+      batch.add(toWrite(record));
+      if (batch.size() == maxBatch) {
+        commit(batch);
+        batch.clear();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      commit(batch);
+    }
+
+    LOG.info("Committed %d writes from the journal.", records.size());
+  }
+
+  private void drain() {
+
+    final List<Write> batch = new ArrayList<>(maxBatch);
+
+    while (running || !writes.isEmpty()) {
+
+      final Write first;
+
+      try {
+        first = writes.poll(WRITER_POLL_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        continue;
+      }
+
+      if (first == null) {
+        continue;
+      }
+
+      batch.add(first);
+      writes.drainTo(batch, maxBatch - 1);
+
+      commit(batch);
+      batch.clear();
+    }
+  }
+
+  // Commit the batch, trying again if it fails. If it keeps failing, commit
+  // the writes one at a time. Writes that can not be committed at all are
+  // left in the journal.
+  private void commit(List<Write> batch) {
+
+    long journaled = 0;
+    for (final Write write : batch) {
+      journaled += write.journaled ? 1 : 0;
+    }
+
+    for (int attempt = 1; attempt <= COMMIT_ATTEMPTS; attempt++) {
+
+      if (tryCommit(batch)) {
+        journal.committed(journaled, true);
+        return;
+      }
+
+      if (attempt < COMMIT_ATTEMPTS) {
+        try {
+          Thread.sleep(COMMIT_RETRY_MS * attempt);
+        } catch (InterruptedException ex) {
+          // Try again now.
+        }
+      }
+    }
+
+    LOG.warning("Committing %d writes together keeps failing. Committing them one at a time.",
+                batch.size());
+
+    int failed = 0;
+
+    for (final Write write : batch) {
+      if (!tryCommit(Collections.singletonList(write))) {
+        failed++;
+      }
+    }
+
+    if (failed > 0) {
+      LOG.error("%d of %d writes could not be committed. They are kept in the journal " +
+                "and will be tried again when the server starts.",
+                failed,
+                batch.size());
+    }
+
+    journal.committed(journaled, failed == 0);
+  }
+
+  // Run the writes as one transaction. Returns false, having rolled back, if
+  // it failed.
+  private synchronized boolean tryCommit(List<Write> batch) {
+
+    final long start = System.nanoTime();
+
+    try {
+
+      final Set<PreparedStatement> statements = new LinkedHashSet<>();
+
+      for (final Write write : batch) {
+        write.apply(statements);
+      }
+
+      for (final PreparedStatement statement : statements) {
+        statement.executeBatch();
+      }
+
+      connection.commit();
+
+      LOG.verbose("Committed %d writes in %d us",
+                  batch.size(),
+                  (System.nanoTime() - start) / 1000);
+
+      return true;
+
+    } catch (SQLException ex) {
+
+      LOG.error(ex, "Failed to commit %d writes to the database.", batch.size());
+
+      try {
+        insertUser.clearBatch();
+        insertConversation.clearBatch();
+        insertMessage.clearBatch();
+        insertTerm.clearBatch();
+        connection.rollback();
+      } catch (SQLException rollbackEx) {
+        LOG.error(rollbackEx, "Failed to roll back database.");
+      }
+
+      return false;
+    }
+  }
+
+  private static Uuid parseLink(String id) throws SQLException {
+    return id == null ? Uuids.NULL : parse(id);
+  }
+
+  private static Uuid parse(String id) throws SQLException {
+    try {
+      return Uuids.parse(id);
+    } catch (java.io.IOException ex) {
+      throw new SQLException("Invalid id in database: " + id, ex);
+    }
+  }
+}
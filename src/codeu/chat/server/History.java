@@ -0,0 +1,512 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.common.Time;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Logger;
+
+// HISTORY
+//
+// The older messages of each conversation when the model only holds each
+// conversation's recent messages. Older messages stay in the database and are
+// read a segment (a fixed number of messages) at a time when something asks
+// for one of them. Segments that have been read are cached.
+//
+// As messages are added a conversation's resident messages (the ones in the
+// model) grow past its recent window. Once they are a whole segment over it,
+// the oldest segment is taken out of the model and cached here, so it can be
+// dropped like any other segment. The number of archived messages is always
+// a whole number of segments.
+//
+// The budget covers the resident messages and the cache. Once they are over
+// it the segments that were used least recently are dropped. If that is not
+// enough, whole segments of the conversations that had a message added least
+// recently are taken out of the model as well, even from inside their recent
+// window. A conversation always keeps at least its newest messages (less than
+// a segment) in the model, so with very many conversations the resident
+// messages alone can still be over the budget.
+//
+// A message's position in its conversation is its place in the order that
+// messages were added to the database. New messages are always added after
+// the ones that are already there, so a message's position, and the segment
+// it is in, never changes.
+final class History {
+
+  private final static Logger.Log LOG = Logger.newLog(History.class);
+
+  // A rough guess at the memory a message uses on top of its content.
+  private static final long MESSAGE_OVERHEAD_BYTES = 200;
+
+  private final Database database;
+  private final int recent;
+  private final int segmentSize;
+  private final long budgetBytes;
+
+  private final Map<Uuid, Archive> archives = new HashMap<>();
+
+  // Access ordered, so the first segment is the one used least recently.
+  private final LinkedHashMap<SegmentKey, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Uuid, Segment> segmentByMessage = new HashMap<>();
+
+  // Access ordered, so the first conversation is the one that had a message
+  // added least recently.
+  private final LinkedHashMap<Uuid, Boolean> activity = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long cachedBytes;
+  private long residentBytes;
+
+  public History(Database database, int recent, int segmentSize, long budgetBytes) {
+    this.database = database;
+    this.recent = Math.max(1, recent);
+    this.segmentSize = Math.max(1, segmentSize);
+    this.budgetBytes = budgetBytes;
+  }
+
+  // ARCHIVABLE
+  //
+  // Get how many of a conversation's first messages should only be in the
+  // database when it has "total" messages: as many whole segments as leave at
+  // least the recent window in the model.
+  public int archivable(int total) {
+    return Math.max(0, (total - recent) / segmentSize * segmentSize);
+  }
+
+  // ARCHIVE
+  //
+  // Note that the first "count" messages of the conversation are only in the
+  // database. "first" is the first of them and "firstResident" is the first
+  // message after them, which must be in the model.
+  public synchronized void archive(Uuid conversation, int count, Uuid first, Uuid firstResident) {
+    archives.put(Uuids.complete(conversation), new Archive(count, first, firstResident));
+  }
+
+  // LINK
+  //
+  // Point each conversation that has archived messages at its real first
+  // message and count the messages that are in the model. Must be called once
+  // everything is in the model.
+  public synchronized void link(Model model) {
+
+    for (final Map.Entry<Uuid, Archive> entry : archives.entrySet()) {
+      final Conversation conversation = model.conversationById().first(entry.getKey());
+      if (conversation != null) {
+        conversation.firstMessage = entry.getValue().first;
+      }
+    }
+
+    final List<Conversation> conversations = new ArrayList<>();
+    for (final Conversation conversation : model.conversationById().all()) {
+      conversations.add(conversation);
+    }
+
+    // The conversation whose newest message is oldest counts as the least
+    // recently active.
+    Collections.sort(conversations, new Comparator<Conversation>() {
+      @Override
+      public int compare(Conversation a, Conversation b) {
+        return Long.compare(newest(model, a.id), newest(model, b.id));
+      }
+    });
+
+    residentBytes = 0;
+    activity.clear();
+    for (final Conversation conversation : conversations) {
+      for (final Message message : model.messageByPosition(conversation.id)) {
+        residentBytes += bytes(message);
+      }
+      activity.put(Uuids.complete(conversation.id), true);
+    }
+
+    evict();
+    shrink(model);
+  }
+
+  // ADDED
+  //
+  // Count a message that was just added to the model. If that puts its
+  // conversation a whole segment over its recent window, the oldest segment
+  // is taken out of the model and cached. Must be called while nothing else
+  // can use the model.
+  public synchronized void added(Model model, Uuid conversation, Message message) {
+
+    residentBytes += bytes(message);
+
+    final Uuid key = Uuids.complete(conversation);
+    activity.put(key, true);
+
+    final Archive archive = archives.get(key);
+
+    final int archived = archive == null ? 0 : archive.count;
+    final int total = archived + model.messageByPosition(conversation).size();
+    final int target = archivable(total);
+
+    if (target > archived) {
+      move(model, conversation, target - archived);
+    }
+
+    evict();
+    shrink(model);
+  }
+
+  // Take a conversation's oldest "count" resident messages, a whole number of
+  // segments, out of the model and cache them.
+  private void move(Model model, Uuid conversation, int count) {
+
+    final Uuid key = Uuids.complete(conversation);
+    final Archive archive = archives.get(key);
+    final int archived = archive == null ? 0 : archive.count;
+
+    final List<Message> moved = model.removeOldestMessages(conversation, count);
+
+    for (int from = 0; from < moved.size(); from += segmentSize) {
+
+      final Segment segment =
+          new Segment(new SegmentKey(conversation, (archived + from) / segmentSize));
+
+      for (final Message old : moved.subList(from, Math.min(moved.size(), from + segmentSize))) {
+        segment.messages.put(Uuids.complete(old.id), old);
+        segment.bytes += bytes(old);
+      }
+
+      residentBytes -= segment.bytes;
+      cache(segment);
+    }
+
+    final Uuid firstResident = model.messageByPosition(conversation).get(0).id;
+
+    if (archive == null) {
+      archives.put(key, new Archive(moved.size(), moved.get(0).id, firstResident));
+    } else {
+      archive.count += moved.size();
+      archive.firstResident = firstResident;
+    }
+  }
+
+  // Once dropping cached segments is not enough to get back under the budget,
+  // move the oldest resident segment out of the conversation that was active
+  // least recently and still has more than a segment resident, and drop it.
+  // Repeat until under the budget or no conversation has a segment to spare.
+  private void shrink(Model model) {
+
+    while (residentBytes + cachedBytes > budgetBytes) {
+
+      Uuid spare = null;
+      for (final Uuid conversation : activity.keySet()) {
+        if (model.messageByPosition(conversation).size() > segmentSize) {
+          spare = conversation;
+          break;
+        }
+      }
+
+      if (spare == null) {
+        return;
+      }
+
+      LOG.info("Moving a segment of %s out of memory to stay in the history budget.", spare);
+
+      move(model, spare, segmentSize);
+      evict();
+    }
+  }
+
+  private static long newest(Model model, Uuid conversation) {
+    final List<Message> messages = model.messageByPosition(conversation);
+    return messages.isEmpty() ? 0 : messages.get(messages.size() - 1).creation.inMs();
+  }
+
+  // FIRST RESIDENT
+  //
+  // Get the first of a conversation's messages that is in the model, or null
+  // if none of the conversation's messages are archived.
+  public synchronized Uuid firstResident(Uuid conversation) {
+    final Archive archive = archives.get(Uuids.complete(conversation));
+    return archive == null ? null : archive.firstResident;
+  }
+
+  // ARCHIVED COUNT
+  //
+  // Get how many of a conversation's messages are only in the database. These
+  // are always the conversation's first messages.
+  public synchronized int archivedCount(Uuid conversation) {
+    final Archive archive = archives.get(Uuids.complete(conversation));
+    return archive == null ? 0 : archive.count;
+  }
+
+  // MESSAGES
+  //
+  // Get up to "count" of a conversation's archived messages starting at
+  // position "offset". Segments that are not cached are read from the
+  // database.
+  public synchronized List<Message> messages(Uuid conversation, int offset, int count) {
+
+    final Archive archive = archives.get(Uuids.complete(conversation));
+    final List<Message> found = new ArrayList<>();
+
+    if (archive == null) {
+      return found;
+    }
+
+    final int end = Math.min(archive.count, offset + count);
+
+    try {
+
+      for (int position = Math.max(0, offset); position < end; ) {
+
+        final int index = position / segmentSize;
+
+        Segment segment = segments.get(new SegmentKey(conversation, index));
+        if (segment == null) {
+          segment = read(conversation, archive, index);
+        }
+
+        final List<Message> inSegment = new ArrayList<>(segment.messages.values());
+        final int first = index * segmentSize;
+
+        for (int at = position - first; at < inSegment.size() && position < end; at++) {
+          found.add(inSegment.get(at));
+          position += 1;
+        }
+
+        // A segment that came back short means the database and the archive
+        // disagree. Stop rather than loop.
+        if (position < Math.min(end, first + segmentSize)) {
+          break;
+        }
+      }
+
+    } catch (SQLException ex) {
+      LOG.error(ex, "Failed to read archived messages in %s", conversation);
+    }
+
+    return found;
+  }
+
+  // FIND
+  //
+  // Get an archived message. If it is not cached, its segment is read from
+  // the database. Returns null if the message is not archived.
+  public synchronized Message find(Uuid id) {
+
+    final Uuid key = Uuids.complete(id);
+
+    final Segment cached = segmentByMessage.get(key);
+    if (cached != null) {
+      segments.get(cached.key);  // Mark the segment as used.
+      return cached.messages.get(key);
+    }
+
+    try {
+
+      final Database.Position position = database.locate(id);
+      if (position == null) {
+        return null;
+      }
+
+      final Archive archive = archives.get(Uuids.complete(position.conversation));
+      if (archive == null || position.index >= archive.count) {
+        return null;
+      }
+
+      return read(position.conversation, archive, position.index / segmentSize).messages.get(key);
+
+    } catch (SQLException ex) {
+      LOG.error(ex, "Failed to read archived message %s", id);
+      return null;
+    }
+  }
+
+  // RANGE
+  //
+  // Get a conversation's archived messages created between "start" and "end"
+  // (inclusive) in the order they are in the conversation. These are read
+  // straight from the database and are not cached.
+  public synchronized Collection<Message> range(Uuid conversation, Time start, Time end) {
+
+    final Archive archive = archives.get(Uuids.complete(conversation));
+
+    if (archive == null) {
+      return Collections.emptyList();
+    }
+
+    try {
+      return database.messages(conversation, start, end, archive.count);
+    } catch (SQLException ex) {
+      LOG.error(ex, "Failed to read archived messages in %s", conversation);
+      return Collections.emptyList();
+    }
+  }
+
+  // SEARCH
+  //
+  // Get up to "count" of the messages in the database that contain every term
+  // in "query", newest first. If "conversation" is null every conversation is
+  // searched, and messages that are also in the model may be returned.
+  // Otherwise only the conversation's archived messages are searched. These
+  // are read straight from the database and are not cached, and the history
+  // is not held while they are read, so messages can be archived meanwhile.
+  public List<Message> search(Uuid conversation, String query, int count) {
+
+    final Set<String> terms = MessageIndex.terms(query);
+    final List<Message> found = new ArrayList<>();
+
+    final int archived = conversation == null ? 0 : archivedCount(conversation);
+
+    if (terms.isEmpty() || count <= 0 || (conversation != null && archived == 0)) {
+      return found;
+    }
+
+    try {
+      found.addAll(database.search(conversation, archived, terms, 0, count));
+    } catch (SQLException ex) {
+      LOG.error(ex, "Failed to search archived messages for \"%s\"", query);
+    }
+
+    return found;
+  }
+
+  private Segment read(Uuid conversation, Archive archive, int index) throws SQLException {
+
+    final int first = index * segmentSize;
+    final int end = Math.min(first + segmentSize, archive.count);
+
+    // Read one message on each side of the segment so that the messages at
+    // its edges can be linked to their neighbours.
+    final int offset = Math.max(0, first - 1);
+    final List<Message> rows = database.messages(conversation, offset, (end - offset) + 1);
+
+    final Segment segment = new Segment(new SegmentKey(conversation, index));
+
+    for (int position = first; position < end && position - offset < rows.size(); position++) {
+
+      final int at = position - offset;
+      final Message row = rows.get(at);
+
+      final Message message = new Message(
+          row.id,
+          at + 1 < rows.size() ? rows.get(at + 1).id : Uuids.NULL,
+          at > 0 ? rows.get(at - 1).id : Uuids.NULL,
+          row.creation,
+          row.author,
+          row.content);
+
+      segment.messages.put(Uuids.complete(message.id), message);
+      segment.bytes += bytes(message);
+    }
+
+    // Messages that were archived very recently may not have been committed
+    // yet. A short segment is used this once but not cached.
+    if (segment.messages.size() == end - first) {
+      cache(segment);
+      evict();
+    }
+
+    return segment;
+  }
+
+  private void cache(Segment segment) {
+    segments.put(segment.key, segment);
+    for (final Uuid id : segment.messages.keySet()) {
+      segmentByMessage.put(id, segment);
+    }
+    cachedBytes += segment.bytes;
+  }
+
+  private static long bytes(Message message) {
+    return MESSAGE_OVERHEAD_BYTES + 2L * message.content.length();
+  }
+
+  // Drop the least recently used segments until the resident messages and the
+  // cache are back under the budget. The newest segment is always kept, even
+  // if it alone is over.
+  private void evict() {
+
+    final Iterator<Segment> iterator = segments.values().iterator();
+
+    while (residentBytes + cachedBytes > budgetBytes && segments.size() > 1) {
+      final Segment segment = iterator.next();
+      iterator.remove();
+      for (final Uuid id : segment.messages.keySet()) {
+        segmentByMessage.remove(id);
+      }
+      cachedBytes -= segment.bytes;
+    }
+  }
+
+  private static final class Archive {
+
+    final Uuid first;
+    int count;
+    Uuid firstResident;
+
+    Archive(int count, Uuid first, Uuid firstResident) {
+      this.count = count;
+      this.first = first;
+      this.firstResident = firstResident;
+    }
+  }
+
+  private static final class SegmentKey {
+
+    final Uuid conversation;
+    final int index;
+
+    SegmentKey(Uuid conversation, int index) {
+      this.conversation = Uuids.complete(conversation);
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof SegmentKey)) {
+        return false;
+      }
+      final SegmentKey key = (SegmentKey) other;
+      return index == key.index && conversation.equals(key.conversation);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * conversation.hashCode() + index;
+    }
+  }
+
+  private static final class Segment {
+
+    final SegmentKey key;
+    final Map<Uuid, Message> messages = new LinkedHashMap<>();
+    long bytes;
+
+    Segment(SegmentKey key) {
+      this.key = key;
+    }
+  }
+}
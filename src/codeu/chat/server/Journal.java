@@ -0,0 +1,300 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import codeu.chat.util.Logger;
+
+// JOURNAL
+//
+// The database's queue of writes, on disk. A write is appended to the journal
+// before it is queued, so once "append" returns the write will reach the
+// database even if the server stops before the writer gets to it. The
+// journal is kept in a directory of segment files, each named after its
+// number. Each record is:
+//
+//   int length | int crc32 of payload | payload
+//
+// Records are committed in the order they were appended. A segment is
+// deleted once all of its records have been committed and a newer segment is
+// being written to. A segment with a record that could not be committed is
+// kept until the next start, where every record left in the journal is read
+// back to be committed again. Reading stops at the first record of a segment
+// that is not whole, which can only be a write that was never acknowledged.
+final class Journal implements Closeable {
+
+  private final static Logger.Log LOG = Logger.newLog(Journal.class);
+
+  private static final String SUFFIX = ".journal";
+  private static final int HEADER_BYTES = 8;
+
+  // Records larger than this can only come from a damaged file.
+  private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+  private static final class Segment {
+
+    final File file;
+
+    long appended = 0;
+    long committed = 0;
+
+    // Set once a record in the segment could not be committed.
+    boolean keep = false;
+
+    Segment(File file) {
+      this.file = file;
+    }
+  }
+
+  private final File directory;
+  private final boolean force;
+  private final long segmentBytes;
+
+  // Oldest first. The last segment is the one being appended to.
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final List<byte[]> recovered = new ArrayList<>();
+
+  private FileChannel channel;
+  private long channelBytes;
+  private long nextNumber;
+
+  private Journal(File directory, boolean force, long segmentBytes) {
+    this.directory = directory;
+    this.force = force;
+    this.segmentBytes = segmentBytes;
+  }
+
+  // OPEN
+  //
+  // Open the journal in "directory", creating it if needed. If "force" is
+  // true every append waits for the record to reach the disk, otherwise it
+  // only waits for it to reach the operating system (which survives the
+  // server crashing but not a power loss). The records left by the last run
+  // are returned by "recovered" and must be committed before anything new.
+  public static Journal open(File directory, boolean force, long segmentBytes)
+      throws IOException {
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can not create journal directory " + directory);
+    }
+
+    final Journal journal = new Journal(directory, force, segmentBytes);
+    journal.recover();
+    journal.roll();
+
+    return journal;
+  }
+
+  // RECOVERED
+  //
+  // The records that were in the journal when it was opened, oldest first.
+  public List<byte[]> recovered() {
+    return recovered;
+  }
+
+  // APPEND
+  //
+  // Add a record to the end of the journal. Returns once it is as durable as
+  // the journal was asked to make it.
+  public synchronized void append(byte[] payload) throws IOException {
+
+    final CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+    record.putInt(payload.length);
+    record.putInt((int) crc.getValue());
+    record.put(payload);
+    record.flip();
+
+    while (record.hasRemaining()) {
+      channel.write(record);
+    }
+
+    if (force) {
+      channel.force(false);
+    }
+
+    channelBytes += HEADER_BYTES + payload.length;
+    segments.getLast().appended++;
+
+    if (channelBytes >= segmentBytes) {
+      roll();
+    }
+  }
+
+  // COMMITTED
+  //
+  // Note that the oldest "count" records not yet committed have been handled.
+  // If "applied" is false at least one of them could not be written to the
+  // database, so their segments are kept to be tried again at the next start.
+  public synchronized void committed(long count, boolean applied) {
+
+    for (final Segment segment : segments) {
+      if (count == 0) {
+        break;
+      }
+      final long taken = Math.min(count, segment.appended - segment.committed);
+      segment.committed += taken;
+      segment.keep |= taken > 0 && !applied;
+      count -= taken;
+    }
+
+    // The segment being appended to is never deleted while the journal is
+    // open.
+    deleteDone(segments.getLast());
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+    deleteDone(null);
+  }
+
+  // Delete every segment that is done with, except for "skip".
+  private void deleteDone(Segment skip) {
+    final Iterator<Segment> iterator = segments.iterator();
+    while (iterator.hasNext()) {
+      final Segment segment = iterator.next();
+      if (segment != skip && done(segment)) {
+        delete(segment);
+        iterator.remove();
+      }
+    }
+  }
+
+  private static boolean done(Segment segment) {
+    return !segment.keep && segment.committed == segment.appended;
+  }
+
+  private static void delete(Segment segment) {
+    if (!segment.file.delete()) {
+      LOG.warning("Failed to delete journal segment %s", segment.file);
+    }
+  }
+
+  // Start appending to a new segment.
+  private void roll() throws IOException {
+
+    if (channel != null) {
+      channel.close();
+    }
+
+    final File file = new File(directory, nextNumber + SUFFIX);
+    nextNumber++;
+
+    channel = new FileOutputStream(file, true).getChannel();
+    channelBytes = 0;
+
+    segments.addLast(new Segment(file));
+  }
+
+  private void recover() throws IOException {
+
+    final List<Long> numbers = new ArrayList<>();
+
+    final File[] files = directory.listFiles();
+    for (final File file : files == null ? new File[0] : files) {
+      final String name = file.getName();
+      if (name.endsWith(SUFFIX)) {
+        try {
+          numbers.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+        } catch (NumberFormatException ex) {
+          LOG.warning("Ignoring %s in journal directory", name);
+        }
+      }
+    }
+
+    final Long[] sorted = numbers.toArray(new Long[numbers.size()]);
+    Arrays.sort(sorted);
+
+    for (final long number : sorted) {
+
+      final Segment segment = new Segment(new File(directory, number + SUFFIX));
+      segment.appended = read(segment.file, recovered);
+      segments.addLast(segment);
+
+      nextNumber = number + 1;
+    }
+
+    if (!recovered.isEmpty()) {
+      LOG.info("Recovered %d writes from journal %s", recovered.size(), directory);
+    }
+  }
+
+  // Add every whole record in the file to "records" and return how many were
+  // added.
+  private static long read(File file, List<byte[]> records) throws IOException {
+
+    long count = 0;
+
+    try (final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+
+      final CRC32 crc = new CRC32();
+
+      while (true) {
+
+        final int length;
+        final int expected;
+        final byte[] payload;
+
+        try {
+          length = in.readInt();
+          expected = in.readInt();
+          if (length < 0 || length > MAX_RECORD_BYTES) {
+            LOG.warning("Journal segment %s ends in a damaged record.", file);
+            break;
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+        } catch (EOFException ex) {
+          break;
+        }
+
+        crc.reset();
+        crc.update(payload);
+
+        if ((int) crc.getValue() != expected) {
+          LOG.warning("Journal segment %s ends in a damaged record.", file);
+          break;
+        }
+
+        records.add(payload);
+        count++;
+      }
+    }
+
+    return count;
+  }
+}
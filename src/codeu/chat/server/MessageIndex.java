@@ -0,0 +1,225 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import codeu.chat.common.Message;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+
+// MESSAGE INDEX
+//
+// Search messages by the words in their content.
+//
+// Message content is split into terms (runs of letters and digits, in lower
+// case). Each conversation has its own index from term to the positions of
+// the conversation's messages that contain it. Messages are only ever added
+// to the end of a conversation, so each list of positions is sorted just by
+// adding to it, and adding a message costs one append per distinct term.
+// Messages are only taken out from the start of a conversation, and positions
+// keep counting from the conversation's first message.
+//
+// A search finds the messages that contain every term in the query. It walks
+// the shortest of the terms' lists from the end, looking each position up in
+// the other lists, so the newest matches are found first and a search can
+// stop as soon as it has enough.
+public final class MessageIndex {
+
+  // Longer terms are cut to this length, so one long run of characters does
+  // not make a large key.
+  private static final int MAX_TERM_LENGTH = 64;
+
+  private static final Comparator<Message> NEWEST_FIRST = new Comparator<Message>() {
+    @Override
+    public int compare(Message a, Message b) {
+      return b.creation.compareTo(a.creation);
+    }
+  };
+
+  private static final class ConversationIndex {
+    // The messages from position "removed" on.
+    final List<Message> messages = new ArrayList<>();
+    final Map<String, Postings> terms = new HashMap<>();
+    int removed;
+  }
+
+  private final Map<Uuid, ConversationIndex> conversations = new HashMap<>();
+
+  public void add(Uuid conversation, Message message) {
+
+    final Uuid key = Uuids.complete(conversation);
+
+    ConversationIndex index = conversations.get(key);
+    if (index == null) {
+      index = new ConversationIndex();
+      conversations.put(key, index);
+    }
+
+    final int position = index.removed + index.messages.size();
+    index.messages.add(message);
+
+    for (final String term : terms(message.content)) {
+      Postings postings = index.terms.get(term);
+      if (postings == null) {
+        postings = new Postings();
+        index.terms.put(term, postings);
+      }
+      postings.add(position);
+    }
+  }
+
+  // REMOVE OLDEST
+  //
+  // Take the first "count" messages that are still in the index out of it.
+  public void removeOldest(Uuid conversation, int count) {
+
+    final ConversationIndex index = conversations.get(Uuids.complete(conversation));
+
+    if (index == null || count <= 0) {
+      return;
+    }
+
+    final List<Message> oldest = index.messages.subList(0, Math.min(count, index.messages.size()));
+
+    // Only the terms of the removed messages can have positions to drop.
+    final Set<String> touched = new HashSet<>();
+    for (final Message message : oldest) {
+      touched.addAll(terms(message.content));
+    }
+
+    index.removed += oldest.size();
+    oldest.clear();
+
+    for (final String term : touched) {
+      final Postings postings = index.terms.get(term);
+      postings.removeBelow(index.removed);
+      if (postings.size() == 0) {
+        index.terms.remove(term);
+      }
+    }
+  }
+
+  // SEARCH
+  //
+  // Get the messages in "conversation" that contain every term in "query",
+  // newest first, skipping the first "offset" matches and returning at most
+  // "limit" of them. If "conversation" is null every conversation is
+  // searched.
+  public List<Message> search(Uuid conversation, String query, int offset, int limit) {
+
+    final Set<String> terms = terms(query);
+    final int skip = Math.max(0, offset);
+
+    if (terms.isEmpty() || limit <= 0) {
+      return new ArrayList<>();
+    }
+
+    if (conversation != null) {
+      final ConversationIndex index = conversations.get(Uuids.complete(conversation));
+      return index == null ? new ArrayList<Message>() : newest(index, terms, skip, limit);
+    }
+
+    // Any conversation could hold the newest matches, so take enough from
+    // each to fill the page and then merge them by time.
+    final List<Message> found = new ArrayList<>();
+    for (final ConversationIndex index : conversations.values()) {
+      found.addAll(newest(index, terms, 0, skip + limit));
+    }
+
+    Collections.sort(found, NEWEST_FIRST);
+
+    final int from = Math.min(skip, found.size());
+    final int to = Math.min(from + limit, found.size());
+    return new ArrayList<>(found.subList(from, to));
+  }
+
+  // TERMS
+  //
+  // Split text into its distinct terms, in the order they first appear.
+  static Set<String> terms(String text) {
+
+    final Set<String> terms = new LinkedHashSet<>();
+    final String lower = text.toLowerCase(Locale.ROOT);
+
+    int start = -1;
+    for (int i = 0; i <= lower.length(); i++) {
+
+      final boolean inTerm = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+
+      if (inTerm && start < 0) {
+        start = i;
+      } else if (!inTerm && start >= 0) {
+        terms.add(lower.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+        start = -1;
+      }
+    }
+
+    return terms;
+  }
+
+  private static List<Message> newest(ConversationIndex index, Set<String> terms, int skip, int limit) {
+
+    final List<Message> found = new ArrayList<>();
+
+    final List<Postings> lists = new ArrayList<>(terms.size());
+    for (final String term : terms) {
+      final Postings postings = index.terms.get(term);
+      if (postings == null) {
+        return found;
+      }
+      lists.add(postings);
+    }
+
+    Collections.sort(lists, new Comparator<Postings>() {
+      @Override
+      public int compare(Postings a, Postings b) {
+        return Integer.compare(a.size(), b.size());
+      }
+    });
+
+    final Postings shortest = lists.get(0);
+
+    for (int i = shortest.size() - 1; i >= 0 && found.size() < limit; i--) {
+
+      final int position = shortest.get(i);
+
+      boolean inAll = true;
+      for (int list = 1; list < lists.size() && inAll; list++) {
+        inAll = lists.get(list).contains(position);
+      }
+
+      if (inAll) {
+        if (skip > 0) {
+          skip -= 1;
+        } else {
+          found.add(index.messages.get(position - index.removed));
+        }
+      }
+    }
+
+    return found;
+  }
+}
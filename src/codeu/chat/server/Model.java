@@ -14,7 +14,16 @@
 
 package codeu.chat.server;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 import codeu.chat.common.Conversation;
 import codeu.chat.common.ConversationSummary;
@@ -23,8 +32,12 @@ import codeu.chat.common.Message;
 import codeu.chat.common.Time;
 import codeu.chat.common.User;
 import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.store.ConcurrentStore;
+import codeu.chat.util.store.SortedArrayStore;
 import codeu.chat.util.store.Store;
 import codeu.chat.util.store.StoreAccessor;
+import codeu.chat.util.store.WritableStore;
 
 import java.sql.*;
 
@@ -55,25 +68,65 @@ public final class Model {
 
   private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
 
-  private final Store<String, User> userByPassword = new Store<>(STRING_COMPARE); 
-    
-  private final Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
-  private final Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, User> userByText = new Store<>(STRING_COMPARE);
-
-  private final Store<Uuid, Conversation> conversationById = new Store<>(UUID_COMPARE);
-  private final Store<Time, Conversation> conversationByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Conversation> conversationByText = new Store<>(STRING_COMPARE);
-
-  private final Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
-  private final Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
-
-  private final Uuid.Generator userGenerations = new LinearUuidGenerator(null, 1, Integer.MAX_VALUE);
-  private Uuid currentUserGeneration = userGenerations.make();
+  private static final StoreAccessor<Time, Message> EMPTY_MESSAGES =
+      new SortedArrayStore<>(TIME_COMPARE);
+
+  // Each index uses the store that suits its keys. Ids are unique, so the
+  // linked Store never has to walk past equal keys. Times, names, passwords
+  // and text are often shared by many values, so those indexes use the
+  // SortedArrayStore where adding a value does not depend on how many values
+  // already share its key.
+  //
+  // Users and messages by id use the ConcurrentStore, which can be read while
+  // it is being written to. Users never change and the only part of a message
+  // that changes is its volatile "next", so looking them up by id does not
+  // need the server's lock.
+
+  private final WritableStore<String, User> userByPassword = new SortedArrayStore<>(STRING_COMPARE);
+
+  private final WritableStore<Uuid, User> userById = new ConcurrentStore<>(UUID_COMPARE);
+  private final WritableStore<Time, User> userByTime = new SortedArrayStore<>(TIME_COMPARE);
+  private final WritableStore<String, User> userByText = new SortedArrayStore<>(STRING_COMPARE);
+
+  private final WritableStore<Uuid, Conversation> conversationById = new Store<>(UUID_COMPARE);
+  private final WritableStore<Time, Conversation> conversationByTime =
+      new SortedArrayStore<>(TIME_COMPARE);
+  private final WritableStore<String, Conversation> conversationByText =
+      new SortedArrayStore<>(STRING_COMPARE);
+  private final TitleIndex conversationByTitle = new TitleIndex(conversationByText);
+
+  private final WritableStore<Uuid, Message> messageById = new ConcurrentStore<>(UUID_COMPARE);
+  private final WritableStore<Time, Message> messageByTime = new SortedArrayStore<>(TIME_COMPARE);
+  private final MessageIndex messageByText = new MessageIndex();
+
+  // Each conversation's messages by time, so that a time range in one
+  // conversation does not have to look at any of its other messages.
+  private final Map<Uuid, WritableStore<Time, Message>> conversationMessagesByTime =
+      new HashMap<>();
+
+  // Each conversation's messages in the order they were added, so that a
+  // message can be found by its position without following the chain.
+  private final Map<Uuid, List<Message>> conversationMessagesByPosition = new HashMap<>();
+
+  // Every user in the order they were added, and for each user generation the
+  // number of users that had been added when it was made. This is the change
+  // log that lets the users added since any generation be found without
+  // looking at the others.
+  private final List<User> userLog = new ArrayList<>();
+  private final List<Integer> userLogSizes = new ArrayList<>();
+
+  // Generations are made under a root that is new for each model, so that a
+  // generation from an earlier run of the server is not mistaken for one of
+  // this run's.
+  private static final int USER_GENERATION_START = 1;
+  private final Uuid userGenerationRoot = new RandomUuidGenerator(null, System.nanoTime()).make();
+  private final Uuid.Generator userGenerations =
+      new LinearUuidGenerator(userGenerationRoot, USER_GENERATION_START, Integer.MAX_VALUE);
+  private Uuid currentUserGeneration = newUserGeneration();
 
   public void add(User user) {
-    currentUserGeneration = userGenerations.make();
+    userLog.add(user);
+    currentUserGeneration = newUserGeneration();
 
     //userByPassword.insert(user.password,user);
     
@@ -114,7 +167,8 @@ public final class Model {
   }
     
     public void add(User user, String password) {
-    currentUserGeneration = userGenerations.make();
+    userLog.add(user);
+    currentUserGeneration = newUserGeneration();
 
     userByPassword.insert(password,user);
     userById.insert(user.id, user);
@@ -124,6 +178,33 @@ public final class Model {
   }
   
 
+  // ADD ALL USERS
+  //
+  // Add many users at once. "passwords" must line up with "users". Nothing is
+  // checked, the users must not already be in the model.
+  public void addAllUsers(List<User> users, List<String> passwords) {
+    userLog.addAll(users);
+    currentUserGeneration = newUserGeneration();
+
+    final List<Map.Entry<String, User>> byPassword = new ArrayList<>(users.size());
+    final List<Map.Entry<Uuid, User>> byId = new ArrayList<>(users.size());
+    final List<Map.Entry<Time, User>> byTime = new ArrayList<>(users.size());
+    final List<Map.Entry<String, User>> byText = new ArrayList<>(users.size());
+
+    for (int i = 0; i < users.size(); i++) {
+      final User user = users.get(i);
+      byPassword.add(entry(passwords.get(i), user));
+      byId.add(entry(user.id, user));
+      byTime.add(entry(user.creation, user));
+      byText.add(entry(user.name, user));
+    }
+
+    userByPassword.insertAll(byPassword);
+    userById.insertAll(byId);
+    userByTime.insertAll(byTime);
+    userByText.insertAll(byText);
+  }
+
   public StoreAccessor<Uuid, User> userById() {
     return userById;
   }
@@ -144,10 +225,92 @@ public final class Model {
     return currentUserGeneration;
   }
 
+  // USERS SINCE
+  //
+  // Get the users added after the given generation, in the order they were
+  // added. Returns null if the generation was not made by this model.
+  public List<User> usersSince(Uuid generation) {
+
+    if (generation == null || !Uuids.equals(generation.root(), userGenerationRoot)) {
+      return null;
+    }
+
+    final int index = generation.id() - (USER_GENERATION_START + 1);
+
+    if (index < 0 || index >= userLogSizes.size()) {
+      return null;
+    }
+
+    return new ArrayList<>(userLog.subList(userLogSizes.get(index), userLog.size()));
+  }
+
+  private Uuid newUserGeneration() {
+    final Uuid generation = userGenerations.make();
+    userLogSizes.add(userLog.size());
+    return generation;
+  }
+
+  // Every conversation by the version it was last changed at (when it was
+  // added or last given a message). Changing a conversation moves it to the
+  // end, so the conversations changed since any version are the tail of the
+  // map.
+  private final TreeMap<Long, Conversation> conversationByVersion = new TreeMap<>();
+  private final Map<Uuid, Long> conversationVersions = new HashMap<>();
+
+  // Versions count up from zero in each model. The epoch tells the versions
+  // of one model (one run of the server) from those of another.
+  private final long conversationEpoch = new Random().nextLong();
+  private long conversationVersion = 0;
+
+  public long conversationEpoch() {
+    return conversationEpoch;
+  }
+
+  public long conversationVersion() {
+    return conversationVersion;
+  }
+
+  // CONVERSATIONS CHANGED SINCE
+  //
+  // Get the conversations added or changed after the given version, in the
+  // order they were last changed. Returns null if the version was not made by
+  // this model.
+  public Collection<Conversation> conversationsChangedSince(long epoch, long version) {
+
+    if (epoch != conversationEpoch || version < 0 || version > conversationVersion) {
+      return null;
+    }
+
+    return new ArrayList<>(conversationByVersion.tailMap(version, false).values());
+  }
+
+  private void touch(Conversation conversation) {
+
+    final Uuid key = Uuids.complete(conversation.id);
+    final Long previous = conversationVersions.get(key);
+
+    if (previous != null) {
+      conversationByVersion.remove(previous);
+    }
+
+    conversationVersion += 1;
+    conversationByVersion.put(conversationVersion, conversation);
+    conversationVersions.put(key, conversationVersion);
+  }
+
+  private void touch(Uuid conversation) {
+    final Long version = conversationVersions.get(Uuids.complete(conversation));
+    if (version != null) {
+      touch(conversationByVersion.get(version));
+    }
+  }
+
   public void add(Conversation conversation) {
     conversationById.insert(conversation.id, conversation);
     conversationByTime.insert(conversation.creation, conversation);
     conversationByText.insert(conversation.title, conversation);
+    conversationByTitle.add(conversation);
+    touch(conversation);
 
 // Beginning of Added Code
 /*	try {
@@ -179,6 +342,29 @@ public final class Model {
 //TODO: add conversation to persistent storage
   }
 
+  // ADD ALL CONVERSATIONS
+  //
+  // Add many conversations at once. Nothing is checked, the conversations must
+  // not already be in the model.
+  public void addAllConversations(List<Conversation> conversations) {
+
+    final List<Map.Entry<Uuid, Conversation>> byId = new ArrayList<>(conversations.size());
+    final List<Map.Entry<Time, Conversation>> byTime = new ArrayList<>(conversations.size());
+    final List<Map.Entry<String, Conversation>> byText = new ArrayList<>(conversations.size());
+
+    for (final Conversation conversation : conversations) {
+      byId.add(entry(conversation.id, conversation));
+      byTime.add(entry(conversation.creation, conversation));
+      byText.add(entry(conversation.title, conversation));
+      conversationByTitle.add(conversation);
+      touch(conversation);
+    }
+
+    conversationById.insertAll(byId);
+    conversationByTime.insertAll(byTime);
+    conversationByText.insertAll(byText);
+  }
+
   public StoreAccessor<Uuid, Conversation> conversationById() {
     return conversationById;
   }
@@ -191,12 +377,72 @@ public final class Model {
     return conversationByText;
   }
 
-  public void add(Message message) {
+  public TitleIndex conversationByTitle() {
+    return conversationByTitle;
+  }
+
+  public void add(Uuid conversation, Message message) {
     messageById.insert(message.id, message);
     messageByTime.insert(message.creation, message);
-    messageByText.insert(message.content, message);
+    messageByText.add(conversation, message);
+    messagesByTime(conversation).insert(message.creation, message);
+    messagesByPosition(conversation).add(message);
+    touch(conversation);
+  }
+
+  // ADD ALL MESSAGES
+  //
+  // Add many messages at once, grouped by the conversation they are in.
+  // Nothing is checked, the messages must not already be in the model.
+  public void addAllMessages(Map<Uuid, List<Message>> messages) {
+
+    final List<Map.Entry<Uuid, Message>> byId = new ArrayList<>();
+    final List<Map.Entry<Time, Message>> byTime = new ArrayList<>();
+
+    for (final Map.Entry<Uuid, List<Message>> conversation : messages.entrySet()) {
+
+      final List<Map.Entry<Time, Message>> inConversation = new ArrayList<>();
+
+      for (final Message message : conversation.getValue()) {
+        byId.add(entry(message.id, message));
+        byTime.add(entry(message.creation, message));
+        messageByText.add(conversation.getKey(), message);
+        inConversation.add(entry(message.creation, message));
+      }
+
+      messagesByTime(conversation.getKey()).insertAll(inConversation);
+      messagesByPosition(conversation.getKey()).addAll(conversation.getValue());
+      touch(conversation.getKey());
+    }
+
+    messageById.insertAll(byId);
+    messageByTime.insertAll(byTime);
+  }
+
+  // REMOVE OLDEST MESSAGES
+  //
+  // Take up to "count" of a conversation's first messages out of the model
+  // and return them in the order they were added. This is for when the
+  // messages are kept somewhere else, so the conversation is not changed.
+  public List<Message> removeOldestMessages(Uuid conversation, int count) {
 
-//TODO: add message to persistent storage
+    final List<Message> resident = messagesByPosition(conversation);
+    final List<Message> oldest = resident.subList(0, Math.max(0, Math.min(count, resident.size())));
+    final List<Message> removed = new ArrayList<>(oldest);
+
+    oldest.clear();
+
+    final WritableStore<Time, Message> inConversation = messagesByTime(conversation);
+
+    for (final Message message : removed) {
+      messageById.remove(message.id, message);
+      messageByTime.remove(message.creation, message);
+      inConversation.remove(message.creation, message);
+    }
+
+    messageByText.removeOldest(conversation, removed.size());
+
+    return removed;
   }
 
   public StoreAccessor<Uuid, Message> messageById() {
@@ -207,7 +453,50 @@ public final class Model {
     return messageByTime;
   }
 
-  public StoreAccessor<String, Message> messageByText() {
+  public MessageIndex messageByText() {
     return messageByText;
   }
+
+  // MESSAGE BY TIME
+  //
+  // The messages of one conversation by the time they were created.
+  public StoreAccessor<Time, Message> messageByTime(Uuid conversation) {
+    final StoreAccessor<Time, Message> messages =
+        conversationMessagesByTime.get(Uuids.complete(conversation));
+    return messages == null ? EMPTY_MESSAGES : messages;
+  }
+
+  // MESSAGE BY POSITION
+  //
+  // The messages of one conversation in the order they were added.
+  public List<Message> messageByPosition(Uuid conversation) {
+    final List<Message> messages = conversationMessagesByPosition.get(Uuids.complete(conversation));
+    return messages == null ?
+        Collections.<Message>emptyList() :
+        Collections.unmodifiableList(messages);
+  }
+
+  private List<Message> messagesByPosition(Uuid conversation) {
+    final Uuid key = Uuids.complete(conversation);
+    List<Message> messages = conversationMessagesByPosition.get(key);
+    if (messages == null) {
+      messages = new ArrayList<>();
+      conversationMessagesByPosition.put(key, messages);
+    }
+    return messages;
+  }
+
+  private WritableStore<Time, Message> messagesByTime(Uuid conversation) {
+    final Uuid key = Uuids.complete(conversation);
+    WritableStore<Time, Message> messages = conversationMessagesByTime.get(key);
+    if (messages == null) {
+      messages = new SortedArrayStore<>(TIME_COMPARE);
+      conversationMessagesByTime.put(key, messages);
+    }
+    return messages;
+  }
+
+  private static <KEY, VALUE> Map.Entry<KEY, VALUE> entry(KEY key, VALUE value) {
+    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+  }
 }
@@ -64,4 +64,13 @@ public final class NoOpRelay implements Relay {
 
     return new ArrayList<Relay.Bundle>();
   }
+
+  @Override
+  public Relay.Subscription subscribe(Uuid teamId,
+                                      byte[] teamSecret,
+                                      Uuid root,
+                                      Relay.Listener listener) {
+
+    return null;
+  }
 }
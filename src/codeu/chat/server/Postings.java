@@ -0,0 +1,75 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.util.Arrays;
+
+// POSTINGS
+//
+// A sorted list of numbers, as used by the search indexes to list which items
+// contain a term. Numbers must be added in order, so the list stays sorted
+// without any work and can be searched with a binary search. Numbers are only
+// taken away from the front.
+final class Postings {
+
+  private int[] numbers = new int[2];
+  private int size;
+
+  // ADD
+  //
+  // Add a number that is not less than any number already added. Adding the
+  // last number again does nothing, as an item can contain a term more than
+  // once.
+  public void add(int number) {
+
+    if (size > 0 && numbers[size - 1] == number) {
+      return;
+    }
+
+    if (size == numbers.length) {
+      numbers = Arrays.copyOf(numbers, size * 2);
+    }
+
+    numbers[size] = number;
+    size += 1;
+  }
+
+  // REMOVE BELOW
+  //
+  // Remove every number that is less than "number".
+  public void removeBelow(int number) {
+
+    int from = 0;
+    while (from < size && numbers[from] < number) {
+      from += 1;
+    }
+
+    System.arraycopy(numbers, from, numbers, 0, size - from);
+    size -= from;
+  }
+
+  public int get(int index) {
+    return numbers[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(int number) {
+    return Arrays.binarySearch(numbers, 0, size, number) >= 0;
+  }
+}
@@ -18,7 +18,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
@@ -31,10 +36,55 @@ import codeu.chat.util.Serializers;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
 
+// REMOTE RELAY
+//
+// Talks to a relay server. Writes are not sent right away: they are queued and
+// a sender thread sends them in batches, one connection per batch. A batch is
+// sent once it has "maxBatch" bundles or "lingerMs" after its first bundle was
+// queued, whichever comes first. Bundles are sent in the order they were
+// written; a batch that fails is sent again (up to "maxAttempts" times) before
+// any later bundle is sent. The relay keeps a team's message once however many
+// times it is sent, so a batch whose reply was lost can be sent again.
 public final class RemoteRelay implements Relay {
 
   private final static Logger.Log LOG = Logger.newLog(RemoteRelay.class);
 
+  private static final long DEFAULT_LINGER_MS = 20;
+  private static final int DEFAULT_MAX_BATCH = 256;
+  private static final int DEFAULT_MAX_QUEUE = 8192;
+  private static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  private static final long MIN_RETRY_MS = 100;
+  private static final long MAX_RETRY_MS = 5000;
+
+  private static final long MIN_RESUBSCRIBE_MS = 500;
+  private static final long MAX_RESUBSCRIBE_MS = 30000;
+
+  private static final class Pending {
+
+    final Uuid team;
+    final byte[] secret;
+    final Relay.Bundle.Component user;
+    final Relay.Bundle.Component conversation;
+    final Relay.Bundle.Component message;
+
+    Pending(Uuid team,
+            byte[] secret,
+            Relay.Bundle.Component user,
+            Relay.Bundle.Component conversation,
+            Relay.Bundle.Component message) {
+      this.team = team;
+      this.secret = secret;
+      this.user = user;
+      this.conversation = conversation;
+      this.message = message;
+    }
+
+    boolean sameTeam(Pending other) {
+      return Uuids.equals(team, other.team) && Arrays.equals(secret, other.secret);
+    }
+  }
+
   private static final class Component implements Relay.Bundle.Component {
 
     private final Uuid id;
@@ -120,8 +170,40 @@ public final class RemoteRelay implements Relay {
 
   private final ConnectionSource source;
 
+  private final long lingerMs;
+  private final int maxBatch;
+  private final int maxAttempts;
+
+  private final BlockingQueue<Pending> queue;
+
   public RemoteRelay(ConnectionSource source) {
+    this(source, DEFAULT_LINGER_MS, DEFAULT_MAX_BATCH, DEFAULT_MAX_QUEUE, DEFAULT_MAX_ATTEMPTS);
+  }
+
+  // REMOTE RELAY
+  //
+  // At most "maxQueue" bundles will wait to be sent. Writes made while the
+  // queue is full fail.
+  public RemoteRelay(ConnectionSource source,
+                     long lingerMs,
+                     int maxBatch,
+                     int maxQueue,
+                     int maxAttempts) {
+
     this.source = source;
+    this.lingerMs = Math.max(0, lingerMs);
+    this.maxBatch = Math.max(1, maxBatch);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, maxQueue));
+
+    final Thread sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        send();
+      }
+    }, "relay-sender");
+    sender.setDaemon(true);
+    sender.start();
   }
 
   @Override
@@ -129,6 +211,10 @@ public final class RemoteRelay implements Relay {
     return new Component(id, time, text);
   }
 
+  // WRITE
+  //
+  // Queue a bundle to be sent to the relay. Returns true if the bundle was
+  // queued, not that the relay has accepted it.
   @Override
   public boolean write(Uuid teamId,
                        byte[] teamSecret,
@@ -136,27 +222,18 @@ public final class RemoteRelay implements Relay {
                        Relay.Bundle.Component conversation,
                        Relay.Bundle.Component message) {
 
-    boolean result = false;
+    final boolean queued = queue.offer(new Pending(
+        teamId,
+        Arrays.copyOf(teamSecret, teamSecret.length),
+        user,
+        conversation,
+        message));
 
-    try (final Connection connection = source.connect()) {
-
-      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_REQUEST);
-      Uuids.SERIALIZER.write(connection.out(), teamId);
-      Serializers.BYTES.write(connection.out(), teamSecret);
-      COMPONENT_SERIALIZER.write(connection.out(), user);
-      COMPONENT_SERIALIZER.write(connection.out(), conversation);
-      COMPONENT_SERIALIZER.write(connection.out(), message);
-
-      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_WRITE_RESPONSE) {
-        result = Serializers.BOOLEAN.read(connection.in());
-      } else {
-        LOG.error("Server did not handle RELAY_WRITE_REQUEST");
-      }
-    } catch (Exception ex) {
-      LOG.error(ex, "Unexpected error when sending RELAY_WRITE_REQUEST");;
+    if (!queued) {
+      LOG.error("Relay write queue is full, dropping message %s", message.id());
     }
 
-    return result;
+    return queued;
   }
 
   @Override
@@ -171,6 +248,7 @@ public final class RemoteRelay implements Relay {
       Serializers.BYTES.write(connection.out(), teamSecret);
       Uuids.SERIALIZER.write(connection.out(), root);
       Serializers.INTEGER.write(connection.out(), range);
+      connection.out().flush();
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_READ_RESPONSE) {
         result.addAll(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
@@ -183,4 +261,291 @@ public final class RemoteRelay implements Relay {
 
     return result;
   }
+
+  // SUBSCRIBE
+  //
+  // Ask the relay to push bundles and, if it agrees, keep the connection open
+  // on a thread of its own and give the bundles it pushes to "listener". If
+  // the connection is lost, subscribe again (backing off while the relay can
+  // not be reached) from the last bundle that was given to the listener.
+  //
+  // The first request is made before returning. Returns null if the relay
+  // could not be reached, did not accept the subscription or does not know
+  // about subscriptions, so that the caller reads from it instead.
+  @Override
+  public Relay.Subscription subscribe(Uuid teamId,
+                                      byte[] teamSecret,
+                                      Uuid root,
+                                      Relay.Listener listener) {
+
+    final byte[] secret = Arrays.copyOf(teamSecret, teamSecret.length);
+    final Connection connection = openSubscription(teamId, secret, root);
+
+    if (connection == null) {
+      return null;
+    }
+
+    final Follower follower = new Follower(teamId, secret, root, listener, connection);
+    follower.thread.setDaemon(true);
+    follower.thread.start();
+
+    return follower;
+  }
+
+  // Follows one subscription on its own thread until it is cancelled.
+  private final class Follower implements Relay.Subscription, Runnable {
+
+    private final Uuid teamId;
+    private final byte[] teamSecret;
+    private final Relay.Listener listener;
+
+    private final Thread thread = new Thread(this, "relay-subscription");
+
+    private volatile Connection connection;
+    private Uuid lastSeen;
+
+    // Guarded by "this" so that no bundles are given to the listener after
+    // "cancel" returns.
+    private boolean cancelled = false;
+
+    Follower(Uuid teamId,
+             byte[] teamSecret,
+             Uuid root,
+             Relay.Listener listener,
+             Connection connection) {
+      this.teamId = teamId;
+      this.teamSecret = teamSecret;
+      this.lastSeen = root;
+      this.listener = listener;
+      this.connection = connection;
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        cancelled = true;
+      }
+      close(connection);
+      thread.interrupt();
+    }
+
+    private synchronized boolean cancelled() {
+      return cancelled;
+    }
+
+    private synchronized boolean deliver(List<Relay.Bundle> bundles) {
+      if (!cancelled) {
+        listener.onBundles(bundles);
+      }
+      return !cancelled;
+    }
+
+    @Override
+    public void run() {
+
+      long retryMs = MIN_RESUBSCRIBE_MS;
+
+      while (!cancelled()) {
+
+        if (connection != null) {
+
+          retryMs = MIN_RESUBSCRIBE_MS;
+
+          try {
+
+            while (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_SUBSCRIPTION_BUNDLES) {
+
+              final List<Relay.Bundle> bundles =
+                  new ArrayList<>(Serializers.collection(BUNDLE_SERIALIZER).read(connection.in()));
+
+              if (!bundles.isEmpty()) {
+                if (!deliver(bundles)) {
+                  return;
+                }
+                lastSeen = bundles.get(bundles.size() - 1).id();
+              }
+            }
+
+            LOG.error("Unexpected reply on relay subscription");
+
+          } catch (Exception ex) {
+            if (cancelled()) {
+              return;
+            }
+            LOG.error(ex, "Relay subscription lost");
+          } finally {
+            close(connection);
+          }
+        }
+
+        try {
+          Thread.sleep(retryMs);
+        } catch (InterruptedException ex) {
+          if (!cancelled()) {
+            LOG.warning("Relay subscription interrupted.");
+          }
+          return;
+        }
+
+        retryMs = Math.min(MAX_RESUBSCRIBE_MS, retryMs * 2);
+
+        connection = openSubscription(teamId, teamSecret, lastSeen);
+
+        // Cancelled while the request was made, after "cancel" closed the
+        // connection before it.
+        if (cancelled()) {
+          close(connection);
+        }
+      }
+    }
+  }
+
+  // Send a subscribe request and read the relay's reply. Returns the
+  // connection, ready for the pushed bundles to be read from it, or null if
+  // the relay did not accept the subscription.
+  private Connection openSubscription(Uuid teamId, byte[] teamSecret, Uuid root) {
+
+    Connection connection = null;
+
+    try {
+
+      connection = source.connect();
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_SUBSCRIBE_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), teamId);
+      Serializers.BYTES.write(connection.out(), teamSecret);
+      Uuids.SERIALIZER.write(connection.out(), root);
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) != NetworkCode.RELAY_SUBSCRIBE_RESPONSE) {
+        LOG.error("Server did not handle RELAY_SUBSCRIBE_REQUEST");
+      } else if (!Serializers.BOOLEAN.read(connection.in())) {
+        LOG.error("Relay did not accept the subscription");
+      } else {
+        LOG.info("Subscribed to relay from %s", root);
+        return connection;
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_SUBSCRIBE_REQUEST");
+    }
+
+    close(connection);
+    return null;
+  }
+
+  private static void close(Connection connection) {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.warning("Failed to close relay connection: %s", ex.getMessage());
+      }
+    }
+  }
+
+  // Runs on the sender thread for as long as the server runs.
+  private void send() {
+
+    final List<Pending> batch = new ArrayList<>();
+
+    while (true) {
+      try {
+
+        batch.add(queue.take());
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+
+        while (batch.size() < maxBatch) {
+
+          final long wait = deadline - System.nanoTime();
+          final Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+
+          if (next == null) {
+            break;
+          }
+
+          batch.add(next);
+        }
+
+        // Each request is for one team, so split the batch where the team
+        // changes. On a server there is only ever one team.
+        int start = 0;
+        for (int i = 1; i <= batch.size(); i++) {
+          if (i == batch.size() || !batch.get(i).sameTeam(batch.get(start))) {
+            sendWithRetries(batch.subList(start, i));
+            start = i;
+          }
+        }
+
+      } catch (InterruptedException ex) {
+        LOG.warning("Relay sender interrupted, %d bundles not sent.", batch.size() + queue.size());
+        return;
+      } catch (Exception ex) {
+        LOG.error(ex, "Unexpected error in relay sender.");
+      }
+
+      batch.clear();
+    }
+  }
+
+  private void sendWithRetries(List<Pending> bundles) throws InterruptedException {
+
+    List<Pending> remaining = bundles;
+    long retryMs = MIN_RETRY_MS;
+
+    for (int attempt = 1; ; attempt++) {
+
+      final int written = writeBatch(remaining);
+
+      if (written > 0) {
+        remaining = remaining.subList(Math.min(written, remaining.size()), remaining.size());
+      }
+
+      if (remaining.isEmpty()) {
+        return;
+      }
+
+      if (attempt >= maxAttempts) {
+        LOG.error("Relay did not take %d bundles after %d attempts, dropping them.",
+                  remaining.size(),
+                  attempt);
+        return;
+      }
+
+      Thread.sleep(retryMs);
+      retryMs = Math.min(MAX_RETRY_MS, retryMs * 2);
+    }
+  }
+
+  // Send the bundles, which are all from one team, in one request. Returns the
+  // number of bundles the relay wrote, from the front of the list, or -1 if
+  // there was no reply.
+  private int writeBatch(List<Pending> bundles) {
+
+    final Pending first = bundles.get(0);
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_BATCH_REQUEST);
+      Uuids.SERIALIZER.write(connection.out(), first.team);
+      Serializers.BYTES.write(connection.out(), first.secret);
+      Serializers.INTEGER.write(connection.out(), bundles.size());
+      for (final Pending bundle : bundles) {
+        COMPONENT_SERIALIZER.write(connection.out(), bundle.user);
+        COMPONENT_SERIALIZER.write(connection.out(), bundle.conversation);
+        COMPONENT_SERIALIZER.write(connection.out(), bundle.message);
+      }
+      connection.out().flush();
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_WRITE_BATCH_RESPONSE) {
+        return Serializers.INTEGER.read(connection.in());
+      } else {
+        LOG.error("Server did not handle RELAY_WRITE_BATCH_REQUEST");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_WRITE_BATCH_REQUEST");
+    }
+
+    return -1;
+  }
 }
@@ -15,30 +15,48 @@
 
 package codeu.chat.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import codeu.chat.common.Conversation;
+import codeu.chat.common.ConversationChanges;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.LinearUuidGenerator;
 import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
+import codeu.chat.common.SearchMode;
 import codeu.chat.common.Time;
 import codeu.chat.common.User;
+import codeu.chat.common.UserChanges;
 import codeu.chat.common.Uuid;
 import codeu.chat.common.Uuids;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Timeline;
 import codeu.chat.util.connections.Connection;
-
-import java.sql.*;
+import codeu.chat.util.connections.Multiplexer;
 
 public final class Server {
 
@@ -46,189 +64,530 @@ public final class Server {
 
   private static final int RELAY_REFRESH_MS = 5000;  // 5 seconds
 
+  // Where the copy of the database used to start quickly is kept.
+  private static final File SNAPSHOT_FILE = new File("test.snapshot");
+
+  // Start the server with "-Dcodeu.chat.history.recent=N" to keep only the
+  // last N messages of each conversation in memory (and at most a segment
+  // more). Older messages are read from the database in segments of
+  // "codeu.chat.history.segment" messages when they are needed. Once the
+  // messages in memory are over "codeu.chat.history.budgetMb", older segments
+  // are dropped and then the conversations that were idle longest are cut
+  // down to their newest segment.
+  private static final String HISTORY_RECENT_PROPERTY = "codeu.chat.history.recent";
+  private static final String HISTORY_SEGMENT_PROPERTY = "codeu.chat.history.segment";
+  private static final String HISTORY_BUDGET_PROPERTY = "codeu.chat.history.budgetMb";
+
+  private static final int DEFAULT_HISTORY_SEGMENT = 256;
+  private static final int DEFAULT_HISTORY_BUDGET_MB = 64;
+
+  // The most messages that will be sent for one request by position.
+  private static final int MAX_MESSAGE_PAGE = 1000;
+  private static final int MAX_SEARCH_PAGE = 1000;
+
+  // The number of accepted connections that may wait for a worker before new
+  // connections are turned away.
+  private static final int DEFAULT_WORKER_QUEUE = 1024;
+
+  // The most multiplexed connections that are read at once. Each is read on a
+  // thread of its own.
+  private static final int MAX_MULTIPLEXED = 256;
+
+  // The number of messages that may wait to be pushed to one subscriber. A
+  // subscriber that falls further behind has its stream ended and must
+  // subscribe again to catch up.
+  private static final int SUBSCRIBER_QUEUE = 1024;
+
+  // The most conversations one subscription may follow.
+  private static final int MAX_SUBSCRIBED_CONVERSATIONS = 1024;
+
+  // The timeline is only used for relay polling and sending messages to the
+  // relay. Client requests are handled by the worker pool.
   private final Timeline timeline = new Timeline();
 
+  private final ExecutorService workers;
+
+  // How many more multiplexed connections may be read.
+  private final Semaphore multiplexSlots = new Semaphore(MAX_MULTIPLEXED);
+
+  // Sends pushed messages to subscribers, so that writing to a slow client
+  // does not hold a worker or the model.
+  private final ExecutorService pushers;
+
+  // Guards the model. Any number of requests may read from the model at the
+  // same time, but writes (which all go through the controller) are given
+  // exclusive access. The lock is fair so that writes are applied in the order
+  // they asked for the lock.
+  private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+
   private final Uuid id;
   private final byte[] secret;
 
   private final Model model = new Model();
-  private final View view = new View(model);
+  private final View view;
+  private final Database database;
+  private final History history;
   private final Controller controller;
+  private final Subscriptions subscriptions;
 
   private final Relay relay;
-  private Uuid lastSeen = Uuids.NULL;
+  // The last bundle taken from the relay, whether it was pushed or read.
+  private volatile Uuid lastSeen = Uuids.NULL;
 
   public Server(final Uuid id, final byte[] secret, final Relay relay) {
+    this(id, secret, relay, Runtime.getRuntime().availableProcessors(), DEFAULT_WORKER_QUEUE);
+  }
+
+  // SERVER
+  //
+  // Create a server that handles client requests with "workerThreads" threads.
+  // At most "workerQueue" connections will wait for a worker, any more than
+  // that will be rejected and closed right away.
+  public Server(final Uuid id,
+                final byte[] secret,
+                final Relay relay,
+                int workerThreads,
+                int workerQueue) {
+    this(id, secret, relay, openDatabase(), workerThreads, workerQueue);
+  }
+
+  // Create a server that keeps everything in "database". If the database is
+  // null nothing is loaded or saved and the server starts empty.
+  Server(final Uuid id,
+         final byte[] secret,
+         final Relay relay,
+         final Database database,
+         int workerThreads,
+         int workerQueue) {
+
+    this.workers = new ThreadPoolExecutor(
+        Math.max(1, workerThreads),
+        Math.max(1, workerThreads),
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, workerQueue)),
+        new ThreadPoolExecutor.AbortPolicy());
+
+    this.pushers = Executors.newFixedThreadPool(Math.max(1, workerThreads));
 
     this.id = id;
     this.secret = Arrays.copyOf(secret, secret.length);
 
-    this.controller = new Controller(id, model);
+    this.database = database;
+    this.history = database == null ? null : openHistory(database);
+    this.view = new View(model, history);
+    this.subscriptions = new Subscriptions(pushers, SUBSCRIBER_QUEUE);
+    this.controller = new Controller(id, model, database, subscriptions);
     this.relay = relay;
 
+    if (database != null) {
 
+      // Make sure that writes still in the database's queue are committed when
+      // the server is stopped.
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          database.close();
+        }
+      });
+
+      // Add everything that was saved by earlier runs of the server. Without
+      // its data the server can not run.
+      try {
+        load();
+      } catch (Exception ex) {
+        LOG.error(ex, "Failed to load from database.");
+        System.err.println(ex.getClass().getName() + ": " + ex.getMessage());
+        System.exit(0);
+      }
+    }
 
-/* Beginning of experimental code */
-    /* Set up database holding persistent data. */
-    try {
-        /* Connect to the database (or create a new one if it does not exist). */
-        java.sql.Connection conn = null;
-        java.sql.Statement statement = null;
-        java.sql.ResultSet result = null;
-        java.sql.ResultSet result1 = null;
-        java.sql.Statement statement1 = null;
-
-        Class.forName("org.sqlite.JDBC");
-        conn = DriverManager.getConnection("jdbc:sqlite::test.db");
-
-        /* Set up the tables to hold Users, Conversations, and Messages,
-         * if the tables do not already exist. */
-        statement = conn.createStatement();
-        statement1 = conn.createStatement();
-
-        String query = "SELECT name FROM sqlite_master WHERE type='table' AND name='USERS'";
-        result = statement.executeQuery(query);
-
-
-        /* If the users table already exists, check if there are users to be added
-         * to the data structures. */
-        if (result.next()) {
-            LOG.info("Adding user to data structures\n");
-            query = "SELECT * from USERS";
-            result = statement.executeQuery(query);
-
-            /* If users are already present in persistent storage, add them to the
-             * data structures. */
-            while (result.next()) {
-                this.controller.newUser(Uuids.parse(result.getString("ID")),
-                                        result.getString("NAME"),
-                                        result.getString("PASSWORD"),
-                                        Time.fromMs(result.getLong("CREATION")), false);
-
-            }
+    // Have the relay push bundles from other servers as it gets them. Only if
+    // the relay can not push are they read every RELAY_REFRESH_MS.
+    final Relay.Subscription pushed = relay.subscribe(id, secret, lastSeen, new Relay.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) {
+        for (final Relay.Bundle bundle : bundles) {
+          lock.writeLock().lock();
+          try {
+            onBundle(bundle);
+          } catch (Exception ex) {
+            LOG.error(ex, "Failed to add bundle %s from relay.", bundle.id());
+          } finally {
+            lock.writeLock().unlock();
+          }
+          lastSeen = bundle.id();
+        }
+        flushDatabase();
+      }
+    });
 
-        } else {
-            /* Otherwise, create a new table to hold users. */
-            query = "CREATE TABLE USERS " + 
-                    "(ID TEXT PRIMARY KEY        NOT NULL," +
-                    "NAME      TEXT             NOT NULL," +
-                    "CREATION  LONG             NOT NULL," +
-                    "PASSWORD  TEXT             NOT NULL)";
-            statement.executeUpdate(query);
+    if (pushed == null) {
+      timeline.scheduleNow(new Runnable() {
+        @Override
+        public void run() {
+          try {
 
-        }
+            LOG.info("Reading update from relay...");
 
-        query = "SELECT name FROM sqlite_master WHERE type='table' AND name='CONVERSATIONS'";
-        result = statement.executeQuery(query);
-
-        /* See if conversations already exist. If they do, cycle through the existing conversations
-         * and add them to the program structures. */
-        if (result.next()) {
-            query = "SELECT * from CONVERSATIONS";
-            result = statement.executeQuery(query);
-            
-
-            while (result.next()) {
-               this.controller.newConversation(Uuids.parse(result.getString("ID")), 
-                                            result.getString("TITLE"),
-                                            Uuids.parse(result.getString("OWNER")), 
-                                            Time.fromMs(result.getLong("CREATION")),
-                                            false);
-
-
-              /* Look for any messages tables tied to conversations (each conversation
-               * has its own table for its messages), and add
-               * existing messages to the program structures. */
-              query = "SELECT name FROM sqlite_master WHERE type='table' AND name='MESSAGES_" + result.getString("ID") + "'";
-              result1 = statement1.executeQuery(query);
-
-              if (result1.next()) {
-                query = "SELECT * from [MESSAGES_" + result.getString("ID") + "]";
-                result1 = statement1.executeQuery(query);
-
-                /* Add messages to the conversation */
-                while (result1.next()) {
-                  this.controller.newMessage(Uuids.parse(result1.getString("ID")),
-                                             Uuids.parse(result1.getString("AUTHOR")),
-                                             Uuids.parse(result.getString("ID")),
-                                             result1.getString("CONTENT"),
-                                             Time.fromMs(result1.getLong("CREATION")),
-                                             false);
-                }
+            for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
+              lock.writeLock().lock();
+              try {
+                onBundle(bundle);
+              } finally {
+                lock.writeLock().unlock();
               }
+              lastSeen = bundle.id();
             }
-        } else {
-            /* Conversations table does not already exist, so make one. */
-            query = "CREATE TABLE CONVERSATIONS " + 
-                    "(ID TEXT PRIMARY KEY        NOT NULL," +
-                    "OWNER     INT              NOT NULL," +
-                    "CREATION  TEXT             NOT NULL," +
-                    "TITLE     TEXT             NOT NULL)";
-            statement.executeUpdate(query);
+
+            flushDatabase();
+
+          } catch (Exception ex) {
+
+            LOG.error(ex, "Failed to read update from relay.");
+
+          }
+
+          timeline.scheduleIn(RELAY_REFRESH_MS, this);
         }
+      });
+    }
+  }
 
-        statement.close();
-        statement1.close();
-        conn.close();
-    } catch(Exception e) {
-        System.err.println(e.getClass().getName() + ": " + e.getMessage());
-        System.exit(0);
+  // STOP
+  //
+  // Stop taking new connections and stop the server's threads once the
+  // requests that were already taken have been handled. This is a non-blocking
+  // call.
+  public void stop() {
+    workers.shutdown();
+    pushers.shutdown();
+    timeline.stop();
+  }
+
+  // LOAD
+  //
+  // Read the snapshot written by the last start, add anything that has been
+  // added to the database since then and load it all into the model in bulk.
+  // If anything new was read, write a new snapshot for the next start.
+  private void load() throws Exception {
+
+    if (history != null) {
+      loadRecent();
+      return;
     }
 
-    timeline.scheduleNow(new Runnable() {
+    final long start = System.nanoTime();
+
+    Snapshot snapshot = Snapshot.read(SNAPSHOT_FILE);
+    int fromSnapshot = snapshot == null ? 0 : snapshot.rowCount();
+
+    int fromDatabase = snapshot == null ? -1 : database.load(snapshot);
+
+    if (fromDatabase < 0) {
+      if (snapshot != null) {
+        LOG.warning("Snapshot %s does not match the database, ignoring it", SNAPSHOT_FILE);
+      }
+      snapshot = new Snapshot();
+      fromSnapshot = 0;
+      fromDatabase = database.load(snapshot);
+    }
+
+    final long read = System.nanoTime();
+
+    controller.load(snapshot);
+
+    final long end = System.nanoTime();
+
+    final long totalMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - start));
+
+    LOG.info("Loaded %d users, %d conversations and %d messages in %d ms (%d rows/sec). " +
+             "Reading took %d ms (%d rows from snapshot, %d from database), " +
+             "adding to the model took %d ms.",
+             snapshot.users.size(),
+             snapshot.conversations.size(),
+             snapshot.messageCount(),
+             totalMs,
+             snapshot.rowCount() * 1000L / totalMs,
+             TimeUnit.NANOSECONDS.toMillis(read - start),
+             fromSnapshot,
+             fromDatabase,
+             TimeUnit.NANOSECONDS.toMillis(end - read));
+
+    if (fromDatabase > 0) {
+      try {
+        snapshot.write(SNAPSHOT_FILE);
+      } catch (IOException ex) {
+        // Not fatal, the next start will read more from the database.
+        LOG.error(ex, "Failed to write snapshot %s", SNAPSHOT_FILE);
+      }
+    }
+  }
+
+  // LOAD RECENT
+  //
+  // Load everything except the older messages of each conversation, which are
+  // left in the database for the history to read when needed. No snapshot is
+  // used as it would have every message in it.
+  private void loadRecent() throws Exception {
+
+    final long start = System.nanoTime();
+
+    final Snapshot snapshot = new Snapshot();
+    database.loadRecent(snapshot, history);
+
+    controller.load(snapshot);
+    history.link(model);
+
+    final long totalMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+    LOG.info("Loaded %d users, %d conversations and %d recent messages in %d ms (%d rows/sec).",
+             snapshot.users.size(),
+             snapshot.conversations.size(),
+             snapshot.messageCount(),
+             totalMs,
+             snapshot.rowCount() * 1000L / totalMs);
+  }
+
+  private static History openHistory(Database database) {
+
+    final int recent = Integer.getInteger(HISTORY_RECENT_PROPERTY, 0);
+
+    if (recent <= 0) {
+      return null;
+    }
+
+    final int segment = Integer.getInteger(HISTORY_SEGMENT_PROPERTY, DEFAULT_HISTORY_SEGMENT);
+    final int budgetMb = Integer.getInteger(HISTORY_BUDGET_PROPERTY, DEFAULT_HISTORY_BUDGET_MB);
+
+    LOG.info("Keeping the last %d messages of each conversation in memory " +
+             "(segments of %d messages, %d MB for older messages).",
+             recent,
+             segment,
+             budgetMb);
+
+    return new History(database, recent, segment, budgetMb * 1024L * 1024L);
+  }
+
+  private static Database openDatabase() {
+    try {
+      return Database.open();
+    } catch (Exception ex) {
+      LOG.error(ex, "Failed to open database.");
+      System.err.println(ex.getClass().getName() + ": " + ex.getMessage());
+      System.exit(0);
+      return null;
+    }
+  }
+
+  public void handleConnection(final Connection connection) {
+
+    final Runnable task = new Runnable() {
       @Override
       public void run() {
+
+        boolean keepOpen = false;
+
         try {
 
-          LOG.info("Reading update from relay...");
+          LOG.info("Handling connection...");
 
-          for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
-            onBundle(bundle);
-            lastSeen = bundle.id();
-          }
+          final int type = Serializers.INTEGER.read(connection.in());
+
+          // The first code on a connection decides what kind of connection it
+          // is. Old clients send a single request and expect the connection to
+          // be closed after the response.
+          if (type == NetworkCode.MULTIPLEX_OPEN_REQUEST) {
+
+            // The connection now belongs to its reader thread, if it has one.
+            keepOpen = serveMultiplexed(connection);
+
+          } else if (type == NetworkCode.SUBSCRIBE_REQUEST) {
 
+            // The connection now belongs to the subscription, which sends on
+            // it from the pushers.
+            subscribe(connection);
+            keepOpen = true;
+
+          } else {
+
+            final boolean success = onMessage(
+                type,
+                connection.in(),
+                connection.out());
+
+            LOG.info("Connection handled: %s", success ? "ACCEPTED" : "REJECTED");
+          }
         } catch (Exception ex) {
 
-          LOG.error(ex, "Failed to read update from relay.");
+          LOG.error(ex, "Exception while handling connection.");
 
         }
 
-        timeline.scheduleIn(RELAY_REFRESH_MS, this);
+        if (!keepOpen) {
+          close(connection);
+        }
       }
-    });
+    };
+
+    try {
+      workers.execute(task);
+    } catch (RejectedExecutionException ex) {
+      LOG.warning("Too many pending connections. Connection rejected.");
+      reject(connection);
+    }
   }
 
-  public void handleConnection(final Connection connection) {
-    timeline.scheduleNow(new Runnable() {
+  // SERVE MULTIPLEXED
+  //
+  // Give a long-lived connection to a thread of its own that reads frames
+  // until the client closes it. Each frame is given to the workers as if it
+  // was its own connection. Reading does not hold a worker, so frames are
+  // handled however few workers there are. Once MAX_MULTIPLEXED connections
+  // are being read the client is told to try again later. Returns true if the
+  // connection was given to a reader.
+  private boolean serveMultiplexed(final Connection connection) throws IOException {
+
+    if (!multiplexSlots.tryAcquire()) {
+      LOG.warning("Too many multiplexed connections. Connection refused.");
+      Serializers.INTEGER.write(connection.out(), NetworkCode.MULTIPLEX_BUSY_RESPONSE);
+      connection.out().flush();
+      return false;
+    }
+
+    final Thread reader = new Thread(new Runnable() {
       @Override
       public void run() {
         try {
 
-          LOG.info("Handling connection...");
+          Serializers.INTEGER.write(connection.out(), NetworkCode.MULTIPLEX_OPEN_RESPONSE);
+          connection.out().flush();
 
-          final boolean success = onMessage(
-              connection.in(),
-              connection.out());
+          Multiplexer.serve(connection, new Multiplexer.Handler() {
+            @Override
+            public void handleConnection(Connection frame) {
+              Server.this.handleConnection(frame);
+            }
+          });
 
-          LOG.info("Connection handled: %s", success ? "ACCEPTED" : "REJECTED");
         } catch (Exception ex) {
+          LOG.error(ex, "Exception while reading multiplexed connection.");
+        } finally {
+          multiplexSlots.release();
+          close(connection);
+        }
+      }
+    }, "multiplexed-connection-reader");
+    reader.setDaemon(true);
+    reader.start();
 
-          LOG.error(ex, "Exception while handling connection.");
+    return true;
+  }
+
+  // SUBSCRIBE
+  //
+  // Start pushing new messages in the requested conversations to the
+  // connection. For each conversation the client gives the last message it
+  // has seen (or the NULL id to start from the first message) and any later
+  // messages are sent before new ones. The catch-up for all the conversations
+  // only takes part of the subscriber's queue; if there are more messages the
+  // stream is ended after them so that the client subscribes again from where
+  // it got to.
+  private void subscribe(Connection connection) throws IOException {
+
+    final InputStream in = connection.in();
+
+    final int count = Serializers.INTEGER.read(in);
+
+    if (count < 0 || count > MAX_SUBSCRIBED_CONVERSATIONS) {
+      throw new IOException(String.format("Can not subscribe to %d conversations", count));
+    }
+
+    final Map<Uuid, Uuid> lastSeen = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      final Uuid conversation = Uuids.SERIALIZER.read(in);
+      lastSeen.put(conversation, Uuids.SERIALIZER.read(in));
+    }
+
+    // Holding the read lock means no message can be added between catching
+    // up and following, so nothing is missed or sent twice. Everything is
+    // queued on the subscriber and written by the pushers, not while the
+    // lock is held.
+    lock.readLock().lock();
+    try {
+
+      final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+      subscriber.respond();
+
+      final List<Uuid> following = new ArrayList<>();
+      boolean behind = false;
 
+      for (final Map.Entry<Uuid, Uuid> entry : lastSeen.entrySet()) {
+
+        final Conversation conversation = model.conversationById().first(entry.getKey());
+
+        if (conversation == null) {
+          LOG.warning("Subscription to unknown conversation %s", entry.getKey());
+          continue;
         }
 
-        try {
-          connection.close();
-        } catch (Exception ex) {
-          LOG.error(ex, "Exception while closing connection.");
+        Uuid next;
+        if (Uuids.equals(entry.getValue(), Uuids.NULL)) {
+          next = conversation.firstMessage;
+        } else {
+          final Message seen = view.findMessage(entry.getValue());
+          next = (seen == null) ? Uuids.NULL : seen.next;
         }
+
+        behind |= !subscriber.catchUp(conversation.id, next, view);
+        following.add(conversation.id);
       }
-    });
+
+      if (behind) {
+        subscriber.end();
+      } else {
+        subscriptions.follow(subscriber, following);
+      }
+
+      LOG.info("Subscriber %s following %d conversations%s",
+               subscriber.id,
+               following.size(),
+               behind ? " (catching up)" : "");
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Let the client know that its request will not be handled. Without this a
+  // client sharing a multiplexed connection would wait forever.
+  private static void reject(Connection connection) {
+    try {
+      Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
+      connection.out().flush();
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while rejecting connection.");
+    }
+    close(connection);
   }
 
-  private boolean onMessage(InputStream in, OutputStream out) throws IOException {
+  private static void close(Connection connection) {
+    try {
+      connection.close();
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
+
+  private boolean onMessage(int type, InputStream in, OutputStream out) throws IOException {
+
+    // All parameters are read from the stream before taking the lock so that a
+    // slow client can not hold the model while it is sending its request. The
+    // response is written to memory while the lock is held and only sent once
+    // it has been let go, so a slow client can not hold the model while it is
+    // reading its response either.
 
-    final int type = Serializers.INTEGER.read(in);
+    final ByteArrayOutputStream response = new ByteArrayOutputStream();
 
     if (type == NetworkCode.NEW_MESSAGE_REQUEST) {
 
@@ -236,102 +595,221 @@ public final class Server {
       final Uuid conversation = Uuids.SERIALIZER.read(in);
       final String content = Serializers.STRING.read(in);
 
-      final Message message = controller.newMessage(author, conversation, content, true);
+      final Message message;
 
-      Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
-      Serializers.nullable(Message.SERIALIZER).write(out, message);
+      // Later messages will change the "next" value of this message, so it is
+      // written while no one else can change the model.
+      lock.writeLock().lock();
+      try {
+        message = controller.newMessage(author, conversation, content, true);
+        addToHistory(conversation, message);
 
-      timeline.scheduleNow(createSendToRelayEvent(
-          author,
-          conversation,
-          message.id));
+        Serializers.INTEGER.write(response, NetworkCode.NEW_MESSAGE_RESPONSE);
+        Serializers.nullable(Message.SERIALIZER).write(response, message);
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      flushDatabase();
+
+      if (message != null) {
+        timeline.scheduleNow(createSendToRelayEvent(
+            author,
+            conversation,
+            message.id));
+      }
 
     } else if (type == NetworkCode.NEW_USER_REQUEST) {
 
       final String name = Serializers.STRING.read(in);
       final String password = Serializers.STRING.read(in);
 
-      final User user = controller.newUser(name, password, false);
+      final User user;
+
+      lock.writeLock().lock();
+      try {
+        user = controller.newUser(name, password, false);
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      flushDatabase();
 
-      Serializers.INTEGER.write(out, NetworkCode.NEW_USER_RESPONSE);
-      Serializers.nullable(User.SERIALIZER).write(out, user);
+      Serializers.INTEGER.write(response, NetworkCode.NEW_USER_RESPONSE);
+      Serializers.nullable(User.SERIALIZER).write(response, user);
 
     } else if (type == NetworkCode.NEW_CONVERSATION_REQUEST) {
 
       final String title = Serializers.STRING.read(in);
       final Uuid owner = Uuids.SERIALIZER.read(in);
 
-      final Conversation conversation = controller.newConversation(title, owner, true);
+      final Conversation conversation;
 
-      Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
-      Serializers.nullable(Conversation.SERIALIZER).write(out, conversation);
+      lock.writeLock().lock();
+      try {
+        conversation = controller.newConversation(title, owner, true);
+
+        Serializers.INTEGER.write(response, NetworkCode.NEW_CONVERSATION_RESPONSE);
+        Serializers.nullable(Conversation.SERIALIZER).write(response, conversation);
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      flushDatabase();
 
     } else if (type == NetworkCode.GET_USERS_BY_ID_REQUEST) {
 
       final Collection<Uuid> ids = Serializers.collection(Uuids.SERIALIZER).read(in);
 
+      // Users by id can be read while the model is being written to, so this
+      // does not wait for the lock.
       final Collection<User> users = view.getUsers(ids);
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_USERS_BY_ID_RESPONSE);
-      Serializers.collection(User.SERIALIZER).write(out, users);
+      Serializers.INTEGER.write(response, NetworkCode.GET_USERS_BY_ID_RESPONSE);
+      Serializers.collection(User.SERIALIZER).write(response, users);
 
     } else if (type == NetworkCode.GET_ALL_CONVERSATIONS_REQUEST) {
 
-      final Collection<ConversationSummary> conversations = view.getAllConversations();
+      lock.readLock().lock();
+      try {
+        final Collection<ConversationSummary> conversations = view.getAllConversations();
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE);
-      Serializers.collection(ConversationSummary.SERIALIZER).write(out, conversations);
+        Serializers.INTEGER.write(response, NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE);
+        Serializers.collection(ConversationSummary.SERIALIZER).write(response, conversations);
+      } finally {
+        lock.readLock().unlock();
+      }
 
     } else if (type == NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST) {
 
       final Collection<Uuid> ids = Serializers.collection(Uuids.SERIALIZER).read(in);
 
-      final Collection<Conversation> conversations = view.getConversations(ids);
+      lock.readLock().lock();
+      try {
+        final Collection<Conversation> conversations = view.getConversations(ids);
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
-      Serializers.collection(Conversation.SERIALIZER).write(out, conversations);
+        Serializers.INTEGER.write(response, NetworkCode.GET_CONVERSATIONS_BY_ID_RESPONSE);
+        Serializers.collection(Conversation.SERIALIZER).write(response, conversations);
+      } finally {
+        lock.readLock().unlock();
+      }
 
     } else if (type == NetworkCode.GET_MESSAGES_BY_ID_REQUEST) {
 
       final Collection<Uuid> ids = Serializers.collection(Uuids.SERIALIZER).read(in);
 
+      // Messages by id can be read while the model is being written to. A
+      // message moved to the history while this runs is found there, as the
+      // history does not let go of it until it has been cached.
       final Collection<Message> messages = view.getMessages(ids);
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
-      Serializers.collection(Message.SERIALIZER).write(out, messages);
+      Serializers.INTEGER.write(response, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
+      Serializers.collection(Message.SERIALIZER).write(response, messages);
 
     } else if (type == NetworkCode.GET_USER_GENERATION_REQUEST) {
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_USER_GENERATION_RESPONSE);
-      Uuids.SERIALIZER.write(out, view.getUserGeneration());
+      lock.readLock().lock();
+      try {
+        Serializers.INTEGER.write(response, NetworkCode.GET_USER_GENERATION_RESPONSE);
+        Uuids.SERIALIZER.write(response, view.getUserGeneration());
+      } finally {
+        lock.readLock().unlock();
+      }
+
+    } else if (type == NetworkCode.GET_CONVERSATION_CHANGES_REQUEST) {
+
+      final long epoch = Serializers.LONG.read(in);
+      final long version = Serializers.LONG.read(in);
+
+      lock.readLock().lock();
+      try {
+        final ConversationChanges changes = view.getConversationChanges(epoch, version);
+
+        Serializers.INTEGER.write(response, NetworkCode.GET_CONVERSATION_CHANGES_RESPONSE);
+        ConversationChanges.SERIALIZER.write(response, changes);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+    } else if (type == NetworkCode.GET_USER_CHANGES_REQUEST) {
+
+      final Uuid generation = Uuids.SERIALIZER.read(in);
+
+      lock.readLock().lock();
+      try {
+        final UserChanges changes = view.getUserChanges(generation);
+
+        Serializers.INTEGER.write(response, NetworkCode.GET_USER_CHANGES_RESPONSE);
+        UserChanges.SERIALIZER.write(response, changes);
+      } finally {
+        lock.readLock().unlock();
+      }
 
     } else if (type == NetworkCode.GET_USERS_EXCLUDING_REQUEST) {
 
       final Collection<Uuid> ids = Serializers.collection(Uuids.SERIALIZER).read(in);
 
-      final Collection<User> users = view.getUsersExcluding(ids);
+      lock.readLock().lock();
+      try {
+        final Collection<User> users = view.getUsersExcluding(ids);
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_USERS_EXCLUDING_RESPONSE);
-      Serializers.collection(User.SERIALIZER).write(out, users);
+        Serializers.INTEGER.write(response, NetworkCode.GET_USERS_EXCLUDING_RESPONSE);
+        Serializers.collection(User.SERIALIZER).write(response, users);
+      } finally {
+        lock.readLock().unlock();
+      }
 
     } else if (type == NetworkCode.GET_CONVERSATIONS_BY_TIME_REQUEST) {
 
       final Time startTime = Time.SERIALIZER.read(in);
       final Time endTime = Time.SERIALIZER.read(in);
 
-      final Collection<Conversation> conversations = view.getConversations(startTime, endTime);
+      lock.readLock().lock();
+      try {
+        final Collection<Conversation> conversations = view.getConversations(startTime, endTime);
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_TIME_RESPONSE);
-      Serializers.collection(Conversation.SERIALIZER).write(out, conversations);
+        Serializers.INTEGER.write(response, NetworkCode.GET_CONVERSATIONS_BY_TIME_RESPONSE);
+        Serializers.collection(Conversation.SERIALIZER).write(response, conversations);
+      } finally {
+        lock.readLock().unlock();
+      }
 
     } else if (type == NetworkCode.GET_CONVERSATIONS_BY_TITLE_REQUEST) {
 
       final String filter = Serializers.STRING.read(in);
 
-      final Collection<Conversation> conversations = view.getConversations(filter);
+      lock.readLock().lock();
+      try {
+        final Collection<Conversation> conversations = view.getConversations(filter);
+
+        Serializers.INTEGER.write(response, NetworkCode.GET_CONVERSATIONS_BY_TITLE_RESPONSE);
+        Serializers.collection(Conversation.SERIALIZER).write(response, conversations);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+    } else if (type == NetworkCode.SEARCH_CONVERSATIONS_REQUEST) {
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_BY_TITLE_RESPONSE);
-      Serializers.collection(Conversation.SERIALIZER).write(out, conversations);
+      final int mode = Serializers.INTEGER.read(in);
+      final String query = Serializers.STRING.read(in);
+      final int offset = Serializers.INTEGER.read(in);
+      final int limit = Math.min(Serializers.INTEGER.read(in), MAX_SEARCH_PAGE);
+
+      final Collection<Conversation> conversations = new ArrayList<>();
+
+      lock.readLock().lock();
+      try {
+        if (mode >= 0 && mode < SearchMode.values().length) {
+          conversations.addAll(view.searchConversations(SearchMode.values()[mode], query, offset, limit));
+        } else {
+          LOG.warning("Unknown search mode %d", mode);
+        }
+
+        Serializers.INTEGER.write(response, NetworkCode.SEARCH_CONVERSATIONS_RESPONSE);
+        Serializers.collection(Conversation.SERIALIZER).write(response, conversations);
+      } finally {
+        lock.readLock().unlock();
+      }
 
     } else if (type == NetworkCode.GET_MESSAGES_BY_TIME_REQUEST) {
 
@@ -339,53 +817,182 @@ public final class Server {
       final Time startTime = Time.SERIALIZER.read(in);
       final Time endTime = Time.SERIALIZER.read(in);
 
-      final Collection<Message> messages = view.getMessages(conversation, startTime, endTime);
+      lock.readLock().lock();
+      try {
+        final Collection<Message> messages = view.getMessages(conversation, startTime, endTime);
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_TIME_RESPONSE);
-      Serializers.collection(Message.SERIALIZER).write(out, messages);
+        Serializers.INTEGER.write(response, NetworkCode.GET_MESSAGES_BY_TIME_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(response, messages);
+      } finally {
+        lock.readLock().unlock();
+      }
 
     } else if (type == NetworkCode.GET_MESSAGES_BY_RANGE_REQUEST) {
 
       final Uuid rootMessage = Uuids.SERIALIZER.read(in);
       final int range = Serializers.INTEGER.read(in);
 
-      final Collection<Message> messages = view.getMessages(rootMessage, range);
+      lock.readLock().lock();
+      try {
+        final Collection<Message> messages = view.getMessages(rootMessage, range);
+
+        Serializers.INTEGER.write(response, NetworkCode.GET_MESSAGES_BY_RANGE_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(response, messages);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+    } else if (type == NetworkCode.GET_MESSAGES_BY_POSITION_REQUEST) {
+
+      final Uuid conversation = Uuids.SERIALIZER.read(in);
+      final int offset = Serializers.INTEGER.read(in);
+      final int count = Math.min(Serializers.INTEGER.read(in), MAX_MESSAGE_PAGE);
+
+      lock.readLock().lock();
+      try {
+        final Collection<Message> messages = view.getMessages(conversation, offset, count);
+
+        Serializers.INTEGER.write(response, NetworkCode.GET_MESSAGES_BY_POSITION_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(response, messages);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+    } else if (type == NetworkCode.GET_LAST_MESSAGES_REQUEST) {
+
+      final Uuid conversation = Uuids.SERIALIZER.read(in);
+      final int count = Math.min(Serializers.INTEGER.read(in), MAX_MESSAGE_PAGE);
+
+      lock.readLock().lock();
+      try {
+        final Collection<Message> messages = view.getLastMessages(conversation, count);
+
+        Serializers.INTEGER.write(response, NetworkCode.GET_LAST_MESSAGES_RESPONSE);
+        Serializers.collection(Message.SERIALIZER).write(response, messages);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+    } else if (type == NetworkCode.GET_MESSAGE_COUNT_REQUEST) {
+
+      final Uuid conversation = Uuids.SERIALIZER.read(in);
+
+      lock.readLock().lock();
+      try {
+        final int count = view.getMessageCount(conversation);
+
+        Serializers.INTEGER.write(response, NetworkCode.GET_MESSAGE_COUNT_RESPONSE);
+        Serializers.INTEGER.write(response, count);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+    } else if (type == NetworkCode.SEARCH_MESSAGES_REQUEST) {
+
+      final Uuid conversation = Uuids.SERIALIZER.read(in);
+      final String query = Serializers.STRING.read(in);
+      final int offset = Serializers.INTEGER.read(in);
+      final int limit = Math.min(Serializers.INTEGER.read(in), MAX_SEARCH_PAGE);
+
+      final List<Message> inModel;
+
+      lock.readLock().lock();
+      try {
+        inModel = view.searchModel(conversation, query, offset, limit);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      // Archived messages are searched in the database without the lock, so
+      // writers do not wait for the disk.
+      final Collection<Message> messages =
+          view.searchArchive(conversation, query, offset, limit, inModel);
+
+      Serializers.INTEGER.write(response, NetworkCode.SEARCH_MESSAGES_RESPONSE);
+      Serializers.collection(Message.SERIALIZER).write(response, messages);
+
+    } else if (type == NetworkCode.UNSUBSCRIBE_REQUEST) {
+
+      final Uuid subscriber = Uuids.SERIALIZER.read(in);
+      final boolean removed = subscriptions.remove(subscriber);
 
-      Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_RANGE_RESPONSE);
-      Serializers.collection(Message.SERIALIZER).write(out, messages);
+      Serializers.INTEGER.write(response, NetworkCode.UNSUBSCRIBE_RESPONSE);
+      Serializers.BOOLEAN.write(response, removed);
 
     } else if (type == NetworkCode.SIGN_IN_REQUEST) {
 
       final String name = Serializers.STRING.read(in);
       final String password = Serializers.STRING.read(in);
 
-      //final User user = controller.newUser(name, password);
-      User response = view.getSignInStatus(name, password);
-      
-      Serializers.INTEGER.write(out, NetworkCode.SIGN_IN_RESPONSE);
-      Serializers.nullable(User.SERIALIZER).write(out, response);
+      final User user;
 
+      lock.readLock().lock();
+      try {
+        user = view.getSignInStatus(name, password);
+      } finally {
+        lock.readLock().unlock();
+      }
+
+      Serializers.INTEGER.write(response, NetworkCode.SIGN_IN_RESPONSE);
+      Serializers.nullable(User.SERIALIZER).write(response, user);
 
     } else {
 
       // In the case that the message was not handled make a dummy message with
       // the type "NO_MESSAGE" so that the client still gets something.
 
-      Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
+      Serializers.INTEGER.write(response, NetworkCode.NO_MESSAGE);
 
     }
 
+    // Send the whole response at once, without holding the lock.
+    response.writeTo(out);
+    out.flush();
+
     return true;
   }
 
+  // Add the writes the controller staged to the database's journal. This may
+  // wait for the disk or for room in the database's queue, so it is never
+  // called while holding the lock.
+  private void flushDatabase() {
+    if (database != null) {
+      database.flush();
+    }
+  }
+
+  // Count a message that was just added to the model against the history's
+  // budget, which may move the conversation's oldest messages out of the
+  // model. Called with the write lock held.
+  private void addToHistory(Uuid conversation, Message message) {
+    if (history != null && message != null) {
+      history.added(model, conversation, message);
+    }
+  }
+
   private void onBundle(Relay.Bundle bundle) {
 
     final Relay.Bundle.Component relayUser = bundle.user();
     final Relay.Bundle.Component relayConversation = bundle.conversation();
-    final Relay.Bundle.Component relayMessage = bundle.user();
+    final Relay.Bundle.Component relayMessage = bundle.message();
 
     User user = model.userById().first(relayUser.id());
 
+    if (user == null) {
+
+      // The author is from another server. They can not sign in here, so they
+      // are given a password that no one knows.
+      user = controller.newUser(relayUser.id(),
+                                relayUser.text(),
+                                UUID.randomUUID().toString(),
+                                relayUser.time(), true);
+    }
+
+    if (user == null) {
+      LOG.warning("Skipping bundle %s, its user id %s is already in use.", bundle.id(), relayUser.id());
+      return;
+    }
+
     Conversation conversation = model.conversationById().first(relayConversation.id());
 
     if (conversation == null) {
@@ -399,7 +1006,14 @@ public final class Server {
                                                 relayConversation.time(), true);
     }
 
-    Message message = model.messageById().first(relayMessage.id());
+    if (conversation == null) {
+      LOG.warning("Skipping bundle %s, its conversation id %s is already in use.",
+                  bundle.id(),
+                  relayConversation.id());
+      return;
+    }
+
+    Message message = view.findMessage(relayMessage.id());
 
     if (message == null) {
       message = controller.newMessage(relayMessage.id(),
@@ -407,6 +1021,9 @@ public final class Server {
                                       conversation.id,
                                       relayMessage.text(),
                                       relayMessage.time(), true);
+      if (message != null) {
+        addToHistory(conversation.id, message);
+      }
     }
   }
 
@@ -416,9 +1033,20 @@ public final class Server {
     return new Runnable() {
       @Override
       public void run() {
-        final User user = view.findUser(userId);
-        final Conversation conversation = view.findConversation(conversationId);
-        final Message message = view.findMessage(messageId);
+
+        final User user;
+        final Conversation conversation;
+        final Message message;
+
+        lock.readLock().lock();
+        try {
+          user = view.findUser(userId);
+          conversation = view.findConversation(conversationId);
+          message = view.findMessage(messageId);
+        } finally {
+          lock.readLock().unlock();
+        }
+
         relay.write(id,
                     secret,
                     relay.pack(user.id, user.name, user.creation),
@@ -0,0 +1,369 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Time;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.HashRing;
+import codeu.chat.util.Logger;
+
+// SHARDED RELAY
+//
+// Spreads relay traffic over several relays (shards). Each conversation
+// belongs to one shard, picked by consistent hashing of the conversation's
+// id, and all of its bundles are written there - so bundles in a conversation
+// keep their order. Reads and subscriptions cover every shard.
+//
+// When a shard is added, about 1/N of the conversations move to it. Their
+// older bundles stay on the shard they were written to, which readers still
+// read from, so nothing needs to be copied between shards. Reads merge the
+// shards by bundle time so that those conversations stay in order.
+//
+// A read's root is a cursor over all the shards: a Uuid chain with one link
+// per shard (in the order the shards were added) holding the id of the last
+// bundle read from that shard, or 0 for none. The ids of the bundles returned
+// by "read" are such cursors, so any of them can be used as the next root.
+public final class ShardedRelay implements Relay {
+
+  private final static Logger.Log LOG = Logger.newLog(ShardedRelay.class);
+
+  private static final int REPLICAS = 128;
+
+  private static final class Subscriber {
+
+    final Uuid team;
+    final byte[] secret;
+    final Relay.Listener listener;
+
+    // Each shard's subscription, cancelled together.
+    final List<Relay.Subscription> subscriptions = new ArrayList<>();
+
+    // The place reached in each shard, as in a read's root.
+    private int[] cursor;
+
+    private boolean cancelled = false;
+
+    Subscriber(Uuid team, byte[] secret, Relay.Listener listener, int[] cursor) {
+      this.team = team;
+      this.secret = secret;
+      this.listener = listener;
+      this.cursor = cursor;
+    }
+
+    // A listener for the shard at "index" that gives bundles to "listener"
+    // with cursors for ids, like those returned by "read".
+    Relay.Listener forShard(final int index) {
+      return new Relay.Listener() {
+        @Override
+        public void onBundles(Collection<Relay.Bundle> bundles) {
+          deliver(index, bundles);
+        }
+      };
+    }
+
+    // Shards push on threads of their own. Delivering one page at a time keeps
+    // the cursors given to the listener in the order they were made.
+    private synchronized void deliver(int index, Collection<Relay.Bundle> bundles) {
+
+      if (cancelled) {
+        return;
+      }
+
+      if (index >= cursor.length) {
+        cursor = Arrays.copyOf(cursor, index + 1);
+      }
+
+      final List<Relay.Bundle> found = new ArrayList<>(bundles.size());
+      for (final Relay.Bundle bundle : bundles) {
+        cursor[index] = bundle.id().id();
+        found.add(withId(bundle, encode(cursor)));
+      }
+
+      listener.onBundles(found);
+    }
+
+    // Cancel every shard's subscription. Bundles already being pushed by a
+    // shard are not given to the listener.
+    void cancel() {
+      synchronized (this) {
+        cancelled = true;
+      }
+      for (final Relay.Subscription subscription : subscriptions) {
+        subscription.cancel();
+      }
+    }
+  }
+
+  private final HashRing<Relay> ring = new HashRing<>(REPLICAS);
+
+  // In the order they were added. This is the order of the links in a cursor.
+  private final List<Relay> shards = new ArrayList<>();
+
+  private final List<Subscriber> subscribers = new ArrayList<>();
+
+  // ADD SHARD
+  //
+  // Add a relay with a name that is the same for every server (such as its
+  // address) so that all servers agree on which conversations it has. Existing
+  // subscriptions start following the new shard from its oldest bundle.
+  public synchronized boolean addShard(String name, Relay shard) {
+
+    if (!ring.add(name, shard)) {
+      LOG.warning("Relay shard %s was already added.", name);
+      return false;
+    }
+
+    shards.add(shard);
+
+    LOG.info("Added relay shard %s, now %d shards.", name, shards.size());
+
+    for (final Subscriber subscriber : subscribers) {
+      final Relay.Subscription subscription = shard.subscribe(subscriber.team,
+                                                              subscriber.secret,
+                                                              Uuids.NULL,
+                                                              subscriber.forShard(shards.size() - 1));
+      if (subscription == null) {
+        LOG.warning("Relay shard %s did not accept a subscription.", name);
+      } else {
+        subscriber.subscriptions.add(subscription);
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public Relay.Bundle.Component pack(final Uuid id, final String text, final Time time) {
+    return new Relay.Bundle.Component() {
+      @Override
+      public Uuid id() { return id; }
+      @Override
+      public String text() { return text; }
+      @Override
+      public Time time() { return time; }
+    };
+  }
+
+  @Override
+  public boolean write(Uuid teamId,
+                       byte[] teamSecret,
+                       Relay.Bundle.Component user,
+                       Relay.Bundle.Component conversation,
+                       Relay.Bundle.Component message) {
+
+    final Relay shard = shardFor(conversation.id());
+
+    if (shard == null) {
+      LOG.error("No relay shards to write message %s to.", message.id());
+      return false;
+    }
+
+    return shard.write(teamId, teamSecret, user, conversation, message);
+  }
+
+  // READ
+  //
+  // Read from every shard after its place in "root", giving each shard an
+  // equal share of "range", and merge the shards' bundles by the time the
+  // relay took them. A conversation's bundles may be on two shards after a
+  // shard was added, so merging keeps them in the order they were written.
+  //
+  // A shard that filled its share may have older bundles than some of those
+  // read from the other shards. Only bundles up to the last one read from
+  // such a shard are returned; the rest are read again from the next root.
+  @Override
+  public Collection<Relay.Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range) {
+
+    final List<Relay> shards;
+    synchronized (this) {
+      shards = new ArrayList<>(this.shards);
+    }
+
+    final int[] cursor = decode(root, shards.size());
+    final Collection<Relay.Bundle> found = new ArrayList<>();
+
+    if (shards.isEmpty() || range <= 0) {
+      return found;
+    }
+
+    final int share = (range + shards.size() - 1) / shards.size();
+
+    final List<List<Relay.Bundle>> read = new ArrayList<>(shards.size());
+    Time horizon = null;
+
+    for (int i = 0; i < shards.size(); i++) {
+
+      final Uuid shardRoot = cursor[i] == 0 ? Uuids.NULL : link(null, cursor[i]);
+      final List<Relay.Bundle> bundles =
+          new ArrayList<>(shards.get(i).read(teamId, teamSecret, shardRoot, share));
+
+      if (bundles.size() >= share) {
+        final Time last = bundles.get(bundles.size() - 1).time();
+        horizon = horizon == null || last.compareTo(horizon) < 0 ? last : horizon;
+      }
+
+      read.add(bundles);
+    }
+
+    // Each shard's bundles are in the order it took them, so take the oldest
+    // of the shards' next bundles each time.
+    final int[] next = new int[shards.size()];
+
+    while (found.size() < range) {
+
+      int oldest = -1;
+      for (int i = 0; i < shards.size(); i++) {
+        if (next[i] < read.get(i).size() &&
+            (oldest < 0 || read.get(i).get(next[i]).time().compareTo(
+                               read.get(oldest).get(next[oldest]).time()) < 0)) {
+          oldest = i;
+        }
+      }
+
+      if (oldest < 0) {
+        break;
+      }
+
+      final Relay.Bundle bundle = read.get(oldest).get(next[oldest]);
+
+      if (horizon != null && bundle.time().compareTo(horizon) > 0) {
+        break;
+      }
+
+      next[oldest] += 1;
+      cursor[oldest] = bundle.id().id();
+      found.add(withId(bundle, encode(cursor)));
+    }
+
+    return found;
+  }
+
+  // SUBSCRIBE
+  //
+  // Subscribe to every shard, each from its place in "root". The listener is
+  // given bundles from one shard at a time, with cursors for ids as "read"
+  // gives. Returns null if any shard can not push, having cancelled the
+  // shards that could, so that the caller reads from all of them instead.
+  @Override
+  public synchronized Relay.Subscription subscribe(Uuid teamId,
+                                                   byte[] teamSecret,
+                                                   Uuid root,
+                                                   Relay.Listener listener) {
+
+    final int[] cursor = decode(root, shards.size());
+    final Subscriber subscriber =
+        new Subscriber(teamId, teamSecret, listener, Arrays.copyOf(cursor, cursor.length));
+
+    if (shards.isEmpty()) {
+      return null;
+    }
+
+    for (int i = 0; i < shards.size(); i++) {
+
+      final Uuid shardRoot = cursor[i] == 0 ? Uuids.NULL : link(null, cursor[i]);
+      final Relay.Subscription subscription =
+          shards.get(i).subscribe(teamId, teamSecret, shardRoot, subscriber.forShard(i));
+
+      if (subscription == null) {
+        LOG.warning("Relay shard %d did not accept the subscription, reading instead.", i);
+        subscriber.cancel();
+        return null;
+      }
+
+      subscriber.subscriptions.add(subscription);
+    }
+
+    subscribers.add(subscriber);
+
+    return new Relay.Subscription() {
+      @Override
+      public void cancel() {
+        synchronized (ShardedRelay.this) {
+          subscribers.remove(subscriber);
+          subscriber.cancel();
+        }
+      }
+    };
+  }
+
+  private synchronized Relay shardFor(Uuid conversation) {
+
+    int hash = 0;
+    for (Uuid current = conversation; current != null; current = current.root()) {
+      hash = HashRing.mix(hash * 31 + current.id());
+    }
+
+    return ring.get(hash);
+  }
+
+  // The cursor's links, first shard first. Missing links (the cursor is from
+  // before shards were added) are 0 and extra links are ignored.
+  private static int[] decode(Uuid root, int shards) {
+
+    final List<Integer> links = new ArrayList<>();
+    for (Uuid current = root; current != null; current = current.root()) {
+      links.add(0, current.id());
+    }
+
+    final int[] cursor = new int[shards];
+    for (int i = 0; i < shards && i < links.size(); i++) {
+      cursor[i] = links.get(i);
+    }
+
+    return cursor;
+  }
+
+  private static Uuid encode(int[] cursor) {
+    Uuid head = null;
+    for (final int id : cursor) {
+      head = link(head, id);
+    }
+    return head;
+  }
+
+  private static Uuid link(final Uuid root, final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return root; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+
+  private static Relay.Bundle withId(final Relay.Bundle bundle, final Uuid id) {
+    return new Relay.Bundle() {
+      @Override
+      public Uuid id() { return id; }
+      @Override
+      public Time time() { return bundle.time(); }
+      @Override
+      public Uuid team() { return bundle.team(); }
+      @Override
+      public Relay.Bundle.Component user() { return bundle.user(); }
+      @Override
+      public Relay.Bundle.Component conversation() { return bundle.conversation(); }
+      @Override
+      public Relay.Bundle.Component message() { return bundle.message(); }
+    };
+  }
+}
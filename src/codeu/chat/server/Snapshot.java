@@ -0,0 +1,253 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.common.Time;
+import codeu.chat.common.User;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+
+// SNAPSHOT
+//
+// A copy of the database's rows up to some point, in the order they should be
+// loaded: users and conversations in the order they were added and messages
+// grouped by conversation. Loading a snapshot into the model skips the checks
+// that adding one row at a time does.
+//
+// A snapshot can be written to a file. Reading it back is a single pass over
+// a memory mapped copy of the file, which is much faster than reading every
+// row from the database again. The snapshot remembers the last row it has
+// from each table so that only newer rows need to be read from the database.
+final class Snapshot {
+
+  private final static Logger.Log LOG = Logger.newLog(Snapshot.class);
+
+  private static final int MAGIC = 0x434e5053;  // "CNPS"
+  private static final int VERSION = 1;
+
+  // "passwords.get(i)" is the password of "users.get(i)".
+  public final List<User> users = new ArrayList<>();
+  public final List<String> passwords = new ArrayList<>();
+
+  public final List<Conversation> conversations = new ArrayList<>();
+
+  // Each conversation's messages in the order they should be linked. The keys
+  // are complete uuids (see Uuids.complete) so that they can be looked up.
+  public final Map<Uuid, List<Message>> messages = new LinkedHashMap<>();
+
+  // The row id of the last row from each table. Zero if there are none.
+  public long lastUserRow;
+  public long lastConversationRow;
+  public long lastMessageRow;
+
+  private int messageCount;
+
+  public void addUser(User user, String password) {
+    users.add(user);
+    passwords.add(password);
+  }
+
+  public void addConversation(Conversation conversation) {
+    conversations.add(conversation);
+  }
+
+  public void addMessage(Uuid conversation, Message message) {
+    final Uuid key = Uuids.complete(conversation);
+    List<Message> list = messages.get(key);
+    if (list == null) {
+      list = new ArrayList<>();
+      messages.put(key, list);
+    }
+    list.add(message);
+    messageCount += 1;
+  }
+
+  public int messageCount() {
+    return messageCount;
+  }
+
+  public int rowCount() {
+    return users.size() + conversations.size() + messageCount;
+  }
+
+  // READ
+  //
+  // Read the snapshot in "file". Returns null if there is no snapshot or if it
+  // can not be read, in which case everything must come from the database.
+  public static Snapshot read(File file) {
+
+    if (!file.isFile()) {
+      return null;
+    }
+
+    try (
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final FileChannel channel = raf.getChannel()
+    ) {
+
+      final InputStream in = new BufferInputStream(
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+
+      if (Serializers.INTEGER.read(in) != MAGIC || Serializers.INTEGER.read(in) != VERSION) {
+        LOG.warning("Ignoring snapshot %s, it is not a snapshot this version can read", file);
+        return null;
+      }
+
+      final Snapshot snapshot = new Snapshot();
+
+      snapshot.lastUserRow = Serializers.LONG.read(in);
+      snapshot.lastConversationRow = Serializers.LONG.read(in);
+      snapshot.lastMessageRow = Serializers.LONG.read(in);
+
+      for (int users = Serializers.INTEGER.read(in); users > 0; users--) {
+        snapshot.addUser(User.SERIALIZER.read(in), Serializers.STRING.read(in));
+      }
+
+      for (int conversations = Serializers.INTEGER.read(in); conversations > 0; conversations--) {
+        snapshot.addConversation(new Conversation(
+            Uuids.SERIALIZER.read(in),
+            Uuids.SERIALIZER.read(in),
+            Time.SERIALIZER.read(in),
+            Serializers.STRING.read(in)));
+      }
+
+      for (int conversations = Serializers.INTEGER.read(in); conversations > 0; conversations--) {
+        final Uuid conversation = Uuids.SERIALIZER.read(in);
+        for (int messages = Serializers.INTEGER.read(in); messages > 0; messages--) {
+          snapshot.addMessage(conversation, new Message(
+              Uuids.SERIALIZER.read(in),
+              Uuids.NULL,
+              Uuids.NULL,
+              Time.SERIALIZER.read(in),
+              Uuids.SERIALIZER.read(in),
+              Serializers.STRING.read(in)));
+        }
+      }
+
+      return snapshot;
+
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to read snapshot %s", file);
+      return null;
+    }
+  }
+
+  // WRITE
+  //
+  // Write the snapshot to "file". The snapshot is written to a temporary file
+  // first and then moved over "file" so that a failed write never leaves a
+  // partial snapshot behind.
+  public void write(File file) throws IOException {
+
+    final File temp = new File(file.getPath() + ".tmp");
+
+    try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+
+      Serializers.INTEGER.write(out, MAGIC);
+      Serializers.INTEGER.write(out, VERSION);
+
+      Serializers.LONG.write(out, lastUserRow);
+      Serializers.LONG.write(out, lastConversationRow);
+      Serializers.LONG.write(out, lastMessageRow);
+
+      Serializers.INTEGER.write(out, users.size());
+      for (int i = 0; i < users.size(); i++) {
+        User.SERIALIZER.write(out, users.get(i));
+        Serializers.STRING.write(out, passwords.get(i));
+      }
+
+      // Only the conversation's own fields are written. Its users and messages
+      // are rebuilt when the messages are loaded.
+      Serializers.INTEGER.write(out, conversations.size());
+      for (final Conversation conversation : conversations) {
+        Uuids.SERIALIZER.write(out, conversation.id);
+        Uuids.SERIALIZER.write(out, conversation.owner);
+        Time.SERIALIZER.write(out, conversation.creation);
+        Serializers.STRING.write(out, conversation.title);
+      }
+
+      Serializers.INTEGER.write(out, messages.size());
+      for (final Map.Entry<Uuid, List<Message>> entry : messages.entrySet()) {
+        Uuids.SERIALIZER.write(out, entry.getKey());
+        Serializers.INTEGER.write(out, entry.getValue().size());
+        for (final Message message : entry.getValue()) {
+          Uuids.SERIALIZER.write(out, message.id);
+          Time.SERIALIZER.write(out, message.creation);
+          Uuids.SERIALIZER.write(out, message.author);
+          Serializers.STRING.write(out, message.content);
+        }
+      }
+    }
+
+    Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Read from a buffer as if it were a stream so that the serializers can be
+  // used on a mapped file.
+  private static final class BufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    BufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      final int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
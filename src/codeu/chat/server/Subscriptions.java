@@ -0,0 +1,383 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+
+// SUBSCRIPTIONS
+//
+// Pushes new messages to the clients that subscribed to their conversations.
+//
+// Each subscriber has its own queue of messages to send. New messages are
+// added to the queues of the conversation's subscribers while the controller
+// is adding them (so the order matches the order they were added in) and are
+// sent from the executor's threads. Queued messages are copies, so they are
+// not changed by later writes while they are being sent. Adding to a queue never blocks, so a slow
+// client can not slow down the server. A subscriber whose queue fills up is
+// sent the end of its stream instead and has to subscribe again, giving the
+// last message it saw, to catch up. Catching up only ever uses half of a
+// queue, so it can not be the thing that fills it.
+final class Subscriptions implements Controller.MessageListener {
+
+  private final static Logger.Log LOG = Logger.newLog(Subscriptions.class);
+
+  private final Executor executor;
+  private final int queueLimit;
+
+  private final Map<Uuid, Set<Subscriber>> byConversation = new HashMap<>();
+  private final Map<Uuid, Subscriber> byId = new HashMap<>();
+
+  // Subscribers are known by random ids so that only the client that
+  // subscribed can unsubscribe.
+  private final SecureRandom random = new SecureRandom();
+
+  public Subscriptions(Executor executor, int queueLimit) {
+    this.executor = executor;
+    this.queueLimit = queueLimit;
+  }
+
+  // ADD
+  //
+  // Create a subscriber that sends to the connection. Anything that should be
+  // sent before new messages (the response to the subscribe request and any
+  // messages the client missed) must be queued with "respond" and "send"
+  // before the subscriber is started with "follow".
+  public synchronized Subscriber add(Connection connection) {
+
+    Uuid id;
+    do {
+      id = newId();
+    } while (byId.containsKey(id));
+
+    final Subscriber subscriber = new Subscriber(id, connection);
+    byId.put(subscriber.id, subscriber);
+    return subscriber;
+  }
+
+  // FOLLOW
+  //
+  // Start sending new messages from the conversations to the subscriber.
+  public synchronized void follow(Subscriber subscriber, Collection<Uuid> conversations) {
+    for (final Uuid conversation : conversations) {
+      final Uuid key = Uuids.complete(conversation);
+      Set<Subscriber> subscribers = byConversation.get(key);
+      if (subscribers == null) {
+        subscribers = new HashSet<>();
+        byConversation.put(key, subscribers);
+      }
+      subscribers.add(subscriber);
+      subscriber.conversations.add(key);
+    }
+  }
+
+  // REMOVE
+  //
+  // Stop sending to a subscriber and end its stream. Returns false if there is
+  // no subscriber with the id.
+  public boolean remove(Uuid id) {
+
+    final Subscriber subscriber;
+
+    synchronized (this) {
+      subscriber = byId.get(Uuids.complete(id));
+    }
+
+    if (subscriber == null) {
+      return false;
+    }
+
+    subscriber.end();
+    return true;
+  }
+
+  public synchronized int size() {
+    return byId.size();
+  }
+
+  @Override
+  public void onMessage(Uuid conversation, Message message) {
+
+    final List<Subscriber> subscribers;
+
+    synchronized (this) {
+      final Set<Subscriber> found = byConversation.get(Uuids.complete(conversation));
+      if (found == null) {
+        return;
+      }
+      subscribers = new ArrayList<>(found);
+    }
+
+    for (final Subscriber subscriber : subscribers) {
+      subscriber.send(conversation, message);
+    }
+  }
+
+  // A Uuid of four random links.
+  private Uuid newId() {
+    Uuid id = null;
+    for (int i = 0; i < 4; i++) {
+      id = link(id, random.nextInt());
+    }
+    return id;
+  }
+
+  private static Uuid link(final Uuid root, final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return root; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+
+  private synchronized void forget(Subscriber subscriber) {
+
+    byId.remove(subscriber.id);
+
+    for (final Uuid conversation : subscriber.conversations) {
+      final Set<Subscriber> subscribers = byConversation.get(conversation);
+      if (subscribers != null) {
+        subscribers.remove(subscriber);
+        if (subscribers.isEmpty()) {
+          byConversation.remove(conversation);
+        }
+      }
+    }
+  }
+
+  // One item to send. END marks the end of the stream and RESPONSE the
+  // response to the subscribe request.
+  private static final class Push {
+
+    final Uuid conversation;
+    final Message message;
+
+    Push(Uuid conversation, Message message) {
+      this.conversation = conversation;
+      this.message = message;
+    }
+  }
+
+  private static final Push END = new Push(null, null);
+  private static final Push RESPONSE = new Push(null, null);
+
+  public final class Subscriber implements Runnable {
+
+    public final Uuid id;
+
+    private final Connection connection;
+    private final Set<Uuid> conversations = new HashSet<>();
+
+    // Guarded by "queue".
+    private final Queue<Push> queue = new ArrayDeque<>();
+    private boolean scheduled = false;
+    private boolean ended = false;
+
+    private int catchUpLeft = Math.max(1, queueLimit / 2);
+
+    private Subscriber(Uuid id, Connection connection) {
+      this.id = id;
+      this.connection = connection;
+    }
+
+    // RESPOND
+    //
+    // Queue the response to the subscribe request, which gives the client the
+    // subscriber's id.
+    public void respond() {
+      synchronized (queue) {
+        if (!ended) {
+          queue.add(RESPONSE);
+          scheduleLocked();
+        }
+      }
+    }
+
+    // SEND
+    //
+    // Queue a copy of a message to be sent. The caller must hold the model's
+    // lock so that the message is not changed while it is copied. If the
+    // queue is full the queued messages are dropped and the stream is ended,
+    // but a queued response is still sent so the client knows what happened.
+    public void send(Uuid conversation, Message message) {
+      synchronized (queue) {
+        if (ended) {
+          return;
+        }
+        if (queue.size() >= queueLimit) {
+          LOG.warning("Subscriber %s is not keeping up. Ending its stream.", id);
+          queue.retainAll(Collections.singleton(RESPONSE));
+          endLocked();
+        } else {
+          queue.add(new Push(conversation, new Message(message.id,
+                                                       message.next,
+                                                       message.previous,
+                                                       message.creation,
+                                                       message.author,
+                                                       message.content)));
+          scheduleLocked();
+        }
+      }
+    }
+
+    // CATCH UP
+    //
+    // Queue the messages that a client missed in a conversation, starting at
+    // "next" and following each message's "next". Everything a subscriber
+    // catches up on shares half of its queue. Returns false if there were
+    // more messages than that, in which case the client must subscribe again
+    // to get the rest. The caller must hold the model's lock.
+    public boolean catchUp(Uuid conversation, Uuid next, View view) {
+
+      while (!Uuids.equals(next, Uuids.NULL)) {
+
+        final Message message = view.findMessage(next);
+
+        if (message == null) {
+          return true;
+        }
+
+        if (catchUpLeft == 0) {
+          return false;
+        }
+
+        catchUpLeft -= 1;
+        send(conversation, message);
+        next = message.next;
+      }
+
+      return true;
+    }
+
+    // END
+    //
+    // Send everything already queued and then end the stream.
+    public void end() {
+      synchronized (queue) {
+        if (!ended) {
+          endLocked();
+        }
+      }
+    }
+
+    private void endLocked() {
+      ended = true;
+      queue.add(END);
+      scheduleLocked();
+    }
+
+    private void scheduleLocked() {
+      if (!scheduled) {
+        scheduled = true;
+        executor.execute(this);
+      }
+    }
+
+    // Send everything in the queue, flushing once for each batch.
+    @Override
+    public void run() {
+
+      final List<Push> batch = new ArrayList<>();
+
+      while (true) {
+
+        synchronized (queue) {
+          batch.addAll(queue);
+          queue.clear();
+          if (batch.isEmpty()) {
+            scheduled = false;
+            return;
+          }
+        }
+
+        boolean done = false;
+
+        try {
+
+          final OutputStream out = connection.out();
+
+          for (final Push push : batch) {
+            if (push == END) {
+              Serializers.INTEGER.write(out, NetworkCode.SUBSCRIPTION_END);
+              done = true;
+              break;
+            }
+            if (push == RESPONSE) {
+              Serializers.INTEGER.write(out, NetworkCode.SUBSCRIBE_RESPONSE);
+              Uuids.SERIALIZER.write(out, id);
+              continue;
+            }
+            Serializers.INTEGER.write(out, NetworkCode.SUBSCRIPTION_MESSAGE);
+            Uuids.SERIALIZER.write(out, push.conversation);
+            Message.SERIALIZER.write(out, push.message);
+          }
+
+          out.flush();
+
+        } catch (IOException ex) {
+          LOG.info("Subscriber %s went away (%s)", id, ex.toString());
+          done = true;
+        }
+
+        batch.clear();
+
+        if (done) {
+          close();
+          return;
+        }
+      }
+    }
+
+    // Stop for good. Nothing more will be queued or sent, so the executor is
+    // not scheduled again.
+    private void close() {
+
+      synchronized (queue) {
+        ended = true;
+        queue.clear();
+      }
+
+      forget(this);
+
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Exception while closing subscriber %s.", id);
+      }
+    }
+  }
+}
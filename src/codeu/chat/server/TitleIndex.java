@@ -0,0 +1,274 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.util.Logger;
+import codeu.chat.util.store.StoreAccessor;
+
+// TITLE INDEX
+//
+// Search conversations by their titles.
+//
+// Prefix searches use the title store, which is sorted without case, so every
+// title with a given prefix is in one run that starts where the prefix would
+// be. Substring searches use a trigram index: for every three characters
+// that appear in a title (in lower case) there is a sorted list of the
+// conversations with that title. A query's lists are intersected and only
+// the conversations left are checked. Queries shorter than three characters
+// are checked against every title. Regular expression searches check every
+// title and are stopped once they run out of time.
+//
+// Conversations are numbered in the order they were added and results are
+// returned in that order (or in title order for prefix searches), so paging
+// through results with an offset is stable as long as nothing is added.
+public final class TitleIndex {
+
+  private final static Logger.Log LOG = Logger.newLog(TitleIndex.class);
+
+  private static final int GRAM = 3;
+
+  private final StoreAccessor<String, Conversation> byTitle;
+
+  private final List<Conversation> conversations = new ArrayList<>();
+  private final List<String> lowerTitles = new ArrayList<>();
+  private final Map<String, Postings> trigrams = new HashMap<>();
+
+  public TitleIndex(StoreAccessor<String, Conversation> byTitle) {
+    this.byTitle = byTitle;
+  }
+
+  public void add(Conversation conversation) {
+
+    final int number = conversations.size();
+    final String title = lower(conversation.title);
+
+    conversations.add(conversation);
+    lowerTitles.add(title);
+
+    for (int i = 0; i + GRAM <= title.length(); i++) {
+      final String gram = title.substring(i, i + GRAM);
+      Postings postings = trigrams.get(gram);
+      if (postings == null) {
+        postings = new Postings();
+        trigrams.put(gram, postings);
+      }
+      postings.add(number);
+    }
+  }
+
+  // PREFIX
+  //
+  // Get the conversations whose titles start with "prefix", ignoring case,
+  // in title order.
+  public List<Conversation> prefix(String prefix, int offset, int limit) {
+
+    final List<Conversation> found = new ArrayList<>();
+    int skip = Math.max(0, offset);
+
+    for (final Conversation conversation : byTitle.after(prefix)) {
+
+      if (found.size() >= limit ||
+          !conversation.title.regionMatches(true, 0, prefix, 0, prefix.length())) {
+        break;
+      }
+
+      if (skip > 0) {
+        skip -= 1;
+      } else {
+        found.add(conversation);
+      }
+    }
+
+    return found;
+  }
+
+  // SUBSTRING
+  //
+  // Get the conversations whose titles contain "query", ignoring case, in the
+  // order they were added.
+  public List<Conversation> substring(String query, int offset, int limit) {
+
+    final String lowerQuery = lower(query);
+    final List<Conversation> found = new ArrayList<>();
+
+    if (limit <= 0) {
+      return found;
+    }
+
+    int skip = Math.max(0, offset);
+
+    if (lowerQuery.length() < GRAM) {
+      for (int number = 0; number < conversations.size() && found.size() < limit; number++) {
+        if (lowerTitles.get(number).contains(lowerQuery)) {
+          if (skip > 0) {
+            skip -= 1;
+          } else {
+            found.add(conversations.get(number));
+          }
+        }
+      }
+      return found;
+    }
+
+    final Set<String> grams = new LinkedHashSet<>();
+    for (int i = 0; i + GRAM <= lowerQuery.length(); i++) {
+      grams.add(lowerQuery.substring(i, i + GRAM));
+    }
+
+    final List<Postings> lists = new ArrayList<>();
+    for (final String gram : grams) {
+      final Postings postings = trigrams.get(gram);
+      if (postings == null) {
+        return found;
+      }
+      lists.add(postings);
+    }
+
+    // Walk the shortest list and look the rest up in the longer lists.
+    Collections.sort(lists, new Comparator<Postings>() {
+      @Override
+      public int compare(Postings a, Postings b) {
+        return Integer.compare(a.size(), b.size());
+      }
+    });
+
+    final Postings shortest = lists.get(0);
+
+    for (int i = 0; i < shortest.size() && found.size() < limit; i++) {
+
+      final int number = shortest.get(i);
+
+      boolean inAll = true;
+      for (int list = 1; list < lists.size() && inAll; list++) {
+        inAll = lists.get(list).contains(number);
+      }
+
+      // Having every trigram does not mean they are next to each other.
+      if (inAll && lowerTitles.get(number).contains(lowerQuery)) {
+        if (skip > 0) {
+          skip -= 1;
+        } else {
+          found.add(conversations.get(number));
+        }
+      }
+    }
+
+    return found;
+  }
+
+  // REGEX
+  //
+  // Get the conversations whose whole title matches "expression", in the
+  // order they were added. If the search takes longer than "timeoutMs" it is
+  // stopped and the conversations found so far are returned.
+  public List<Conversation> regex(String expression, int offset, int limit, long timeoutMs) {
+
+    final Pattern pattern = Pattern.compile(expression);
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+    final List<Conversation> found = new ArrayList<>();
+    int skip = Math.max(0, offset);
+
+    try {
+
+      for (int number = 0; number < conversations.size() && found.size() < limit; number++) {
+
+        final Conversation conversation = conversations.get(number);
+
+        if (pattern.matcher(new DeadlineCharSequence(conversation.title, deadline)).matches()) {
+          if (skip > 0) {
+            skip -= 1;
+          } else {
+            found.add(conversation);
+          }
+        }
+      }
+
+    } catch (DeadlineException ex) {
+      LOG.warning("Title search for \"%s\" ran out of time after %d ms, returning %d results",
+                  expression,
+                  timeoutMs,
+                  found.size());
+    }
+
+    return found;
+  }
+
+  private static String lower(String text) {
+    return text.toLowerCase(Locale.ROOT);
+  }
+
+  // Text that stops a regular expression match once the deadline has passed.
+  // The matcher reads the text one character at a time, so checking the time
+  // every so often in "charAt" bounds how long any pattern can run.
+  private static final class DeadlineCharSequence implements CharSequence {
+
+    private final CharSequence text;
+    private final long deadline;
+    private int reads;
+
+    DeadlineCharSequence(CharSequence text, long deadline) {
+      this.text = text;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public char charAt(int index) {
+      reads += 1;
+      if ((reads & 0x3FF) == 0 && System.nanoTime() > deadline) {
+        throw new DeadlineException();
+      }
+      return text.charAt(index);
+    }
+
+    @Override
+    public int length() {
+      return text.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new DeadlineCharSequence(text.subSequence(start, end), deadline);
+    }
+
+    @Override
+    public String toString() {
+      return text.toString();
+    }
+  }
+
+  private static final class DeadlineException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    DeadlineException() {
+      super(null, null, false, false);
+    }
+  }
+}
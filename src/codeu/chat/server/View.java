@@ -18,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -25,17 +26,21 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import codeu.chat.common.BasicView;
 import codeu.chat.common.Conversation;
+import codeu.chat.common.ConversationChanges;
 import codeu.chat.common.ConversationSummary;
 import codeu.chat.common.LogicalView;
 import codeu.chat.common.Message;
+import codeu.chat.common.SearchMode;
 import codeu.chat.common.SinglesView;
 import codeu.chat.common.Time;
 import codeu.chat.common.User;
+import codeu.chat.common.UserChanges;
 import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
 import codeu.chat.util.Logger;
 import codeu.chat.util.store.StoreAccessor;
 
@@ -43,10 +48,31 @@ public final class View implements BasicView, LogicalView, SinglesView {
 
   private final static Logger.Log LOG = Logger.newLog(View.class);
 
+  // How long a regular expression title search may run before it is stopped
+  // and whatever it found so far is returned.
+  private static final long REGEX_TIMEOUT_MS = 250;
+
+  private static final Comparator<Message> NEWEST_FIRST = new Comparator<Message>() {
+    @Override
+    public int compare(Message a, Message b) {
+      return b.creation.compareTo(a.creation);
+    }
+  };
+
   private final Model model;
+  private final History history;
 
   public View(Model model) {
+    this(model, null);
+  }
+
+  // VIEW
+  //
+  // Create a view that looks for messages that are not in the model in
+  // "history". If history is null, every message must be in the model.
+  public View(Model model, History history) {
     this.model = model;
+    this.history = history;
   }
 
 
@@ -61,13 +87,45 @@ public final class View implements BasicView, LogicalView, SinglesView {
     final Collection<ConversationSummary> summaries = new ArrayList<>();
 
     for (final Conversation conversation : model.conversationById().all()) {
-        summaries.add(conversation.summary);
+        summaries.add(summarize(conversation));
     }
 
     return summaries;
 
   }
 
+  @Override
+  public ConversationChanges getConversationChanges(long epoch, long version) {
+
+    final Collection<Conversation> changed = model.conversationsChangedSince(epoch, version);
+    final boolean full = changed == null;
+
+    final Collection<ConversationSummary> summaries = new ArrayList<>();
+    for (final Conversation conversation : full ? model.conversationById().all() : changed) {
+      summaries.add(summarize(conversation));
+    }
+
+    return new ConversationChanges(model.conversationEpoch(),
+                                   model.conversationVersion(),
+                                   full,
+                                   summaries);
+  }
+
+  // The conversation's summary with the time of its last message. The last
+  // message is always held in the model, even when older ones are not.
+  private ConversationSummary summarize(Conversation conversation) {
+
+    final Message last = Uuids.equals(conversation.lastMessage, Uuids.NULL) ?
+        null :
+        model.messageById().first(conversation.lastMessage);
+
+    return new ConversationSummary(conversation.id,
+                                   conversation.owner,
+                                   conversation.creation,
+                                   conversation.title,
+                                   last == null ? conversation.creation : last.creation);
+  }
+
   @Override
   public Collection<Conversation> getConversations(Collection<Uuid> ids) {
     return intersect(model.conversationById(), ids);
@@ -75,7 +133,25 @@ public final class View implements BasicView, LogicalView, SinglesView {
 
   @Override
   public Collection<Message> getMessages(Collection<Uuid> ids) {
-    return intersect(model.messageById(), ids);
+
+    if (history == null) {
+      return intersect(model.messageById(), ids);
+    }
+
+    final Collection<Message> found = new HashSet<>();
+
+    for (final Uuid id : ids) {
+
+      final Message message = find(id);
+
+      if (message == null) {
+        LOG.warning("Unmapped id %s", id);
+      } else if (!found.add(message)) {
+        LOG.warning("Duplicate id %s", id);
+      }
+    }
+
+    return found;
   }
 
   @Override
@@ -83,6 +159,23 @@ public final class View implements BasicView, LogicalView, SinglesView {
     return model.userGeneration();
   }
 
+  @Override
+  public UserChanges getUserChanges(Uuid generation) {
+
+    final List<User> added = model.usersSince(generation);
+
+    if (added != null) {
+      return new UserChanges(model.userGeneration(), false, added);
+    }
+
+    final List<User> all = new ArrayList<>();
+    for (final User user : model.userById().all()) {
+      all.add(user);
+    }
+
+    return new UserChanges(model.userGeneration(), true, all);
+  }
+
   @Override
   public Collection<User> getUsersExcluding(Collection<Uuid> ids) {
       
@@ -94,9 +187,6 @@ public final class View implements BasicView, LogicalView, SinglesView {
         users.add(user);
       }
     }
-    for (final User temp : users){
-	LOG.info(temp.name);
-    }
     return users;
   }
 
@@ -116,35 +206,47 @@ public final class View implements BasicView, LogicalView, SinglesView {
   @Override
   public Collection<Conversation> getConversations(String filter) {
 
-    final Collection<Conversation> found = new ArrayList<>();
+    return searchConversations(SearchMode.REGEX, filter, 0, Integer.MAX_VALUE);
+  }
 
-    for (final Conversation conversation : model.conversationByText().all()) {
-      if (Pattern.matches(filter, conversation.title)) {
-        found.add(conversation);
-      }
+  @Override
+  public Collection<Conversation> searchConversations(SearchMode mode,
+                                                      String query,
+                                                      int offset,
+                                                      int limit) {
+
+    final TitleIndex titles = model.conversationByTitle();
+
+    switch (mode) {
+      case PREFIX:
+        return titles.prefix(query, offset, limit);
+      case SUBSTRING:
+        return titles.substring(query, offset, limit);
+      case REGEX:
+        try {
+          return titles.regex(query, offset, limit, REGEX_TIMEOUT_MS);
+        } catch (PatternSyntaxException ex) {
+          LOG.warning("Bad title search expression \"%s\": %s", query, ex.getDescription());
+          return new ArrayList<>();
+        }
+      default:
+        return new ArrayList<>();
     }
-
-    return found;
   }
 
   @Override
   public Collection<Message> getMessages(Uuid conversation, Time start, Time end) {
 
-    final Conversation foundConversation = model.conversationById().first(conversation);
-
     final List<Message> foundMessages = new ArrayList<>();
 
-    Message current = (foundConversation == null) ?
-        null :
-        model.messageById().first(foundConversation.firstMessage);
-
-    while (current != null && current.creation.compareTo(start) < 0) {
-      current = model.messageById().first(current.next);
+    // Only the conversation's recent messages are in the model. Get the rest
+    // from the history.
+    if (history != null && history.firstResident(conversation) != null) {
+      foundMessages.addAll(history.range(conversation, start, end));
     }
 
-    while (current != null && current.creation.compareTo(end) <= 0) {
-      foundMessages.add(current);
-      current = model.messageById().first(current.next);
+    for (final Message message : model.messageByTime(conversation).range(start, end)) {
+      foundMessages.add(message);
     }
 
     return foundMessages;
@@ -167,23 +269,143 @@ public final class View implements BasicView, LogicalView, SinglesView {
     // is that the function will return "range" around the root. Zero messages
     // around the root means that it should just return the root.
 
-    Message current = model.messageById().first(rootMessage);
+    Message current = find(rootMessage);
 
     if (range > 0) {
       for (int i = 0; i <= remaining && current != null; i++) {
         found.addLast(current);
-        current = model.messageById().first(current.next);
+        current = find(current.next);
       }
     } else {
       for (int i = 0; i <= remaining && current != null; i++) {
         found.addFirst(current);
-        current = model.messageById().first(current.previous);
+        current = find(current.previous);
       }
     }
 
     return found;
   }
 
+  @Override
+  public Collection<Message> getMessages(Uuid conversation, int offset, int count) {
+
+    final List<Message> found = new ArrayList<>();
+
+    if (offset < 0 || count <= 0) {
+      return found;
+    }
+
+    // When only recent messages are in the model, the model's positions start
+    // after the archived messages.
+    final int archived = (history == null) ? 0 : history.archivedCount(conversation);
+
+    if (offset < archived) {
+      found.addAll(history.messages(conversation, offset, Math.min(count, archived - offset)));
+    }
+
+    final List<Message> resident = model.messageByPosition(conversation);
+
+    final int from = Math.max(0, offset - archived);
+    final int to = (int) Math.min(resident.size(), (long) offset + count - archived);
+
+    if (from < to) {
+      found.addAll(resident.subList(from, to));
+    }
+
+    return found;
+  }
+
+  @Override
+  public Collection<Message> getLastMessages(Uuid conversation, int count) {
+    return getMessages(conversation, Math.max(0, getMessageCount(conversation) - count), count);
+  }
+
+  @Override
+  public int getMessageCount(Uuid conversation) {
+    final int archived = (history == null) ? 0 : history.archivedCount(conversation);
+    return archived + model.messageByPosition(conversation).size();
+  }
+
+  // SEARCH MESSAGES
+  //
+  // Both parts of a search, for a caller that holds the lock for all of it.
+  @Override
+  public Collection<Message> searchMessages(Uuid conversation, String query, int offset, int limit) {
+    return searchArchive(conversation,
+                         query,
+                         offset,
+                         limit,
+                         searchModel(conversation, query, offset, limit));
+  }
+
+  // SEARCH MODEL
+  //
+  // The first part of a search: the matches among the messages in the model.
+  // Must be called with the lock held. Without a history this is the whole
+  // page, otherwise it is every match in the model that could be on the page.
+  public List<Message> searchModel(Uuid conversation, String query, int offset, int limit) {
+
+    final Uuid scope = Uuids.equals(conversation, Uuids.NULL) ? null : conversation;
+
+    if (history == null) {
+      return model.messageByText().search(scope, query, offset, limit);
+    }
+
+    return model.messageByText().search(scope, query, 0, wanted(offset, limit));
+  }
+
+  // SEARCH ARCHIVE
+  //
+  // The second part of a search: add the archived matches to what
+  // "searchModel" found and cut out the page. Reads the database, so it
+  // should be called without the lock. Only looks up messages by id in the
+  // model, which does not need the lock.
+  public Collection<Message> searchArchive(Uuid conversation,
+                                           String query,
+                                           int offset,
+                                           int limit,
+                                           List<Message> inModel) {
+
+    if (history == null) {
+      return inModel;
+    }
+
+    final Uuid scope = Uuids.equals(conversation, Uuids.NULL) ? null : conversation;
+    final int wanted = wanted(offset, limit);
+
+    final List<Message> found = new ArrayList<>(inModel);
+    final Set<Uuid> seen = new HashSet<>();
+    for (final Message message : inModel) {
+      seen.add(Uuids.complete(message.id));
+    }
+
+    // Searching every conversation in the database also finds messages that
+    // are in the model. Those can push archived matches out of the first
+    // "wanted" rows, so read as many more rows as there were matches in the
+    // model and drop the copies. Messages archived since "searchModel" ran
+    // are already in "inModel".
+    final int count = scope == null ?
+        (int) Math.min(Integer.MAX_VALUE, (long) wanted + inModel.size()) :
+        wanted;
+
+    for (final Message message : history.search(scope, query, count)) {
+      if (model.messageById().first(message.id) == null && seen.add(Uuids.complete(message.id))) {
+        found.add(message);
+      }
+    }
+
+    Collections.sort(found, NEWEST_FIRST);
+
+    final int from = Math.min(Math.max(0, offset), found.size());
+    final int to = Math.min(wanted, found.size());
+    return new ArrayList<>(found.subList(from, to));
+  }
+
+  // How many matches to find to fill a page.
+  private static int wanted(int offset, int limit) {
+    return (int) Math.min(Integer.MAX_VALUE, (long) Math.max(0, offset) + Math.max(0, limit));
+  }
+
   @Override
   public User getSignInStatus(String name, String password){
       //We want to check to see if the given name password pair exists in our Models database
@@ -211,7 +433,16 @@ public final class View implements BasicView, LogicalView, SinglesView {
   public Conversation findConversation(Uuid id) { return model.conversationById().first(id); }
 
   @Override
-  public Message findMessage(Uuid id) { return model.messageById().first(id); }
+  public Message findMessage(Uuid id) { return find(id); }
+
+  // Look in the model first. Only look in the history for real ids, the end
+  // of a chain of messages is marked with a NULL id.
+  private Message find(Uuid id) {
+    final Message message = model.messageById().first(id);
+    return (message == null && history != null && id != null && !Uuids.equals(id, Uuids.NULL)) ?
+        history.find(id) :
+        message;
+  }
 
   private static <T> Collection<T> intersect(StoreAccessor<Uuid, T> store, Collection<Uuid> ids) {
 
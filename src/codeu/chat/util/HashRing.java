@@ -0,0 +1,117 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// HASH RING
+//
+// Consistent hashing of keys onto a set of named nodes. Each node is placed at
+// "replicas" points on a ring of hashes and a key belongs to the first node at
+// or after the key's hash, going round the ring. Adding or removing a node only
+// moves the keys between it and its neighbours - about 1/N of them - and every
+// ring built with the same names agrees on where each key goes.
+//
+// Not thread safe.
+public final class HashRing<T> {
+
+  private final int replicas;
+
+  private final TreeMap<Integer, String> ring = new TreeMap<>();
+  private final Map<String, T> nodes = new LinkedHashMap<>();
+
+  public HashRing(int replicas) {
+    this.replicas = Math.max(1, replicas);
+  }
+
+  // ADD
+  //
+  // Add a node. Returns false (and changes nothing) if there is already a node
+  // with that name.
+  public boolean add(String name, T node) {
+
+    if (nodes.containsKey(name)) {
+      return false;
+    }
+
+    nodes.put(name, node);
+
+    for (int i = 0; i < replicas; i++) {
+      final int point = mix((name + "#" + i).hashCode());
+      // Should two nodes land on the same point, the one that was there first
+      // keeps it so that the order nodes are added in does not matter much.
+      if (!ring.containsKey(point)) {
+        ring.put(point, name);
+      }
+    }
+
+    return true;
+  }
+
+  // REMOVE
+  //
+  // Remove a node. Returns the node or null if there was no node with that name.
+  public T remove(String name) {
+
+    final T node = nodes.remove(name);
+
+    if (node != null) {
+      ring.values().removeAll(Collections.singleton(name));
+    }
+
+    return node;
+  }
+
+  // GET
+  //
+  // Get the node that "hash" belongs to, or null if there are no nodes. The
+  // hash should already be well mixed (see "mix").
+  public T get(int hash) {
+
+    if (ring.isEmpty()) {
+      return null;
+    }
+
+    final Map.Entry<Integer, String> entry = ring.ceilingEntry(hash);
+    return nodes.get(entry == null ? ring.firstEntry().getValue() : entry.getValue());
+  }
+
+  // The nodes in the order they were added.
+  public Collection<T> nodes() {
+    return Collections.unmodifiableCollection(nodes.values());
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+
+  // MIX
+  //
+  // Spread the bits of a hash so that nearby values land far apart on the
+  // ring (the finalizer from MurmurHash3).
+  public static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+}
@@ -14,9 +14,37 @@
 
 package codeu.chat.util;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
 
+// LOGGER
+//
+// Logs are written by a background thread. A call to a log checks the level
+// first and does nothing else if the level is off. Otherwise it puts a record
+// holding the message and its parameters into a bounded queue and returns;
+// the message is formatted and written by the writer thread, which writes the
+// records waiting in the queue and then flushes the outputs once. So the
+// parameters of a log call must not be changed after the call.
+//
+// If the writer falls so far behind that the queue is full, new verbose and
+// info records are dropped (the number dropped is logged once there is room
+// again). Warnings and errors wait for room instead.
+//
+// Finding the calling class and method needs a stack trace, so by default
+// records only name the class the log was made for. Start with
+// "-Dcodeu.chat.log.callers=true" to name the calling method as well.
 public final class Logger {
 
   public interface Log {
@@ -32,82 +60,206 @@ public final class Logger {
 
   }
 
-  private static final java.util.logging.Logger logger =
-      java.util.logging.Logger.getLogger("codeu.chat");
+  private static final String CALLERS_PROPERTY = "codeu.chat.log.callers";
+  private static final boolean CALLERS = Boolean.getBoolean(CALLERS_PROPERTY);
+
+  private static final int QUEUE_SIZE = 16384;
+  private static final int MAX_BATCH = 1024;
+
+  // Records below this level are not logged.
+  private static final int LEVEL = Level.INFO.intValue();
+
+  // A record that is formatted by the writer thread. The time and thread are
+  // taken when it is made, on the thread that logged it.
+  private static final class PendingRecord extends LogRecord {
+
+    private static final long serialVersionUID = 1L;
+
+    final Object[] arguments;
+
+    PendingRecord(Level level, String format, Object[] arguments) {
+      super(level, format);
+      this.arguments = arguments;
+    }
+
+    void format() {
+      if (arguments != null && arguments.length > 0) {
+        try {
+          setMessage(String.format(getMessage(), arguments));
+        } catch (RuntimeException ex) {
+          setMessage(getMessage() + " (could not format: " + ex + ")");
+        }
+      }
+    }
+  }
+
+  // The outputs are kept here rather than on a java.util.logging.Logger so
+  // that they are not closed by its shutdown hook before the queue is written.
+  private static final List<Handler> handlers = new CopyOnWriteArrayList<>();
+
+  private static final BlockingQueue<PendingRecord> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+  private static final AtomicLong dropped = new AtomicLong();
 
   static {
-    logger.setLevel(java.util.logging.Level.INFO);
 
-    // Stop this logger from sending its messages up to the root. This will
-    // make our logger the new root logger.
-    logger.setUseParentHandlers(false);
+    final Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write();
+      }
+    }, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    // Write whatever is still queued when the process exits.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        final List<PendingRecord> batch = new ArrayList<>(MAX_BATCH);
+        do {
+          drain(batch);
+        } while (!queue.isEmpty());
+      }
+    });
   }
 
-  public static void enableFileOutput(String file) throws IOException {
+  // Both outputs are plain stream handlers, which (unlike FileHandler and
+  // ConsoleHandler) do not flush after every record. The writer flushes them
+  // after each batch.
 
-    final java.util.logging.Handler handler =
-        new java.util.logging.FileHandler(file, true /* append */);
-    handler.setFormatter(new java.util.logging.SimpleFormatter());
-    logger.addHandler(handler);
+  public static void enableFileOutput(String file) throws IOException {
+    addHandler(new StreamHandler(
+        new BufferedOutputStream(new FileOutputStream(file, true /* append */)),
+        new SimpleFormatter()));
   }
 
   public static void enableConsoleOutput() {
+    addHandler(new StreamHandler(System.err, new SimpleFormatter()));
+  }
 
-    final java.util.logging.Handler handler =
-        new java.util.logging.ConsoleHandler();
-    handler.setFormatter(new java.util.logging.SimpleFormatter());
-    logger.addHandler(handler);
+  private static void addHandler(Handler handler) {
+    handler.setLevel(Level.ALL);
+    handlers.add(handler);
   }
 
   public static Log newLog(Class<?> c) {
 
-    final java.util.logging.Logger log =
-        java.util.logging.Logger.getLogger(c.getName());
+    final String name = c.getName();
 
-    // Note: This Logger calls the standard java Logger, so the class/method lookup
-    // needs to go one level deeper.  Otherwise it will appear that all the log
-    // calls are coming from this object. Use logp() (log precise) to do this.
     return new Log() {
 
       @Override
       public void verbose(String message, Object... params) {
-        log.logp(java.util.logging.Level.FINE,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+        if (Level.FINE.intValue() >= LEVEL) {
+          submit(name, Level.FINE, null, message, params);
+        }
       }
 
       @Override
       public void info(String message, Object... params) {
-        log.logp(java.util.logging.Level.INFO,
-            Thread.currentThread().getStackTrace()[2].getClassName(),
-            Thread.currentThread().getStackTrace()[2].getMethodName(),
-            String.format(message, params));
+        submit(name, Level.INFO, null, message, params);
       }
 
       @Override
       public void warning(String message, Object... params) {
-        log.logp(java.util.logging.Level.WARNING,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+        submit(name, Level.WARNING, null, message, params);
       }
 
       @Override
       public void error(String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params));
+        submit(name, Level.SEVERE, null, message, params);
       }
 
       @Override
       public void error(Throwable error, String message, Object... params) {
-        log.logp(java.util.logging.Level.SEVERE,
-                 Thread.currentThread().getStackTrace()[2].getClassName(),
-                 Thread.currentThread().getStackTrace()[2].getMethodName(),
-                 String.format(message, params), error);
+        submit(name, Level.SEVERE, error, message, params);
       }
     };
   }
+
+  private static void submit(String name,
+                             Level level,
+                             Throwable error,
+                             String message,
+                             Object[] params) {
+
+    if (level.intValue() < LEVEL || handlers.isEmpty()) {
+      return;
+    }
+
+    final PendingRecord record = new PendingRecord(level, message, params);
+    record.setLoggerName(name);
+    record.setThrown(error);
+
+    if (CALLERS) {
+      // 0 is this method, 1 is the Log method and 2 is its caller.
+      final StackTraceElement caller = new Throwable().getStackTrace()[2];
+      record.setSourceClassName(caller.getClassName());
+      record.setSourceMethodName(caller.getMethodName());
+    } else {
+      record.setSourceClassName(name);
+    }
+
+    if (level.intValue() < Level.WARNING.intValue()) {
+      if (!queue.offer(record)) {
+        dropped.incrementAndGet();
+      }
+      return;
+    }
+
+    try {
+      queue.put(record);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Runs on the writer thread for as long as the process runs.
+  private static void write() {
+
+    final List<PendingRecord> batch = new ArrayList<>(MAX_BATCH);
+
+    while (true) {
+      try {
+        batch.add(queue.take());
+        drain(batch);
+      } catch (InterruptedException ex) {
+        return;
+      } catch (RuntimeException ex) {
+        ex.printStackTrace();
+        batch.clear();
+      }
+    }
+  }
+
+  // Write the records in "batch" and up to a batch's worth of others that are
+  // waiting, then flush.
+  private static synchronized void drain(List<PendingRecord> batch) {
+
+    queue.drainTo(batch, MAX_BATCH - batch.size());
+
+    for (final PendingRecord record : batch) {
+      record.format();
+      publish(record);
+    }
+
+    batch.clear();
+
+    final long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      publish(new LogRecord(
+          Level.WARNING,
+          String.format("Log queue was full, %d records were dropped.", lost)));
+    }
+
+    for (final Handler handler : handlers) {
+      handler.flush();
+    }
+  }
+
+  private static void publish(LogRecord record) {
+    for (final Handler handler : handlers) {
+      handler.publish(record);
+    }
+  }
 }
@@ -14,6 +14,7 @@
 
 package codeu.chat.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,7 +32,7 @@ public final class Serializers {
 
     @Override
     public Boolean read(InputStream in) throws IOException {
-      return in.read() != 0;
+      return readByte(in) != 0;
     }
   };
 
@@ -40,19 +41,25 @@ public final class Serializers {
     @Override
     public void write(OutputStream out, Integer value) throws IOException {
 
-      for (int i = 24; i >= 0; i -= 8) {
-        out.write(0xFF & (value >>> i));
+      final byte[] bytes = new byte[4];
+
+      for (int i = 0; i < 4; i++) {
+        bytes[i] = (byte)(value >>> (24 - 8 * i));
       }
 
+      out.write(bytes);
+
     }
 
     @Override
     public Integer read(InputStream in) throws IOException {
 
+      final byte[] bytes = readFully(in, new byte[4]);
+
       int value = 0;
 
       for (int i = 0; i < 4; i++) {
-        value = (value << 8) | in.read();
+        value = (value << 8) | (0xFF & bytes[i]);
       }
 
       return value;
@@ -65,19 +72,25 @@ public final class Serializers {
     @Override
     public void write(OutputStream out, Long value) throws IOException {
 
-      for (int i = 56; i >= 0; i -= 8) {
-        out.write((int)(0xFF & (value >>> i)));
+      final byte[] bytes = new byte[8];
+
+      for (int i = 0; i < 8; i++) {
+        bytes[i] = (byte)(value >>> (56 - 8 * i));
       }
 
+      out.write(bytes);
+
     }
 
     @Override
     public Long read(InputStream in) throws IOException {
 
+      final byte[] bytes = readFully(in, new byte[8]);
+
       long value = 0;
 
       for (int i = 0; i < 8; i++) {
-        value = (value << 8) | in.read();
+        value = (value << 8) | (0xFF & bytes[i]);
       }
 
       return value;
@@ -99,13 +112,12 @@ public final class Serializers {
     public byte[] read(InputStream input) throws IOException {
 
       final int length = INTEGER.read(input);
-      final byte[] array = new byte[length];
 
-      for (int i = 0; i < length; i++) {
-        array[i] = (byte)input.read();
+      if (length < 0) {
+        throw new IOException(String.format("Invalid byte array length %d", length));
       }
 
-      return array;
+      return readFully(input, new byte[length]);
 
     }
   };
@@ -170,9 +182,45 @@ public final class Serializers {
 
       @Override
       public T read(InputStream in) throws IOException {
-        return in.read() == NO_VALUE ? null : serializer.read(in);
+        return readByte(in) == NO_VALUE ? null : serializer.read(in);
       }
     };
   }
+
+  // READ FULLY
+  //
+  // Fill the whole array from the stream, reading as many bytes at a time as the
+  // stream will give. Running out of bytes before the array is full means the
+  // other side went away part way through a value, so it is treated as an error
+  // rather than padding the value with -1.
+  public static byte[] readFully(InputStream in, byte[] array) throws IOException {
+
+    int offset = 0;
+
+    while (offset < array.length) {
+
+      final int count = in.read(array, offset, array.length - offset);
+
+      if (count < 0) {
+        throw new EOFException(String.format(
+            "Stream ended after %d of %d bytes", offset, array.length));
+      }
+
+      offset += count;
+    }
+
+    return array;
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+
+    final int value = in.read();
+
+    if (value < 0) {
+      throw new EOFException("Stream ended while reading a byte");
+    }
+
+    return value;
+  }
 }
 
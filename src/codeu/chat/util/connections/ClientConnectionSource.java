@@ -14,6 +14,8 @@
 
 package codeu.chat.util.connections;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -44,21 +46,31 @@ public final class ClientConnectionSource implements ConnectionSource {
 
   private static Connection fromSocket(final Socket socket) throws IOException {
 
+    // Serializers write a few bytes at a time. Buffer both directions so that
+    // a whole request or response becomes a few large reads and writes on the
+    // socket. Writers must flush once they are done writing.
+    final InputStream in = new BufferedInputStream(socket.getInputStream());
+    final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
     return new Connection() {
 
       @Override
       public InputStream in() throws IOException {
-        return socket.getInputStream();
+        return in;
       }
 
       @Override
       public OutputStream out() throws IOException {
-        return socket.getOutputStream();
+        return out;
       }
 
       @Override
       public void close() throws IOException {
-        socket.close();
+        try {
+          out.flush();
+        } finally {
+          socket.close();
+        }
       }
     };
   }
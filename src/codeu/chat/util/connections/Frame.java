@@ -0,0 +1,97 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+
+// FRAME
+//
+// A single unit of data sent over a multiplexed connection. The id is chosen
+// by the client when it sends a request and the server sends its response back
+// using the same id. This is what allows many requests to share one socket and
+// allows responses to come back in any order.
+//
+// A response is any number of DATA frames followed by one END frame, or by an
+// ERROR frame if the server failed to handle the request. Either one tells the
+// client that nothing more will be sent for the id, the same way the end of the
+// stream does for a one-shot connection.
+public final class Frame {
+
+  public static final int DATA = 0;
+  public static final int END = 1;
+  public static final int ERROR = 2;
+
+  // Frames with larger payloads are treated as a broken peer and refused
+  // before anything is allocated for them. Larger writes are sent as several
+  // frames.
+  public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+  public static final Serializer<Frame> SERIALIZER = new Serializer<Frame>() {
+
+    @Override
+    public void write(OutputStream out, Frame value) throws IOException {
+
+      Serializers.INTEGER.write(out, value.id);
+      Serializers.INTEGER.write(out, value.kind);
+      Serializers.BYTES.write(out, value.payload);
+
+    }
+
+    @Override
+    public Frame read(InputStream in) throws IOException {
+
+      final int id = Serializers.INTEGER.read(in);
+      final int kind = Serializers.INTEGER.read(in);
+      final int length = Serializers.INTEGER.read(in);
+
+      if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+        throw new IOException(String.format("Invalid frame payload length %d", length));
+      }
+
+      return new Frame(id, kind, Serializers.readFully(in, new byte[length]));
+
+    }
+  };
+
+  public final int id;
+  public final int kind;
+  public final byte[] payload;
+
+  public Frame(int id, byte[] payload) {
+    this(id, DATA, payload);
+  }
+
+  public Frame(int id, int kind, byte[] payload) {
+    this.id = id;
+    this.kind = kind;
+    this.payload = payload;
+  }
+
+  public static Frame end(int id) {
+    return new Frame(id, END, new byte[0]);
+  }
+
+  // The payload of an error frame is a message for the client's log.
+  public static Frame error(int id, String message) {
+    return new Frame(id, ERROR, message.getBytes(StandardCharsets.UTF_8));
+  }
+}
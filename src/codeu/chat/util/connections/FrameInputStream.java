@@ -0,0 +1,103 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// FRAME INPUT STREAM
+//
+// Reads the payloads of all frames sent for one id as if they were a single
+// stream. Reads will block until a frame arrives or the stream is ended. If
+// the stream was failed, reads throw once everything before the failure has
+// been read.
+final class FrameInputStream extends InputStream {
+
+  // Marks the end of the stream. Compared by reference so that an empty frame
+  // from the other side is not mistaken for the end.
+  private static final byte[] END = new byte[0];
+
+  private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+
+  private byte[] current = new byte[0];
+  private int position = 0;
+
+  private volatile IOException failure = null;
+
+  public void offer(byte[] chunk) {
+    chunks.add(chunk);
+  }
+
+  public void end() {
+    chunks.add(END);
+  }
+
+  public void fail(IOException failure) {
+    this.failure = failure;
+    chunks.add(END);
+  }
+
+  @Override
+  public int read() throws IOException {
+    return next() ? (0xFF & current[position++]) : -1;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+
+    if (length == 0) {
+      return 0;
+    }
+
+    if (!next()) {
+      return -1;
+    }
+
+    final int count = Math.min(length, current.length - position);
+    System.arraycopy(current, position, buffer, offset, count);
+    position += count;
+
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return current == END ? 0 : current.length - position;
+  }
+
+  // Move to the next chunk if the current one has been used up. Returns false
+  // once the end of the stream has been reached.
+  private boolean next() throws IOException {
+
+    while (current != END && position >= current.length) {
+      try {
+        current = chunks.take();
+        position = 0;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for frame", ex);
+      }
+    }
+
+    if (current == END && failure != null) {
+      throw failure;
+    }
+
+    return current != END;
+  }
+}
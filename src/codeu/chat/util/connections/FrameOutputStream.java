@@ -0,0 +1,57 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.connections;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// FRAME OUTPUT STREAM
+//
+// Collects everything written to it and sends it as a single frame when it is
+// flushed or closed, or as several if it is more than a frame can hold.
+// Nothing is sent if nothing was written since the last flush.
+final class FrameOutputStream extends ByteArrayOutputStream {
+
+  private final int id;
+  private final FrameSink sink;
+
+  public FrameOutputStream(int id, FrameSink sink) {
+    this.id = id;
+    this.sink = sink;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (size() > 0) {
+      final byte[] payload = toByteArray();
+      reset();
+      if (payload.length <= Frame.MAX_PAYLOAD_SIZE) {
+        sink.send(new Frame(id, payload));
+      } else {
+        for (int start = 0; start < payload.length; start += Frame.MAX_PAYLOAD_SIZE) {
+          sink.send(new Frame(id, Arrays.copyOfRange(
+              payload, start, Math.min(payload.length, start + Frame.MAX_PAYLOAD_SIZE))));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+}
@@ -0,0 +1,28 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.connections;
+
+import java.io.IOException;
+
+// FRAME SINK
+//
+// Somewhere that complete frames can be sent. Implementations must allow
+// frames to be sent from more than one thread at a time.
+interface FrameSink {
+
+  void send(Frame frame) throws IOException;
+
+}
@@ -0,0 +1,250 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.connections;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+
+// MULTIPLEXED CONNECTION SOURCE
+//
+// Implements the ConnectionSource interface on top of a single long-lived
+// connection. Each call to "connect" returns a light-weight connection that
+// sends its request as one frame over the shared connection. Any number of
+// these connections may be used at the same time and their responses may
+// arrive in any order.
+//
+// The shared connection is opened on the first call to "connect" and is
+// reopened if it is lost. If the server does not understand multiplexed
+// connections, every call to "connect" will fall back to the given source. If
+// the server is serving too many multiplexed connections, calls fall back to
+// the given source until it is asked again RETRY_MS later.
+public final class MultiplexedConnectionSource implements ConnectionSource {
+
+  private final static Logger.Log LOG = Logger.newLog(MultiplexedConnectionSource.class);
+
+  private static final long RETRY_MS = 30000;
+
+  private final ConnectionSource source;
+  private final AtomicInteger nextId = new AtomicInteger(1);
+
+  private Session session = null;
+  private boolean oneShot = false;
+
+  // When the server may next be asked for a shared connection, from
+  // System.nanoTime.
+  private long retryAt = System.nanoTime();
+
+  public MultiplexedConnectionSource(ConnectionSource source) {
+    this.source = source;
+  }
+
+  @Override
+  public Connection connect() throws IOException {
+
+    final Session current;
+
+    synchronized (this) {
+
+      if (!oneShot &&
+          (session == null || !session.isOpen()) &&
+          retryAt - System.nanoTime() <= 0) {
+        session = open();
+      }
+
+      if (oneShot || session == null || !session.isOpen()) {
+        return source.connect();
+      }
+
+      current = session;
+    }
+
+    return current.newConnection(nextId.getAndIncrement());
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (session != null) {
+      session.close();
+      session = null;
+    }
+  }
+
+  // Open the shared connection. Returns null if the server does not support
+  // multiplexed connections or has too many of them right now.
+  private Session open() throws IOException {
+
+    final Connection connection = source.connect();
+    final int reply;
+
+    try {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.MULTIPLEX_OPEN_REQUEST);
+      connection.out().flush();
+
+      reply = Serializers.INTEGER.read(connection.in());
+
+      if (reply == NetworkCode.MULTIPLEX_OPEN_RESPONSE) {
+        LOG.info("Multiplexed connection opened.");
+        return new Session(connection);
+      }
+
+    } catch (IOException ex) {
+      connection.close();
+      throw ex;
+    }
+
+    if (reply == NetworkCode.MULTIPLEX_BUSY_RESPONSE) {
+      LOG.warning("Server is busy. Using one connection per request for %d ms.", RETRY_MS);
+      retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MS);
+    } else {
+      LOG.warning("Server does not support multiplexed connections. Using one connection per request.");
+      oneShot = true;
+    }
+
+    connection.close();
+
+    return null;
+  }
+
+  private static final class Session implements FrameSink, Runnable {
+
+    private final Connection connection;
+    private final Map<Integer, FrameInputStream> pending = new ConcurrentHashMap<>();
+
+    private volatile boolean open = true;
+
+    public Session(Connection connection) {
+
+      this.connection = connection;
+
+      final Thread reader = new Thread(this, "multiplexed-connection-reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    public boolean isOpen() {
+      return open;
+    }
+
+    public Connection newConnection(final int id) {
+
+      final FrameInputStream in = new FrameInputStream();
+      final FrameOutputStream out = new FrameOutputStream(id, this);
+
+      pending.put(id, in);
+
+      // If the session was closed while registering, no response will ever
+      // come so make sure that the reader will not wait forever.
+      if (!open) {
+        in.fail(new IOException("Multiplexed connection lost"));
+      }
+
+      return new Connection() {
+
+        @Override
+        public InputStream in() throws IOException {
+          // The request is sent the first time the response is needed.
+          out.flush();
+          return in;
+        }
+
+        @Override
+        public OutputStream out() {
+          return out;
+        }
+
+        @Override
+        public void close() {
+          pending.remove(id);
+        }
+      };
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+      try {
+        final OutputStream out = connection.out();
+        synchronized (out) {
+          Frame.SERIALIZER.write(out, frame);
+          out.flush();
+        }
+      } catch (IOException ex) {
+        close();
+        throw ex;
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        final InputStream in = connection.in();
+        while (open) {
+          final Frame frame = Frame.SERIALIZER.read(in);
+          final FrameInputStream stream = frame.kind == Frame.DATA ?
+              pending.get(frame.id) :
+              pending.remove(frame.id);
+          if (stream == null) {
+            // A request's connection may be closed once its response has been
+            // read, before the END frame that follows it arrives.
+            if (frame.kind != Frame.END) {
+              LOG.warning("Dropping frame for unknown request %d", frame.id);
+            }
+          } else if (frame.kind == Frame.DATA) {
+            stream.offer(frame.payload);
+          } else if (frame.kind == Frame.END) {
+            stream.end();
+          } else {
+            stream.fail(new IOException(String.format(
+                "Server failed request %d (%s)",
+                frame.id,
+                new String(frame.payload, StandardCharsets.UTF_8))));
+          }
+        }
+      } catch (Exception ex) {
+        if (open) {
+          LOG.error(ex, "Multiplexed connection lost.");
+        }
+      }
+      close();
+    }
+
+    public void close() {
+
+      open = false;
+
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close multiplexed connection.");
+      }
+
+      // Responses that were not finished will never be.
+      for (final FrameInputStream stream : pending.values()) {
+        stream.fail(new IOException("Multiplexed connection lost"));
+      }
+    }
+  }
+}
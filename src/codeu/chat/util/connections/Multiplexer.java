@@ -0,0 +1,115 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.connections;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import codeu.chat.util.Logger;
+
+// MULTIPLEXER
+//
+// The server side of a multiplexed connection. Each frame read from the real
+// connection is turned into its own connection whose input is the frame's
+// payload and whose output is sent back as a frame with the same id. This
+// lets the server handle each frame the same way it handles a one-shot
+// connection. Closing the frame's connection sends the END frame for its id.
+public final class Multiplexer {
+
+  private final static Logger.Log LOG = Logger.newLog(Multiplexer.class);
+
+  public interface Handler {
+
+    void handleConnection(Connection connection);
+
+  }
+
+  // SERVE
+  //
+  // Read frames from the connection and pass each one to the handler until the
+  // connection is closed. The handler may handle frames on other threads and
+  // may finish them in any order. This is a blocking call.
+  public static void serve(final Connection connection, Handler handler) throws IOException {
+
+    final InputStream in = connection.in();
+    final OutputStream out = connection.out();
+
+    final FrameSink sink = new FrameSink() {
+      @Override
+      public void send(Frame frame) throws IOException {
+        synchronized (out) {
+          Frame.SERIALIZER.write(out, frame);
+          out.flush();
+        }
+      }
+    };
+
+    while (true) {
+
+      final Frame frame;
+
+      try {
+        frame = Frame.SERIALIZER.read(in);
+      } catch (Exception ex) {
+        // The other side has gone away (or sent something that is not a frame).
+        // Either way there is nothing more that can be read.
+        LOG.info("Multiplexed connection ended (%s)", ex.toString());
+        break;
+      }
+
+      try {
+        handler.handleConnection(fromFrame(frame, sink));
+      } catch (RuntimeException ex) {
+        LOG.error(ex, "Exception while handling frame %d.", frame.id);
+        sink.send(Frame.error(frame.id, ex.toString()));
+      }
+    }
+  }
+
+  // Create a connection that reads from the frame's payload and sends anything
+  // written to it back as a frame with the same id.
+  static Connection fromFrame(final Frame frame, final FrameSink sink) {
+
+    final InputStream in = new ByteArrayInputStream(frame.payload);
+    final OutputStream out = new FrameOutputStream(frame.id, sink);
+
+    return new Connection() {
+
+      private boolean closed = false;
+
+      @Override
+      public InputStream in() {
+        return in;
+      }
+
+      @Override
+      public OutputStream out() {
+        return out;
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          out.close();
+          sink.send(Frame.end(frame.id));
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,560 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.connections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+
+// SELECTOR CONNECTION SOURCE
+//
+// Implements the ConnectionSource interface for servers using non-blocking
+// sockets. A small, fixed number of threads accept and read from every
+// connection, so idle clients do not cost a thread each.
+//
+// Clients that open a multiplexed connection stay on the selector for as long
+// as they are connected. Each complete frame they send is returned from
+// "connect" as its own connection, and anything written to that connection is
+// sent back as a frame with the same id.
+//
+// Clients that send a one-shot request are taken off the selector as soon as
+// their first code has been read and are returned from "connect" as a normal
+// blocking connection.
+public final class SelectorConnectionSource implements ConnectionSource {
+
+  private final static Logger.Log LOG = Logger.newLog(SelectorConnectionSource.class);
+
+  private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+  // Frames larger than this are treated as a broken client. This keeps one
+  // client from making the server allocate an unbounded buffer. The read
+  // buffer only grows as a frame's bytes arrive, so a client has to actually
+  // send a large frame before any memory is used for it.
+  private static final int MAX_FRAME_SIZE = Frame.MAX_PAYLOAD_SIZE;
+
+  // How many bytes may be waiting to be sent to one client. Once there are
+  // this many, threads sending to the client block until it reads some of
+  // them, the same way they would on a blocking socket.
+  private static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+  // Frame header: request id, kind and payload length.
+  private static final int FRAME_HEADER_SIZE = 12;
+
+  // Returned from the ready queue to wake up "connect" after "close".
+  private static final Connection CLOSED = new Connection() {
+    @Override
+    public InputStream in() { return null; }
+    @Override
+    public OutputStream out() { return null; }
+    @Override
+    public void close() { }
+  };
+
+  private final ServerSocketChannel serverChannel;
+  private final EventLoop[] loops;
+  private final BlockingQueue<Connection> ready = new LinkedBlockingQueue<>();
+
+  private volatile boolean running = true;
+
+  // Only used by the thread that accepts connections.
+  private int nextLoop = 0;
+
+  private SelectorConnectionSource(ServerSocketChannel serverChannel, int ioThreads)
+      throws IOException {
+
+    this.serverChannel = serverChannel;
+    this.loops = new EventLoop[Math.max(1, ioThreads)];
+
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+    }
+
+    // The first loop also accepts new connections.
+    serverChannel.configureBlocking(false);
+    serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+    for (int i = 0; i < loops.length; i++) {
+      final Thread thread = new Thread(loops[i], "selector-connection-source-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  @Override
+  public Connection connect() throws IOException {
+
+    final Connection connection;
+
+    try {
+      connection = ready.take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for connection");
+    }
+
+    if (connection == CLOSED) {
+      ready.add(CLOSED);  // wake up any other thread waiting on connect
+      throw new IOException("Connection source has been closed");
+    }
+
+    return connection;
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    running = false;
+
+    for (final EventLoop loop : loops) {
+      loop.selector.wakeup();
+    }
+
+    serverChannel.close();
+    ready.add(CLOSED);
+  }
+
+  public static ConnectionSource forPort(int port) throws IOException {
+    return forPort(port, 1);
+  }
+
+  public static ConnectionSource forPort(int port, int ioThreads) throws IOException {
+    final ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.socket().bind(new InetSocketAddress(port));
+    return new SelectorConnectionSource(channel, ioThreads);
+  }
+
+  private void accept() throws IOException {
+
+    SocketChannel channel;
+
+    while ((channel = serverChannel.accept()) != null) {
+
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+
+      final EventLoop loop = loops[nextLoop];
+      nextLoop = (nextLoop + 1) % loops.length;
+
+      final Peer peer = new Peer(channel, loop);
+
+      loop.execute(new Runnable() {
+        @Override
+        public void run() {
+          peer.register();
+        }
+      });
+    }
+  }
+
+  private final class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Peers that have sent a one-shot request. They can only be switched to
+    // blocking mode once their keys have been removed from the selector.
+    private final List<Peer> handOffs = new ArrayList<>();
+
+    public EventLoop() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    // Run the task on this loop's thread. All changes to the selector's keys
+    // must be made on that thread.
+    public void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+
+      while (running) {
+
+        try {
+
+          selector.select();
+
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+          while (keys.hasNext()) {
+
+            final SelectionKey key = keys.next();
+            keys.remove();
+
+            if (!key.isValid()) {
+              continue;
+            }
+
+            if (key.isAcceptable()) {
+              accept();
+              continue;
+            }
+
+            final Peer peer = (Peer) key.attachment();
+
+            if (key.isReadable()) {
+              peer.read();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+              peer.write();
+            }
+          }
+
+          if (!handOffs.isEmpty()) {
+            // Flush the cancelled keys out of the selector.
+            selector.selectNow();
+            for (final Peer peer : handOffs) {
+              peer.handOff();
+            }
+            handOffs.clear();
+          }
+
+        } catch (Exception ex) {
+          LOG.error(ex, "Unexpected exception in selector loop.");
+        }
+      }
+
+      for (final SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof Peer) {
+          ((Peer) key.attachment()).close();
+        }
+      }
+
+      try {
+        selector.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close selector.");
+      }
+    }
+  }
+
+  private final class Peer implements FrameSink {
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+
+    // Bytes in "pending" that have not been written yet. Guarded by "pending".
+    private long pendingBytes = 0;
+
+    private SelectionKey key;
+    private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private boolean multiplexed = false;
+    private volatile boolean closed = false;
+
+    public Peer(SocketChannel channel, EventLoop loop) {
+      this.channel = channel;
+      this.loop = loop;
+    }
+
+    public void register() {
+      try {
+        key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to register connection.");
+        close();
+      }
+    }
+
+    public void read() {
+
+      // The buffer is only ever full when it holds part of a frame that is
+      // larger than it. Make room for more of it.
+      if (!buffer.hasRemaining()) {
+        final ByteBuffer larger = ByteBuffer.allocate(
+            Math.min(buffer.capacity() * 2, FRAME_HEADER_SIZE + MAX_FRAME_SIZE));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+      }
+
+      final int count;
+
+      try {
+        count = channel.read(buffer);
+      } catch (IOException ex) {
+        close();
+        return;
+      }
+
+      if (count < 0) {
+        close();
+        return;
+      }
+
+      buffer.flip();
+
+      while (!closed && key.isValid() && parse()) {
+        // Keep going while complete requests are in the buffer.
+      }
+
+      if (key.isValid()) {
+        buffer.compact();
+
+        // Give back a buffer that grew for a large frame once it is done with.
+        if (buffer.capacity() > READ_BUFFER_SIZE && buffer.position() <= READ_BUFFER_SIZE) {
+          final ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+          buffer.flip();
+          smaller.put(buffer);
+          buffer = smaller;
+        }
+      }
+    }
+
+    // Take the next complete request from the buffer. Returns false when more
+    // bytes are needed.
+    private boolean parse() {
+
+      if (!multiplexed) {
+
+        if (buffer.remaining() < 4) {
+          return false;
+        }
+
+        if (buffer.getInt(buffer.position()) != NetworkCode.MULTIPLEX_OPEN_REQUEST) {
+          key.cancel();
+          loop.handOffs.add(this);
+          return false;
+        }
+
+        buffer.getInt();
+        multiplexed = true;
+
+        final ByteBuffer response = ByteBuffer.allocate(4);
+        response.putInt(NetworkCode.MULTIPLEX_OPEN_RESPONSE);
+        response.flip();
+        queue(response);
+
+        return true;
+      }
+
+      if (buffer.remaining() < FRAME_HEADER_SIZE) {
+        return false;
+      }
+
+      final int length = buffer.getInt(buffer.position() + 8);
+
+      if (length < 0 || length > MAX_FRAME_SIZE) {
+        LOG.warning("Closing connection that sent a frame of %d bytes.", length);
+        close();
+        return false;
+      }
+
+      if (buffer.remaining() < FRAME_HEADER_SIZE + length) {
+        return false;
+      }
+
+      final int id = buffer.getInt();
+      final int kind = buffer.getInt();
+      buffer.getInt();
+
+      final byte[] payload = new byte[length];
+      buffer.get(payload);
+
+      // Clients only send requests. Anything else can not be answered.
+      if (kind == Frame.DATA) {
+        ready.add(Multiplexer.fromFrame(new Frame(id, payload), this));
+      } else {
+        LOG.warning("Dropping frame of kind %d from client.", kind);
+      }
+
+      return true;
+    }
+
+    // Switch the channel back to blocking mode and give it to the server as a
+    // one-shot connection. Whatever has been read so far is put back in front
+    // of the socket's stream.
+    public void handOff() {
+
+      try {
+
+        final byte[] read = new byte[buffer.remaining()];
+        buffer.get(read);
+
+        channel.configureBlocking(true);
+
+        final InputStream in = new SequenceInputStream(
+            new ByteArrayInputStream(read),
+            new BufferedInputStream(channel.socket().getInputStream()));
+        final OutputStream out = new BufferedOutputStream(channel.socket().getOutputStream());
+
+        ready.add(new Connection() {
+
+          @Override
+          public InputStream in() {
+            return in;
+          }
+
+          @Override
+          public OutputStream out() {
+            return out;
+          }
+
+          @Override
+          public void close() throws IOException {
+            try {
+              out.flush();
+            } finally {
+              channel.close();
+            }
+          }
+        });
+
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to hand off connection.");
+        close();
+      }
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+
+      if (closed) {
+        throw new IOException("Connection has been closed");
+      }
+
+      final ByteBuffer bytes = ByteBuffer.allocate(FRAME_HEADER_SIZE + frame.payload.length);
+      bytes.putInt(frame.id);
+      bytes.putInt(frame.kind);
+      bytes.putInt(frame.payload.length);
+      bytes.put(frame.payload);
+      bytes.flip();
+
+      synchronized (pending) {
+
+        while (!closed && pendingBytes >= MAX_PENDING_BYTES) {
+          try {
+            pending.wait();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send");
+          }
+        }
+
+        if (closed) {
+          throw new IOException("Connection has been closed");
+        }
+
+        pendingBytes += bytes.remaining();
+        pending.add(bytes);
+      }
+
+      wantWrite();
+    }
+
+    // Queue bytes from the loop's own thread. This must never block, so it is
+    // only used for the few bytes of the multiplex open response.
+    private void queue(ByteBuffer bytes) {
+
+      synchronized (pending) {
+        pendingBytes += bytes.remaining();
+        pending.add(bytes);
+      }
+
+      wantWrite();
+    }
+
+    private void wantWrite() {
+
+      loop.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          }
+        }
+      });
+    }
+
+    public void write() {
+
+      try {
+
+        ByteBuffer next;
+
+        while ((next = pending.peek()) != null) {
+
+          final int written = channel.write(next);
+
+          synchronized (pending) {
+            pendingBytes -= written;
+            pending.notifyAll();
+          }
+
+          if (next.hasRemaining()) {
+            return;  // The socket is full, wait until it can take more.
+          }
+
+          pending.poll();
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+
+      } catch (IOException ex) {
+        close();
+      }
+    }
+
+    public void close() {
+
+      closed = true;
+
+      // Wake anyone waiting to send, there is no one to send to.
+      synchronized (pending) {
+        pending.notifyAll();
+      }
+
+      if (key != null) {
+        key.cancel();
+      }
+
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to close connection.");
+      }
+    }
+  }
+}
@@ -14,6 +14,9 @@
 
 package codeu.chat.util.connections;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,17 +28,24 @@ import java.net.Socket;
 // Implements the ConnectionSource interface for servers who need to host
 // one of their ports so that clients can connect to it. Calls to "connect"
 // will block until a connection is established.
+//
+// If a first read timeout is given, reading from a new connection fails once
+// the client has sent nothing for that long. After the first bytes arrive
+// reads block for as long as they need to, so that long lived connections
+// are not cut off while they are idle.
 public final class ServerConnectionSource implements ConnectionSource {
 
   private final ServerSocket serverSocket;
+  private final int firstReadTimeoutMs;
 
-  private ServerConnectionSource(ServerSocket serverSocket) {
+  private ServerConnectionSource(ServerSocket serverSocket, int firstReadTimeoutMs) {
     this.serverSocket = serverSocket;
+    this.firstReadTimeoutMs = firstReadTimeoutMs;
   }
 
   @Override
   public Connection connect() throws IOException {
-    return fromSocket(serverSocket.accept());
+    return fromSocket(serverSocket.accept(), firstReadTimeoutMs);
   }
 
   @Override
@@ -43,28 +53,89 @@ public final class ServerConnectionSource implements ConnectionSource {
     serverSocket.close();
   }
 
-  private static Connection fromSocket(final Socket socket) throws IOException {
+  private static Connection fromSocket(final Socket socket, int firstReadTimeoutMs)
+      throws IOException {
+
+    InputStream raw = socket.getInputStream();
+
+    if (firstReadTimeoutMs > 0) {
+      socket.setSoTimeout(firstReadTimeoutMs);
+      raw = new FirstReadInputStream(socket, raw);
+    }
+
+    // Serializers write a few bytes at a time. Buffer both directions so that
+    // a whole request or response becomes a few large reads and writes on the
+    // socket. Writers must flush once they are done writing.
+    final InputStream in = new BufferedInputStream(raw);
+    final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
 
     return new Connection() {
 
       @Override
       public InputStream in() throws IOException {
-        return socket.getInputStream();
+        return in;
       }
 
       @Override
       public OutputStream out() throws IOException {
-        return socket.getOutputStream();
+        return out;
       }
 
       @Override
       public void close() throws IOException {
-        socket.close();
+        try {
+          out.flush();
+        } finally {
+          socket.close();
+        }
       }
     };
   }
 
   public static ConnectionSource forPort(int port) throws IOException {
-    return new ServerConnectionSource(new ServerSocket(port));
+    return forPort(port, 0);
+  }
+
+  // FOR PORT
+  //
+  // Host "port", closing out clients that send nothing within
+  // "firstReadTimeoutMs" of connecting. A timeout of 0 waits forever.
+  public static ConnectionSource forPort(int port, int firstReadTimeoutMs) throws IOException {
+    return new ServerConnectionSource(new ServerSocket(port), firstReadTimeoutMs);
+  }
+
+  // Clears the socket's read timeout once the first bytes have been read.
+  private static final class FirstReadInputStream extends FilterInputStream {
+
+    private final Socket socket;
+    private boolean first = true;
+
+    FirstReadInputStream(Socket socket, InputStream in) {
+      super(in);
+      this.socket = socket;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int value = super.read();
+      if (value >= 0) {
+        sawBytes(1);
+      }
+      return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int count = super.read(buffer, offset, length);
+      sawBytes(count);
+      return count;
+    }
+
+    private void sawBytes(int count) throws IOException {
+      if (first && count > 0) {
+        first = false;
+        socket.setSoTimeout(0);
+      }
+    }
   }
 }
@@ -0,0 +1,245 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// CONCURRENT STORE
+//
+// A store that any number of threads can read from while another thread is
+// adding to it. Readers never take a lock. Writers take turns, one at a time.
+//
+// Every value is given the next sequence number when it is added and is kept
+// in a concurrent skip list ordered by key and then by sequence number, so
+// equal keys stay in the order they were added. Once a write is done, its
+// sequence number is published. A reader only sees values up to the sequence
+// number that was published when it started, so each iteration (and each
+// call to "first") sees the store exactly as it was after some write, even if
+// writes finish while it is running. Removing a value is the exception: a
+// reader that has not got to the value yet will not see it.
+public final class ConcurrentStore<KEY, VALUE> implements WritableStore<KEY, VALUE> {
+
+  private final ConcurrentSkipListMap<Entry<KEY>, VALUE> values;
+
+  private final Object writeLock = new Object();
+
+  // Only changed while holding the write lock.
+  private long nextSequence = 0;
+
+  // All values with a sequence number below this have been added.
+  private volatile long published = 0;
+
+  public ConcurrentStore(final Comparator<KEY> comparator) {
+    this.values = new ConcurrentSkipListMap<>(new Comparator<Entry<KEY>>() {
+      @Override
+      public int compare(Entry<KEY> a, Entry<KEY> b) {
+        final int order = comparator.compare(a.key, b.key);
+        return order == 0 ? Long.compare(a.sequence, b.sequence) : order;
+      }
+    });
+  }
+
+  @Override
+  public void insert(KEY key, VALUE value) {
+    synchronized (writeLock) {
+      values.put(new Entry<>(key, nextSequence), value);
+      nextSequence += 1;
+      published = nextSequence;
+    }
+  }
+
+  // INSERT ALL
+  //
+  // Add all the values as a single write. Readers see either none of them or
+  // all of them.
+  @Override
+  public void insertAll(List<? extends Map.Entry<KEY, VALUE>> entries) {
+    synchronized (writeLock) {
+      for (final Map.Entry<KEY, VALUE> entry : entries) {
+        values.put(new Entry<>(entry.getKey(), nextSequence), entry.getValue());
+        nextSequence += 1;
+      }
+      published = nextSequence;
+    }
+  }
+
+  @Override
+  public boolean remove(KEY key, VALUE value) {
+    synchronized (writeLock) {
+      final NavigableMap<Entry<KEY>, VALUE> matches =
+          values.subMap(lowest(key), true, highest(key), true);
+      for (final Map.Entry<Entry<KEY>, VALUE> entry : matches.entrySet()) {
+        if (Objects.equals(entry.getValue(), value)) {
+          values.remove(entry.getKey());
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  @Override
+  public VALUE first(KEY key) {
+    final long limit = published;
+    final NavigableMap<Entry<KEY>, VALUE> matches =
+        values.subMap(lowest(key), true, highest(key), true);
+    for (final Map.Entry<Entry<KEY>, VALUE> entry : matches.entrySet()) {
+      if (entry.getKey().sequence < limit) {
+        return entry.getValue();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return new Range(null, null);
+  }
+
+  @Override
+  public Iterable<VALUE> at(KEY key) {
+    return new Range(lowest(key), highest(key));
+  }
+
+  @Override
+  public Iterable<VALUE> after(KEY start) {
+    return new Range(lowest(start), null);
+  }
+
+  @Override
+  public Iterable<VALUE> before(KEY end) {
+    return new Range(null, highest(end));
+  }
+
+  @Override
+  public Iterable<VALUE> range(KEY start, KEY end) {
+    return new Range(lowest(start), highest(end));
+  }
+
+  // The smallest and largest possible entries for a key, used as the bounds of
+  // a search over every value with that key.
+  private static <KEY> Entry<KEY> lowest(KEY key) {
+    return new Entry<>(key, Long.MIN_VALUE);
+  }
+
+  private static <KEY> Entry<KEY> highest(KEY key) {
+    return new Entry<>(key, Long.MAX_VALUE);
+  }
+
+  private final class Range implements Iterable<VALUE> {
+
+    private final Entry<KEY> start;
+    private final Entry<KEY> end;
+
+    Range(Entry<KEY> start, Entry<KEY> end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Iterator<VALUE> iterator() {
+
+      // Read the limit before starting the iteration. Everything below it is
+      // already in the map, so the iteration is sure to see it. Reading it
+      // after could let in a value that was added behind where the iteration
+      // had already got to.
+      final long limit = published;
+
+      NavigableMap<Entry<KEY>, VALUE> view = values;
+
+      if (start != null && end != null) {
+        if (values.comparator().compare(start, end) > 0) {
+          view = values.subMap(start, false, start, false);  // Always empty.
+        } else {
+          view = values.subMap(start, true, end, true);
+        }
+      } else if (start != null) {
+        view = values.tailMap(start, true);
+      } else if (end != null) {
+        view = values.headMap(end, true);
+      }
+
+      return new Values(view.entrySet().iterator(), limit);
+    }
+  }
+
+  // Skips every value that was added after the iteration started.
+  private final class Values implements Iterator<VALUE> {
+
+    private final Iterator<Map.Entry<Entry<KEY>, VALUE>> source;
+    private final long limit;
+
+    private VALUE next;
+    private boolean hasNext;
+
+    Values(Iterator<Map.Entry<Entry<KEY>, VALUE>> source, long limit) {
+      this.source = source;
+      this.limit = limit;
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return hasNext;
+    }
+
+    @Override
+    public VALUE next() {
+      if (!hasNext) {
+        throw new NoSuchElementException();
+      }
+      final VALUE value = next;
+      advance();
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void advance() {
+      while (source.hasNext()) {
+        final Map.Entry<Entry<KEY>, VALUE> entry = source.next();
+        if (entry.getKey().sequence < limit) {
+          next = entry.getValue();
+          hasNext = true;
+          return;
+        }
+      }
+      next = null;
+      hasNext = false;
+    }
+  }
+
+  private static final class Entry<KEY> {
+
+    final KEY key;
+    final long sequence;
+
+    Entry(KEY key, long sequence) {
+      this.key = key;
+      this.sequence = sequence;
+    }
+  }
+}
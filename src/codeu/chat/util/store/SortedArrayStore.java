@@ -0,0 +1,427 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// SORTED ARRAY STORE
+//
+// A store that keeps its keys in sorted arrays ("chunks") of a bounded size.
+// Each key is only stored once. All values with that key are kept together in
+// a bucket in the order they were added, so adding a value with a key that
+// is already in the store does not depend on how many values share the key.
+//
+// Finding a key is a binary search over the chunks and then a binary search
+// within a chunk. Adding a new key moves at most one chunk's worth of entries
+// and splits the chunk in two when it is full. Removing a key's last value
+// moves at most one chunk's worth of entries, and a chunk that is left empty
+// is dropped. Iterating reads the chunks'
+// arrays in order rather than following a link per value.
+//
+// Like Store, this is not safe to use from more than one thread at a time.
+public final class SortedArrayStore<KEY, VALUE> implements WritableStore<KEY, VALUE> {
+
+  private static final int DEFAULT_CHUNK_SIZE = 256;
+
+  private final Comparator<KEY> comparator;
+  private final int chunkSize;
+
+  private final List<Chunk> chunks = new ArrayList<>();
+
+  public SortedArrayStore(Comparator<KEY> comparator) {
+    this(comparator, DEFAULT_CHUNK_SIZE);
+  }
+
+  public SortedArrayStore(Comparator<KEY> comparator, int chunkSize) {
+    this.comparator = comparator;
+    this.chunkSize = Math.max(2, chunkSize);
+  }
+
+  @Override
+  public void insert(KEY key, VALUE value) {
+
+    if (chunks.isEmpty()) {
+      chunks.add(new Chunk());
+    }
+
+    int chunkIndex = chunkFor(key);
+    Chunk chunk = chunks.get(chunkIndex);
+
+    int slot = chunk.search(key);
+
+    if (slot >= 0) {
+      chunk.buckets[slot].add(value);
+      return;
+    }
+
+    slot = -(slot + 1);
+
+    if (chunk.size == chunkSize) {
+
+      // Move the top half of the chunk into a new chunk after it and insert
+      // into whichever half the key belongs in.
+      final Chunk upper = chunk.split();
+      chunks.add(chunkIndex + 1, upper);
+
+      if (slot > chunk.size) {
+        slot -= chunk.size;
+        chunk = upper;
+      }
+    }
+
+    chunk.insert(slot, key, new Bucket<>(value));
+  }
+
+  @Override
+  public void insertAll(List<? extends Map.Entry<KEY, VALUE>> entries) {
+    for (final Map.Entry<KEY, VALUE> entry : entries) {
+      insert(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public boolean remove(KEY key, VALUE value) {
+
+    if (chunks.isEmpty()) {
+      return false;
+    }
+
+    final int chunkIndex = chunkFor(key);
+    final Chunk chunk = chunks.get(chunkIndex);
+
+    final int slot = chunk.search(key);
+
+    if (slot < 0) {
+      return false;
+    }
+
+    final int left = chunk.buckets[slot].remove(value);
+
+    if (left < 0) {
+      return false;
+    }
+
+    if (left == 0) {
+      chunk.remove(slot);
+      if (chunk.size == 0) {
+        chunks.remove(chunkIndex);
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public VALUE first(KEY key) {
+
+    if (chunks.isEmpty()) {
+      return null;
+    }
+
+    final Chunk chunk = chunks.get(chunkFor(key));
+    final int slot = chunk.search(key);
+
+    return slot < 0 ? null : chunk.buckets[slot].get(0);
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return new Range(false, null, false, null);
+  }
+
+  @Override
+  public Iterable<VALUE> at(KEY key) {
+    return new Range(true, key, true, key);
+  }
+
+  @Override
+  public Iterable<VALUE> after(KEY start) {
+    return new Range(true, start, false, null);
+  }
+
+  @Override
+  public Iterable<VALUE> before(KEY end) {
+    return new Range(false, null, true, end);
+  }
+
+  @Override
+  public Iterable<VALUE> range(KEY start, KEY end) {
+    return new Range(true, start, true, end);
+  }
+
+  // Find the chunk that "key" is in or would be added to: the last chunk
+  // whose first key is not greater than "key", or the first chunk.
+  private int chunkFor(KEY key) {
+
+    int low = 0;
+    int high = chunks.size() - 1;
+
+    while (low < high) {
+      final int middle = (low + high + 1) >>> 1;
+      if (comparator.compare(chunks.get(middle).key(0), key) <= 0) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+
+    return low;
+  }
+
+  // The position of the first key that is not less than "key", as
+  // "chunk * chunkSize + slot". May be the position just after the last key.
+  private long ceiling(KEY key) {
+
+    final int chunkIndex = chunkFor(key);
+    final Chunk chunk = chunks.get(chunkIndex);
+
+    final int slot = chunk.search(key);
+
+    return position(chunkIndex, slot >= 0 ? slot : -(slot + 1));
+  }
+
+  // The position just after the last key that is not greater than "key".
+  private long floorEnd(KEY key) {
+
+    final int chunkIndex = chunkFor(key);
+    final Chunk chunk = chunks.get(chunkIndex);
+
+    final int slot = chunk.search(key);
+
+    return position(chunkIndex, slot >= 0 ? slot + 1 : -(slot + 1));
+  }
+
+  private long position(int chunk, int slot) {
+    return (long) chunk * chunkSize + slot;
+  }
+
+  private long end() {
+    return chunks.isEmpty() ? 0 : position(chunks.size() - 1, chunks.get(chunks.size() - 1).size);
+  }
+
+  // A range of keys. The positions are only worked out when iteration starts
+  // so that the range stays correct if values are added in the mean time.
+  private final class Range implements Iterable<VALUE> {
+
+    private final boolean hasStart;
+    private final KEY start;
+    private final boolean hasEnd;
+    private final KEY end;
+
+    Range(boolean hasStart, KEY start, boolean hasEnd, KEY end) {
+      this.hasStart = hasStart;
+      this.start = start;
+      this.hasEnd = hasEnd;
+      this.end = end;
+    }
+
+    @Override
+    public Iterator<VALUE> iterator() {
+
+      if (chunks.isEmpty() || (hasStart && hasEnd && comparator.compare(start, end) > 0)) {
+        return new Values(0, 0);
+      }
+
+      return new Values(hasStart ? ceiling(start) : 0, hasEnd ? floorEnd(end) : end());
+    }
+  }
+
+  private final class Values implements Iterator<VALUE> {
+
+    private int chunk;
+    private int slot;
+
+    private final int endChunk;
+    private final int endSlot;
+
+    private Bucket<VALUE> bucket;
+    private int inBucket;
+
+    Values(long from, long to) {
+      this.chunk = (int) (from / chunkSize);
+      this.slot = (int) (from % chunkSize);
+      this.endChunk = (int) (to / chunkSize);
+      this.endSlot = (int) (to % chunkSize);
+      skipEmpty();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return bucket != null || before(chunk, slot);
+    }
+
+    @Override
+    public VALUE next() {
+
+      if (bucket == null) {
+        if (!before(chunk, slot)) {
+          throw new NoSuchElementException();
+        }
+        bucket = chunks.get(chunk).buckets[slot];
+        inBucket = 0;
+        slot += 1;
+        skipEmpty();
+      }
+
+      final VALUE value = bucket.get(inBucket);
+
+      inBucket += 1;
+      if (inBucket == bucket.size()) {
+        bucket = null;
+      }
+
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private boolean before(int chunk, int slot) {
+      return chunk < endChunk || (chunk == endChunk && slot < endSlot);
+    }
+
+    // Move past the end of a chunk to the start of the next one.
+    private void skipEmpty() {
+      while (chunk < chunks.size() && slot >= chunks.get(chunk).size && before(chunk, slot)) {
+        chunk += 1;
+        slot = 0;
+      }
+    }
+  }
+
+  private final class Chunk {
+
+    @SuppressWarnings("unchecked")
+    private KEY[] keys = (KEY[]) new Object[chunkSize];
+
+    @SuppressWarnings("unchecked")
+    private Bucket<VALUE>[] buckets = (Bucket<VALUE>[]) new Bucket<?>[chunkSize];
+
+    private int size;
+
+    KEY key(int slot) {
+      return keys[slot];
+    }
+
+    // Binary search for "key". Returns its slot, or "-(insertion slot) - 1" if
+    // it is not in the chunk.
+    int search(KEY key) {
+
+      int low = 0;
+      int high = size - 1;
+
+      while (low <= high) {
+        final int middle = (low + high) >>> 1;
+        final int order = comparator.compare(keys[middle], key);
+        if (order < 0) {
+          low = middle + 1;
+        } else if (order > 0) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+
+      return -(low + 1);
+    }
+
+    void insert(int slot, KEY key, Bucket<VALUE> bucket) {
+      System.arraycopy(keys, slot, keys, slot + 1, size - slot);
+      System.arraycopy(buckets, slot, buckets, slot + 1, size - slot);
+      keys[slot] = key;
+      buckets[slot] = bucket;
+      size += 1;
+    }
+
+    void remove(int slot) {
+      System.arraycopy(keys, slot + 1, keys, slot, size - slot - 1);
+      System.arraycopy(buckets, slot + 1, buckets, slot, size - slot - 1);
+      size -= 1;
+      keys[size] = null;
+      buckets[size] = null;
+    }
+
+    Chunk split() {
+
+      final Chunk upper = new Chunk();
+      final int half = size / 2;
+
+      upper.size = size - half;
+      System.arraycopy(keys, half, upper.keys, 0, upper.size);
+      System.arraycopy(buckets, half, upper.buckets, 0, upper.size);
+
+      for (int i = half; i < size; i++) {
+        keys[i] = null;
+        buckets[i] = null;
+      }
+      size = half;
+
+      return upper;
+    }
+  }
+
+  // All the values for one key. Most keys only have one value so that value is
+  // kept without a list.
+  private static final class Bucket<VALUE> {
+
+    private VALUE single;
+    private List<VALUE> more;
+
+    Bucket(VALUE value) {
+      this.single = value;
+    }
+
+    void add(VALUE value) {
+      if (more == null) {
+        more = new ArrayList<>(2);
+      }
+      more.add(value);
+    }
+
+    // Remove the first value equal to "value" and return how many values are
+    // left, or -1 if there is no such value. A bucket with no values left
+    // must be dropped.
+    int remove(VALUE value) {
+
+      if (!Objects.equals(single, value)) {
+        return (more != null && more.remove(value)) ? size() : -1;
+      }
+
+      if (more == null || more.isEmpty()) {
+        return 0;
+      }
+
+      single = more.remove(0);
+      return size();
+    }
+
+    VALUE get(int index) {
+      return index == 0 ? single : more.get(index - 1);
+    }
+
+    int size() {
+      return more == null ? 1 : 1 + more.size();
+    }
+  }
+}
@@ -14,12 +14,16 @@
 
 package codeu.chat.util.store;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.TreeMap;
 
-public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
+public final class Store<KEY, VALUE> implements WritableStore<KEY, VALUE> {
 
   // To make the code simpler - use a dummy link for the first link in this
   // list. The root link is never read from. To avoid reading from this link
@@ -35,6 +39,7 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     this.comparator = comparator;
   }
 
+  @Override
   public void insert(KEY key, VALUE value) {
 
     final StoreLink<KEY, VALUE> closestLink = floor(key);
@@ -67,6 +72,100 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     }
   }
 
+  // INSERT ALL
+  //
+  // Insert many values at once. The new values are sorted by key (values with
+  // equal keys keep the order they were given in) and merged into the chain
+  // in a single pass. Every value ends up where "insert" would have put it,
+  // but the chain is not walked again for each value. Input that is already
+  // in order is sorted in linear time.
+  @Override
+  public void insertAll(List<? extends Map.Entry<KEY, VALUE>> entries) {
+
+    if (entries.isEmpty()) {
+      return;
+    }
+
+    final List<Map.Entry<KEY, VALUE>> sorted = new ArrayList<>(entries);
+    Collections.sort(sorted, new Comparator<Map.Entry<KEY, VALUE>>() {
+      @Override
+      public int compare(Map.Entry<KEY, VALUE> a, Map.Entry<KEY, VALUE> b) {
+        return comparator.compare(a.getKey(), b.getKey());
+      }
+    });
+
+    final StoreLink<KEY, VALUE> closestLink = floor(sorted.get(0).getKey());
+
+    StoreLink<KEY, VALUE> current = (closestLink == null) ? (rootLink) : (closestLink);
+
+    for (final Map.Entry<KEY, VALUE> entry : sorted) {
+
+      final KEY key = entry.getKey();
+
+      // Links already in the chain with an equal key stay in front of the new
+      // link, the same as with "insert".
+      while (current.next != null && comparator.compare(current.next.key, key) <= 0) {
+        current = current.next;
+      }
+
+      final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, entry.getValue(), current.next);
+
+      // Only the first link with a key goes in the index. The root link has no
+      // key, so anything after it is always the first.
+      if (current == rootLink || comparator.compare(current.key, key) != 0) {
+        index.put(key, newLink);
+      }
+
+      current.next = newLink;
+      current = newLink;
+    }
+  }
+
+  @Override
+  public boolean remove(KEY key, VALUE value) {
+
+    final StoreLink<KEY, VALUE> firstLink = index.get(key);
+
+    if (firstLink == null) {
+      return false;
+    }
+
+    // The chain is only linked forwards, so find the link before the first
+    // link with the key by starting from the key before it.
+    final StoreLink<KEY, VALUE> lowerLink = extract(index.lowerEntry(key));
+
+    StoreLink<KEY, VALUE> previous = (lowerLink == null) ? (rootLink) : (lowerLink);
+    while (previous.next != firstLink) {
+      previous = previous.next;
+    }
+
+    StoreLink<KEY, VALUE> current = firstLink;
+    while (current != null &&
+           comparator.compare(current.key, key) == 0 &&
+           !Objects.equals(current.value, value)) {
+      previous = current;
+      current = current.next;
+    }
+
+    if (current == null || comparator.compare(current.key, key) != 0) {
+      return false;
+    }
+
+    previous.next = current.next;
+
+    // The index must point at the first link that is left with the key, if
+    // there is one.
+    if (current == firstLink) {
+      if (current.next != null && comparator.compare(current.next.key, key) == 0) {
+        index.put(key, current.next);
+      } else {
+        index.remove(key);
+      }
+    }
+
+    return true;
+  }
+
   @Override
   public VALUE first(KEY key) {
     final StoreLink<KEY, VALUE> link = index.get(key);
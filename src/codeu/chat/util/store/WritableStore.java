@@ -0,0 +1,38 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.store;
+
+import java.util.List;
+import java.util.Map;
+
+// WRITABLE STORE
+//
+// A store that values can be added to and removed from. Values with equal keys
+// are kept in the order they were added, and "first" returns the one that was
+// added first.
+public interface WritableStore<KEY, VALUE> extends StoreAccessor<KEY, VALUE> {
+
+  void insert(KEY key, VALUE value);
+
+  void insertAll(List<? extends Map.Entry<KEY, VALUE>> entries);
+
+  // REMOVE
+  //
+  // Remove the first value added with "key" that is equal to "value". Returns
+  // false if there is no such value.
+  boolean remove(KEY key, VALUE value);
+
+}
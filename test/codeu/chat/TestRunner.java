@@ -25,9 +25,23 @@ public final class TestRunner {
              codeu.chat.common.SecretTest.class,
              codeu.chat.common.UuidTest.class,
              codeu.chat.common.UuidsTest.class,
+             codeu.chat.relay.BundleLogTest.class,
              codeu.chat.relay.ServerTest.class,
              codeu.chat.server.BasicControllerTest.class,
+             codeu.chat.server.DatabaseTest.class,
+             codeu.chat.server.JournalTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.RemoteRelayTest.class,
+             codeu.chat.server.ServerTest.class,
+             codeu.chat.server.ShardedRelayTest.class,
+             codeu.chat.server.SnapshotTest.class,
+             codeu.chat.server.SubscriptionsTest.class,
+             codeu.chat.server.TitleIndexTest.class,
+             codeu.chat.server.ViewTest.class,
+             codeu.chat.util.SerializersTest.class,
+             codeu.chat.util.connections.MultiplexerTest.class,
+             codeu.chat.util.connections.SelectorConnectionSourceTest.class,
+             codeu.chat.util.store.ConcurrentStoreTest.class,
              codeu.chat.util.store.StoreTest.class
          );
       for (final Failure failure : result.getFailures()) {
@@ -0,0 +1,194 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Time;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Serializers;
+
+public final class BundleLogTest {
+
+  private static final int SEGMENT = 256;
+
+  private final Uuid team = makeTestUuid(3);
+  private final byte[] secret = { 0x00, 0x01, 0x02 };
+
+  // Teams are not sent their own bundles, so bundles are read back as another
+  // team.
+  private final Uuid reader = makeTestUuid(30);
+  private final byte[] readerSecret = { 0x07, 0x08, 0x09 };
+
+  private File directory;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = Files.createTempDirectory("bundle-log-test").toFile();
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testResumeAfterRestart() throws IOException {
+
+    Uuid root;
+
+    try (final BundleLog log = BundleLog.open(directory, SEGMENT, Long.MAX_VALUE, Long.MAX_VALUE)) {
+      final Server relay = newRelay(log);
+      for (int i = 0; i < 10; i++) {
+        assertTrue(write(relay, 100 + i));
+      }
+      root = new ArrayList<>(relay.read(reader, readerSecret, Uuids.NULL, 4)).get(3).id();
+    }
+
+    // More than one segment was needed for the bundles.
+    assertTrue(directory.listFiles().length > 1);
+
+    try (final BundleLog log = BundleLog.open(directory, SEGMENT, Long.MAX_VALUE, Long.MAX_VALUE)) {
+
+      final Server relay = newRelay(log);
+      assertTrue(write(relay, 110));
+
+      // Reading carries on from the root given out before the restart and the
+      // new bundle follows the old ones.
+      final List<Relay.Bundle> read = new ArrayList<>(relay.read(reader, readerSecret, root, 16));
+      assertEquals(7, read.size());
+      for (int i = 0; i < read.size(); i++) {
+        assertTrue(Uuids.equals(read.get(i).message().id(), makeTestUuid(104 + i)));
+        assertEquals(root.id() + 1 + i, read.get(i).id().id());
+      }
+    }
+  }
+
+  @Test
+  public void testTransferMatchesRead() throws IOException {
+
+    try (final BundleLog log = BundleLog.open(directory, SEGMENT, Long.MAX_VALUE, Long.MAX_VALUE)) {
+
+      final Server relay = newRelay(log);
+      for (int i = 0; i < 5; i++) {
+        assertTrue(write(relay, 100 + i));
+      }
+
+      final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      Serializers.collection(ServerFrontEnd.BUNDLE_SERIALIZER).write(
+          expected,
+          relay.read(reader, readerSecret, Uuids.NULL, 16));
+
+      final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      relay.transfer(reader, readerSecret, Uuids.NULL, 16, actual);
+
+      assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+  }
+
+  @Test
+  public void testRetainBySize() throws IOException {
+
+    try (final BundleLog log = BundleLog.open(directory, SEGMENT, 2 * SEGMENT, Long.MAX_VALUE)) {
+
+      final Server relay = newRelay(log);
+      for (int i = 0; i < 20; i++) {
+        assertTrue(write(relay, 100 + i));
+      }
+
+      assertTrue(directory.listFiles().length <= 2);
+
+      // Only the newest bundles are left and reading starts from the oldest.
+      final List<Relay.Bundle> read = new ArrayList<>(relay.read(reader, readerSecret, Uuids.NULL, 32));
+      assertTrue(read.size() < 20);
+      assertEquals(log.oldest(), read.get(0).id().id());
+      assertTrue(Uuids.equals(read.get(read.size() - 1).message().id(), makeTestUuid(119)));
+    }
+  }
+
+  @Test
+  public void testBrokenTailIsDropped() throws IOException {
+
+    final File segment;
+    final int end;
+
+    try (final BundleLog log = BundleLog.open(directory, 4096, Long.MAX_VALUE, Long.MAX_VALUE)) {
+      final Server relay = newRelay(log);
+      assertTrue(write(relay, 100));
+      assertTrue(write(relay, 101));
+      segment = directory.listFiles()[0];
+      end = log.read(log.oldest(), 2).get(0).length + 8;
+    }
+
+    // Break the second record's checksum, as if the write was cut short.
+    try (final RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(end + 4);
+      file.writeInt(0x12345678);
+    }
+
+    try (final BundleLog log = BundleLog.open(directory, 4096, Long.MAX_VALUE, Long.MAX_VALUE)) {
+
+      assertEquals(log.oldest(), log.newest());
+
+      final Server relay = newRelay(log);
+      assertTrue(write(relay, 102));
+
+      final List<Relay.Bundle> read = new ArrayList<>(relay.read(reader, readerSecret, Uuids.NULL, 8));
+      assertEquals(2, read.size());
+      assertTrue(Uuids.equals(read.get(0).message().id(), makeTestUuid(100)));
+      assertTrue(Uuids.equals(read.get(1).message().id(), makeTestUuid(102)));
+    }
+  }
+
+  private Server newRelay(BundleLog log) {
+    final Server relay = new Server(log, 16);
+    relay.addTeam(team, secret);
+    relay.addTeam(reader, readerSecret);
+    return relay;
+  }
+
+  private boolean write(Server relay, int message) {
+    return relay.write(team,
+                       secret,
+                       relay.pack(makeTestUuid(4), "User", Time.now()),
+                       relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                       relay.pack(makeTestUuid(message), "Hello World", Time.now()));
+  }
+
+  private static Uuid makeTestUuid(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
@@ -14,7 +14,10 @@
 
 package codeu.chat.relay;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -27,6 +30,11 @@ import codeu.chat.common.Uuids;
 
 public final class ServerTest {
 
+  // Teams are not sent their own bundles, so bundles are read back as another
+  // team.
+  private static final Uuid READER = makeTestUuid(30);
+  private static final byte[] READER_SECRET = { 0x07, 0x08, 0x09 };
+
   @Test
   public void testAddTeam() {
 
@@ -97,6 +105,7 @@ public final class ServerTest {
     final byte[] secret = { 0x00, 0x01, 0x02 };
 
     assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
 
     assertTrue(relay.write(team,
                            secret,
@@ -104,7 +113,7 @@ public final class ServerTest {
                            relay.pack(makeTestUuid(5), "Conversation", Time.now()),
                            relay.pack(makeTestUuid(6), "Hello World", Time.now())));
 
-    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuids.NULL, 1);
+    final Collection<Relay.Bundle> read = relay.read(READER, READER_SECRET, Uuids.NULL, 1);
     assertTrue(read.size() == 1);
 
     // By the assertion above this loop should only execute once as there should only
@@ -162,6 +171,7 @@ public final class ServerTest {
     final byte[] secret = { 0x00, 0x01, 0x02 };
 
     assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
 
     assertTrue(relay.write(team,
                            secret,
@@ -176,7 +186,7 @@ public final class ServerTest {
                            relay.pack(makeTestUuid(7), "Hello World... again", Time.now())));
 
 
-    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuids.NULL, 2);
+    final Collection<Relay.Bundle> read = relay.read(READER, READER_SECRET, Uuids.NULL, 2);
     assertTrue(read.size() == 1);
   }
 
@@ -189,6 +199,7 @@ public final class ServerTest {
     final byte[] secret = { 0x00, 0x01, 0x02 };
 
     assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
 
     assertTrue(relay.write(team,
                            secret,
@@ -202,7 +213,7 @@ public final class ServerTest {
                            relay.pack(makeTestUuid(5), "Conversation", Time.now()),
                            relay.pack(makeTestUuid(7), "Hello World... again", Time.now())));
 
-    final Collection<Relay.Bundle> read = relay.read(team, secret, Uuids.NULL, 2);
+    final Collection<Relay.Bundle> read = relay.read(READER, READER_SECRET, Uuids.NULL, 2);
     assertTrue(read.size() == 1);
 
     // By the assertion above this loop should only execute once as there should only
@@ -216,6 +227,256 @@ public final class ServerTest {
     }
   }
 
+  @Test
+  public void testReadPages() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = makeTestUuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(makeTestUuid(4), "User", Time.now()),
+                             relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                             relay.pack(makeTestUuid(10 + i), "Message " + i, Time.now())));
+    }
+
+    final List<Relay.Bundle> first = new ArrayList<>(relay.read(READER, READER_SECRET, Uuids.NULL, 2));
+    assertEquals(2, first.size());
+    assertTrue(Uuids.equals(first.get(1).message().id(), makeTestUuid(11)));
+
+    // The range counts from the root, not from the start of the history.
+    final List<Relay.Bundle> second = new ArrayList<>(relay.read(READER, READER_SECRET, first.get(1).id(), 2));
+    assertEquals(2, second.size());
+    assertTrue(Uuids.equals(second.get(0).message().id(), makeTestUuid(12)));
+    assertTrue(Uuids.equals(second.get(1).message().id(), makeTestUuid(13)));
+
+    final List<Relay.Bundle> last = new ArrayList<>(relay.read(READER, READER_SECRET, second.get(1).id(), 2));
+    assertEquals(1, last.size());
+    assertTrue(relay.read(READER, READER_SECRET, last.get(0).id(), 2).isEmpty());
+  }
+
+  @Test
+  public void testReadFromEvictedRoot() {
+
+    final Server relay = new Server(2, 8);
+
+    final Uuid team = makeTestUuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
+
+    Uuid root = null;
+    for (int i = 0; i < 4; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(makeTestUuid(4), "User", Time.now()),
+                             relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                             relay.pack(makeTestUuid(10 + i), "Message " + i, Time.now())));
+      if (root == null) {
+        root = relay.read(READER, READER_SECRET, Uuids.NULL, 1).iterator().next().id();
+      }
+    }
+
+    // The root is no longer held, so reading starts from the oldest bundle.
+    final List<Relay.Bundle> read = new ArrayList<>(relay.read(READER, READER_SECRET, root, 8));
+    assertEquals(2, read.size());
+    assertTrue(Uuids.equals(read.get(0).message().id(), makeTestUuid(12)));
+  }
+
+  @Test
+  public void testAwaitWrite() throws Exception {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = makeTestUuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
+
+    // Nothing has been written, so waiting times out.
+    assertFalse(relay.await(READER, Uuids.NULL, 10));
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        relay.write(team,
+                    secret,
+                    relay.pack(makeTestUuid(4), "User", Time.now()),
+                    relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                    relay.pack(makeTestUuid(6), "Hello World", Time.now()));
+      }
+    };
+    writer.start();
+
+    assertTrue(relay.await(READER, Uuids.NULL, 5000));
+    writer.join();
+
+    // Once the reader has the newest bundle there is nothing more to wait for.
+    final Uuid newest = relay.read(READER, READER_SECRET, Uuids.NULL, 8).iterator().next().id();
+    assertFalse(relay.await(READER, newest, 10));
+  }
+
+  @Test
+  public void testConcurrentReadersAndWriters() throws Exception {
+
+    final int writers = 4;
+    final int writes = 500;
+
+    final Server relay = new Server(writers * writes, writers * writes);
+
+    final Uuid team = makeTestUuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
+
+    final List<Thread> threads = new ArrayList<>();
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < writes; i++) {
+            if (!relay.write(team,
+                             secret,
+                             relay.pack(makeTestUuid(4), "User", Time.now()),
+                             relay.pack(makeTestUuid(5 + writer), "Conversation", Time.now()),
+                             relay.pack(makeTestUuid(100 + writer * writes + i), "Hello World", Time.now()))) {
+              failures.add(new AssertionError("write failed"));
+            }
+          }
+        }
+      });
+    }
+
+    // Readers follow the writers and must see every bundle once, in order.
+    for (int r = 0; r < 2; r++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          Uuid root = Uuids.NULL;
+          int last = 0;
+          int seen = 0;
+          while (seen < writers * writes) {
+            for (final Relay.Bundle bundle : relay.read(READER, READER_SECRET, root, 64)) {
+              if (bundle.id().id() != (last == 0 ? bundle.id().id() : last + 1)) {
+                failures.add(new AssertionError("out of order " + bundle.id()));
+              }
+              last = bundle.id().id();
+              root = bundle.id();
+              seen += 1;
+            }
+          }
+        }
+      });
+    }
+
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join(10000);
+      assertFalse(thread.isAlive());
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+
+  @Test
+  public void testRepeatedWriteIsKeptOnce() {
+
+    final Server relay = new Server(64, 64);
+
+    final Uuid team = makeTestUuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
+
+    // The same message sent again, as when the reply to a write was lost.
+    for (int i = 0; i < 2; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(makeTestUuid(4), "User", Time.now()),
+                             relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                             relay.pack(makeTestUuid(6), "Hello World", Time.now())));
+    }
+
+    assertEquals(1, relay.read(READER, READER_SECRET, Uuids.NULL, 64).size());
+  }
+
+  @Test
+  public void testReadSkipsOwnBundles() {
+
+    final Server relay = new Server(64, 4);
+
+    final Uuid team = makeTestUuid(3);
+    final byte[] secret = { 0x00, 0x01, 0x02 };
+
+    assertTrue(relay.addTeam(team, secret));
+    assertTrue(relay.addTeam(READER, READER_SECRET));
+
+    // One bundle from the reader, then more from the other team than one read
+    // will look at, then another from the reader.
+    assertTrue(relay.write(READER,
+                           READER_SECRET,
+                           relay.pack(makeTestUuid(4), "User", Time.now()),
+                           relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                           relay.pack(makeTestUuid(6), "Hello World", Time.now())));
+
+    for (int i = 0; i < 40; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(makeTestUuid(4), "User", Time.now()),
+                             relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                             relay.pack(makeTestUuid(100 + i), "Other", Time.now())));
+    }
+
+    assertTrue(relay.write(READER,
+                           READER_SECRET,
+                           relay.pack(makeTestUuid(4), "User", Time.now()),
+                           relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                           relay.pack(makeTestUuid(8), "Hello again", Time.now())));
+
+    // The reader is only given the other team's bundles.
+    Uuid root = Uuids.NULL;
+    final List<Relay.Bundle> read = new ArrayList<>();
+    for (int i = 0; i < 20 && read.size() < 40; i++) {
+      for (final Relay.Bundle bundle : relay.read(READER, READER_SECRET, root, 4)) {
+        assertTrue(Uuids.equals(bundle.team(), team));
+        read.add(bundle);
+        root = bundle.id();
+      }
+    }
+    assertEquals(40, read.size());
+
+    // After the other team's bundles the reader's own bundle is skipped.
+    assertTrue(relay.read(READER, READER_SECRET, root, 4).isEmpty());
+
+    // The other team's first read gets the reader's first bundle and looks
+    // past most of its own bundles. Reading from that bundle carries on from
+    // where the first read stopped looking, which is what lets it reach the
+    // reader's second bundle: looking from the root alone would only see the
+    // other team's own bundles.
+    final List<Relay.Bundle> first = new ArrayList<>(relay.read(team, secret, Uuids.NULL, 4));
+    assertEquals(1, first.size());
+    assertTrue(Uuids.equals(first.get(0).message().id(), makeTestUuid(6)));
+
+    final List<Relay.Bundle> second = new ArrayList<>(relay.read(team, secret, first.get(0).id(), 4));
+    assertEquals(1, second.size());
+    assertTrue(Uuids.equals(second.get(0).message().id(), makeTestUuid(8)));
+  }
+
   private static Uuid makeTestUuid(final int id) {
     return Uuids.complete(new Uuid() {
       @Override
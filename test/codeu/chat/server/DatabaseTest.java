@@ -0,0 +1,256 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.common.Time;
+import codeu.chat.common.User;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+
+// These tests need the SQLite driver on the class path and are skipped when it
+// is not there.
+public final class DatabaseTest {
+
+  private File directory;
+  private String url;
+  private File journal;
+
+  @Before
+  public void doBefore() throws IOException {
+
+    boolean driver;
+    try {
+      Class.forName("org.sqlite.JDBC");
+      driver = true;
+    } catch (ClassNotFoundException ex) {
+      driver = false;
+    }
+    assumeTrue(driver);
+
+    directory = Files.createTempDirectory("database-test").toFile();
+    url = "jdbc:sqlite:" + new File(directory, "test.db").getPath();
+    journal = new File(directory, "journal");
+  }
+
+  @After
+  public void doAfter() {
+    if (directory != null) {
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testWritesAreCommittedBeforeClose() throws Exception {
+
+    final Database database = open();
+
+    final User user = new User(makeTestUuid(1), "user", Time.now());
+    final Conversation conversation = new Conversation(makeTestUuid(2), user.id, Time.now(), "title");
+
+    database.addUser(user, "password");
+    database.addConversation(conversation);
+    for (int i = 0; i < 1000; i++) {
+      database.addMessage(conversation.id, message(100 + i, user.id));
+    }
+
+    database.close();
+
+    // Everything was committed, so nothing is left in the journal.
+    assertEquals(0, journal.listFiles().length);
+
+    final Database reopened = open();
+    try {
+      final List<Message> messages = reopened.messages(conversation.id);
+      assertEquals(1000, messages.size());
+      for (int i = 0; i < messages.size(); i++) {
+        assertTrue(Uuids.equals(makeTestUuid(100 + i), messages.get(i).id));
+      }
+
+      final Snapshot snapshot = new Snapshot();
+      reopened.load(snapshot);
+      assertEquals(1, snapshot.users.size());
+      assertEquals("password", snapshot.passwords.get(0));
+      assertEquals(1, snapshot.conversations.size());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testContentIsNotSql() throws Exception {
+
+    final Database database = open();
+
+    final User user = new User(makeTestUuid(1), "user", Time.now());
+    final Conversation conversation = new Conversation(makeTestUuid(2), user.id, Time.now(), "title");
+
+    database.addConversation(conversation);
+    database.addMessage(conversation.id, new Message(makeTestUuid(3),
+                                                     Uuids.NULL,
+                                                     Uuids.NULL,
+                                                     Time.now(),
+                                                     user.id,
+                                                     "'); DROP TABLE MESSAGES; --"));
+    database.close();
+
+    final Database reopened = open();
+    try {
+      final List<Message> messages = reopened.messages(conversation.id);
+      assertEquals(1, messages.size());
+      assertEquals("'); DROP TABLE MESSAGES; --", messages.get(0).content);
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testSearchFindsArchivedMessages() throws Exception {
+
+    final Database database = open();
+
+    final User user = new User(makeTestUuid(1), "user", Time.fromMs(0));
+    final Conversation conversation = new Conversation(makeTestUuid(2), user.id, Time.fromMs(0), "title");
+
+    database.addUser(user, "password");
+    database.addConversation(conversation);
+    for (int i = 0; i < 30; i++) {
+      final String content = i % 5 == 0 ? "Lunch " + i : (i == 7 ? "lunchtime" : "message " + i);
+      database.addMessage(conversation.id, new Message(makeTestUuid(100 + i),
+                                                       Uuids.NULL,
+                                                       Uuids.NULL,
+                                                       Time.fromMs(100 + i),
+                                                       user.id,
+                                                       content));
+    }
+    database.close();
+
+    final Database reopened = open();
+    try {
+      // Only the last ten messages are in the model.
+      final History history = new History(reopened, 10, 10, 1024L * 1024L);
+      final Snapshot snapshot = new Snapshot();
+      reopened.loadRecent(snapshot, history);
+
+      final Model model = new Model();
+      new Controller(Uuids.NULL, model).load(snapshot);
+      history.link(model);
+
+      assertEquals(20, history.archivedCount(conversation.id));
+
+      final View view = new View(model, history);
+
+      assertIds(view.searchMessages(conversation.id, "lunch", 0, 10), 125, 120, 115, 110, 105, 100);
+      assertIds(view.searchMessages(Uuids.NULL, "lunch", 0, 10), 125, 120, 115, 110, 105, 100);
+      assertIds(view.searchMessages(conversation.id, "lunch", 1, 2), 120, 115);
+      assertIds(view.searchMessages(conversation.id, "lunchtime", 0, 10), 107);
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void testMessagesArePositionedAsAdded() throws Exception {
+
+    final Database database = open();
+
+    final User user = new User(makeTestUuid(1), "user", Time.fromMs(0));
+    final Conversation one = new Conversation(makeTestUuid(2), user.id, Time.fromMs(0), "one");
+    final Conversation two = new Conversation(makeTestUuid(3), user.id, Time.fromMs(0), "two");
+
+    database.addUser(user, "password");
+    database.addConversation(one);
+    database.addConversation(two);
+
+    // Interleaved, and with creation times that go backwards, so positions
+    // must come from the order the messages were added in.
+    for (int i = 0; i < 20; i++) {
+      database.addMessage(one.id, new Message(
+          makeTestUuid(100 + i), Uuids.NULL, Uuids.NULL, Time.fromMs(1000 - i), user.id, "one " + i));
+      database.addMessage(two.id, message(200 + i, user.id));
+    }
+    database.close();
+
+    final Database reopened = open();
+    try {
+      final Database.Position position = reopened.locate(makeTestUuid(107));
+      assertTrue(Uuids.equals(one.id, position.conversation));
+      assertEquals(7, position.index);
+
+      assertEquals(19, reopened.locate(makeTestUuid(219)).index);
+      assertNull(reopened.locate(makeTestUuid(999)));
+
+      assertIds(reopened.messages(one.id, 5, 3), 105, 106, 107);
+
+      final List<Message> linked = reopened.messages(one.id, Time.fromMs(990), Time.fromMs(992), 20);
+      assertIds(linked, 108, 109, 110);
+      assertTrue(Uuids.equals(makeTestUuid(107), linked.get(0).previous));
+      assertTrue(Uuids.equals(makeTestUuid(111), linked.get(2).next));
+
+      // Only the first ten messages are counted.
+      assertIds(reopened.messages(one.id, Time.fromMs(990), Time.fromMs(992), 10), 108, 109);
+    } finally {
+      reopened.close();
+    }
+  }
+
+  private static void assertIds(Iterable<Message> messages, int... expected) {
+    int at = 0;
+    for (final Message message : messages) {
+      assertTrue(Uuids.equals(makeTestUuid(expected[at]), message.id));
+      at += 1;
+    }
+    assertEquals(expected.length, at);
+  }
+
+  private Database open() throws Exception {
+    return new Database(url, journal, Database.Durability.NORMAL, 64, 1024);
+  }
+
+  private static Message message(int id, Uuid author) {
+    return new Message(makeTestUuid(id), Uuids.NULL, Uuids.NULL, Time.fromMs(id), author, "message " + id);
+  }
+
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static Uuid makeTestUuid(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
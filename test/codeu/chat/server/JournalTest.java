@@ -0,0 +1,160 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class JournalTest {
+
+  private static final long SEGMENT = 64;
+
+  private File directory;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = Files.createTempDirectory("journal-test").toFile();
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testUncommittedRecordsAreRecovered() throws IOException {
+
+    final Journal journal = Journal.open(directory, false, SEGMENT);
+    assertTrue(journal.recovered().isEmpty());
+
+    for (int i = 0; i < 20; i++) {
+      journal.append(record(i));
+    }
+
+    // The server stops before anything is committed. Not closing the journal
+    // is the same as the process going away.
+    final Journal reopened = Journal.open(directory, false, SEGMENT);
+    final List<byte[]> recovered = reopened.recovered();
+
+    assertEquals(20, recovered.size());
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(record(i), recovered.get(i));
+    }
+
+    reopened.committed(20, true);
+    reopened.close();
+    journal.close();
+
+    assertTrue(Journal.open(directory, false, SEGMENT).recovered().isEmpty());
+  }
+
+  @Test
+  public void testCommittedSegmentsAreDeleted() throws IOException {
+
+    final Journal journal = Journal.open(directory, true, SEGMENT);
+
+    for (int i = 0; i < 20; i++) {
+      journal.append(record(i));
+    }
+
+    assertTrue(directory.listFiles().length > 1);
+
+    journal.committed(20, true);
+
+    // Only the segment being appended to is left.
+    assertEquals(1, directory.listFiles().length);
+
+    journal.close();
+
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  @Test
+  public void testPartlyCommittedRecordsAreRecovered() throws IOException {
+
+    final Journal journal = Journal.open(directory, false, SEGMENT);
+
+    for (int i = 0; i < 20; i++) {
+      journal.append(record(i));
+    }
+
+    journal.committed(12, true);
+
+    final List<byte[]> recovered = Journal.open(directory, false, SEGMENT).recovered();
+
+    // Whole segments that were committed are gone. What is left starts at or
+    // before the first record that was not committed.
+    assertTrue(recovered.size() >= 8);
+    assertTrue(recovered.size() < 20);
+    assertArrayEquals(record(19), recovered.get(recovered.size() - 1));
+  }
+
+  @Test
+  public void testFailedRecordsAreKept() throws IOException {
+
+    final Journal journal = Journal.open(directory, false, SEGMENT);
+
+    for (int i = 0; i < 20; i++) {
+      journal.append(record(i));
+    }
+
+    journal.committed(1, false);
+    journal.committed(19, true);
+    journal.close();
+
+    final List<byte[]> recovered = Journal.open(directory, false, SEGMENT).recovered();
+
+    assertFalse(recovered.isEmpty());
+    assertArrayEquals(record(0), recovered.get(0));
+  }
+
+  @Test
+  public void testTornRecordIsIgnored() throws IOException {
+
+    final Journal journal = Journal.open(directory, false, 1024);
+
+    for (int i = 0; i < 3; i++) {
+      journal.append(record(i));
+    }
+
+    // Cut the last record short, as if the server stopped while writing it.
+    final File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    try (final RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+      file.setLength(file.length() - 2);
+    }
+
+    final List<byte[]> recovered = Journal.open(directory, false, 1024).recovered();
+
+    assertEquals(2, recovered.size());
+    assertArrayEquals(record(0), recovered.get(0));
+    assertArrayEquals(record(1), recovered.get(1));
+  }
+
+  private static byte[] record(int i) {
+    return ("record " + i).getBytes();
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Time;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.relay.ServerFrontEnd;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+
+public final class RemoteRelayTest {
+
+  private final Uuid team = makeTestUuid(3);
+  private final byte[] secret = { 0x00, 0x01, 0x02 };
+
+  // Teams are not sent their own bundles, so bundles are read back as another
+  // team.
+  private final Uuid reader = makeTestUuid(30);
+  private final byte[] readerSecret = { 0x07, 0x08, 0x09 };
+
+  @Test
+  public void testWritesAreBatchedInOrder() throws Exception {
+
+    final codeu.chat.relay.Server backEnd = new codeu.chat.relay.Server(1024, 1024);
+    backEnd.addTeam(team, secret);
+    backEnd.addTeam(reader, readerSecret);
+
+    final AtomicInteger connections = new AtomicInteger();
+    final RemoteRelay relay = new RemoteRelay(
+        loopback(new ServerFrontEnd(backEnd), connections),
+        50,
+        100,
+        1000,
+        3);
+
+    for (int i = 0; i < 50; i++) {
+      assertTrue(relay.write(team,
+                             secret,
+                             relay.pack(makeTestUuid(4), "User", Time.now()),
+                             relay.pack(makeTestUuid(5), "Conversation", Time.now()),
+                             relay.pack(makeTestUuid(100 + i), "Hello World", Time.now())));
+    }
+
+    List<Relay.Bundle> read = new ArrayList<>();
+    for (int wait = 0; wait < 100 && read.size() < 50; wait++) {
+      Thread.sleep(50);
+      read = new ArrayList<>(backEnd.read(reader, readerSecret, Uuids.NULL, 1024));
+    }
+
+    assertEquals(50, read.size());
+    for (int i = 0; i < read.size(); i++) {
+      assertTrue(Uuids.equals(read.get(i).message().id(), makeTestUuid(100 + i)));
+    }
+
+    // The writes were sent in a few batches, not one connection each.
+    assertTrue(connections.get() < 10);
+  }
+
+  @Test
+  public void testRefusedSubscriptionIsReported() throws Exception {
+
+    final codeu.chat.relay.Server backEnd = new codeu.chat.relay.Server(1024, 1024);
+    backEnd.addTeam(team, secret);
+
+    final Relay.Listener listener = new Relay.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) { }
+    };
+
+    // A front end over a plain relay can not push.
+    final RemoteRelay plain = new RemoteRelay(
+        loopback(new ServerFrontEnd((Relay) backEnd), new AtomicInteger()));
+    assertNull(plain.subscribe(team, secret, Uuids.NULL, listener));
+
+    // A team the relay does not know is not accepted.
+    final RemoteRelay unknown = new RemoteRelay(
+        loopback(new ServerFrontEnd(backEnd), new AtomicInteger()));
+    assertNull(unknown.subscribe(reader, readerSecret, Uuids.NULL, listener));
+  }
+
+  // A connection source that hands each request straight to the relay's front
+  // end once the reply is asked for.
+  private static ConnectionSource loopback(final ServerFrontEnd frontEnd,
+                                           final AtomicInteger connections) {
+    return new ConnectionSource() {
+
+      @Override
+      public Connection connect() {
+
+        connections.incrementAndGet();
+
+        final ByteArrayOutputStream request = new ByteArrayOutputStream();
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+        return new Connection() {
+
+          private InputStream in;
+
+          @Override
+          public InputStream in() throws IOException {
+            if (in == null) {
+              frontEnd.handleConnection(connection(
+                  new ByteArrayInputStream(request.toByteArray()),
+                  response));
+              in = new ByteArrayInputStream(response.toByteArray());
+            }
+            return in;
+          }
+
+          @Override
+          public OutputStream out() { return request; }
+
+          @Override
+          public void close() { }
+        };
+      }
+
+      @Override
+      public void close() { }
+    };
+  }
+
+  private static Connection connection(final InputStream in, final OutputStream out) {
+    return new Connection() {
+      @Override
+      public InputStream in() { return in; }
+      @Override
+      public OutputStream out() { return out; }
+      @Override
+      public void close() { }
+    };
+  }
+
+  private static Uuid makeTestUuid(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
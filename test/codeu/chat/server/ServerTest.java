@@ -0,0 +1,318 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Relay;
+import codeu.chat.common.Time;
+import codeu.chat.common.User;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Frame;
+
+public final class ServerTest {
+
+  private final Uuid id = makeTestUuid(1);
+  private final byte[] secret = { 0x00, 0x01, 0x02 };
+
+  private Server server;
+
+  @Before
+  public void doBefore() {
+    server = new Server(id, secret, new NoOpRelay(), null, 4, 16);
+  }
+
+  @After
+  public void doAfter() {
+    server.stop();
+  }
+
+  @Test
+  public void testSlowClientDoesNotStallOthers() throws Exception {
+
+    // A client that never reads its response. Writing to it blocks until it is
+    // let go.
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch letGo = new CountDownLatch(1);
+    final CountDownLatch stalledDone = new CountDownLatch(1);
+
+    final ByteArrayOutputStream stalledRequest = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(stalledRequest, NetworkCode.GET_ALL_CONVERSATIONS_REQUEST);
+
+    server.handleConnection(connection(
+        new ByteArrayInputStream(stalledRequest.toByteArray()),
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            writing.countDown();
+            try {
+              letGo.await();
+            } catch (InterruptedException ex) {
+              throw new IOException(ex);
+            }
+          }
+        },
+        stalledDone));
+
+    try {
+
+      assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+      // Before, the stalled client held the model's read lock. A write then
+      // waited for it, and every read behind the write waited too. Both must
+      // now finish while the slow client is still stalled.
+      final ByteArrayOutputStream newUser = new ByteArrayOutputStream();
+      Serializers.INTEGER.write(newUser, NetworkCode.NEW_USER_REQUEST);
+      Serializers.STRING.write(newUser, "user");
+      Serializers.STRING.write(newUser, "password");
+
+      final ByteArrayOutputStream newUserResponse = new ByteArrayOutputStream();
+      final CountDownLatch newUserDone = new CountDownLatch(1);
+
+      server.handleConnection(connection(
+          new ByteArrayInputStream(newUser.toByteArray()),
+          newUserResponse,
+          newUserDone));
+
+      assertTrue(newUserDone.await(5, TimeUnit.SECONDS));
+
+      final InputStream newUserIn = new ByteArrayInputStream(newUserResponse.toByteArray());
+      assertEquals(NetworkCode.NEW_USER_RESPONSE, (int) Serializers.INTEGER.read(newUserIn));
+      assertNotNull(Serializers.nullable(User.SERIALIZER).read(newUserIn));
+
+      final ByteArrayOutputStream getUsers = new ByteArrayOutputStream();
+      Serializers.INTEGER.write(getUsers, NetworkCode.GET_USERS_EXCLUDING_REQUEST);
+      Serializers.collection(Uuids.SERIALIZER).write(getUsers, new ArrayList<Uuid>());
+
+      final ByteArrayOutputStream getUsersResponse = new ByteArrayOutputStream();
+      final CountDownLatch getUsersDone = new CountDownLatch(1);
+
+      server.handleConnection(connection(
+          new ByteArrayInputStream(getUsers.toByteArray()),
+          getUsersResponse,
+          getUsersDone));
+
+      assertTrue(getUsersDone.await(5, TimeUnit.SECONDS));
+
+      final InputStream getUsersIn = new ByteArrayInputStream(getUsersResponse.toByteArray());
+      assertEquals(NetworkCode.GET_USERS_EXCLUDING_RESPONSE, (int) Serializers.INTEGER.read(getUsersIn));
+      assertEquals(1, Serializers.collection(User.SERIALIZER).read(getUsersIn).size());
+
+      assertEquals(1, stalledDone.getCount());
+
+    } finally {
+      letGo.countDown();
+    }
+
+    assertTrue(stalledDone.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testMultiplexingWithOneWorker() throws Exception {
+
+    // Reading the frames must not hold the only worker, or there would be none
+    // left to handle them.
+    final Server single = new Server(id, secret, new NoOpRelay(), null, 1, 16);
+
+    try {
+
+      final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      Serializers.INTEGER.write(frame, NetworkCode.GET_ALL_CONVERSATIONS_REQUEST);
+
+      final ByteArrayOutputStream request = new ByteArrayOutputStream();
+      Serializers.INTEGER.write(request, NetworkCode.MULTIPLEX_OPEN_REQUEST);
+      Frame.SERIALIZER.write(request, new Frame(7, frame.toByteArray()));
+
+      final ByteArrayOutputStream response = new ByteArrayOutputStream();
+      final CountDownLatch done = new CountDownLatch(1);
+
+      single.handleConnection(connection(
+          new ByteArrayInputStream(request.toByteArray()),
+          response,
+          done));
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+
+      // The connection is closed once the client's side has ended, which may
+      // be before the frame's response has been sent.
+      for (int wait = 0; wait < 100 && !hasEnd(response.toByteArray()); wait++) {
+        Thread.sleep(50);
+      }
+
+      final InputStream in = new ByteArrayInputStream(response.toByteArray());
+
+      assertEquals(NetworkCode.MULTIPLEX_OPEN_RESPONSE, (int) Serializers.INTEGER.read(in));
+
+      final Frame data = Frame.SERIALIZER.read(in);
+      assertEquals(7, data.id);
+      assertEquals(Frame.DATA, data.kind);
+      assertEquals(NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE,
+                   (int) Serializers.INTEGER.read(new ByteArrayInputStream(data.payload)));
+
+      final Frame end = Frame.SERIALIZER.read(in);
+      assertEquals(7, end.id);
+      assertEquals(Frame.END, end.kind);
+
+    } finally {
+      single.stop();
+    }
+  }
+
+  // Whether the bytes hold the multiplex open response followed by an END
+  // frame.
+  private static boolean hasEnd(byte[] bytes) throws IOException {
+    final InputStream in = new ByteArrayInputStream(bytes);
+    try {
+      Serializers.INTEGER.read(in);
+      while (true) {
+        if (Frame.SERIALIZER.read(in).kind == Frame.END) {
+          return true;
+        }
+      }
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  // A connection that counts down "closed" once the server is done with it.
+  @Test
+  public void testBundleFromUnknownUserIsAdded() throws Exception {
+
+    // A relay that pushes whatever the test gives its listener.
+    final Relay.Listener[] pushed = new Relay.Listener[1];
+    final NoOpRelay packer = new NoOpRelay();
+
+    final Relay relay = new Relay() {
+      @Override
+      public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+        return packer.pack(id, text, time);
+      }
+      @Override
+      public boolean write(Uuid teamId,
+                           byte[] teamSecret,
+                           Relay.Bundle.Component user,
+                           Relay.Bundle.Component conversation,
+                           Relay.Bundle.Component message) {
+        return true;
+      }
+      @Override
+      public Collection<Relay.Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range) {
+        return new ArrayList<>();
+      }
+      @Override
+      public Relay.Subscription subscribe(Uuid teamId,
+                                          byte[] teamSecret,
+                                          Uuid root,
+                                          Relay.Listener listener) {
+        pushed[0] = listener;
+        return new Relay.Subscription() {
+          @Override
+          public void cancel() { }
+        };
+      }
+    };
+
+    final Server pushedTo = new Server(id, secret, relay, null, 1, 16);
+
+    try {
+
+      final Relay.Bundle.Component user = packer.pack(makeTestUuid(10), "remote", Time.fromMs(1));
+      final Relay.Bundle.Component conversation = packer.pack(makeTestUuid(11), "title", Time.fromMs(2));
+      final Relay.Bundle.Component message = packer.pack(makeTestUuid(12), "hello", Time.fromMs(3));
+
+      pushed[0].onBundles(Arrays.<Relay.Bundle>asList(new Relay.Bundle() {
+        @Override
+        public Uuid id() { return makeTestUuid(20); }
+        @Override
+        public Time time() { return Time.fromMs(4); }
+        @Override
+        public Uuid team() { return makeTestUuid(21); }
+        @Override
+        public Relay.Bundle.Component user() { return user; }
+        @Override
+        public Relay.Bundle.Component conversation() { return conversation; }
+        @Override
+        public Relay.Bundle.Component message() { return message; }
+      }));
+
+      final ByteArrayOutputStream request = new ByteArrayOutputStream();
+      Serializers.INTEGER.write(request, NetworkCode.GET_MESSAGES_BY_ID_REQUEST);
+      Serializers.collection(Uuids.SERIALIZER).write(request, Arrays.asList(makeTestUuid(12)));
+
+      final ByteArrayOutputStream response = new ByteArrayOutputStream();
+      final CountDownLatch done = new CountDownLatch(1);
+
+      pushedTo.handleConnection(connection(
+          new ByteArrayInputStream(request.toByteArray()),
+          response,
+          done));
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+
+      // The message keeps its own content and the new user is its author.
+      final InputStream in = new ByteArrayInputStream(response.toByteArray());
+      assertEquals(NetworkCode.GET_MESSAGES_BY_ID_RESPONSE, (int) Serializers.INTEGER.read(in));
+      final Collection<Message> messages = Serializers.collection(Message.SERIALIZER).read(in);
+      assertEquals(1, messages.size());
+      final Message found = messages.iterator().next();
+      assertEquals("hello", found.content);
+      assertTrue(Uuids.equals(makeTestUuid(10), found.author));
+
+    } finally {
+      pushedTo.stop();
+    }
+  }
+
+  private static Connection connection(final InputStream in,
+                                       final OutputStream out,
+                                       final CountDownLatch closed) {
+    return new Connection() {
+      @Override
+      public InputStream in() { return in; }
+      @Override
+      public OutputStream out() { return out; }
+      @Override
+      public void close() { closed.countDown(); }
+    };
+  }
+
+  private static Uuid makeTestUuid(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
@@ -0,0 +1,365 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.Relay;
+import codeu.chat.common.Time;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+
+public final class ShardedRelayTest {
+
+  private static final int CONVERSATIONS = 200;
+
+  private final Uuid team = makeTestUuid(3);
+  private final byte[] secret = { 0x00, 0x01, 0x02 };
+
+  // Teams are not sent their own bundles, so bundles are read back as another
+  // team.
+  private final Uuid reader = makeTestUuid(30);
+  private final byte[] readerSecret = { 0x07, 0x08, 0x09 };
+
+  private final List<codeu.chat.relay.Server> shards = new ArrayList<>();
+  private ShardedRelay relay;
+
+  @Before
+  public void doBefore() {
+    relay = new ShardedRelay();
+    for (int i = 0; i < 3; i++) {
+      addShard(i);
+    }
+  }
+
+  @Test
+  public void testConversationsStayOnOneShard() {
+
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < CONVERSATIONS; i++) {
+        assertTrue(write(1000 + i, round * CONVERSATIONS + i));
+      }
+    }
+
+    final Map<Integer, Integer> owners = owners();
+    assertEquals(CONVERSATIONS, owners.size());
+
+    // Every shard has some of the conversations.
+    for (int shard = 0; shard < shards.size(); shard++) {
+      assertTrue(owners.containsValue(shard));
+    }
+  }
+
+  @Test
+  public void testReadAllShardsWithCursor() {
+
+    for (int i = 0; i < 30; i++) {
+      assertTrue(write(1000 + i, i));
+    }
+
+    final List<Relay.Bundle> read = new ArrayList<>();
+    Uuid root = Uuids.NULL;
+
+    // Read in small pages, carrying on from the last bundle each time.
+    for (int page = 0; page < 100 && read.size() < 30; page++) {
+      for (final Relay.Bundle bundle : relay.read(reader, readerSecret, root, 4)) {
+        read.add(bundle);
+        root = bundle.id();
+      }
+    }
+
+    assertEquals(30, read.size());
+    assertTrue(relay.read(reader, readerSecret, root, 4).isEmpty());
+
+    final boolean[] seen = new boolean[30];
+    for (final Relay.Bundle bundle : read) {
+      seen[bundle.message().id().id()] = true;
+    }
+    for (final boolean one : seen) {
+      assertTrue(one);
+    }
+  }
+
+  @Test
+  public void testAddingShardMovesFewConversations() {
+
+    final Map<Integer, Integer> before = ownersAfterWriting(0);
+
+    addShard(3);
+
+    final Map<Integer, Integer> after = ownersAfterWriting(1);
+
+    int moved = 0;
+    for (final Map.Entry<Integer, Integer> entry : before.entrySet()) {
+      final int owner = after.get(entry.getKey());
+      if (owner != entry.getValue()) {
+        // Conversations only ever move to the new shard.
+        assertEquals(3, owner);
+        moved += 1;
+      }
+    }
+
+    assertTrue(moved > 0);
+    assertTrue(moved < CONVERSATIONS / 2);
+  }
+
+  @Test
+  public void testReadsKeepMovedConversationsInOrder() throws Exception {
+
+    for (int i = 0; i < CONVERSATIONS; i++) {
+      assertTrue(write(1000 + i, i));
+    }
+
+    addShard(3);
+
+    // Make sure the second round is taken by the relays after the first.
+    Thread.sleep(5);
+
+    for (int i = 0; i < CONVERSATIONS; i++) {
+      assertTrue(write(1000 + i, CONVERSATIONS + i));
+    }
+
+    final boolean[] seen = new boolean[CONVERSATIONS];
+    int read = 0;
+    Uuid root = Uuids.NULL;
+
+    for (int page = 0; page < 1000 && read < 2 * CONVERSATIONS; page++) {
+      for (final Relay.Bundle bundle : relay.read(reader, readerSecret, root, 8)) {
+
+        final int conversation = bundle.conversation().id().id() - 1000;
+        final boolean first = bundle.message().id().id() < CONVERSATIONS;
+
+        // A conversation's second message is never read before its first.
+        assertEquals(first, !seen[conversation]);
+        seen[conversation] = true;
+
+        read += 1;
+        root = bundle.id();
+      }
+    }
+
+    assertEquals(2 * CONVERSATIONS, read);
+  }
+
+  @Test
+  public void testRefusedShardCancelsOthers() {
+
+    final PushingShard first = new PushingShard(true);
+    final PushingShard refusing = new PushingShard(false);
+    final PushingShard last = new PushingShard(true);
+
+    final ShardedRelay sharded = new ShardedRelay();
+    assertTrue(sharded.addShard("first", first));
+    assertTrue(sharded.addShard("refusing", refusing));
+    assertTrue(sharded.addShard("last", last));
+
+    final List<Relay.Bundle> given = new ArrayList<>();
+    final Relay.Listener listener = new Relay.Listener() {
+      @Override
+      public void onBundles(Collection<Relay.Bundle> bundles) {
+        given.addAll(bundles);
+      }
+    };
+
+    assertNull(sharded.subscribe(reader, readerSecret, Uuids.NULL, listener));
+
+    // The shard that accepted before the refusal no longer pushes, and the
+    // one after it was never asked.
+    assertTrue(first.cancelled);
+    assertNull(last.listener);
+
+    first.push(100);
+    assertTrue(given.isEmpty());
+
+    // Nor is the subscription given to shards added later.
+    final PushingShard added = new PushingShard(true);
+    assertTrue(sharded.addShard("added", added));
+    assertNull(added.listener);
+  }
+
+  @Test
+  public void testCancelStopsEveryShard() {
+
+    final PushingShard first = new PushingShard(true);
+    final PushingShard second = new PushingShard(true);
+
+    final ShardedRelay sharded = new ShardedRelay();
+    assertTrue(sharded.addShard("first", first));
+    assertTrue(sharded.addShard("second", second));
+
+    final List<Relay.Bundle> given = new ArrayList<>();
+    final Relay.Subscription subscription =
+        sharded.subscribe(reader, readerSecret, Uuids.NULL, new Relay.Listener() {
+          @Override
+          public void onBundles(Collection<Relay.Bundle> bundles) {
+            given.addAll(bundles);
+          }
+        });
+
+    assertNotNull(subscription);
+
+    first.push(100);
+    assertEquals(1, given.size());
+
+    subscription.cancel();
+
+    assertTrue(first.cancelled);
+    assertTrue(second.cancelled);
+
+    // Bundles a shard was already pushing are not given on.
+    first.push(101);
+    assertEquals(1, given.size());
+  }
+
+  private void addShard(int index) {
+    final codeu.chat.relay.Server shard = new codeu.chat.relay.Server(4096, 4096);
+    shard.addTeam(team, secret);
+    shard.addTeam(reader, readerSecret);
+    shards.add(shard);
+    assertTrue(relay.addShard("shard-" + index, shard));
+  }
+
+  private boolean write(int conversation, int message) {
+    return relay.write(team,
+                       secret,
+                       relay.pack(makeTestUuid(4), "User", Time.now()),
+                       relay.pack(makeTestUuid(conversation), "Conversation", Time.now()),
+                       relay.pack(makeTestUuid(message), "Hello World", Time.now()));
+  }
+
+  // Write one message to every conversation, with the given round as its id,
+  // and find which shard each went to.
+  private Map<Integer, Integer> ownersAfterWriting(int round) {
+
+    final Map<Integer, Integer> owners = new HashMap<>();
+
+    for (int i = 0; i < CONVERSATIONS; i++) {
+      final int message = 100000 * (round + 1) + i;
+      assertTrue(write(1000 + i, message));
+      for (int shard = 0; shard < shards.size(); shard++) {
+        for (final Relay.Bundle bundle : shards.get(shard).read(reader, readerSecret, Uuids.NULL, 4096)) {
+          if (bundle.message().id().id() == message) {
+            owners.put(i, shard);
+          }
+        }
+      }
+    }
+
+    return owners;
+  }
+
+  // Which shard each conversation's bundles are on. Fails if a conversation
+  // is on more than one.
+  private Map<Integer, Integer> owners() {
+
+    final Map<Integer, Integer> owners = new HashMap<>();
+
+    for (int shard = 0; shard < shards.size(); shard++) {
+      for (final Relay.Bundle bundle : shards.get(shard).read(reader, readerSecret, Uuids.NULL, 4096)) {
+        final Integer owner = owners.put(bundle.conversation().id().id(), shard);
+        assertTrue(owner == null || owner == shard);
+      }
+    }
+
+    return owners;
+  }
+
+  // A shard that accepts or refuses subscriptions and pushes bundles when
+  // told to.
+  private final class PushingShard implements Relay {
+
+    private final codeu.chat.relay.Server relay = new codeu.chat.relay.Server(4096, 4096);
+    private final boolean accepts;
+
+    Relay.Listener listener;
+    boolean cancelled = false;
+
+    PushingShard(boolean accepts) {
+      this.accepts = accepts;
+    }
+
+    void push(int message) {
+      final Relay.Bundle.Component component = pack(makeTestUuid(message), "Hello World", Time.now());
+      listener.onBundles(Arrays.asList(new Relay.Bundle() {
+        @Override
+        public Uuid id() { return makeTestUuid(message); }
+        @Override
+        public Time time() { return component.time(); }
+        @Override
+        public Uuid team() { return team; }
+        @Override
+        public Relay.Bundle.Component user() { return component; }
+        @Override
+        public Relay.Bundle.Component conversation() { return component; }
+        @Override
+        public Relay.Bundle.Component message() { return component; }
+      }));
+    }
+
+    @Override
+    public Relay.Bundle.Component pack(Uuid id, String text, Time time) {
+      return relay.pack(id, text, time);
+    }
+
+    @Override
+    public boolean write(Uuid teamId,
+                         byte[] teamSecret,
+                         Relay.Bundle.Component user,
+                         Relay.Bundle.Component conversation,
+                         Relay.Bundle.Component message) {
+      return relay.write(teamId, teamSecret, user, conversation, message);
+    }
+
+    @Override
+    public Collection<Relay.Bundle> read(Uuid teamId, byte[] teamSecret, Uuid root, int range) {
+      return relay.read(teamId, teamSecret, root, range);
+    }
+
+    @Override
+    public Relay.Subscription subscribe(Uuid teamId,
+                                        byte[] teamSecret,
+                                        Uuid root,
+                                        Relay.Listener listener) {
+      if (!accepts) {
+        return null;
+      }
+      this.listener = listener;
+      return new Relay.Subscription() {
+        @Override
+        public void cancel() {
+          cancelled = true;
+        }
+      };
+    }
+  }
+
+  private static Uuid makeTestUuid(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
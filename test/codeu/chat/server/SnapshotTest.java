@@ -0,0 +1,115 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.common.Time;
+import codeu.chat.common.User;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+
+public final class SnapshotTest {
+
+  private File file;
+  private Snapshot snapshot;
+
+  private final Uuid userId = newTestId(1);
+  private final Uuid conversationId = newTestId(2);
+  private final Uuid firstMessageId = newTestId(3);
+  private final Uuid secondMessageId = newTestId(4);
+
+  @Before
+  public void doBefore() throws IOException {
+    file = File.createTempFile("snapshot", null);
+
+    snapshot = new Snapshot();
+    snapshot.addUser(new User(userId, "user", Time.fromMs(1)), "password");
+    snapshot.addConversation(new Conversation(conversationId, userId, Time.fromMs(2), "title"));
+    snapshot.addMessage(conversationId, newTestMessage(firstMessageId, 3, "first"));
+    snapshot.addMessage(conversationId, newTestMessage(secondMessageId, 4, "second"));
+    snapshot.lastUserRow = 1;
+    snapshot.lastConversationRow = 1;
+    snapshot.lastMessageRow = 2;
+  }
+
+  @After
+  public void doAfter() {
+    file.delete();
+  }
+
+  @Test
+  public void testWriteRead() throws IOException {
+
+    snapshot.write(file);
+
+    final Snapshot read = Snapshot.read(file);
+
+    assertNotNull(read);
+    assertEquals(1, read.users.size());
+    assertEquals("password", read.passwords.get(0));
+    assertEquals(1, read.conversations.size());
+    assertEquals("title", read.conversations.get(0).title);
+    assertEquals(2, read.messageCount());
+    assertEquals("second", read.messages.get(conversationId).get(1).content);
+    assertEquals(2, read.lastMessageRow);
+  }
+
+  @Test
+  public void testReadMissing() {
+    file.delete();
+    assertNull(Snapshot.read(file));
+  }
+
+  @Test
+  public void testLoad() {
+
+    final Model model = new Model();
+    new Controller(Uuids.NULL, model).load(snapshot);
+
+    final Conversation conversation = model.conversationById().first(conversationId);
+
+    assertNotNull(model.userById().first(userId));
+    assertNotNull(conversation);
+    assertTrue(Uuids.equals(firstMessageId, conversation.firstMessage));
+    assertTrue(Uuids.equals(secondMessageId, conversation.lastMessage));
+    assertTrue(Uuids.equals(
+        secondMessageId,
+        model.messageById().first(firstMessageId).next));
+    assertTrue(conversation.users.contains(userId));
+  }
+
+  private Message newTestMessage(Uuid id, long creation, String content) {
+    return new Message(id, Uuids.NULL, Uuids.NULL, Time.fromMs(creation), userId, content);
+  }
+
+  private static Uuid newTestId(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
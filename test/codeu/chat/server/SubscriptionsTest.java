@@ -0,0 +1,308 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.Time;
+import codeu.chat.common.User;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+
+public final class SubscriptionsTest {
+
+  // Sends on the calling thread so the tests can read what was sent right away.
+  private static final Executor NOW = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+
+  private Subscriptions subscriptions;
+  private Model model;
+  private Controller controller;
+
+  private User user;
+  private Conversation conversation;
+  private Conversation otherConversation;
+
+  @Before
+  public void doBefore() {
+
+    subscriptions = new Subscriptions(NOW, 4);
+    model = new Model();
+    controller = new Controller(Uuids.NULL, model, null, subscriptions);
+
+    user = controller.newUser("user", "password", false);
+    conversation = controller.newConversation("one", user.id, false);
+    otherConversation = controller.newConversation("two", user.id, false);
+  }
+
+  @Test
+  public void testPush() throws IOException {
+
+    final TestConnection connection = new TestConnection();
+    final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+    subscriptions.follow(subscriber, Arrays.asList(conversation.id));
+
+    controller.newMessage(user.id, conversation.id, "a", false);
+    controller.newMessage(user.id, otherConversation.id, "b", false);
+    controller.newMessage(user.id, conversation.id, "c", false);
+
+    assertEquals(Arrays.asList("a", "c"), connection.pushed());
+    assertFalse(connection.closed);
+
+    assertTrue(subscriptions.remove(subscriber.id));
+    assertEquals(Arrays.asList("a", "c", null), connection.pushed());
+    assertTrue(connection.closed);
+    assertEquals(0, subscriptions.size());
+
+    // Nothing more is sent once the stream has ended.
+    controller.newMessage(user.id, conversation.id, "d", false);
+    assertEquals(Arrays.asList("a", "c", null), connection.pushed());
+  }
+
+  @Test
+  public void testSlowSubscriberIsEnded() throws IOException {
+
+    // Queue without sending, as if the subscriber's connection was blocked.
+    final List<Runnable> waiting = new ArrayList<>();
+    subscriptions = new Subscriptions(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        waiting.add(task);
+      }
+    }, 4);
+
+    final TestConnection connection = new TestConnection();
+    final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+    subscriptions.follow(subscriber, Arrays.asList(conversation.id));
+
+    for (int i = 0; i < 10; i++) {
+      subscriptions.onMessage(conversation.id, new Message(Uuids.NULL, Uuids.NULL, Uuids.NULL, Time.fromMs(i), user.id, "m" + i));
+    }
+
+    assertEquals(1, waiting.size());
+    waiting.get(0).run();
+
+    // The first messages fit in the queue, then it was emptied and the
+    // stream ended.
+    assertEquals(Arrays.asList((String) null), connection.pushed());
+    assertTrue(connection.closed);
+    assertEquals(0, subscriptions.size());
+  }
+
+  @Test
+  public void testSlowSubscriberStillGetsResponse() throws IOException {
+
+    final List<Runnable> waiting = new ArrayList<>();
+    subscriptions = new Subscriptions(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        waiting.add(task);
+      }
+    }, 4);
+
+    final TestConnection connection = new TestConnection();
+    final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+    subscriber.respond();
+    subscriptions.follow(subscriber, Arrays.asList(conversation.id));
+
+    for (int i = 0; i < 10; i++) {
+      subscriptions.onMessage(conversation.id, new Message(Uuids.NULL, Uuids.NULL, Uuids.NULL, Time.fromMs(i), user.id, "m" + i));
+    }
+
+    waiting.get(0).run();
+
+    assertEquals(Arrays.asList("response", null), connection.pushed());
+    assertTrue(Uuids.equals(subscriber.id, connection.responseId));
+  }
+
+  @Test
+  public void testCatchUpLeavesRoomInQueue() throws IOException {
+
+    final List<Runnable> waiting = new ArrayList<>();
+    subscriptions = new Subscriptions(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        waiting.add(task);
+      }
+    }, 4);
+
+    final View view = new View(model);
+
+    for (int i = 0; i < 3; i++) {
+      controller.newMessage(user.id, conversation.id, "a" + i, false);
+      controller.newMessage(user.id, otherConversation.id, "b" + i, false);
+    }
+
+    // Both conversations are further behind than the catch-up may queue.
+    final TestConnection connection = new TestConnection();
+    final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+    subscriber.respond();
+
+    assertFalse(subscriber.catchUp(conversation.id, conversation.firstMessage, view));
+    assertFalse(subscriber.catchUp(otherConversation.id, otherConversation.firstMessage, view));
+    subscriber.end();
+
+    waiting.get(0).run();
+
+    // The client gets its response and what fitted, and subscribes again
+    // from "a1" to get the rest.
+    assertEquals(Arrays.asList("response", "a0", "a1", null), connection.pushed());
+  }
+
+  @Test
+  public void testCatchUp() throws IOException {
+
+    final View view = new View(model);
+
+    controller.newMessage(user.id, conversation.id, "a", false);
+    final Message seen = controller.newMessage(user.id, conversation.id, "b", false);
+    controller.newMessage(user.id, conversation.id, "c", false);
+
+    final TestConnection connection = new TestConnection();
+    final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+
+    assertTrue(subscriber.catchUp(conversation.id, seen.next, view));
+    assertTrue(subscriber.catchUp(otherConversation.id, otherConversation.firstMessage, view));
+
+    assertEquals(Arrays.asList("c"), connection.pushed());
+  }
+
+  @Test
+  public void testResponseAndUnsubscribe() throws IOException {
+
+    final TestConnection connection = new TestConnection();
+    final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+    subscriber.respond();
+    subscriptions.follow(subscriber, Arrays.asList(conversation.id));
+
+    controller.newMessage(user.id, conversation.id, "a", false);
+
+    // The response is sent before any message and carries the id.
+    assertEquals(Arrays.asList("response", "a"), connection.pushed());
+    assertTrue(Uuids.equals(subscriber.id, connection.responseId));
+
+    // Another subscriber's id does not end this one.
+    final Subscriptions.Subscriber other = subscriptions.add(new TestConnection());
+    assertFalse(Uuids.equals(subscriber.id, other.id));
+    assertTrue(subscriptions.remove(other.id));
+    assertFalse(connection.closed);
+
+    assertTrue(subscriptions.remove(connection.responseId));
+    assertTrue(connection.closed);
+  }
+
+  @Test
+  public void testQueuedMessageIsCopied() throws IOException {
+
+    final List<Runnable> waiting = new ArrayList<>();
+    subscriptions = new Subscriptions(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        waiting.add(task);
+      }
+    }, 4);
+
+    final TestConnection connection = new TestConnection();
+    final Subscriptions.Subscriber subscriber = subscriptions.add(connection);
+    subscriptions.follow(subscriber, Arrays.asList(conversation.id));
+
+    final Message message =
+        new Message(Uuids.NULL, Uuids.NULL, Uuids.NULL, Time.fromMs(0), user.id, "m");
+    subscriptions.onMessage(conversation.id, message);
+
+    // A later message is linked to it before it is sent.
+    message.next = user.id;
+
+    waiting.get(0).run();
+
+    assertEquals(Arrays.asList("m"), connection.pushed());
+    assertTrue(Uuids.equals(Uuids.NULL, connection.sent.get(0).next));
+  }
+
+  private static final class TestConnection implements Connection {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    boolean closed = false;
+
+    // Set by "pushed".
+    Uuid responseId;
+    final List<Message> sent = new ArrayList<>();
+
+    @Override
+    public InputStream in() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public OutputStream out() {
+      return out;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    // The content of each message pushed so far, with null for the end of
+    // the stream and "response" for the response to the subscribe request.
+    List<String> pushed() throws IOException {
+
+      final InputStream in = new ByteArrayInputStream(out.toByteArray());
+      final List<String> pushed = new ArrayList<>();
+
+      sent.clear();
+
+      while (in.available() > 0) {
+        final int type = Serializers.INTEGER.read(in);
+        if (type == NetworkCode.SUBSCRIPTION_END) {
+          pushed.add(null);
+        } else if (type == NetworkCode.SUBSCRIBE_RESPONSE) {
+          responseId = Uuids.SERIALIZER.read(in);
+          pushed.add("response");
+        } else {
+          assertEquals(NetworkCode.SUBSCRIPTION_MESSAGE, type);
+          Uuids.SERIALIZER.read(in);
+          final Message message = Message.SERIALIZER.read(in);
+          sent.add(message);
+          pushed.add(message.content);
+        }
+      }
+
+      return pushed;
+    }
+  }
+}
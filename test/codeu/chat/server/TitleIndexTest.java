@@ -0,0 +1,104 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.common.Conversation;
+import codeu.chat.common.Time;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+
+public final class TitleIndexTest {
+
+  private TitleIndex index;
+
+  @Before
+  public void doBefore() {
+
+    final Model model = new Model();
+
+    final String[] titles = { "Lunch plans", "lunchtime", "Dinner", "After lunch", "Breakfast" };
+    for (int i = 0; i < titles.length; i++) {
+      model.add(new Conversation(newTestId(i + 1), Uuids.NULL, Time.fromMs(i), titles[i]));
+    }
+
+    index = model.conversationByTitle();
+  }
+
+  @Test
+  public void testPrefix() {
+    assertEquals(Arrays.asList("Lunch plans", "lunchtime"), titles(index.prefix("LUNCH", 0, 10)));
+    assertEquals(Arrays.asList("lunchtime"), titles(index.prefix("lunch", 1, 10)));
+    assertTrue(index.prefix("zzz", 0, 10).isEmpty());
+  }
+
+  @Test
+  public void testSubstring() {
+    assertEquals(Arrays.asList("Lunch plans", "lunchtime", "After lunch"),
+                 titles(index.substring("lunch", 0, 10)));
+    assertEquals(Arrays.asList("lunchtime"), titles(index.substring("Lunch", 1, 1)));
+    assertEquals(Arrays.asList("Dinner", "After lunch"), titles(index.substring("n", 2, 10)));
+
+    // Has every trigram of the query, but not in order.
+    assertTrue(index.substring("planslunch", 0, 10).isEmpty());
+  }
+
+  @Test
+  public void testRegex() {
+    assertEquals(Arrays.asList("Lunch plans", "After lunch"),
+                 titles(index.regex(".* .*", 0, 10, 1000)));
+  }
+
+  @Test
+  public void testRegexTimeout() {
+
+    final Model model = new Model();
+    final StringBuilder title = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      title.append('a');
+    }
+    model.add(new Conversation(newTestId(1), Uuids.NULL, Time.fromMs(0), title.toString()));
+
+    // Backtracks for far longer than the test would run without a time limit.
+    final long start = System.currentTimeMillis();
+    assertTrue(model.conversationByTitle().regex("(a|aa)+b", 0, 10, 50).isEmpty());
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  private static List<String> titles(List<Conversation> conversations) {
+    final List<String> titles = new ArrayList<>();
+    for (final Conversation conversation : conversations) {
+      titles.add(conversation.title);
+    }
+    return titles;
+  }
+
+  private static Uuid newTestId(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
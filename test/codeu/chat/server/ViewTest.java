@@ -0,0 +1,251 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+import codeu.chat.common.ConversationChanges;
+import codeu.chat.common.ConversationSummary;
+import codeu.chat.common.Message;
+import codeu.chat.common.Time;
+import codeu.chat.common.UserChanges;
+import codeu.chat.common.Uuid;
+import codeu.chat.common.Uuids;
+
+public final class ViewTest {
+
+  private Model model;
+  private Controller controller;
+  private View view;
+
+  private Uuid conversation;
+  private Uuid otherConversation;
+
+  @Before
+  public void doBefore() {
+
+    model = new Model();
+    controller = new Controller(Uuids.NULL, model);
+    view = new View(model);
+
+    final Uuid user = newTestId(1);
+    conversation = newTestId(2);
+    otherConversation = newTestId(3);
+
+    controller.newUser(user, "user", "password", Time.fromMs(0), false);
+    controller.newConversation(conversation, "one", user, Time.fromMs(0), false);
+    controller.newConversation(otherConversation, "two", user, Time.fromMs(0), false);
+
+    for (int i = 0; i < 100; i++) {
+      controller.newMessage(newTestId(100 + i), user, conversation, "m" + i, Time.fromMs(i), false);
+      controller.newMessage(newTestId(200 + i), user, otherConversation, "o" + i, Time.fromMs(i), false);
+    }
+  }
+
+  @Test
+  public void testMessagesByTime() {
+
+    final List<String> found = new ArrayList<>();
+    for (final Message message : view.getMessages(conversation, Time.fromMs(40), Time.fromMs(42))) {
+      found.add(message.content);
+    }
+
+    final List<String> expected = new ArrayList<>();
+    expected.add("m40");
+    expected.add("m41");
+    expected.add("m42");
+
+    assertEquals(expected, found);
+  }
+
+  @Test
+  public void testMessagesByTimeUnknownConversation() {
+    assertTrue(view.getMessages(newTestId(4), Time.fromMs(0), Time.fromMs(100)).isEmpty());
+  }
+
+  @Test
+  public void testMessagesByPosition() {
+
+    assertEquals(100, view.getMessageCount(conversation));
+
+    assertContents(view.getMessages(conversation, 10, 3), "m10", "m11", "m12");
+    assertContents(view.getMessages(conversation, 98, 5), "m98", "m99");
+    assertContents(view.getMessages(conversation, 100, 5));
+    assertContents(view.getMessages(conversation, -1, 5));
+  }
+
+  @Test
+  public void testLastMessages() {
+    assertContents(view.getLastMessages(conversation, 2), "m98", "m99");
+    assertContents(view.getLastMessages(otherConversation, 1), "o99");
+    assertEquals(100, view.getLastMessages(conversation, 500).size());
+    assertEquals(0, view.getMessageCount(newTestId(4)));
+  }
+
+  @Test
+  public void testSearchMessages() {
+
+    final Uuid user = newTestId(1);
+    controller.newMessage(newTestId(300), user, conversation, "Lunch at noon?", Time.fromMs(100), false);
+    controller.newMessage(newTestId(301), user, otherConversation, "noon works", Time.fromMs(101), false);
+    controller.newMessage(newTestId(302), user, conversation, "NOON, lunch!", Time.fromMs(102), false);
+
+    assertContents(view.searchMessages(conversation, "lunch noon", 0, 10),
+                   "NOON, lunch!", "Lunch at noon?");
+    assertContents(view.searchMessages(conversation, "lunch noon", 1, 10), "Lunch at noon?");
+    assertContents(view.searchMessages(Uuids.NULL, "noon", 0, 2), "NOON, lunch!", "noon works");
+    assertContents(view.searchMessages(conversation, "m42", 0, 10), "m42");
+    assertContents(view.searchMessages(conversation, "lunch dinner", 0, 10));
+  }
+
+  @Test
+  public void testOldestMessagesMoveToHistory() {
+
+    // A budget big enough that nothing is dropped, as there is no database to
+    // read dropped segments back from.
+    final Model model = new Model();
+    final Controller controller = new Controller(Uuids.NULL, model);
+    final History history = new History(null, 10, 10, 1024L * 1024L);
+    final View view = new View(model, history);
+
+    final Uuid user = newTestId(1);
+    controller.newUser(user, "user", "password", Time.fromMs(0), false);
+    controller.newConversation(conversation, "one", user, Time.fromMs(0), false);
+
+    for (int i = 0; i < 100; i++) {
+      final Message message =
+          controller.newMessage(newTestId(100 + i), user, conversation, "m" + i, Time.fromMs(i), false);
+      history.added(model, conversation, message);
+
+      // The model never holds more than the window and one segment.
+      final int resident = model.messageByPosition(conversation).size();
+      assertTrue(resident >= Math.min(i + 1, 10) && resident < 20);
+    }
+
+    assertEquals(90, history.archivedCount(conversation));
+    assertNull(model.messageById().first(newTestId(100)));
+    assertTrue(model.messageByText().search(conversation, "m0", 0, 10).isEmpty());
+
+    assertEquals(100, view.getMessageCount(conversation));
+    assertContents(view.getMessages(conversation, 88, 4), "m88", "m89", "m90", "m91");
+    assertContents(view.getMessages(newTestId(100), 2), "m0", "m1", "m2");
+    assertContents(view.getMessages(newTestId(188), 3), "m88", "m89", "m90", "m91");
+  }
+
+  @Test
+  public void testBudgetMovesIdleConversationsOut() {
+
+    // Each message is counted as 200 bytes and two per character, so this
+    // budget holds 50 messages.
+    final Model model = new Model();
+    final Controller controller = new Controller(Uuids.NULL, model);
+    final History history = new History(null, 20, 10, 50 * 202);
+
+    final Uuid user = newTestId(1);
+    final Uuid idle = newTestId(4);
+    final Uuid busy = newTestId(5);
+    controller.newUser(user, "user", "password", Time.fromMs(0), false);
+    controller.newConversation(idle, "idle", user, Time.fromMs(0), false);
+    controller.newConversation(busy, "busy", user, Time.fromMs(0), false);
+
+    for (int i = 0; i < 30; i++) {
+      history.added(model, idle, controller.newMessage(
+          newTestId(100 + i), user, idle, "a", Time.fromMs(i), false));
+    }
+
+    assertEquals(20, model.messageByPosition(idle).size());
+
+    for (int i = 0; i < 30; i++) {
+      history.added(model, busy, controller.newMessage(
+          newTestId(200 + i), user, busy, "b", Time.fromMs(100 + i), false));
+    }
+
+    // The busy conversation keeps its window, and whole segments of the idle
+    // one were moved out of the model to make room for it.
+    assertEquals(20, model.messageByPosition(busy).size());
+    assertEquals(10, model.messageByPosition(idle).size());
+    assertEquals(20, history.archivedCount(idle));
+    assertEquals(30, new View(model, history).getMessageCount(idle));
+  }
+
+  @Test
+  public void testUserChanges() {
+
+    final UserChanges all = view.getUserChanges(Uuids.NULL);
+    assertTrue(all.full);
+    assertEquals(1, all.users.size());
+
+    controller.newUser(newTestId(5), "other", "password", Time.fromMs(1), false);
+
+    final UserChanges added = view.getUserChanges(all.generation);
+    assertFalse(added.full);
+    assertEquals(1, added.users.size());
+    assertEquals("other", added.users.iterator().next().name);
+
+    final UserChanges none = view.getUserChanges(added.generation);
+    assertFalse(none.full);
+    assertTrue(none.users.isEmpty());
+    assertTrue(Uuids.equals(added.generation, none.generation));
+  }
+
+  @Test
+  public void testConversationChanges() {
+
+    final ConversationChanges all = view.getConversationChanges(0, 0);
+    assertTrue(all.full);
+    assertEquals(2, all.summaries.size());
+
+    final ConversationChanges none = view.getConversationChanges(all.epoch, all.version);
+    assertFalse(none.full);
+    assertTrue(none.summaries.isEmpty());
+
+    controller.newMessage(newTestId(300), newTestId(1), otherConversation, "new", Time.fromMs(500), false);
+
+    final ConversationChanges changed = view.getConversationChanges(all.epoch, all.version);
+    assertFalse(changed.full);
+    assertEquals(1, changed.summaries.size());
+
+    final ConversationSummary summary = changed.summaries.iterator().next();
+    assertTrue(Uuids.equals(otherConversation, summary.id));
+    assertEquals(500, summary.lastActivity.inMs());
+
+    // A version from another epoch is not trusted.
+    assertTrue(view.getConversationChanges(all.epoch + 1, all.version).full);
+  }
+
+  private static void assertContents(Iterable<Message> messages, String... expected) {
+    final List<String> found = new ArrayList<>();
+    for (final Message message : messages) {
+      found.add(message.content);
+    }
+    assertEquals(Arrays.asList(expected), found);
+  }
+
+  private static Uuid newTestId(final int id) {
+    return Uuids.complete(new Uuid() {
+      @Override
+      public Uuid root() { return null; }
+      @Override
+      public int id() { return id; }
+    });
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class SerializersTest {
+
+  @Test
+  public void testIntegerRoundTrip() throws IOException {
+
+    final int[] values = { 0, 1, -1, 255, 256, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+    for (final int value : values) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Serializers.INTEGER.write(out, value);
+
+      assertEquals(4, out.size());
+      assertEquals(value, (int) Serializers.INTEGER.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+  }
+
+  @Test
+  public void testLongRoundTrip() throws IOException {
+
+    final long[] values = { 0L, 1L, -1L, 1L << 40, Long.MAX_VALUE, Long.MIN_VALUE };
+
+    for (final long value : values) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Serializers.LONG.write(out, value);
+
+      assertEquals(8, out.size());
+      assertEquals(value, (long) Serializers.LONG.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+  }
+
+  @Test
+  public void testBytesRoundTrip() throws IOException {
+
+    final byte[] value = new byte[10000];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.BYTES.write(out, value);
+
+    final byte[] read = Serializers.BYTES.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertTrue(Arrays.equals(value, read));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testIntegerEndOfStream() throws IOException {
+    Serializers.INTEGER.read(new ByteArrayInputStream(new byte[] { 0x00, 0x01 }));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testBytesEndOfStream() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.BYTES.write(out, new byte[] { 0x01, 0x02, 0x03 });
+
+    final byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+
+    Serializers.BYTES.read(new ByteArrayInputStream(truncated));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testNullableEndOfStream() throws IOException {
+    Serializers.nullable(Serializers.INTEGER).read(new ByteArrayInputStream(new byte[0]));
+  }
+}
@@ -0,0 +1,310 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Serializers;
+
+public final class MultiplexerTest {
+
+  private ServerSocket serverSocket;
+  private MultiplexedConnectionSource source;
+  private final AtomicInteger sockets = new AtomicInteger();
+
+  // Each request is a single number. A positive number is sent back doubled
+  // after waiting that many milliseconds, zero is answered with nothing and a
+  // negative number makes the handler throw.
+  @Before
+  public void doBefore() throws Exception {
+
+    serverSocket = new ServerSocket(0);
+
+    final Thread server = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            serve(fromSocket(serverSocket.accept()));
+          }
+        } catch (IOException ex) {
+          // The test is over.
+        }
+      }
+    };
+    server.setDaemon(true);
+    server.start();
+
+    final ConnectionSource counted = new ClientConnectionSource("localhost", serverSocket.getLocalPort());
+
+    source = new MultiplexedConnectionSource(new ConnectionSource() {
+      @Override
+      public Connection connect() throws IOException {
+        sockets.incrementAndGet();
+        return counted.connect();
+      }
+      @Override
+      public void close() throws IOException {
+        counted.close();
+      }
+    });
+  }
+
+  @After
+  public void doAfter() throws Exception {
+    source.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testFrameRoundTrip() throws Exception {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    Frame.SERIALIZER.write(out, new Frame(7, new byte[] { 1, 2, 3 }));
+    Frame.SERIALIZER.write(out, Frame.end(7));
+    Frame.SERIALIZER.write(out, Frame.error(8, "failed"));
+
+    final InputStream in = new ByteArrayInputStream(out.toByteArray());
+
+    final Frame data = Frame.SERIALIZER.read(in);
+    assertEquals(7, data.id);
+    assertEquals(Frame.DATA, data.kind);
+    assertArrayEquals(new byte[] { 1, 2, 3 }, data.payload);
+
+    final Frame end = Frame.SERIALIZER.read(in);
+    assertEquals(7, end.id);
+    assertEquals(Frame.END, end.kind);
+    assertEquals(0, end.payload.length);
+
+    final Frame error = Frame.SERIALIZER.read(in);
+    assertEquals(8, error.id);
+    assertEquals(Frame.ERROR, error.kind);
+    assertEquals("failed", new String(error.payload, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testOversizedFrameIsRefused() throws Exception {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, 7);
+    Serializers.INTEGER.write(out, Frame.DATA);
+    Serializers.INTEGER.write(out, Frame.MAX_PAYLOAD_SIZE + 1);
+
+    try {
+      Frame.SERIALIZER.read(new ByteArrayInputStream(out.toByteArray()));
+      fail("A frame larger than the limit was read.");
+    } catch (IOException ex) {
+      // Refused from the length alone, before the payload was read.
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testRoundTrip() throws Exception {
+    assertEquals(42, request(21));
+    assertEquals(84, request(42));
+    assertEquals(1, sockets.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testResponsesArriveOutOfOrder() throws Exception {
+
+    final Connection slow = send(500);
+    final Connection fast = send(1);
+
+    // The fast response must not wait behind the slow one.
+    final long start = System.currentTimeMillis();
+    assertEquals(2, (int) Serializers.INTEGER.read(fast.in()));
+    assertTrue(System.currentTimeMillis() - start < 500);
+    fast.close();
+
+    assertEquals(1000, (int) Serializers.INTEGER.read(slow.in()));
+    slow.close();
+
+    assertEquals(1, sockets.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testManyInterleavedRequests() throws Exception {
+
+    final Connection[] connections = new Connection[20];
+    for (int i = 0; i < connections.length; i++) {
+      // Later requests finish first.
+      connections[i] = send(5 * (connections.length - i));
+    }
+
+    for (int i = 0; i < connections.length; i++) {
+      assertEquals(10 * (connections.length - i), (int) Serializers.INTEGER.read(connections[i].in()));
+      assertEquals(-1, connections[i].in().read());
+      connections[i].close();
+    }
+
+    assertEquals(1, sockets.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testEmptyResponseEndsStream() throws Exception {
+
+    final Connection connection = send(0);
+    assertEquals(-1, connection.in().read());
+    connection.close();
+
+    // The connection is still usable.
+    assertEquals(6, request(3));
+  }
+
+  @Test(timeout = 10000)
+  public void testHandlerFailureFailsStream() throws Exception {
+
+    final Connection connection = send(-1);
+
+    try {
+      connection.in().read();
+      fail("Expected the response to fail.");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("Server failed request"));
+    }
+
+    connection.close();
+
+    // Other requests are not affected.
+    assertEquals(8, request(4));
+  }
+
+  @Test(timeout = 10000)
+  public void testLostConnectionFailsStream() throws Exception {
+
+    final Connection connection = send(5000);
+
+    // Wait for the server to have the request before closing it down.
+    Thread.sleep(100);
+    source.close();
+
+    try {
+      connection.in().read();
+      fail("Expected the response to fail.");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  private int request(int value) throws IOException {
+    try (final Connection connection = send(value)) {
+      return Serializers.INTEGER.read(connection.in());
+    }
+  }
+
+  private Connection send(int value) throws IOException {
+    final Connection connection = source.connect();
+    Serializers.INTEGER.write(connection.out(), value);
+    connection.out().flush();
+    // Asking for the input sends the request.
+    connection.in();
+    return connection;
+  }
+
+  private static void serve(final Connection connection) throws IOException {
+
+    if (Serializers.INTEGER.read(connection.in()) != NetworkCode.MULTIPLEX_OPEN_REQUEST) {
+      connection.close();
+      return;
+    }
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.MULTIPLEX_OPEN_RESPONSE);
+    connection.out().flush();
+
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Multiplexer.serve(connection, new Multiplexer.Handler() {
+            @Override
+            public void handleConnection(final Connection frame) {
+              handle(frame);
+            }
+          });
+          connection.close();
+        } catch (IOException ex) {
+          // The test is over.
+        }
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private static void handle(final Connection frame) {
+
+    final int value;
+
+    try {
+      value = Serializers.INTEGER.read(frame.in());
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative request");
+    }
+
+    final Thread worker = new Thread() {
+      @Override
+      public void run() {
+        try {
+          if (value > 0) {
+            Thread.sleep(value);
+            Serializers.INTEGER.write(frame.out(), value * 2);
+          }
+          frame.close();
+        } catch (Exception ex) {
+          // The test is over.
+        }
+      }
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  private static Connection fromSocket(final Socket socket) throws IOException {
+
+    final InputStream in = new BufferedInputStream(socket.getInputStream());
+    final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+    return new Connection() {
+      @Override
+      public InputStream in() { return in; }
+      @Override
+      public OutputStream out() { return out; }
+      @Override
+      public void close() throws IOException { socket.close(); }
+    };
+  }
+}
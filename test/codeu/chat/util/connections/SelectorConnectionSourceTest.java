@@ -0,0 +1,212 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Serializers;
+
+public final class SelectorConnectionSourceTest {
+
+  private int port;
+  private ConnectionSource source;
+
+  // Bytes the handler has managed to send for "flood" requests.
+  private final AtomicLong flooded = new AtomicLong();
+
+  // Each request is a code and a payload. ECHO sends back the payload's
+  // length and FLOOD sends back 64 KB chunks until 64 MB have been sent.
+  private static final int ECHO = 1;
+  private static final int FLOOD = 2;
+
+  @Before
+  public void doBefore() throws Exception {
+
+    // Find a free port for the selector to bind to.
+    try (final ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+
+    source = SelectorConnectionSource.forPort(port);
+
+    final Thread server = new Thread() {
+      @Override
+      public void run() {
+        while (true) {
+          final Connection connection;
+          try {
+            connection = source.connect();
+          } catch (IOException ex) {
+            return;  // The test is over.
+          }
+          handle(connection);
+        }
+      }
+    };
+    server.setDaemon(true);
+    server.start();
+  }
+
+  @After
+  public void doAfter() throws Exception {
+    source.close();
+  }
+
+  @Test(timeout = 10000)
+  public void testMultiplexedRequests() throws Exception {
+
+    final MultiplexedConnectionSource client =
+        new MultiplexedConnectionSource(new ClientConnectionSource("localhost", port));
+
+    try {
+      for (int i = 0; i < 10; i++) {
+        assertEquals(i * 10, echo(client, new byte[i * 10]));
+      }
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testOneShotRequest() throws Exception {
+
+    final ConnectionSource client = new ClientConnectionSource("localhost", port);
+
+    assertEquals(100, echo(client, new byte[100]));
+    assertEquals(200, echo(client, new byte[200]));
+  }
+
+  @Test(timeout = 10000)
+  public void testLargeFrame() throws Exception {
+
+    final MultiplexedConnectionSource client =
+        new MultiplexedConnectionSource(new ClientConnectionSource("localhost", port));
+
+    try {
+      assertEquals(4 * 1024 * 1024, echo(client, new byte[4 * 1024 * 1024]));
+      // Smaller frames still work after the buffer was given back.
+      assertEquals(10, echo(client, new byte[10]));
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testSlowReaderBlocksSender() throws Exception {
+
+    // A client that asks for a lot and never reads any of it.
+    try (final Socket socket = new Socket("localhost", port)) {
+
+      final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+      out.writeInt(NetworkCode.MULTIPLEX_OPEN_REQUEST);
+      writeFrame(out, 1, FLOOD, new byte[0]);
+      out.flush();
+
+      // Wait for the handler to be stopped by the client not reading.
+      while (flooded.get() == 0) {
+        Thread.sleep(10);
+      }
+
+      long last = -1;
+      while (flooded.get() != last) {
+        last = flooded.get();
+        Thread.sleep(500);
+      }
+
+      // The bytes the handler got out are the ones that fit in the socket's
+      // buffers and the connection's limit, nowhere near all of them.
+      assertTrue(last > 0);
+      assertTrue(last < 32L * 1024 * 1024);
+
+      // Once the client reads, the handler carries on.
+      final DataInputStream in = new DataInputStream(socket.getInputStream());
+      assertEquals(NetworkCode.MULTIPLEX_OPEN_RESPONSE, in.readInt());
+
+      for (int i = 0; i < 64; i++) {
+        in.readInt();  // id
+        in.readInt();  // kind
+        in.readFully(new byte[in.readInt()]);
+      }
+
+      assertTrue(flooded.get() > last);
+    }
+  }
+
+  private static int echo(ConnectionSource client, byte[] payload) throws IOException {
+    try (final Connection connection = client.connect()) {
+      Serializers.INTEGER.write(connection.out(), ECHO);
+      Serializers.BYTES.write(connection.out(), payload);
+      connection.out().flush();
+      return Serializers.INTEGER.read(connection.in());
+    }
+  }
+
+  private static void writeFrame(DataOutputStream out, int id, int code, byte[] payload)
+      throws IOException {
+    out.writeInt(id);
+    out.writeInt(Frame.DATA);
+    out.writeInt(8 + payload.length);
+    out.writeInt(code);
+    out.writeInt(payload.length);
+    out.write(payload);
+  }
+
+  private void handle(final Connection connection) {
+
+    final Thread handler = new Thread() {
+      @Override
+      public void run() {
+        try {
+
+          final int code = Serializers.INTEGER.read(connection.in());
+          final byte[] payload = Serializers.BYTES.read(connection.in());
+          final OutputStream out = connection.out();
+
+          if (code == ECHO) {
+            Serializers.INTEGER.write(out, payload.length);
+            out.flush();
+          } else if (code == FLOOD) {
+            final byte[] chunk = new byte[64 * 1024];
+            for (int i = 0; i < 1024; i++) {
+              out.write(chunk);
+              out.flush();
+              flooded.addAndGet(chunk.length);
+            }
+          }
+
+          connection.close();
+
+        } catch (IOException ex) {
+          // The client went away.
+        }
+      }
+    };
+    handler.setDaemon(true);
+    handler.start();
+  }
+}
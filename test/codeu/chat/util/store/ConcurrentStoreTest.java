@@ -0,0 +1,133 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package codeu.chat.util.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public final class ConcurrentStoreTest {
+
+  private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) { return a.compareTo(b); }
+  };
+
+  private static final int VALUES = 50000;
+  private static final int KEYS = 100;
+  private static final int READERS = 4;
+
+  // Value "i" is always added with this key so readers can work out what
+  // they should have seen.
+  private static int keyOf(int value) {
+    return (value * 7919) % KEYS;
+  }
+
+  // Hammer "range" from several threads while values are being added. Values
+  // are added in order (0, 1, 2, ...), so if a reader saw value "n" it must
+  // also have seen every value before "n" that is in its range, and nothing
+  // else. Within the range, values must come in key order and then in the
+  // order they were added.
+  @Test
+  public void testRangeWhileInserting() throws Exception {
+
+    final ConcurrentStore<Integer, Integer> store = new ConcurrentStore<>(COMPARATOR);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < VALUES; i++) {
+          store.insert(keyOf(i), i);
+        }
+      }
+    };
+
+    final List<Thread> readers = new ArrayList<>();
+
+    for (int r = 0; r < READERS; r++) {
+      final int seed = r;
+      readers.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            int round = 0;
+            while (writer.isAlive() || round < 10) {
+              final int start = (seed * 13 + round * 7) % KEYS;
+              final int end = Math.min(KEYS - 1, start + 20);
+              checkSnapshot(store.range(start, end), start, end);
+              round += 1;
+            }
+          } catch (Throwable ex) {
+            failure.compareAndSet(null, ex);
+          }
+        }
+      });
+    }
+
+    for (final Thread reader : readers) {
+      reader.start();
+    }
+    writer.start();
+
+    writer.join();
+    for (final Thread reader : readers) {
+      reader.join();
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+
+    checkSnapshot(store.all(), 0, KEYS - 1);
+    assertEquals(Integer.valueOf(0), store.first(keyOf(0)));
+  }
+
+  private static void checkSnapshot(Iterable<Integer> values, int start, int end) {
+
+    int previousKey = Integer.MIN_VALUE;
+    int previousValue = -1;
+    int highest = -1;
+    int count = 0;
+
+    for (final Integer value : values) {
+
+      final int key = keyOf(value);
+
+      assertTrue(key >= start && key <= end);
+      assertTrue(key > previousKey || (key == previousKey && value > previousValue));
+
+      previousKey = key;
+      previousValue = value;
+      highest = Math.max(highest, value);
+      count += 1;
+    }
+
+    int expected = 0;
+    for (int i = 0; i <= highest; i++) {
+      final int key = keyOf(i);
+      if (key >= start && key <= end) {
+        expected += 1;
+      }
+    }
+
+    assertEquals(expected, count);
+  }
+}
@@ -14,12 +14,24 @@
 
 package codeu.chat.util.store;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+// Every store implementation must pass the same tests.
+@RunWith(Parameterized.class)
 public final class StoreTest {
 
   private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
@@ -27,11 +39,44 @@ public final class StoreTest {
     public int compare(Integer a, Integer b) { return a.compareTo(b); }
   };
 
-  private Store<Integer, Integer> store;
+  private interface Factory {
+    WritableStore<Integer, Integer> create();
+  }
+
+  @Parameters
+  public static Collection<Object[]> stores() {
+    return Arrays.asList(new Object[][] {
+      { new Factory() {
+          @Override
+          public WritableStore<Integer, Integer> create() { return new Store<>(COMPARATOR); }
+        } },
+      { new Factory() {
+          @Override
+          public WritableStore<Integer, Integer> create() { return new SortedArrayStore<>(COMPARATOR); }
+        } },
+      // A small chunk size so that chunks are split during the tests.
+      { new Factory() {
+          @Override
+          public WritableStore<Integer, Integer> create() { return new SortedArrayStore<>(COMPARATOR, 2); }
+        } },
+      { new Factory() {
+          @Override
+          public WritableStore<Integer, Integer> create() { return new ConcurrentStore<>(COMPARATOR); }
+        } }
+    });
+  }
+
+  private final Factory factory;
+
+  private WritableStore<Integer, Integer> store;
+
+  public StoreTest(Factory factory) {
+    this.factory = factory;
+  }
 
   @Before
   public void doBefore() {
-    store = new Store<>(COMPARATOR);
+    store = factory.create();
   }
 
   @Test
@@ -147,6 +192,172 @@ public final class StoreTest {
     assertTrue(store.first(4) == 40);
   }
 
+  @Test
+  public void testInsertAll() {
+
+    final List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(3, 30));
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(0, 0));
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(2, 21));
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(4, 40));
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(2, 22));
+
+    store.insertAll(entries);
+
+    final int[] order = { 0, 21, 22, 30, 40 };
+    assertOrder(store.all(), order);
+    assertTrue(store.first(2) == 21);
+  }
+
+  @Test
+  public void testInsertAllMerge() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(4, 40);
+
+    final List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(0, 0));
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(2, 21));
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(3, 30));
+    entries.add(new AbstractMap.SimpleImmutableEntry<>(5, 50));
+
+    store.insertAll(entries);
+
+    final int[] order = { 0, 10, 20, 21, 30, 40, 50 };
+    assertOrder(store.all(), order);
+
+    final int[] at = { 20, 21 };
+    assertOrder(store.at(2), at);
+
+    assertTrue(store.first(0) == 0);
+    assertTrue(store.first(2) == 20);
+    assertTrue(store.first(3) == 30);
+  }
+
+  @Test
+  public void testManyDuplicates() {
+
+    for (int i = 0; i < 1000; i++) {
+      store.insert(i % 3, i);
+    }
+
+    int count = 0;
+    int previous = -1;
+    for (final Integer value : store.at(1)) {
+      assertTrue(value % 3 == 1);
+      assertTrue(value > previous);
+      previous = value;
+      count += 1;
+    }
+
+    assertEquals(333, count);
+    assertTrue(store.first(2) == 2);
+  }
+
+  @Test
+  public void testRandomRanges() {
+
+    final Random random = new Random(42);
+    final List<int[]> added = new ArrayList<>();
+
+    for (int i = 0; i < 500; i++) {
+      final int key = random.nextInt(50);
+      store.insert(key, i);
+      added.add(new int[] { key, i });
+    }
+
+    for (int i = 0; i < 50; i++) {
+
+      final int start = random.nextInt(60) - 5;
+      final int end = start + random.nextInt(20);
+
+      // Values in key order, and in the order they were added for equal keys.
+      final List<Integer> expected = new ArrayList<>();
+      for (int key = start; key <= end; key++) {
+        for (final int[] entry : added) {
+          if (entry[0] == key) {
+            expected.add(entry[1]);
+          }
+        }
+      }
+
+      final List<Integer> actual = new ArrayList<>();
+      for (final Integer value : store.range(start, end)) {
+        actual.add(value);
+      }
+
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testRemove() {
+
+    for (int i = 0; i < 10; i++) {
+      store.insert(i, i * 10);
+    }
+
+    assertTrue(store.remove(0, 0));
+    assertTrue(store.remove(5, 50));
+    assertTrue(store.remove(9, 90));
+
+    // Already removed, or under the wrong key.
+    assertFalse(store.remove(5, 50));
+    assertFalse(store.remove(4, 30));
+
+    final int[] order = { 10, 20, 30, 40, 60, 70, 80 };
+    assertOrder(store.all(), order);
+
+    assertNull(store.first(5));
+    assertTrue(store.first(6) == 60);
+  }
+
+  @Test
+  public void testRemoveDuplicates() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(2, 22);
+    store.insert(3, 30);
+
+    assertTrue(store.remove(2, 21));
+    assertOrder(store.at(2), new int[] { 20, 22 });
+
+    assertTrue(store.remove(2, 20));
+    assertTrue(store.first(2) == 22);
+
+    assertTrue(store.remove(2, 22));
+    assertNull(store.first(2));
+
+    assertOrder(store.all(), new int[] { 10, 30 });
+  }
+
+  @Test
+  public void testRemoveAll() {
+
+    for (int i = 0; i < 100; i++) {
+      store.insert(i % 7, i);
+    }
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(store.remove(i % 7, i));
+    }
+
+    assertOrder(store.all(), new int[0]);
+
+    store.insert(3, 30);
+    assertOrder(store.all(), new int[] { 30 });
+  }
+
+  @Test
+  public void testEmpty() {
+    assertNull(store.first(0));
+    assertOrder(store.all(), new int[0]);
+    assertOrder(store.range(0, 10), new int[0]);
+  }
+
   private static void assertOrder(Iterable<Integer> actual, int[] expected) {
 
     int at = 0;